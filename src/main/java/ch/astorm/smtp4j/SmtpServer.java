@@ -3,11 +3,13 @@ package ch.astorm.smtp4j;
 
 import ch.astorm.smtp4j.SmtpServerOptions.Protocol;
 import ch.astorm.smtp4j.connection.ConnectionListener;
+import ch.astorm.smtp4j.core.DuplicateDetector;
 import ch.astorm.smtp4j.core.SmtpMessage;
 import ch.astorm.smtp4j.core.SmtpMessageHandler;
 import ch.astorm.smtp4j.core.SmtpMessageHandler.SmtpMessageReader;
 import ch.astorm.smtp4j.core.DefaultSmtpMessageHandler;
 import ch.astorm.smtp4j.core.SmtpServerListener;
+import ch.astorm.smtp4j.core.TrafficCounters;
 import ch.astorm.smtp4j.protocol.DefaultSmtpTransactionHandler;
 import ch.astorm.smtp4j.protocol.DefaultSmtpTransactionHandler.MessageReceiver;
 import ch.astorm.smtp4j.protocol.SmtpTransactionHandler;
@@ -21,8 +23,10 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
@@ -44,6 +48,7 @@ public class SmtpServer implements AutoCloseable {
     private final Supplier<ExecutorService> executorSupplier;
     private final SmtpTransactionHandlerFactory handlerFactory;
     private final ConnectionListener connectionListener;
+    private final TrafficCounters trafficCounters;
     
     private volatile SmtpServerOptions options;
     private volatile ServerSocket serverSocket;
@@ -92,6 +97,7 @@ public class SmtpServer implements AutoCloseable {
         this.handlerFactory = handlerFactory!=null ? handlerFactory : (s, m) -> new DefaultSmtpTransactionHandler(s, m);
         this.connectionListener = connectionListener;
         this.serverListeners = new ArrayList<>(4);
+        this.trafficCounters = new TrafficCounters();
         this.options = new SmtpServerOptions();
     }
 
@@ -185,6 +191,16 @@ public class SmtpServer implements AutoCloseable {
         return messageHandler;
     }
 
+    /**
+     * Returns the counters of the traffic received by this server.
+     * The counters are not reset when the server is restarted.
+     *
+     * @return The traffic counters.
+     */
+    public TrafficCounters getTrafficCounters() {
+        return trafficCounters;
+    }
+
     /**
      * Returns a new {@link SmtpMessageReader} to read incoming messages.
      *
@@ -342,8 +358,17 @@ public class SmtpServer implements AutoCloseable {
         serverListeners.forEach(l -> l.notifyClose(this));
     }
 
-    private void notifyMessage(SmtpMessage message) {
-        messageHandler.notifyMessage(this, message);
+    private void notifyMessage(SmtpMessage message, DuplicateDetector duplicateDetector) {
+        try {
+            messageHandler.notifyMessage(this, message);
+        } catch(RuntimeException | Error e) {
+            //the message has not been stored, hence its retry is not a duplicate
+            if(duplicateDetector!=null) { duplicateDetector.cancel(message); }
+            throw e;
+        }
+    }
+
+    private void notifyListeners(SmtpMessage message) {
         serverListeners.forEach(l -> l.notifyMessage(this, message));
     }
 
@@ -377,9 +402,35 @@ public class SmtpServer implements AutoCloseable {
         @Override
         public void run() {
             MessageReceiver receiver = m -> {
-                messageHandlerLock.lock();
-                try { notifyMessage(m); }
-                finally { messageHandlerLock.unlock(); }
+                DuplicateDetector duplicateDetector = options.duplicateDetector;
+                if(duplicateDetector!=null && !duplicateDetector.accept(m)) {
+                    m.deleteAttachments();
+                    return;
+                }
+
+                Executor headerDecodingExecutor = options.headerDecodingExecutor;
+                if(headerDecodingExecutor!=null) {
+                    try { headerDecodingExecutor.execute(m::decodeHeaders); }
+                    catch(RejectedExecutionException ree) { LOG.log(Level.FINER, "Eager header decoding rejected", ree); }
+                }
+
+                if(messageHandler.isConcurrent()) {
+                    //the handler has its own synchronization, only the listeners are serialized
+                    notifyMessage(m, duplicateDetector);
+                    if(serverListeners.isEmpty()) { return; }
+
+                    messageHandlerLock.lock();
+                    try { notifyListeners(m); }
+                    finally { messageHandlerLock.unlock(); }
+                } else {
+                    messageHandlerLock.lock();
+                    try {
+                        notifyMessage(m, duplicateDetector);
+                        notifyListeners(m);
+                    } finally {
+                        messageHandlerLock.unlock();
+                    }
+                }
             };
             
             while(serverSocket!=null) {
@@ -1,6 +1,7 @@
 
 package ch.astorm.smtp4j;
 
+import ch.astorm.smtp4j.SmtpServerOptions.CapturePolicy;
 import ch.astorm.smtp4j.SmtpServerOptions.Protocol;
 import ch.astorm.smtp4j.auth.CramMD5AuthenticationHandler;
 import ch.astorm.smtp4j.auth.LoginAuthenticationHandler;
@@ -8,6 +9,10 @@ import ch.astorm.smtp4j.auth.PlainAuthenticationHandler;
 import ch.astorm.smtp4j.auth.SmtpAuthenticatorHandler;
 import ch.astorm.smtp4j.auth.XOAuth2AuthenticationHandler;
 import ch.astorm.smtp4j.connection.ConnectionListener;
+import ch.astorm.smtp4j.core.ContentDigest;
+import ch.astorm.smtp4j.core.DkimVerifier;
+import ch.astorm.smtp4j.core.DuplicateDetector;
+import ch.astorm.smtp4j.core.MessageSampler;
 import ch.astorm.smtp4j.core.SmtpMessageHandler;
 import ch.astorm.smtp4j.core.SmtpServerListener;
 import ch.astorm.smtp4j.protocol.DefaultSmtpTransactionHandler;
@@ -19,10 +24,14 @@ import ch.astorm.smtp4j.store.SimpleUserRepository;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.Socket;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -145,6 +154,113 @@ public class SmtpServerBuilder {
         return this;
     }
     
+    /**
+     * Defines the {@link DuplicateDetector} applied to the received messages. By default,
+     * there is no duplicate detection.
+     *
+     * @param detector The detector or null.
+     * @return This builder.
+     * @see SmtpServerOptions#duplicateDetector
+     */
+    public SmtpServerBuilder withDuplicateDetector(DuplicateDetector detector) {
+        if(options==null) { options = new SmtpServerOptions(); }
+        options.duplicateDetector = detector;
+        return this;
+    }
+    
+    /**
+     * Enables the eager decoding of the hot headers of the received messages on the
+     * common {@code ForkJoinPool}.
+     *
+     * @return This builder.
+     * @see SmtpServerOptions#headerDecodingExecutor
+     */
+    public SmtpServerBuilder withEagerHeaderDecoding() {
+        return withEagerHeaderDecoding(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Defines the {@code Executor} on which the hot headers of the received messages are
+     * decoded in the background. By default, the headers are decoded on the first access.
+     *
+     * @param executor The executor or null.
+     * @return This builder.
+     * @see SmtpServerOptions#headerDecodingExecutor
+     */
+    public SmtpServerBuilder withEagerHeaderDecoding(Executor executor) {
+        if(options==null) { options = new SmtpServerOptions(); }
+        options.headerDecodingExecutor = executor;
+        return this;
+    }
+    
+    /**
+     * Defines the directory in which the attachments are decoded at receive time.
+     * The returned {@link ch.astorm.smtp4j.core.SmtpAttachment} instances will then be backed by files.
+     *
+     * @param directory The attachment directory or null to disable the feature.
+     * @return This builder.
+     * @see SmtpServerOptions#attachmentDirectory
+     */
+    public SmtpServerBuilder withAttachmentDirectory(Path directory) {
+        if(options==null) { options = new SmtpServerOptions(); }
+        options.attachmentDirectory = directory;
+        return this;
+    }
+    
+    /**
+     * Defines the digests computed while the DATA content of the messages is received.
+     *
+     * @param digests The digests.
+     * @return This builder.
+     * @see SmtpServerOptions#contentDigests
+     */
+    public SmtpServerBuilder withContentDigests(ContentDigest... digests) {
+        if(options==null) { options = new SmtpServerOptions(); }
+        options.contentDigests = EnumSet.noneOf(ContentDigest.class);
+        options.contentDigests.addAll(List.of(digests));
+        return this;
+    }
+    
+    /**
+     * Defines the {@code DkimVerifier} that checks the signatures of the received messages.
+     *
+     * @param verifier The verifier or null to disable the verification.
+     * @return This builder.
+     * @see SmtpServerOptions#dkimVerifier
+     */
+    public SmtpServerBuilder withDkimVerifier(DkimVerifier verifier) {
+        if(options==null) { options = new SmtpServerOptions(); }
+        options.dkimVerifier = verifier;
+        return this;
+    }
+    
+    /**
+     * Defines what is kept of the received messages.
+     *
+     * @param policy The capture policy (by default {@link CapturePolicy#FULL}).
+     * @return This builder.
+     * @see SmtpServerOptions#capturePolicy
+     */
+    public SmtpServerBuilder withCapturePolicy(CapturePolicy policy) {
+        if(options==null) { options = new SmtpServerOptions(); }
+        options.capturePolicy = policy;
+        return this;
+    }
+    
+    /**
+     * Defines the {@code MessageSampler} that selects the messages to capture.
+     * The other messages only update the {@link SmtpServer#getTrafficCounters() traffic counters}.
+     *
+     * @param sampler The sampler or null to capture all the messages.
+     * @return This builder.
+     * @see SmtpServerOptions#sampler
+     */
+    public SmtpServerBuilder withSampler(MessageSampler sampler) {
+        if(options==null) { options = new SmtpServerOptions(); }
+        options.sampler = sampler;
+        return this;
+    }
+    
     /**
      * Defines the {@link PrintStream} to use for debugging. If null, then no debug
      * output will be printed.
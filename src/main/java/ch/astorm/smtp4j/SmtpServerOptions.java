@@ -2,14 +2,22 @@
 package ch.astorm.smtp4j;
 
 import ch.astorm.smtp4j.auth.SmtpAuthenticatorHandler;
+import ch.astorm.smtp4j.core.ContentDigest;
+import ch.astorm.smtp4j.core.DkimVerifier;
+import ch.astorm.smtp4j.core.DuplicateDetector;
+import ch.astorm.smtp4j.core.MessageSampler;
 import ch.astorm.smtp4j.protocol.SmtpCommand;
 import ch.astorm.smtp4j.secure.DefaultSSLContextProvider;
 import ch.astorm.smtp4j.secure.SSLContextProvider;
 import ch.astorm.smtp4j.store.SimpleUserRepository;
 import ch.astorm.smtp4j.store.UserRepository;
 import java.io.PrintStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 
 /**
@@ -33,6 +41,32 @@ public class SmtpServerOptions {
         SMTPS
     }
 
+    /**
+     * Represents what is kept of the received messages.
+     */
+    public static enum CapturePolicy {
+        /**
+         * The whole content of the messages is kept.
+         */
+        FULL,
+
+        /**
+         * Only the headers of the messages are kept, along with the envelope and the
+         * {@link ch.astorm.smtp4j.core.SmtpMessage#getBodyLength() body length}. The body
+         * is counted and discarded while it is received, hence no attachment is extracted.
+         * The {@link #contentDigests} and the DKIM verification still apply to the whole content.
+         */
+        HEADERS_ONLY,
+
+        /**
+         * Nothing is kept: the whole protocol is handled (including TLS and authentication) but the
+         * content is discarded while it is received, no {@code SmtpMessage} is created and the exchanges
+         * are not recorded. Only the {@link ch.astorm.smtp4j.SmtpServer#getTrafficCounters() traffic counters}
+         * are updated. This turns the server into a black hole to benchmark the sending side.
+         */
+        COUNTERS_ONLY
+    }
+
     /**
      * Output for internal debugging. This stream will receive all the inputs/outputs
      * of the underlying SMTP protocol.
@@ -104,4 +138,48 @@ public class SmtpServerOptions {
      * The socket timeout in milliseconds.
      */
     public int socketTimeout = 10000;
+
+    /**
+     * The {@code DuplicateDetector} applied to the received messages before they are
+     * stored or null to accept all the messages.
+     */
+    public DuplicateDetector duplicateDetector;
+
+    /**
+     * The {@code Executor} on which the hot headers of the received messages are
+     * {@link ch.astorm.smtp4j.core.SmtpMessage#decodeHeaders() decoded} in the background
+     * or null to decode them on the first access.
+     */
+    public Executor headerDecodingExecutor;
+
+    /**
+     * The directory in which the attachments of the received messages are decoded while
+     * the DATA content is read or null to decode them from the MIME content on demand.
+     * The files are deleted once their {@link ch.astorm.smtp4j.core.SmtpAttachment} has been garbage collected,
+     * or right away when the message is rejected or dropped.
+     */
+    public Path attachmentDirectory;
+
+    /**
+     * The {@link ContentDigest digests} computed while the DATA content of the messages is received.
+     * The other digests are computed on demand.
+     */
+    public Set<ContentDigest> contentDigests = EnumSet.noneOf(ContentDigest.class);
+
+    /**
+     * The {@code DkimVerifier} that checks the signatures of the received messages or null
+     * to disable the verification.
+     */
+    public DkimVerifier dkimVerifier;
+
+    /**
+     * The {@code CapturePolicy} applied to the received messages.
+     */
+    public CapturePolicy capturePolicy = CapturePolicy.FULL;
+
+    /**
+     * The {@code MessageSampler} that selects the messages captured according to the {@link #capturePolicy}
+     * or null to capture all of them. The other messages are only counted and their SMTP exchanges are not recorded.
+     */
+    public MessageSampler sampler;
 }
@@ -0,0 +1,77 @@
+package ch.astorm.smtp4j.core;
+
+import java.util.Arrays;
+
+/**
+ * Bloom filter of 64-bit fingerprints with a fixed capacity.
+ * This class is not Thread-safe.
+ */
+class BloomFilter {
+    private final long[] bits;
+    private final long nbBits;
+    private final int nbHashes;
+
+    /**
+     * Creates a new {@code BloomFilter}.
+     *
+     * @param capacity The expected number of insertions.
+     * @param falsePositiveRate The false positive rate once {@code capacity} fingerprints are inserted.
+     */
+    BloomFilter(int capacity, double falsePositiveRate) {
+        long optimalBits = (long)Math.ceil(-capacity*Math.log(falsePositiveRate)/(Math.log(2)*Math.log(2)));
+        this.bits = new long[(int)Math.max(1, (optimalBits+63)/64)];
+        this.nbBits = bits.length*64L;
+        this.nbHashes = (int)Math.max(1, Math.round((double)nbBits/capacity*Math.log(2)));
+    }
+
+    /**
+     * Adds the given {@code fingerprint}.
+     *
+     * @param fingerprint The fingerprint.
+     */
+    void add(long fingerprint) {
+        //enhanced double hashing, the probes never collapse on a few bits whatever the fingerprint
+        long h1 = fingerprint;
+        long h2 = Long.rotateLeft(fingerprint, 32);
+        for(int i=0 ; i<nbHashes ; ++i) {
+            long index = Math.floorMod(h1, nbBits);
+            bits[(int)(index>>>6)] |= 1L<<index;
+            h1 += h2;
+            h2 += i;
+        }
+    }
+
+    /**
+     * Returns true if the given {@code fingerprint} might have been added.
+     *
+     * @param fingerprint The fingerprint.
+     * @return False if the fingerprint has definitely not been added.
+     */
+    boolean mightContain(long fingerprint) {
+        long h1 = fingerprint;
+        long h2 = Long.rotateLeft(fingerprint, 32);
+        for(int i=0 ; i<nbHashes ; ++i) {
+            long index = Math.floorMod(h1, nbBits);
+            if((bits[(int)(index>>>6)] & (1L<<index))==0) { return false; }
+            h1 += h2;
+            h2 += i;
+        }
+        return true;
+    }
+
+    /**
+     * Removes all the fingerprints.
+     */
+    void clear() {
+        Arrays.fill(bits, 0);
+    }
+
+    /**
+     * Returns the size of this filter in bytes.
+     *
+     * @return The size.
+     */
+    long sizeInBytes() {
+        return bits.length*8L;
+    }
+}
@@ -0,0 +1,92 @@
+package ch.astorm.smtp4j.core;
+
+import jakarta.mail.internet.SharedInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@code InputStream} over a {@code ByteBuffer}.
+ * Since it implements {@link SharedInputStream}, the sub-streams created while parsing a
+ * {@code MimeMessage} are views over the same buffer and the bytes are never copied.
+ */
+class ByteBufferInputStream extends InputStream implements SharedInputStream {
+    private final ByteBuffer buffer;
+    private final int start;
+    private int mark;
+
+    /**
+     * Creates a new {@code ByteBufferInputStream} over the remaining bytes of {@code buffer}.
+     *
+     * @param buffer The buffer.
+     */
+    ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+        this.start = 0;
+        this.mark = 0;
+    }
+
+    private ByteBufferInputStream(ByteBuffer buffer, int start) {
+        this.buffer = buffer;
+        this.start = start;
+        this.mark = buffer.position();
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if(len==0) { return 0; }
+        if(!buffer.hasRemaining()) { return -1; }
+
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        int count = (int)Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position()+count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = buffer.position();
+    }
+
+    @Override
+    public synchronized void reset() {
+        buffer.position(mark);
+    }
+
+    @Override
+    public long getPosition() {
+        return buffer.position()-start;
+    }
+
+    @Override
+    public InputStream newStream(long start, long end) {
+        if(start<0) { throw new IllegalArgumentException("start < 0"); }
+
+        int absoluteStart = this.start+(int)start;
+        int absoluteEnd = end<0 ? buffer.limit() : Math.min(buffer.limit(), this.start+(int)end);
+        ByteBuffer view = buffer.duplicate();
+        view.limit(absoluteEnd);
+        view.position(absoluteStart);
+        return new ByteBufferInputStream(view, absoluteStart);
+    }
+}
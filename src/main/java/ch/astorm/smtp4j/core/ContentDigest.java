@@ -0,0 +1,75 @@
+package ch.astorm.smtp4j.core;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
+
+/**
+ * Digest of the {@link SmtpMessage#getRawContent() raw content} of a message.
+ * <p>When enabled in the {@link ch.astorm.smtp4j.SmtpServerOptions#contentDigests options} of the
+ * server, the digests are computed incrementally while the DATA lines are received. Otherwise, they
+ * are computed from the raw content when {@link SmtpMessage#getContentDigest(ContentDigest) requested}.</p>
+ */
+public enum ContentDigest {
+    /**
+     * SHA-256 hash, as an hexadecimal string of 64 characters.
+     */
+    SHA_256 {
+        @Override
+        public Hasher newHasher() {
+            MessageDigest digest;
+            try { digest = MessageDigest.getInstance("SHA-256"); }
+            catch(NoSuchAlgorithmException nsae) { throw new RuntimeException("SHA-256 not available", nsae); }
+
+            return new Hasher() {
+                @Override public void update(byte[] bytes, int offset, int length) { digest.update(bytes, offset, length); }
+                @Override public String digest() { return HexFormat.of().formatHex(digest.digest()); }
+            };
+        }
+    },
+
+    /**
+     * CRC-32C checksum, as an hexadecimal string of 8 characters.
+     */
+    CRC32C {
+        @Override
+        public Hasher newHasher() {
+            CRC32C checksum = new CRC32C();
+            return new Hasher() {
+                @Override public void update(byte[] bytes, int offset, int length) { checksum.update(bytes, offset, length); }
+                @Override public String digest() { return HexFormat.of().toHexDigits((int)checksum.getValue()); }
+            };
+        }
+    };
+
+    /**
+     * Computes a digest incrementally.
+     * This class is not Thread-safe.
+     */
+    public static interface Hasher {
+
+        /**
+         * Adds the given bytes to the digest.
+         *
+         * @param bytes The bytes.
+         * @param offset The offset of the first byte.
+         * @param length The number of bytes.
+         */
+        void update(byte[] bytes, int offset, int length);
+
+        /**
+         * Completes the digest. This {@code Hasher} must not be used afterwards.
+         *
+         * @return The digest value.
+         */
+        String digest();
+    }
+
+    /**
+     * Creates a new {@code Hasher} for this digest.
+     *
+     * @return A new {@code Hasher}.
+     */
+    public abstract Hasher newHasher();
+}
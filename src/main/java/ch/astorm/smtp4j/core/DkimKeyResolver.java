@@ -0,0 +1,61 @@
+package ch.astorm.smtp4j.core;
+
+import java.io.IOException;
+import java.util.Hashtable;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+/**
+ * Resolves the DKIM public key records used by the {@link DkimVerifier}.
+ * The returned records are parsed and cached by the verifier.
+ *
+ * @see InMemoryDkimKeyResolver
+ */
+@FunctionalInterface
+public interface DkimKeyResolver {
+
+    /**
+     * Resolver that queries the {@code TXT} record of {@code <selector>._domainkey.<domain>} in the DNS.
+     */
+    public static final DkimKeyResolver DNS = (selector, domain) -> {
+        Hashtable<String, String> environment = new Hashtable<>();
+        environment.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
+
+        DirContext context = null;
+        try {
+            context = new InitialDirContext(environment);
+            Attributes attributes = context.getAttributes(selector+"._domainkey."+domain, new String[] { "TXT" });
+            Attribute txt = attributes.get("TXT");
+            if(txt==null || txt.size()==0) { return null; }
+
+            //long records are split in many strings that must be concatenated
+            StringBuilder record = new StringBuilder();
+            for(String part : txt.get(0).toString().split("\"\\s*\"")) { record.append(part.replace("\"", "")); }
+            return record.toString();
+        } catch(NameNotFoundException nnfe) {
+            return null;
+        } catch(NamingException ne) {
+            throw new IOException("Unable to resolve DKIM key "+selector+"._domainkey."+domain, ne);
+        } finally {
+            if(context!=null) {
+                try { context.close(); }
+                catch(NamingException ne) { /* ignored */ }
+            }
+        }
+    };
+
+    /**
+     * Returns the public key record of the given {@code selector} and {@code domain}.
+     * Generally, this will look like <pre>v=DKIM1; k=rsa; p=MIIBIjANBgkqhk...</pre>.
+     *
+     * @param selector The selector ({@code s=} tag of the signature).
+     * @param domain The signing domain ({@code d=} tag of the signature).
+     * @return The key record or null if there is none.
+     * @throws IOException If the record could not be retrieved. The verification ends with {@link DkimResult.Status#TEMPERROR}.
+     */
+    String resolve(String selector, String domain) throws IOException;
+}
@@ -0,0 +1,43 @@
+package ch.astorm.smtp4j.core;
+
+/**
+ * Result of the DKIM verification of a message.
+ *
+ * @param status The verification status.
+ * @param domain The signing domain ({@code d=} tag) or null if there is no signature.
+ * @param selector The selector ({@code s=} tag) or null if there is no signature.
+ * @param reason The reason of the status, for instance {@code body hash mismatch}, or null if the signature is valid.
+ * @see DkimVerifier
+ */
+public record DkimResult(Status status, String domain, String selector, String reason) {
+
+    /**
+     * Status of the verification, as defined by <a href="https://datatracker.ietf.org/doc/html/rfc8601#section-2.7.1">RFC8601</a>.
+     */
+    public static enum Status {
+        /**
+         * A signature has been successfully verified.
+         */
+        PASS,
+
+        /**
+         * The signature could not be verified (body or header hash mismatch, expired signature).
+         */
+        FAIL,
+
+        /**
+         * The message is not signed.
+         */
+        NONE,
+
+        /**
+         * The public key could not be retrieved because of a temporary error.
+         */
+        TEMPERROR,
+
+        /**
+         * The signature or the public key is invalid or unsupported.
+         */
+        PERMERROR
+    }
+}
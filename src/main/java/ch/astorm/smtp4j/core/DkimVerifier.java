@@ -0,0 +1,525 @@
+package ch.astorm.smtp4j.core;
+
+import ch.astorm.smtp4j.core.DkimResult.Status;
+import ch.astorm.smtp4j.protocol.SmtpMessageRejectedException;
+import ch.astorm.smtp4j.protocol.SmtpProtocolConstants;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Verifies the DKIM signatures (<a href="https://datatracker.ietf.org/doc/html/rfc6376">RFC6376</a>) of
+ * the received messages.
+ * <p>Once registered in the {@link ch.astorm.smtp4j.SmtpServerOptions#dkimVerifier options} of the server,
+ * the body hash of each signature is computed while the DATA lines are received. The public key is then
+ * resolved and the header signature checked on a separate pool, so the reply to the client is not delayed,
+ * and the result is available through {@link SmtpMessage#getDkimResult()}. In strict mode, the server waits
+ * for the result and rejects the messages without a valid signature.</p>
+ * <p>The {@code rsa-sha256}, {@code rsa-sha1} and {@code ed25519-sha256} algorithms are supported with the
+ * {@code simple} and {@code relaxed} canonicalizations. The parsed public keys are kept in a LRU cache.</p>
+ * This class is Thread-safe.
+ */
+public class DkimVerifier {
+    private static final Logger LOG = Logger.getLogger(DkimVerifier.class.getName());
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] ED25519_X509_PREFIX = { 0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x03, 0x21, 0x00 };
+
+    private final DkimKeyResolver keyResolver;
+    private final Executor executor;
+    private final boolean strict;
+    private final Map<String, PublicKey> keyCache;
+
+    /**
+     * Default number of public keys kept in the cache.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    /**
+     * Creates a new non-strict {@code DkimVerifier} with its own pool of daemon threads.
+     *
+     * @param keyResolver The public key resolver.
+     */
+    public DkimVerifier(DkimKeyResolver keyResolver) {
+        this(keyResolver, null, false, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a new {@code DkimVerifier}.
+     *
+     * @param keyResolver The public key resolver.
+     * @param executor The {@code Executor} on which the signatures are verified or null to use a pool of daemon threads.
+     * @param strict True if the server must wait for the verification and reject the messages without a valid signature.
+     * @param cacheSize The maximum number of public keys kept in the cache.
+     */
+    public DkimVerifier(DkimKeyResolver keyResolver, Executor executor, boolean strict, int cacheSize) {
+        if(keyResolver==null) { throw new IllegalArgumentException("keyResolver not defined"); }
+        if(cacheSize<0) { throw new IllegalArgumentException("cacheSize must be positive"); }
+        this.keyResolver = keyResolver;
+        this.executor = executor!=null ? executor : createPool();
+        this.strict = strict;
+        this.keyCache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PublicKey> eldest) {
+                return size()>cacheSize;
+            }
+        };
+    }
+
+    private static ExecutorService createPool() {
+        //idle threads are stopped after a minute
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "smtp4j-dkim");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns true if the server waits for the verification and rejects the messages without a valid signature.
+     *
+     * @return True if this verifier is strict.
+     */
+    public boolean isStrict() {
+        return strict;
+    }
+
+    /**
+     * Returns the number of public keys in the cache.
+     *
+     * @return The number of cached keys.
+     */
+    public int getCachedKeyCount() {
+        synchronized(keyCache) { return keyCache.size(); }
+    }
+
+    /**
+     * Creates a new {@code BodyHasher} to be fed with the DATA lines of a message.
+     *
+     * @return A new {@code BodyHasher}.
+     */
+    public BodyHasher newBodyHasher() {
+        return new BodyHasher();
+    }
+
+    /**
+     * Verifies the signatures of the given {@code message}, whose DATA lines have been given to {@code hasher}.
+     * The result is attached to the message. In strict mode, this method waits for the result.
+     *
+     * @param message The message.
+     * @param hasher The body hasher fed with the lines of the message.
+     * @return The result of the verification.
+     * @throws SmtpMessageRejectedException In strict mode, if the message has no valid signature.
+     */
+    public CompletableFuture<DkimResult> verify(SmtpMessage message, BodyHasher hasher) {
+        List<byte[]> bodyHashes = hasher.finish();
+        CompletableFuture<DkimResult> result = CompletableFuture.supplyAsync(() -> verifyHeaders(message, bodyHashes), executor);
+        message.setDkimResult(result);
+
+        if(strict) {
+            DkimResult dkimResult = result.join();
+            if(dkimResult.status()!=Status.PASS) {
+                String reason = dkimResult.reason()!=null ? dkimResult.reason() : dkimResult.status().name().toLowerCase(Locale.ROOT);
+                throw new SmtpMessageRejectedException(SmtpProtocolConstants.CODE_TRANSACTION_FAILED, "DKIM verification failed ("+reason+")");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Verifies the signatures of the given {@code message} in the current thread.
+     * The result is not attached to the message.
+     *
+     * @param message The message.
+     * @return The result of the verification.
+     */
+    public DkimResult verify(SmtpMessage message) {
+        BodyHasher hasher = newBodyHasher();
+        ByteBuffer raw = message.getRawMimeBuffer();
+        byte[] content = new byte[raw.remaining()];
+        raw.get(content);
+
+        int start = 0;
+        for(int i=0 ; i<content.length-1 ; ++i) {
+            if(content[i]=='\r' && content[i+1]=='\n') {
+                hasher.line(Arrays.copyOfRange(content, start, i));
+                start = i+2;
+                ++i;
+            }
+        }
+        hasher.line(Arrays.copyOfRange(content, start, content.length));
+        return verifyHeaders(message, hasher.finish());
+    }
+
+    private DkimResult verifyHeaders(SmtpMessage message, List<byte[]> bodyHashes) {
+        List<String> headers = parseHeaders(message.getRawMimeBuffer());
+
+        DkimResult first = null;
+        int index = 0;
+        for(String header : headers) {
+            if(!isSignature(header)) { continue; }
+
+            byte[] bodyHash = index<bodyHashes.size() ? bodyHashes.get(index) : null;
+            DkimResult result = verifySignature(headers, header, bodyHash);
+            if(result.status()==Status.PASS) { return result; }
+            if(first==null) { first = result; }
+            ++index;
+        }
+        return first!=null ? first : new DkimResult(Status.NONE, null, null, null);
+    }
+
+    private DkimResult verifySignature(List<String> headers, String signatureHeader, byte[] bodyHash) {
+        Map<String, String> tags = parseTags(signatureHeader.substring(signatureHeader.indexOf(':')+1));
+        String domain = tags.get("d");
+        String selector = tags.get("s");
+        String algorithm = tags.get("a");
+        String signedHeaders = tags.get("h");
+        if(!"1".equals(tags.get("v")) || domain==null || selector==null || algorithm==null || signedHeaders==null || tags.get("b")==null || tags.get("bh")==null) {
+            return new DkimResult(Status.PERMERROR, domain, selector, "missing required tag");
+        }
+
+        List<String> headerNames = new ArrayList<>();
+        for(String name : signedHeaders.split(":")) { headerNames.add(name.trim().toLowerCase(Locale.ROOT)); }
+        if(!headerNames.contains("from")) { return new DkimResult(Status.PERMERROR, domain, selector, "From header not signed"); }
+
+        String expiration = tags.get("x");
+        if(expiration!=null) {
+            try {
+                if(Long.parseLong(expiration)<System.currentTimeMillis()/1000) { return new DkimResult(Status.FAIL, domain, selector, "signature expired"); }
+            } catch(NumberFormatException nfe) {
+                return new DkimResult(Status.PERMERROR, domain, selector, "invalid expiration");
+            }
+        }
+
+        String keyType;
+        String digestAlgorithm;
+        switch(algorithm.toLowerCase(Locale.ROOT)) {
+            case "rsa-sha256" -> { keyType = "rsa"; digestAlgorithm = "SHA-256"; }
+            case "rsa-sha1" -> { keyType = "rsa"; digestAlgorithm = "SHA-1"; }
+            case "ed25519-sha256" -> { keyType = "ed25519"; digestAlgorithm = "SHA-256"; }
+            default -> { return new DkimResult(Status.PERMERROR, domain, selector, "unsupported algorithm "+algorithm); }
+        }
+
+        byte[] expectedBodyHash;
+        byte[] signature;
+        try {
+            expectedBodyHash = Base64.getDecoder().decode(removeWhitespaces(tags.get("bh")));
+            signature = Base64.getDecoder().decode(removeWhitespaces(tags.get("b")));
+        } catch(IllegalArgumentException iae) {
+            return new DkimResult(Status.PERMERROR, domain, selector, "invalid base64 value");
+        }
+        if(bodyHash==null || !MessageDigest.isEqual(expectedBodyHash, bodyHash)) { return new DkimResult(Status.FAIL, domain, selector, "body hash mismatch"); }
+
+        PublicKey key;
+        try { key = getPublicKey(selector, domain, keyType); }
+        catch(IOException ioe) {
+            LOG.log(Level.FINE, "Unable to resolve DKIM key of "+selector+"._domainkey."+domain, ioe);
+            return new DkimResult(Status.TEMPERROR, domain, selector, "key unavailable");
+        } catch(GeneralSecurityException | IllegalArgumentException e) {
+            return new DkimResult(Status.PERMERROR, domain, selector, e.getMessage());
+        }
+
+        boolean relaxed = tags.getOrDefault("c", "simple").toLowerCase(Locale.ROOT).startsWith("relaxed");
+        byte[] signedData = signedData(headers, headerNames, signatureHeader, relaxed);
+        try {
+            Signature verifier;
+            if(keyType.equals("ed25519")) {
+                //the Ed25519 signature is computed over the hash of the data
+                verifier = Signature.getInstance("Ed25519");
+                verifier.initVerify(key);
+                verifier.update(MessageDigest.getInstance("SHA-256").digest(signedData));
+            } else {
+                verifier = Signature.getInstance(digestAlgorithm.replace("-", "")+"withRSA");
+                verifier.initVerify(key);
+                verifier.update(signedData);
+            }
+            if(!verifier.verify(signature)) { return new DkimResult(Status.FAIL, domain, selector, "signature mismatch"); }
+        } catch(GeneralSecurityException gse) {
+            return new DkimResult(Status.FAIL, domain, selector, "invalid signature");
+        }
+
+        return new DkimResult(Status.PASS, domain, selector, null);
+    }
+
+    private PublicKey getPublicKey(String selector, String domain, String keyType) throws IOException, GeneralSecurityException {
+        String cacheKey = selector.toLowerCase(Locale.ROOT)+"._domainkey."+domain.toLowerCase(Locale.ROOT);
+        PublicKey key;
+        synchronized(keyCache) { key = keyCache.get(cacheKey); }
+        if(key==null) {
+            String record = keyResolver.resolve(selector, domain);
+            if(record==null) { throw new IllegalArgumentException("no key for "+cacheKey); }
+
+            Map<String, String> tags = parseTags(record);
+            String encoded = tags.get("p");
+            if(encoded==null || encoded.isBlank()) { throw new IllegalArgumentException("key revoked"); }
+
+            byte[] bytes = Base64.getDecoder().decode(removeWhitespaces(encoded));
+            String type = tags.getOrDefault("k", "rsa").toLowerCase(Locale.ROOT);
+            if(type.equals("ed25519")) {
+                byte[] x509 = Arrays.copyOf(ED25519_X509_PREFIX, ED25519_X509_PREFIX.length+bytes.length);
+                System.arraycopy(bytes, 0, x509, ED25519_X509_PREFIX.length, bytes.length);
+                key = KeyFactory.getInstance("Ed25519").generatePublic(new X509EncodedKeySpec(x509));
+            } else if(type.equals("rsa")) {
+                key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(bytes));
+            } else {
+                throw new IllegalArgumentException("unsupported key type "+type);
+            }
+
+            synchronized(keyCache) { keyCache.put(cacheKey, key); }
+        }
+
+        String actualType = key.getAlgorithm().equals("RSA") ? "rsa" : "ed25519";
+        if(!actualType.equals(keyType)) { throw new IllegalArgumentException("key type mismatch"); }
+        return key;
+    }
+
+    /**
+     * Builds the data covered by the header signature: the signed headers, selected from the bottom,
+     * followed by the signature header without the value of its {@code b=} tag and without CRLF.
+     */
+    private static byte[] signedData(List<String> headers, List<String> headerNames, String signatureHeader, boolean relaxed) {
+        StringBuilder data = new StringBuilder(1024);
+        Map<String, Integer> used = new HashMap<>();
+        for(String name : headerNames) {
+            int skip = used.merge(name, 1, Integer::sum)-1;
+            for(int i=headers.size()-1 ; i>=0 ; --i) {
+                String header = headers.get(i);
+                if(!headerName(header).equals(name)) { continue; }
+                if(skip-->0) { continue; }
+
+                data.append(relaxed ? relaxedHeader(header) : header).append("\r\n");
+                break;
+            }
+        }
+
+        String unsigned = removeSignatureValue(signatureHeader);
+        data.append(relaxed ? relaxedHeader(unsigned) : unsigned);
+        return data.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String removeSignatureValue(String header) {
+        int colon = header.indexOf(':');
+        StringBuilder builder = new StringBuilder(header.length());
+        builder.append(header, 0, colon+1);
+
+        String value = header.substring(colon+1);
+        int start = 0;
+        while(start<=value.length()) {
+            int end = value.indexOf(';', start);
+            if(end<0) { end = value.length(); }
+
+            String segment = value.substring(start, end);
+            int equals = segment.indexOf('=');
+            if(equals>=0 && segment.substring(0, equals).trim().equals("b")) { builder.append(segment, 0, equals+1); }
+            else { builder.append(segment); }
+            if(end<value.length()) { builder.append(';'); }
+            start = end+1;
+        }
+        return builder.toString();
+    }
+
+    private static String relaxedHeader(String header) {
+        int colon = header.indexOf(':');
+        String name = header.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+        String value = header.substring(colon+1).replace("\r\n", "").replaceAll("[ \t]+", " ").trim();
+        return name+":"+value;
+    }
+
+    private static String headerName(String header) {
+        int colon = header.indexOf(':');
+        return colon>0 ? header.substring(0, colon).trim().toLowerCase(Locale.ROOT) : "";
+    }
+
+    private static boolean isSignature(String header) {
+        return headerName(header).equals("dkim-signature");
+    }
+
+    /**
+     * Returns the headers of the raw content, with their folding CRLF but without the final one.
+     */
+    private static List<String> parseHeaders(ByteBuffer raw) {
+        List<String> headers = new ArrayList<>();
+        StringBuilder line = new StringBuilder(128);
+        while(raw.hasRemaining()) {
+            byte b = raw.get();
+            if(b=='\r' && raw.hasRemaining() && raw.get(raw.position())=='\n') {
+                raw.get();
+                if(line.isEmpty()) { break; } //end of the headers
+                addHeaderLine(headers, line.toString());
+                line.setLength(0);
+            } else {
+                line.append((char)(b & 0xff));
+            }
+        }
+        if(!line.isEmpty()) { addHeaderLine(headers, line.toString()); }
+        return headers;
+    }
+
+    private static void addHeaderLine(List<String> headers, String line) {
+        if((line.startsWith(" ") || line.startsWith("\t")) && !headers.isEmpty()) { headers.set(headers.size()-1, headers.get(headers.size()-1)+"\r\n"+line); }
+        else { headers.add(line); }
+    }
+
+    private static Map<String, String> parseTags(String tagList) {
+        Map<String, String> tags = new HashMap<>();
+        for(String tag : tagList.split(";")) {
+            int equals = tag.indexOf('=');
+            if(equals<0) { continue; }
+            tags.putIfAbsent(tag.substring(0, equals).trim(), tag.substring(equals+1).replace("\r\n", "").trim());
+        }
+        return tags;
+    }
+
+    private static String removeWhitespaces(String str) {
+        return str.replaceAll("[ \t\r\n]", "");
+    }
+
+    /**
+     * Computes the body hash of each DKIM signature while the DATA lines of a message are given.
+     * The headers are kept until the body starts, then each body line is canonicalized and hashed
+     * without being retained.
+     * This class is not Thread-safe.
+     */
+    public static class BodyHasher {
+        private final List<String> headers = new ArrayList<>();
+        private List<BodyHash> hashes;
+
+        private BodyHasher() {}
+
+        /**
+         * Handles the next DATA line, once unstuffed.
+         *
+         * @param line The line, without CRLF.
+         */
+        public void line(byte[] line) {
+            if(hashes==null) {
+                if(line.length>0) { addHeaderLine(headers, new String(line, StandardCharsets.ISO_8859_1)); }
+                else { startBody(); }
+                return;
+            }
+
+            for(BodyHash hash : hashes) {
+                if(hash!=null) { hash.line(line); }
+            }
+        }
+
+        private void startBody() {
+            hashes = new ArrayList<>();
+            for(String header : headers) {
+                if(!isSignature(header)) { continue; }
+
+                Map<String, String> tags = parseTags(header.substring(header.indexOf(':')+1));
+                hashes.add(BodyHash.create(tags));
+            }
+            headers.clear();
+        }
+
+        /**
+         * Completes the body hashes.
+         *
+         * @return The body hash of each signature, in the order of the headers. The value is null if the signature is invalid.
+         */
+        private List<byte[]> finish() {
+            if(hashes==null) { startBody(); }
+
+            List<byte[]> result = new ArrayList<>(hashes.size());
+            for(BodyHash hash : hashes) { result.add(hash!=null ? hash.finish() : null); }
+            return result;
+        }
+    }
+
+    /**
+     * Body hash of a single signature.
+     */
+    private static class BodyHash {
+        private final MessageDigest digest;
+        private final boolean relaxed;
+        private long remaining;
+        private int pendingEmptyLines;
+        private boolean hasContent;
+
+        private BodyHash(MessageDigest digest, boolean relaxed, long limit) {
+            this.digest = digest;
+            this.relaxed = relaxed;
+            this.remaining = limit;
+        }
+
+        private static BodyHash create(Map<String, String> tags) {
+            String algorithm = tags.getOrDefault("a", "").toLowerCase(Locale.ROOT);
+            String canonicalization = tags.getOrDefault("c", "simple/simple").toLowerCase(Locale.ROOT);
+            int slash = canonicalization.indexOf('/');
+            boolean relaxed = slash>=0 && canonicalization.substring(slash+1).trim().equals("relaxed");
+
+            long limit = Long.MAX_VALUE;
+            try {
+                if(tags.containsKey("l")) { limit = Long.parseLong(tags.get("l")); }
+                return new BodyHash(MessageDigest.getInstance(algorithm.endsWith("sha1") ? "SHA-1" : "SHA-256"), relaxed, limit);
+            } catch(NumberFormatException | NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+
+        private void line(byte[] line) {
+            int length = line.length;
+            if(relaxed) {
+                //trailing whitespaces are removed and the other sequences reduced to a single space
+                byte[] canonical = new byte[length];
+                int out = 0;
+                boolean whitespace = false;
+                for(int i=0 ; i<length ; ++i) {
+                    byte b = line[i];
+                    if(b==' ' || b=='\t') { whitespace = true; }
+                    else {
+                        if(whitespace) { canonical[out++] = ' '; }
+                        canonical[out++] = b;
+                        whitespace = false;
+                    }
+                }
+                line = canonical;
+                length = out;
+            }
+
+            //trailing empty lines are ignored
+            if(length==0) {
+                ++pendingEmptyLines;
+                return;
+            }
+            for(int i=0 ; i<pendingEmptyLines ; ++i) { update(CRLF, CRLF.length); }
+            pendingEmptyLines = 0;
+            update(line, length);
+            update(CRLF, CRLF.length);
+            hasContent = true;
+        }
+
+        private void update(byte[] bytes, int length) {
+            int count = (int)Math.min(length, remaining);
+            digest.update(bytes, 0, count);
+            remaining -= count;
+        }
+
+        private byte[] finish() {
+            if(!hasContent && !relaxed) { update(CRLF, CRLF.length); } //an empty body is a single CRLF with the simple canonicalization
+            return digest.digest();
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package ch.astorm.smtp4j.core;
+
+import ch.astorm.smtp4j.protocol.SmtpMessageRejectedException;
+import ch.astorm.smtp4j.protocol.SmtpProtocolConstants;
+import jakarta.mail.MessagingException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.function.Function;
+
+/**
+ * Detects the messages received more than once.
+ * <p>Each message is identified by a key (by default its {@link #MESSAGE_ID Message-ID}). The keys are
+ * reduced to 64-bit fingerprints and recorded in generations. The current generation is made of a Bloom filter
+ * and an exact set of fingerprints: the Bloom filter discards the new messages in constant time and the exact
+ * set confirms its positives. Once the current generation is full, its exact set is dropped and only its Bloom
+ * filter is kept, hence a key of an older generation is remembered with a few bits, at the cost of a new message
+ * being seen as a duplicate with the configured false positive rate. At most
+ * {@link #MAX_GENERATIONS} generations are kept and those older than the retention are forgotten.</p>
+ * <p>Once registered in the {@link ch.astorm.smtp4j.SmtpServerOptions#duplicateDetector options} of the server,
+ * the duplicate messages are handled according to the {@link Policy}.</p>
+ * This class is Thread-safe.
+ */
+public class DuplicateDetector {
+    private final Function<SmtpMessage, String> keyFunction;
+    private final Policy policy;
+    private final int rejectCode;
+    private final int generationSize;
+    private final double generationFalsePositiveRate;
+    private final long retentionNanos;
+    private final ArrayDeque<Generation> generations = new ArrayDeque<>();
+    private long checkedCount;
+    private long duplicateCount;
+
+    /**
+     * Default number of keys per generation.
+     */
+    public static final int DEFAULT_GENERATION_SIZE = 1<<16;
+
+    /**
+     * Default false positive rate (one in a million), which costs about 40 bits per key.
+     */
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.000001;
+
+    /**
+     * Maximum number of generations. The oldest generation is forgotten when a new one is started beyond this limit.
+     */
+    public static final int MAX_GENERATIONS = 128;
+
+    /**
+     * Key function that returns the {@code Message-ID} header of the message or null if there is none.
+     */
+    public static final Function<SmtpMessage, String> MESSAGE_ID = m -> {
+        try { return m.getMimeMessage().getMessageID(); }
+        catch(MessagingException me) { throw new RuntimeException("Unable to retrieve Message-ID header", me); }
+    };
+
+    /**
+     * Key function that returns the SHA-256 hash of the {@link SmtpMessage#getBody() body} of the message
+     * or null if there is none. Unlike the raw content, the body does not depend on the multipart boundaries
+     * generated by the client.
+     */
+    public static final Function<SmtpMessage, String> BODY_HASH = m -> {
+        String body = m.getBody();
+        if(body==null) { return null; }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(body.getBytes(StandardCharsets.UTF_8)));
+        } catch(NoSuchAlgorithmException nsae) {
+            throw new RuntimeException("SHA-256 not available", nsae);
+        }
+    };
+
+    /**
+     * Key function that returns the SHA-256 {@link SmtpMessage#getContentDigest(ContentDigest) digest} of the
+     * raw content of the message. The digest is free when {@link ContentDigest#SHA_256} is enabled in the
+     * {@link ch.astorm.smtp4j.SmtpServerOptions#contentDigests options} of the server.
+     */
+    public static final Function<SmtpMessage, String> CONTENT_HASH = m -> m.getContentDigest(ContentDigest.SHA_256);
+
+    /**
+     * Represents what happens to a duplicate message.
+     */
+    public static enum Policy {
+        /**
+         * The message is stored and {@link SmtpMessage#isDuplicate() flagged} as duplicate.
+         */
+        FLAG,
+
+        /**
+         * The message is accepted but neither stored nor notified to the listeners.
+         */
+        DROP,
+
+        /**
+         * The message is rejected with the reply code of the detector.
+         */
+        REJECT
+    }
+
+    /**
+     * Creates a new {@code DuplicateDetector} based on the {@link #MESSAGE_ID Message-ID} that keeps
+     * the keys of the last {@link #MAX_GENERATIONS} generations.
+     *
+     * @param policy The policy.
+     */
+    public DuplicateDetector(Policy policy) {
+        this(MESSAGE_ID, policy, SmtpProtocolConstants.CODE_TRANSACTION_FAILED, DEFAULT_GENERATION_SIZE, DEFAULT_FALSE_POSITIVE_RATE, null);
+    }
+
+    /**
+     * Creates a new {@code DuplicateDetector}.
+     *
+     * @param keyFunction The function that returns the key of a message. If it returns null, the message is not checked.
+     * @param policy The policy.
+     * @param rejectCode The reply code when the message is rejected by the {@link Policy#REJECT} policy.
+     * @param generationSize The number of keys per generation.
+     * @param falsePositiveRate The false positive rate once all the generations are full. It is shared by the Bloom
+     *                          filters of the generations.
+     * @param retention The duration after which the keys are forgotten or null to keep the keys of the
+     *                  last {@link #MAX_GENERATIONS} generations.
+     */
+    public DuplicateDetector(Function<SmtpMessage, String> keyFunction, Policy policy, int rejectCode, int generationSize, double falsePositiveRate, Duration retention) {
+        if(keyFunction==null) { throw new IllegalArgumentException("keyFunction not defined"); }
+        if(policy==null) { throw new IllegalArgumentException("policy not defined"); }
+        if(generationSize<=0) { throw new IllegalArgumentException("generationSize must be greater than zero"); }
+        if(falsePositiveRate<=0 || falsePositiveRate>=1) { throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1"); }
+        this.keyFunction = keyFunction;
+        this.policy = policy;
+        this.rejectCode = rejectCode;
+        this.generationSize = generationSize;
+        this.generationFalsePositiveRate = falsePositiveRate/MAX_GENERATIONS;
+        this.retentionNanos = retention!=null ? retention.toNanos() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Set of keys inserted during a period of time. The exact set of fingerprints is
+     * dropped once the generation is sealed.
+     */
+    private class Generation {
+        private final BloomFilter filter = new BloomFilter(generationSize, generationFalsePositiveRate);
+        private long[] fingerprints = new long[Integer.highestOneBit(Math.max(1, generationSize-1))<<2];
+        private int size;
+        private long lastInsertion;
+
+        private boolean contains(long fingerprint) {
+            if(!filter.mightContain(fingerprint)) { return false; }
+            if(fingerprints==null) { return true; }
+            return slot(fingerprint)>=0;
+        }
+
+        private int slot(long fingerprint) {
+            int mask = fingerprints.length-1;
+            for(int slot=(int)mix(fingerprint) & mask ; fingerprints[slot]!=0 ; slot=(slot+1) & mask) {
+                if(fingerprints[slot]==fingerprint) { return slot; }
+            }
+            return -1;
+        }
+
+        private void add(long fingerprint, long now) {
+            filter.add(fingerprint);
+
+            int mask = fingerprints.length-1;
+            int slot = (int)mix(fingerprint) & mask;
+            while(fingerprints[slot]!=0) { slot = (slot+1) & mask; }
+            fingerprints[slot] = fingerprint;
+            ++size;
+            lastInsertion = now;
+        }
+
+        private boolean remove(long fingerprint) {
+            int slot = fingerprints!=null ? slot(fingerprint) : -1;
+            if(slot<0) { return false; }
+
+            //backward shift deletion, so that the probe sequences stay contiguous
+            int mask = fingerprints.length-1;
+            fingerprints[slot] = 0;
+            for(int next=(slot+1) & mask ; fingerprints[next]!=0 ; next=(next+1) & mask) {
+                int home = (int)mix(fingerprints[next]) & mask;
+                if(((next-home) & mask)>=((next-slot) & mask)) {
+                    fingerprints[slot] = fingerprints[next];
+                    fingerprints[next] = 0;
+                    slot = next;
+                }
+            }
+            --size;
+
+            //a Bloom filter does not support removal, hence it is rebuilt
+            filter.clear();
+            for(long remaining : fingerprints) { if(remaining!=0) { filter.add(remaining); } }
+            return true;
+        }
+
+        private void seal() {
+            fingerprints = null;
+        }
+
+        private long sizeInBytes() {
+            return filter.sizeInBytes()+(fingerprints!=null ? fingerprints.length*8L : 0);
+        }
+    }
+
+    /**
+     * Returns the policy applied to the duplicate messages.
+     *
+     * @return The policy.
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Returns the number of messages checked by this detector.
+     *
+     * @return The number of checked messages.
+     */
+    public synchronized long getCheckedCount() {
+        return checkedCount;
+    }
+
+    /**
+     * Returns the number of duplicate messages detected.
+     *
+     * @return The number of duplicates.
+     */
+    public synchronized long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    /**
+     * Returns the approximate number of bytes used to remember the keys.
+     *
+     * @return The memory usage.
+     */
+    public synchronized long getMemoryUsage() {
+        long total = 0;
+        for(Generation generation : generations) { total += generation.sizeInBytes(); }
+        return total;
+    }
+
+    /**
+     * Checks if the given {@code key} has already been seen and records it.
+     *
+     * @param key The key.
+     * @return True if the key has already been seen.
+     */
+    public synchronized boolean isDuplicate(String key) {
+        if(key==null) { throw new IllegalArgumentException("key not defined"); }
+
+        long now = System.nanoTime();
+        Iterator<Generation> expired = generations.iterator();
+        while(expired.hasNext() && now-expired.next().lastInsertion>retentionNanos) { expired.remove(); }
+
+        ++checkedCount;
+        long fingerprint = fingerprint(key);
+        for(Iterator<Generation> it = generations.descendingIterator() ; it.hasNext() ; ) {
+            if(it.next().contains(fingerprint)) {
+                ++duplicateCount;
+                return true;
+            }
+        }
+
+        Generation current = generations.peekLast();
+        if(current==null || current.size>=generationSize) {
+            if(current!=null) { current.seal(); }
+            if(generations.size()>=MAX_GENERATIONS) { generations.poll(); }
+            current = new Generation();
+            generations.add(current);
+        }
+        current.add(fingerprint, now);
+        return false;
+    }
+
+    /**
+     * Forgets the given {@code key} if it has been recorded in the current generation.
+     * Once a new generation has been started, the key can no longer be forgotten.
+     *
+     * @param key The key.
+     * @return True if the key has been forgotten.
+     */
+    public synchronized boolean forget(String key) {
+        if(key==null) { throw new IllegalArgumentException("key not defined"); }
+
+        Generation current = generations.peekLast();
+        return current!=null && current.remove(fingerprint(key));
+    }
+
+    /**
+     * Checks the given {@code message} and applies the policy if it is a duplicate.
+     *
+     * @param message The received message.
+     * @return False if the message must be dropped.
+     * @throws SmtpMessageRejectedException If the message is a duplicate and must be rejected.
+     */
+    public boolean accept(SmtpMessage message) {
+        String key = keyFunction.apply(message);
+        if(key==null || !isDuplicate(key)) { return true; }
+
+        switch(policy) {
+            case FLAG: message.markDuplicate(); return true;
+            case DROP: return false;
+            case REJECT: throw new SmtpMessageRejectedException(rejectCode, "Duplicate message");
+            default: throw new IllegalStateException("Unknown policy "+policy);
+        }
+    }
+
+    /**
+     * Forgets the key recorded by {@link #accept(SmtpMessage)} for the given {@code message}. This method
+     * is invoked when the message could not be stored, so that the next attempt is not seen as a duplicate.
+     *
+     * @param message The message previously accepted.
+     */
+    public void cancel(SmtpMessage message) {
+        if(message.isDuplicate()) { return; } //the key belongs to the original message
+
+        String key = keyFunction.apply(message);
+        if(key!=null) { forget(key); }
+    }
+
+    /**
+     * Computes a 64-bit fingerprint of {@code key} (FNV-1a followed by a final mix).
+     */
+    private static long fingerprint(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for(int i=0 ; i<key.length() ; ++i) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        long fingerprint = mix(hash);
+        return fingerprint!=0 ? fingerprint : 1; //zero marks the empty slots
+    }
+
+    private static long mix(long value) {
+        value ^= value>>>33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value>>>33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value>>>33;
+        return value;
+    }
+}
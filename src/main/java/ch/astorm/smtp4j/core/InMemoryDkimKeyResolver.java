@@ -0,0 +1,88 @@
+package ch.astorm.smtp4j.core;
+
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link DkimKeyResolver} that holds the key records in memory, so that the signatures can be
+ * verified without DNS.
+ * This class is Thread-safe.
+ */
+public class InMemoryDkimKeyResolver implements DkimKeyResolver {
+    private final Map<String, String> records = new ConcurrentHashMap<>();
+    private final AtomicLong lookupCount = new AtomicLong();
+
+    /**
+     * Registers the key record of the given {@code selector} and {@code domain}.
+     *
+     * @param selector The selector.
+     * @param domain The signing domain.
+     * @param record The key record (for instance {@code v=DKIM1; k=rsa; p=...}).
+     * @return This resolver.
+     */
+    public InMemoryDkimKeyResolver put(String selector, String domain, String record) {
+        if(selector==null) { throw new IllegalArgumentException("selector not defined"); }
+        if(domain==null) { throw new IllegalArgumentException("domain not defined"); }
+        if(record==null) { throw new IllegalArgumentException("record not defined"); }
+        records.put(key(selector, domain), record);
+        return this;
+    }
+
+    /**
+     * Registers the public key of the given {@code selector} and {@code domain}.
+     * Only RSA and Ed25519 keys are supported.
+     *
+     * @param selector The selector.
+     * @param domain The signing domain.
+     * @param key The public key.
+     * @return This resolver.
+     */
+    public InMemoryDkimKeyResolver put(String selector, String domain, PublicKey key) {
+        if(key==null) { throw new IllegalArgumentException("key not defined"); }
+
+        byte[] encoded = key.getEncoded();
+        return switch(key.getAlgorithm()) {
+            case "RSA" -> put(selector, domain, "v=DKIM1; k=rsa; p="+Base64.getEncoder().encodeToString(encoded));
+            case "Ed25519", "EdDSA" -> {
+                //the record holds the raw key, which is at the end of the X.509 structure
+                byte[] raw = new byte[32];
+                System.arraycopy(encoded, encoded.length-raw.length, raw, 0, raw.length);
+                yield put(selector, domain, "v=DKIM1; k=ed25519; p="+Base64.getEncoder().encodeToString(raw));
+            }
+            default -> throw new IllegalArgumentException("Unsupported key algorithm "+key.getAlgorithm());
+        };
+    }
+
+    /**
+     * Removes the key record of the given {@code selector} and {@code domain}.
+     *
+     * @param selector The selector.
+     * @param domain The signing domain.
+     */
+    public void remove(String selector, String domain) {
+        records.remove(key(selector, domain));
+    }
+
+    /**
+     * Returns the number of times this resolver has been queried.
+     *
+     * @return The number of lookups.
+     */
+    public long getLookupCount() {
+        return lookupCount.get();
+    }
+
+    @Override
+    public String resolve(String selector, String domain) {
+        lookupCount.incrementAndGet();
+        return records.get(key(selector, domain));
+    }
+
+    private static String key(String selector, String domain) {
+        return selector.toLowerCase(Locale.ROOT)+"._domainkey."+domain.toLowerCase(Locale.ROOT);
+    }
+}
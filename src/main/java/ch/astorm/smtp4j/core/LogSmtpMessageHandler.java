@@ -0,0 +1,288 @@
+package ch.astorm.smtp4j.core;
+
+import ch.astorm.smtp4j.SmtpServer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code SmtpMessageHandler} that stores the received messages in an append-only log.
+ * Each message receives a monotonically increasing sequence number (starting at zero) and
+ * every {@link Cursor} reads the log independently, hence multiple readers will all
+ * receive every message.
+ * <p>The log is split in segments. A segment is reclaimed once all the registered cursors
+ * have passed it. As long as no cursor is registered, nothing is reclaimed.</p>
+ * <p>The {@link #readMessages(long, java.util.concurrent.TimeUnit) readMessages} method uses
+ * an internal cursor, created on the first invocation.</p>
+ * This class is Thread-safe.
+ */
+public class LogSmtpMessageHandler implements SmtpMessageHandler {
+    private final int segmentSize;
+    private final List<Segment> segments = new ArrayList<>(8);
+    private final List<Cursor> cursors = new ArrayList<>(4);
+    private long firstSequence;
+    private long nextSequence;
+    private Cursor defaultCursor;
+    private volatile boolean serverStarted;
+
+    /**
+     * Default number of messages per segment.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 256;
+
+    /**
+     * Creates a new {@code LogSmtpMessageHandler} with {@link #DEFAULT_SEGMENT_SIZE segments} of 256 messages.
+     */
+    public LogSmtpMessageHandler() {
+        this(DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates a new {@code LogSmtpMessageHandler}.
+     *
+     * @param segmentSize The number of messages per segment.
+     */
+    public LogSmtpMessageHandler(int segmentSize) {
+        if(segmentSize<=0) { throw new IllegalArgumentException("segmentSize must be greater than zero"); }
+        this.segmentSize = segmentSize;
+    }
+
+    private static class Segment {
+        private final long baseSequence;
+        private final SmtpMessage[] messages;
+        private int size;
+
+        private Segment(long baseSequence, int size) {
+            this.baseSequence = baseSequence;
+            this.messages = new SmtpMessage[size];
+        }
+    }
+
+    /**
+     * Independent reader of the log.
+     * A cursor keeps its own position, which is the sequence number of the next message
+     * to read. It must be {@link #close() closed} once not used anymore, otherwise the
+     * log segments won't be reclaimed.
+     */
+    public class Cursor implements SmtpMessageReader {
+        private long position;
+        private boolean closed;
+
+        private Cursor(long position) {
+            this.position = position;
+        }
+
+        /**
+         * Returns the sequence number of the next message that will be read by this cursor.
+         *
+         * @return The position of this cursor.
+         */
+        public long getPosition() {
+            synchronized(segments) { return position; }
+        }
+
+        /**
+         * Reads the next available {@code SmtpMessage}.
+         * If none, this method will block until a new one is received.
+         * If the {@code SmtpServer} is closed and all the messages have been read, this method
+         * will return null.
+         *
+         * @return The next received {@code SmtpMessage} or null.
+         */
+        @Override
+        public SmtpMessage readMessage() {
+            synchronized(segments) {
+                while(!closed && position>=nextSequence && serverStarted) {
+                    try { segments.wait(); }
+                    catch(InterruptedException ie) { return null; }
+                }
+
+                if(closed || position>=nextSequence) { return null; }
+                SmtpMessage message = get(position);
+                ++position;
+                reclaim();
+                return message;
+            }
+        }
+
+        /**
+         * Reads all the messages after the current position of this cursor.
+         *
+         * @param delayIfNoMessage The delay to wait when there is no message yet received or a negative value to avoid any wait.
+         * @param unit The unit of the {@code delayIfNoMessage}.
+         * @return The messages or an empty list.
+         */
+        public List<SmtpMessage> readMessages(long delayIfNoMessage, TimeUnit unit) {
+            synchronized(segments) {
+                if(!closed && serverStarted && position>=nextSequence && delayIfNoMessage>=0) {
+                    try { segments.wait(TimeUnit.MILLISECONDS.convert(delayIfNoMessage, unit)); }
+                    catch(InterruptedException ie) { /* ignored */ }
+                }
+                return readSince(position);
+            }
+        }
+
+        /**
+         * Reads all the messages with a sequence number greater or equal to {@code sequence} and
+         * moves this cursor after the last returned message.
+         * If {@code sequence} refers to messages that have already been reclaimed, the
+         * oldest available message will be returned first.
+         *
+         * @param sequence The sequence number of the first message to read.
+         * @return The messages or an empty list.
+         */
+        public List<SmtpMessage> readSince(long sequence) {
+            synchronized(segments) {
+                if(closed) { return Collections.EMPTY_LIST; }
+
+                long from = Math.max(sequence, firstSequence);
+                if(from>=nextSequence) {
+                    position = Math.max(position, nextSequence);
+                    reclaim();
+                    return Collections.EMPTY_LIST;
+                }
+
+                List<SmtpMessage> result = new ArrayList<>((int)(nextSequence-from));
+                for(long seq=from ; seq<nextSequence ; ++seq) { result.add(get(seq)); }
+                position = nextSequence;
+                reclaim();
+                return result;
+            }
+        }
+
+        /**
+         * Unregisters this cursor from the log.
+         */
+        @Override
+        public void close() {
+            synchronized(segments) {
+                if(closed) { return; }
+                closed = true;
+                cursors.remove(this);
+                if(defaultCursor==this) { defaultCursor = null; }
+                reclaim();
+                segments.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the sequence number of the oldest message still in the log.
+     *
+     * @return The first available sequence number.
+     */
+    public long getFirstSequence() {
+        synchronized(segments) { return firstSequence; }
+    }
+
+    /**
+     * Returns the sequence number that will be assigned to the next received message.
+     *
+     * @return The next sequence number.
+     */
+    public long getNextSequence() {
+        synchronized(segments) { return nextSequence; }
+    }
+
+    /**
+     * Creates a new {@link Cursor} positioned on the oldest message still in the log.
+     *
+     * @return A new cursor.
+     */
+    public Cursor newCursor() {
+        synchronized(segments) { return newCursor(firstSequence); }
+    }
+
+    /**
+     * Creates a new {@link Cursor} positioned on the given {@code sequence}.
+     * If the sequence has already been reclaimed, the cursor will be positioned on the
+     * oldest message still in the log.
+     *
+     * @param sequence The sequence number of the first message to read.
+     * @return A new cursor.
+     */
+    public Cursor newCursor(long sequence) {
+        synchronized(segments) {
+            Cursor cursor = new Cursor(Math.max(sequence, firstSequence));
+            cursors.add(cursor);
+            return cursor;
+        }
+    }
+
+    @Override
+    public void notifyStart(SmtpServer server) {
+        serverStarted = true;
+    }
+
+    @Override
+    public void notifyClose(SmtpServer server) {
+        synchronized(segments) {
+            serverStarted = false;
+            segments.notifyAll();
+        }
+    }
+
+    @Override
+    public void notifyMessage(SmtpServer server, SmtpMessage smtpMessage) {
+        synchronized(segments) {
+            Segment last = segments.isEmpty() ? null : segments.get(segments.size()-1);
+            if(last==null || last.size>=segmentSize) {
+                last = new Segment(nextSequence, segmentSize);
+                segments.add(last);
+            }
+
+            last.messages[last.size] = smtpMessage;
+            ++last.size;
+            ++nextSequence;
+            segments.notifyAll();
+        }
+    }
+
+    /**
+     * Returns a new {@link Cursor} positioned on the oldest message still in the log.
+     *
+     * @return A new {@code Cursor} instance.
+     * @see #newCursor()
+     */
+    @Override
+    public SmtpMessageReader messageReader() {
+        return newCursor();
+    }
+
+    @Override
+    public List<SmtpMessage> readMessages(long delayIfNoMessage, TimeUnit unit) {
+        Cursor cursor;
+        synchronized(segments) {
+            if(defaultCursor==null) { defaultCursor = newCursor(); }
+            cursor = defaultCursor;
+        }
+        return cursor.readMessages(serverStarted ? delayIfNoMessage : -1, unit);
+    }
+
+    private SmtpMessage get(long sequence) {
+        Segment first = segments.get(0);
+        int segmentIndex = (int)((sequence-first.baseSequence)/segmentSize);
+        Segment segment = segments.get(segmentIndex);
+        return segment.messages[(int)(sequence-segment.baseSequence)];
+    }
+
+    private void reclaim() {
+        if(cursors.isEmpty()) { return; }
+
+        long minPosition = Long.MAX_VALUE;
+        for(Cursor cursor : cursors) { minPosition = Math.min(minPosition, cursor.position); }
+
+        int reclaimable = 0;
+        while(reclaimable<segments.size()) {
+            Segment segment = segments.get(reclaimable);
+            if(segment.size<segmentSize || segment.baseSequence+segmentSize>minPosition) { break; }
+            ++reclaimable;
+        }
+
+        if(reclaimable>0) {
+            segments.subList(0, reclaimable).clear();
+            firstSequence = segments.isEmpty() ? nextSequence : segments.get(0).baseSequence;
+        }
+    }
+}
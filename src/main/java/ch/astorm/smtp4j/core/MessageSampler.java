@@ -0,0 +1,119 @@
+package ch.astorm.smtp4j.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Selects the messages that are fully captured by the server.
+ * <p>The decision is taken when the {@code MAIL FROM} command is received. Each envelope is identified
+ * by its sender and the ordinal of the message among the ones of this sender. A message is selected when the
+ * {@link #envelopeHash(String, long) hash} of its envelope falls in the one in N bucket, so the same traffic always
+ * leads to the same sample. On top of that, the number of selected messages can be limited per second, which
+ * bounds the captured volume whatever the load.</p>
+ * <p>The ordinals are counted in a fixed number of slots selected by the hash of the sender, so the memory used
+ * does not grow with the number of distinct senders. The senders that share a slot share the same sequence of
+ * ordinals, which keeps the sample deterministic.</p>
+ * <p>Once registered in the {@link ch.astorm.smtp4j.SmtpServerOptions#sampler options} of the server, the messages
+ * that are not selected are handled as with {@link ch.astorm.smtp4j.SmtpServerOptions.CapturePolicy#COUNTERS_ONLY}.</p>
+ * This class is Thread-safe.
+ */
+public class MessageSampler {
+    private static final int ORDINAL_SLOTS = 4096;
+
+    private final int oneIn;
+    private final int maxPerSecond;
+    private final AtomicLongArray ordinals = new AtomicLongArray(ORDINAL_SLOTS);
+    private final AtomicLong sampledCount = new AtomicLong();
+    private long windowStart;
+    private int windowCount;
+
+    /**
+     * Creates a new {@code MessageSampler}.
+     *
+     * @param oneIn The ratio of selected messages (one in {@code oneIn}). The value 1 selects all the messages.
+     * @param maxPerSecond The maximum number of selected messages per second or zero for no limit.
+     */
+    public MessageSampler(int oneIn, int maxPerSecond) {
+        if(oneIn<1) { throw new IllegalArgumentException("oneIn must be positive"); }
+        if(maxPerSecond<0) { throw new IllegalArgumentException("maxPerSecond must be positive"); }
+        this.oneIn = oneIn;
+        this.maxPerSecond = maxPerSecond;
+        this.windowStart = System.nanoTime();
+    }
+
+    /**
+     * Creates a new {@code MessageSampler} that selects one message in {@code n}.
+     *
+     * @param n The ratio of selected messages.
+     * @return A new {@code MessageSampler} instance.
+     */
+    public static MessageSampler oneIn(int n) {
+        return new MessageSampler(n, 0);
+    }
+
+    /**
+     * Creates a new {@code MessageSampler} that selects at most {@code max} messages per second.
+     *
+     * @param max The maximum number of selected messages per second.
+     * @return A new {@code MessageSampler} instance.
+     */
+    public static MessageSampler perSecond(int max) {
+        if(max<1) { throw new IllegalArgumentException("max must be positive"); }
+        return new MessageSampler(1, max);
+    }
+
+    /**
+     * Returns the hash of an envelope. This function is stable, hence the sample can be reproduced
+     * from the senders of the messages.
+     *
+     * @param sender The source {@code From} parameter value.
+     * @param ordinal The ordinal of the message among the ones of {@code sender} (or of the senders that
+     *                share its slot), starting at zero.
+     * @return The hash of the envelope.
+     */
+    public static long envelopeHash(String sender, long ordinal) {
+        //finalizer of SplitMix64
+        long h = (sender!=null ? sender.hashCode() : 0)*0x9E3779B97F4A7C15L+ordinal;
+        h = (h^(h>>>30))*0xBF58476D1CE4E5B9L;
+        h = (h^(h>>>27))*0x94D049BB133111EBL;
+        return h^(h>>>31);
+    }
+
+    /**
+     * Returns true if the next message of {@code sender} must be fully captured.
+     * This method is invoked once per {@code MAIL FROM} command.
+     *
+     * @param sender The source {@code From} parameter value.
+     * @return True if the message is selected.
+     */
+    public boolean sample(String sender) {
+        int hash = sender!=null ? sender.hashCode() : 0;
+        long ordinal = ordinals.getAndIncrement((hash^(hash>>>16)) & (ORDINAL_SLOTS-1));
+        if(Long.remainderUnsigned(envelopeHash(sender, ordinal), oneIn)!=0) { return false; }
+        if(maxPerSecond>0 && !acquire()) { return false; }
+
+        sampledCount.incrementAndGet();
+        return true;
+    }
+
+    private synchronized boolean acquire() {
+        long now = System.nanoTime();
+        if(now-windowStart>=1_000_000_000L) {
+            windowStart = now;
+            windowCount = 0;
+        }
+
+        if(windowCount>=maxPerSecond) { return false; }
+        ++windowCount;
+        return true;
+    }
+
+    /**
+     * Returns the number of selected messages.
+     *
+     * @return The number of selected messages.
+     */
+    public long getSampledCount() {
+        return sampledCount.get();
+    }
+}
@@ -0,0 +1,336 @@
+package ch.astorm.smtp4j.core;
+
+import ch.astorm.smtp4j.protocol.SmtpProtocolConstants;
+import ch.astorm.smtp4j.util.StringPool;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.ContentDisposition;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.MimeUtility;
+import jakarta.mail.internet.ParseException;
+import jakarta.mail.internet.SharedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Structure of a MIME message computed in a single pass over its raw bytes.
+ * <p>The scan records the offsets of the headers and of the content of each part, along with their
+ * content type, filename and transfer encoding. The multipart boundaries are located with the
+ * Boyer-Moore-Horspool algorithm. Only the common structures are supported: a single text part or a
+ * multipart made of text parts and attachments. For any other structure (nested multipart, unknown
+ * encoding or charset, bare line feeds, ...), {@link #scan(java.nio.ByteBuffer)} returns null and the
+ * {@code MimeMessage} has to be used.</p>
+ * <p>The accessors produce the same results as the {@code MimeMessage} would.</p>
+ * This class is immutable.
+ */
+class MimeStructure {
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final Set<String> ENCODINGS = Set.of("7bit", "8bit", "binary", "base64", "quoted-printable");
+    private static final Set<String> TEXT_TYPES = Set.of("text/plain", "text/html", "text/xml");
+
+    /**
+     * Marker of the messages whose structure is not supported.
+     */
+    static final MimeStructure UNSUPPORTED = new MimeStructure(-1, List.of(), false);
+
+    private final int headerEnd;
+    private final List<Part> parts;
+    private final boolean multipart;
+
+    /**
+     * Part of the message. For a single part message, the part is the message itself.
+     *
+     * @param headerStart The offset of the first header of the part.
+     * @param contentStart The offset of the content of the part.
+     * @param contentEnd The offset after the content of the part.
+     * @param contentType The raw {@code Content-Type} header value.
+     * @param mimeType The MIME type, in lower case (for instance {@code text/plain}).
+     * @param charset The charset of the text part.
+     * @param filename The file name or null.
+     * @param encoding The transfer encoding or null.
+     */
+    static record Part(int headerStart, int contentStart, int contentEnd, String contentType, String mimeType, Charset charset, String filename, String encoding) {}
+
+    private MimeStructure(int headerEnd, List<Part> parts, boolean multipart) {
+        this.headerEnd = headerEnd;
+        this.parts = parts;
+        this.multipart = multipart;
+    }
+
+    /**
+     * Returns the offset of the content of the message, after its headers.
+     *
+     * @return The offset.
+     */
+    int getHeaderEnd() {
+        return headerEnd;
+    }
+
+    /**
+     * Returns the parts of the message.
+     *
+     * @return The parts.
+     */
+    List<Part> getParts() {
+        return parts;
+    }
+
+    /**
+     * Returns true if the message is a multipart.
+     *
+     * @return True if the message has been split in parts.
+     */
+    boolean isMultipart() {
+        return multipart;
+    }
+
+    /**
+     * Scans the given {@code raw} content.
+     *
+     * @param raw The raw content of a message.
+     * @return The structure or null if the structure is not supported.
+     */
+    static MimeStructure scan(ByteBuffer raw) {
+        try {
+            int[] headerEnd = new int[1];
+            List<String[]> headers = readHeaders(raw, 0, raw.limit(), headerEnd);
+            if(headers==null) { return null; }
+
+            String contentType = header(headers, "Content-Type");
+            ContentType type = new ContentType(contentType!=null ? contentType : "text/plain");
+            if(!type.getPrimaryType().equalsIgnoreCase("multipart")) {
+                Part part = part(headers, 0, headerEnd[0], raw.limit());
+                return part!=null && part.filename()==null && part.charset()!=null ? new MimeStructure(headerEnd[0], List.of(part), false) : null;
+            }
+
+            String boundary = type.getParameter("boundary");
+            if(boundary==null || boundary.isEmpty()) { return null; }
+
+            List<Part> parts = scanParts(raw, headerEnd[0], ("--"+boundary).getBytes(StandardCharsets.ISO_8859_1));
+            return parts!=null && !parts.isEmpty() ? new MimeStructure(headerEnd[0], Collections.unmodifiableList(parts), true) : null;
+        } catch(ParseException pe) {
+            return null;
+        }
+    }
+
+    private static List<Part> scanParts(ByteBuffer raw, int start, byte[] delimiter) throws ParseException {
+        byte[] pattern = new byte[delimiter.length+2];
+        pattern[0] = '\r';
+        pattern[1] = '\n';
+        System.arraycopy(delimiter, 0, pattern, 2, delimiter.length);
+        int[] shifts = shifts(pattern);
+
+        //the first delimiter might be at the very start of the content (no preamble)
+        int end = raw.limit();
+        int index = startsWith(raw, start, delimiter) ? start-2 : indexOf(raw, start, end, pattern, shifts);
+        int partStart = -1;
+        List<Part> parts = new ArrayList<>();
+        while(index>=0) {
+            int afterDelimiter = index+pattern.length;
+            boolean closing = startsWith(raw, afterDelimiter, new byte[] { '-', '-' });
+
+            //transport padding, then the end of the delimiter line
+            int lineEnd = closing ? afterDelimiter+2 : afterDelimiter;
+            while(lineEnd<end && (raw.get(lineEnd)==' ' || raw.get(lineEnd)=='\t')) { ++lineEnd; }
+            boolean delimiterLine = closing || startsWith(raw, lineEnd, CRLF);
+            if(!delimiterLine) {
+                //the boundary is only the prefix of a longer line
+                index = indexOf(raw, afterDelimiter, end, pattern, shifts);
+                continue;
+            }
+
+            if(partStart>=0) {
+                int[] headerEnd = new int[1];
+                List<String[]> headers = readHeaders(raw, partStart, Math.max(partStart, index), headerEnd);
+                if(headers==null) { return null; }
+
+                Part part = part(headers, partStart, headerEnd[0], Math.max(partStart, index));
+                if(part==null || (part.filename()==null && part.charset()==null)) { return null; }
+                parts.add(part);
+            }
+            if(closing) { return parts; }
+
+            partStart = lineEnd+2;
+            index = indexOf(raw, partStart-2, end, pattern, shifts);
+        }
+        return null; //no closing delimiter
+    }
+
+    private static Part part(List<String[]> headers, int headerStart, int contentStart, int contentEnd) throws ParseException {
+        String contentType = header(headers, "Content-Type");
+        ContentType type = new ContentType(contentType!=null ? contentType : "text/plain");
+        String mimeType = type.getBaseType().toLowerCase(Locale.ROOT);
+        if(mimeType.startsWith("multipart/") || mimeType.startsWith("message/")) { return null; }
+
+        String encoding = header(headers, "Content-Transfer-Encoding");
+        if(encoding!=null) {
+            encoding = encoding.trim().toLowerCase(Locale.ROOT);
+            if(!ENCODINGS.contains(encoding)) { return null; }
+        }
+
+        String filename = null;
+        String disposition = header(headers, "Content-Disposition");
+        if(disposition!=null) { filename = new ContentDisposition(disposition).getParameter("filename"); }
+        if(filename==null) { filename = type.getParameter("name"); }
+
+        Charset charset = null;
+        if(TEXT_TYPES.contains(mimeType)) {
+            String charsetName = type.getParameter("charset");
+            try { charset = Charset.forName(MimeUtility.javaCharset(charsetName!=null ? charsetName : "us-ascii")); }
+            catch(IllegalArgumentException iae) { return null; }
+        }
+
+        return new Part(headerStart, contentStart, contentEnd, contentType!=null ? StringPool.SHARED.intern(contentType) : "text/plain", mimeType, charset, filename, encoding);
+    }
+
+    /**
+     * Reads the headers between {@code start} and {@code end}. The lines must end with CRLF.
+     * Each header is returned as its name and its raw value, which still contains the folding.
+     *
+     * @return The headers or null if they cannot be read.
+     */
+    private static List<String[]> readHeaders(ByteBuffer raw, int start, int end, int[] headerEnd) {
+        List<String[]> headers = new ArrayList<>();
+        int lineStart = start;
+        while(true) {
+            int lineEnd = lineStart;
+            while(lineEnd<end && raw.get(lineEnd)!='\n') { ++lineEnd; }
+            if(lineEnd>=end) {
+                if(lineStart<end) { return null; } //unterminated headers
+                headerEnd[0] = end;
+                return headers;
+            }
+            if(lineEnd==lineStart || raw.get(lineEnd-1)!='\r') { return null; } //bare line feed
+            if(lineEnd==lineStart+1) {
+                headerEnd[0] = lineEnd+1;
+                return headers;
+            }
+
+            byte first = raw.get(lineStart);
+            if(first==' ' || first=='\t') {
+                if(headers.isEmpty()) { return null; }
+
+                //continuation line, kept with its folding as jakarta.mail does
+                String[] last = headers.get(headers.size()-1);
+                last[1] = last[1]+"\r\n"+string(raw, lineStart, lineEnd-1);
+            } else {
+                String line = string(raw, lineStart, lineEnd-1);
+                int colon = line.indexOf(':');
+                if(colon<=0) { return null; }
+
+                int valueStart = colon+1;
+                while(valueStart<line.length() && (line.charAt(valueStart)==' ' || line.charAt(valueStart)=='\t')) { ++valueStart; }
+                headers.add(new String[] { line.substring(0, colon).trim(), line.substring(valueStart) });
+            }
+            lineStart = lineEnd+1;
+        }
+    }
+
+    private static String header(List<String[]> headers, String name) {
+        for(String[] header : headers) {
+            if(header[0].equalsIgnoreCase(name)) {
+                //the value of an empty first line starts after the folding
+                return header[1].startsWith("\r\n") ? header[1].substring(2).stripLeading() : header[1];
+            }
+        }
+        return null;
+    }
+
+    private static String string(ByteBuffer raw, int start, int end) {
+        byte[] bytes = new byte[end-start];
+        raw.get(start, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns the body of the message, as defined by {@link SmtpMessage#getBody()}.
+     *
+     * @param content The raw content of the message.
+     * @return The body or null.
+     */
+    String getBody(SmtpMessageContent content) throws IOException, MessagingException {
+        StringBuilder builder = new StringBuilder();
+        for(Part part : parts) {
+            if(part.filename()==null) {
+                if(builder.length()>0) { builder.append(SmtpProtocolConstants.CRLF); }
+                try(InputStream is = openStream(content, part)) { builder.append(new String(is.readAllBytes(), part.charset())); }
+            }
+        }
+        return builder.length()>0 || !multipart ? builder.toString() : null;
+    }
+
+    /**
+     * Returns the attachments of the message, as defined by {@link SmtpMessage#getAttachments()}.
+     *
+     * @param content The raw content of the message.
+     * @return The attachments.
+     */
+    List<SmtpAttachment> getAttachments(SmtpMessageContent content) {
+        List<SmtpAttachment> attachments = new ArrayList<>(parts.size());
+        for(Part part : parts) {
+            if(part.filename()!=null) { attachments.add(new SmtpAttachment(part.filename(), part.contentType(), () -> openStream(content, part))); }
+        }
+        return attachments;
+    }
+
+    /**
+     * Opens a stream over the decoded content of the given {@code part}. The bytes are read through
+     * the stream of the content, so they are not copied when it is a {@code SharedInputStream}.
+     */
+    private static InputStream openStream(SmtpMessageContent content, Part part) throws IOException, MessagingException {
+        InputStream is = content.openStream();
+        if(is instanceof SharedInputStream shared) { is = shared.newStream(part.contentStart(), part.contentEnd()); }
+        else {
+            is.close();
+            is = new ByteBufferInputStream(content.asByteBuffer().slice(part.contentStart(), part.contentEnd()-part.contentStart()));
+        }
+        return part.encoding()!=null ? MimeUtility.decode(is, part.encoding()) : is;
+    }
+
+    private static boolean startsWith(ByteBuffer raw, int index, byte[] prefix) {
+        if(index<0 || index+prefix.length>raw.limit()) { return false; }
+        for(int i=0 ; i<prefix.length ; ++i) {
+            if(raw.get(index+i)!=prefix[i]) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * Computes the Boyer-Moore-Horspool shift table of {@code pattern}.
+     */
+    private static int[] shifts(byte[] pattern) {
+        int[] shifts = new int[256];
+        Arrays.fill(shifts, pattern.length);
+        for(int i=0 ; i<pattern.length-1 ; ++i) { shifts[pattern[i] & 0xff] = pattern.length-1-i; }
+        return shifts;
+    }
+
+    /**
+     * Searches {@code pattern} in {@code raw} between {@code from} and {@code to} with the
+     * Boyer-Moore-Horspool algorithm.
+     *
+     * @return The index of the pattern or -1.
+     */
+    private static int indexOf(ByteBuffer raw, int from, int to, byte[] pattern, int[] shifts) {
+        int last = pattern.length-1;
+        int index = Math.max(from, 0);
+        while(index+last<to) {
+            byte current = raw.get(index+last);
+            if(current==pattern[last]) {
+                int i = last-1;
+                while(i>=0 && raw.get(index+i)==pattern[i]) { --i; }
+                if(i<0) { return index; }
+            }
+            index += shifts[current & 0xff];
+        }
+        return -1;
+    }
+}
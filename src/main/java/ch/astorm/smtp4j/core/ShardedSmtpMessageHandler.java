@@ -0,0 +1,305 @@
+package ch.astorm.smtp4j.core;
+
+import ch.astorm.smtp4j.SmtpServer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * {@code SmtpMessageHandler} that partitions the received messages in multiple shards.
+ * The shard of a message is determined by the hash of a key, which is by default the first
+ * envelope recipient (see {@link SmtpMessage#getSourceRecipients()}). Each shard has its own
+ * lock, hence messages for different shards can be stored and consumed without any contention.
+ * <p>The {@link #messageReader()} and {@link #readMessages(long, java.util.concurrent.TimeUnit)} methods
+ * provide a merged view over all the shards, in the order of reception.</p>
+ * <p>Since this handler is {@link #isConcurrent() concurrent}, the {@link SmtpServer} won't
+ * serialize the notifications of received messages.</p>
+ * This class is Thread-safe.
+ */
+public class ShardedSmtpMessageHandler implements SmtpMessageHandler {
+    private final Shard[] shards;
+    private final Function<SmtpMessage, String> keyFunction;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger mergedWaiters = new AtomicInteger();
+    private final Object mergedMonitor = new Object();
+    private volatile boolean serverStarted;
+
+    /**
+     * Default number of shards.
+     */
+    public static final int DEFAULT_SHARDS = 16;
+
+    /**
+     * Default key function, which returns the first envelope recipient in lower case
+     * or an empty string if there is none.
+     */
+    public static final Function<SmtpMessage, String> FIRST_RECIPIENT = m -> {
+        List<String> recipients = m.getSourceRecipients();
+        return recipients==null || recipients.isEmpty() ? "" : recipients.get(0).toLowerCase(Locale.ROOT);
+    };
+
+    /**
+     * Creates a new {@code ShardedSmtpMessageHandler} with {@link #DEFAULT_SHARDS} shards keyed
+     * by the {@link #FIRST_RECIPIENT first recipient}.
+     */
+    public ShardedSmtpMessageHandler() {
+        this(DEFAULT_SHARDS, FIRST_RECIPIENT);
+    }
+
+    /**
+     * Creates a new {@code ShardedSmtpMessageHandler}.
+     *
+     * @param nbShards The number of shards.
+     * @param keyFunction The function that returns the key of a message.
+     */
+    public ShardedSmtpMessageHandler(int nbShards, Function<SmtpMessage, String> keyFunction) {
+        if(nbShards<=0) { throw new IllegalArgumentException("nbShards must be greater than zero"); }
+        if(keyFunction==null) { throw new IllegalArgumentException("keyFunction not defined"); }
+        this.keyFunction = keyFunction;
+        this.shards = new Shard[nbShards];
+        for(int i=0 ; i<nbShards ; ++i) { shards[i] = new Shard(); }
+    }
+
+    private static record Entry(long sequence, SmtpMessage message) {}
+
+    /**
+     * Represents a shard of messages.
+     * The shard can be consumed independently of the others. Note that multiple readers on the same
+     * shard will compete over the same messages.
+     */
+    public class Shard implements SmtpMessageHandler {
+        private final List<Entry> entries = new ArrayList<>(16);
+
+        private Shard() {}
+
+        private void add(Entry entry) {
+            synchronized(entries) {
+                entries.add(entry);
+                entries.notifyAll();
+            }
+        }
+
+        private List<Entry> drain() {
+            synchronized(entries) {
+                if(entries.isEmpty()) { return Collections.EMPTY_LIST; }
+
+                List<Entry> copy = new ArrayList<>(entries);
+                entries.clear();
+                return copy;
+            }
+        }
+
+        /**
+         * Returns the number of messages currently stored in this shard.
+         *
+         * @return The number of messages.
+         */
+        public int size() {
+            synchronized(entries) { return entries.size(); }
+        }
+
+        @Override
+        public void notifyStart(SmtpServer server) {
+            ShardedSmtpMessageHandler.this.notifyStart(server);
+        }
+
+        @Override
+        public void notifyClose(SmtpServer server) {
+            ShardedSmtpMessageHandler.this.notifyClose(server);
+        }
+
+        /**
+         * Stores the message in this shard, regardless of its key.
+         */
+        @Override
+        public void notifyMessage(SmtpServer server, SmtpMessage smtpMessage) {
+            store(this, smtpMessage);
+        }
+
+        @Override
+        public SmtpMessageReader messageReader() {
+            return new SmtpMessageReader() {
+                private List<SmtpMessage> localMessages = Collections.EMPTY_LIST;
+
+                @Override
+                public SmtpMessage readMessage() {
+                    if(!localMessages.isEmpty()) { return localMessages.remove(0); }
+
+                    localMessages = new ArrayList<>(readMessages(1, TimeUnit.SECONDS));
+                    while(serverStarted && localMessages.isEmpty()) {
+                        localMessages = new ArrayList<>(readMessages(1, TimeUnit.SECONDS));
+                    }
+
+                    return !localMessages.isEmpty() ? localMessages.remove(0) : null;
+                }
+
+                @Override
+                public void close() throws Exception {
+                    /* nothing */
+                }
+            };
+        }
+
+        @Override
+        public List<SmtpMessage> readMessages(long delayIfNoMessage, TimeUnit unit) {
+            if(!serverStarted) { return Collections.EMPTY_LIST; }
+
+            synchronized(entries) {
+                if(entries.isEmpty() && delayIfNoMessage>=0) {
+                    try { entries.wait(TimeUnit.MILLISECONDS.convert(delayIfNoMessage, unit)); }
+                    catch(InterruptedException ie) { /* ignored */ }
+                }
+            }
+
+            List<Entry> drained = drain();
+            List<SmtpMessage> messages = new ArrayList<>(drained.size());
+            drained.forEach(e -> messages.add(e.message()));
+            return messages;
+        }
+
+        @Override
+        public boolean isConcurrent() {
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of shards.
+     *
+     * @return The number of shards.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returns the shard at the given {@code index}.
+     *
+     * @param index The shard index, between zero and {@link #getShardCount()} (exclusive).
+     * @return The shard.
+     */
+    public Shard getShard(int index) {
+        return shards[index];
+    }
+
+    /**
+     * Returns the shard that stores the messages with the given {@code key}.
+     * With the default {@link #FIRST_RECIPIENT key function}, the key is the recipient email in lower case.
+     *
+     * @param key The key.
+     * @return The shard.
+     */
+    public Shard getShard(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return shards[Math.floorMod(hash, shards.length)];
+    }
+
+    @Override
+    public void notifyStart(SmtpServer server) {
+        serverStarted = true;
+    }
+
+    @Override
+    public void notifyClose(SmtpServer server) {
+        serverStarted = false;
+        for(Shard shard : shards) {
+            synchronized(shard.entries) { shard.entries.notifyAll(); }
+        }
+        synchronized(mergedMonitor) { mergedMonitor.notifyAll(); }
+    }
+
+    @Override
+    public void notifyMessage(SmtpServer server, SmtpMessage smtpMessage) {
+        String key = keyFunction.apply(smtpMessage);
+        store(getShard(key!=null ? key : ""), smtpMessage);
+    }
+
+    private void store(Shard shard, SmtpMessage smtpMessage) {
+        shard.add(new Entry(sequence.getAndIncrement(), smtpMessage));
+
+        //only contend on the global monitor when someone is waiting on the merged view
+        if(mergedWaiters.get()>0) {
+            synchronized(mergedMonitor) { mergedMonitor.notifyAll(); }
+        }
+    }
+
+    /**
+     * Returns a new {@code SmtpMessageReader} over the merged view of all the shards.
+     * Multiple readers (including the shard readers) will compete over the same messages.
+     *
+     * @return A new {@code SmtpMessageReader}.
+     */
+    @Override
+    public SmtpMessageReader messageReader() {
+        return new SmtpMessageReader() {
+            private List<SmtpMessage> localMessages = Collections.EMPTY_LIST;
+
+            @Override
+            public SmtpMessage readMessage() {
+                if(!localMessages.isEmpty()) { return localMessages.remove(0); }
+
+                localMessages = new ArrayList<>(readMessages(1, TimeUnit.SECONDS));
+                while(serverStarted && localMessages.isEmpty()) {
+                    localMessages = new ArrayList<>(readMessages(1, TimeUnit.SECONDS));
+                }
+
+                return !localMessages.isEmpty() ? localMessages.remove(0) : null;
+            }
+
+            @Override
+            public void close() throws Exception {
+                /* nothing */
+            }
+        };
+    }
+
+    /**
+     * Retrieves the received messages of all the shards, in the order of reception, and clears them.
+     */
+    @Override
+    public List<SmtpMessage> readMessages(long delayIfNoMessage, TimeUnit unit) {
+        if(!serverStarted) { return Collections.EMPTY_LIST; }
+
+        List<Entry> merged = drainAll();
+        if(merged.isEmpty() && delayIfNoMessage>=0) {
+            mergedWaiters.incrementAndGet();
+            try {
+                synchronized(mergedMonitor) {
+                    merged = drainAll();
+                    if(merged.isEmpty()) {
+                        try { mergedMonitor.wait(TimeUnit.MILLISECONDS.convert(delayIfNoMessage, unit)); }
+                        catch(InterruptedException ie) { /* ignored */ }
+                    }
+                }
+            } finally {
+                mergedWaiters.decrementAndGet();
+            }
+
+            if(merged.isEmpty()) { merged = drainAll(); }
+        }
+
+        merged.sort(Comparator.comparingLong(Entry::sequence));
+
+        List<SmtpMessage> messages = new ArrayList<>(merged.size());
+        merged.forEach(e -> messages.add(e.message()));
+        return messages;
+    }
+
+    private List<Entry> drainAll() {
+        List<Entry> merged = new ArrayList<>();
+        for(Shard shard : shards) { merged.addAll(shard.drain()); }
+        return merged;
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+}
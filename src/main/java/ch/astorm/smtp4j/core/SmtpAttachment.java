@@ -4,14 +4,39 @@ package ch.astorm.smtp4j.core;
 import jakarta.mail.MessagingException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.Cleaner;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Attachment of an {@code SmtpMessage}.
+ * <p>The attachment might be backed by a file, when the server decodes the attachments at
+ * {@link ch.astorm.smtp4j.SmtpServerOptions#attachmentDirectory receive time}. In this case,
+ * the content can be read any number of times. Such a file is temporary: it is deleted once the
+ * attachment has been garbage collected or {@link #delete() deleted} explicitly.</p>
+ * <p>The size and the digest of the content are computed in a single pass over the decoded
+ * content on the first access and then cached.</p>
  */
 public class SmtpAttachment {
+    private static final Logger LOG = Logger.getLogger(SmtpAttachment.class.getName());
+    private static final Cleaner CLEANER = Cleaner.create();
+
     private final String filename;
     private final String contentType;
-    private StreamProvider streamProvider;
+    private final Path path;
+    private final StreamProvider streamProvider;
+    private final Cleaner.Cleanable cleanable;
+    private long size = -1;
+    private String digest;
 
     /**
      * Provides an {@code InputStream} to read the attachment content.
@@ -38,7 +63,48 @@ public class SmtpAttachment {
     public SmtpAttachment(String filename, String contentType, StreamProvider streamProvider) {
         this.filename = filename;
         this.contentType = contentType;
+        this.path = null;
         this.streamProvider = streamProvider;
+        this.cleanable = null;
+    }
+
+    /**
+     * Creates a new {@code SmtpAttachement} backed by a file.
+     *
+     * @param filename The attachment's name.
+     * @param contentType The Content Type.
+     * @param path The file that contains the decoded content.
+     */
+    public SmtpAttachment(String filename, String contentType, Path path) {
+        this(filename, contentType, path, false);
+    }
+
+    /**
+     * Creates a new {@code SmtpAttachement} backed by a file.
+     *
+     * @param filename The attachment's name.
+     * @param contentType The Content Type.
+     * @param path The file that contains the decoded content.
+     * @param temporary True if the file must be deleted once this attachment is garbage collected.
+     */
+    public SmtpAttachment(String filename, String contentType, Path path, boolean temporary) {
+        if(path==null) { throw new IllegalArgumentException("path not defined"); }
+        this.filename = filename;
+        this.contentType = contentType;
+        this.path = path;
+        this.streamProvider = null;
+        this.cleanable = temporary ? CLEANER.register(this, new FileDeleter(path)) : null;
+    }
+
+    /**
+     * Deletes the file of a temporary attachment.
+     */
+    private static record FileDeleter(Path path) implements Runnable {
+        @Override
+        public void run() {
+            try { Files.deleteIfExists(path); }
+            catch(IOException ioe) { LOG.log(Level.FINE, "Unable to delete "+path, ioe); }
+        }
     }
 
     /**
@@ -60,17 +126,104 @@ public class SmtpAttachment {
         return contentType;
     }
 
+    /**
+     * Returns the file that contains the decoded content of this attachment.
+     *
+     * @return The file or null if this attachment is not backed by a file.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Returns true if the file of this attachment is deleted once it has been garbage collected.
+     *
+     * @return True if the file is temporary.
+     */
+    public boolean isTemporary() {
+        return cleanable!=null;
+    }
+
+    /**
+     * Deletes the file of this attachment if it is {@link #isTemporary() temporary}. The content
+     * cannot be read afterwards. This method does nothing otherwise.
+     */
+    public void delete() {
+        if(cleanable!=null) { cleanable.clean(); }
+    }
+
+    /**
+     * Returns the size of the decoded content.
+     *
+     * @return The size in bytes.
+     */
+    public long getSize() throws IOException, MessagingException {
+        if(path!=null) { return Files.size(path); }
+        computeMetadata();
+        return size;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the decoded content.
+     *
+     * @return The hash as an hexadecimal string.
+     */
+    public String getDigest() throws IOException, MessagingException {
+        computeMetadata();
+        return digest;
+    }
+
     /**
      * Opens a new {@code InputStream} on this attachment.
-     * This method can only be called once.
+     * Each call returns a new stream over the decoded content.
      *
      * @return A new {@code InputStream}.
      */
     public InputStream openStream() throws IOException, MessagingException {
-        if(streamProvider==null) { throw new IOException("stream not available"); }
+        if(path!=null) { return Files.newInputStream(path); }
+        return streamProvider.openStream();
+    }
+
+    private synchronized void computeMetadata() throws IOException, MessagingException {
+        if(digest!=null) { return; }
+
+        MessageDigest sha;
+        try { sha = MessageDigest.getInstance("SHA-256"); }
+        catch(NoSuchAlgorithmException nsae) { throw new RuntimeException("SHA-256 not available", nsae); }
+
+        long count = 0;
+        byte[] buffer = new byte[8192];
+        try(InputStream is = openStream()) {
+            int read = is.read(buffer);
+            while(read>=0) {
+                sha.update(buffer, 0, read);
+                count += read;
+                read = is.read(buffer);
+            }
+        }
+
+        size = count;
+        digest = HexFormat.of().formatHex(sha.digest());
+    }
+
+    /**
+     * Writes the decoded content of this attachment to the given {@code channel}.
+     * If this attachment is backed by a file, the content is transferred by the
+     * operating system when possible.
+     *
+     * @param channel The target channel.
+     * @return The number of bytes written.
+     */
+    public long transferTo(WritableByteChannel channel) throws IOException, MessagingException {
+        if(path==null) {
+            try(InputStream is = openStream()) { return is.transferTo(Channels.newOutputStream(channel)); }
+        }
 
-        InputStream is = streamProvider.openStream();
-        streamProvider = null;
-        return is;
+        try(FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            long position = 0;
+            while(position<size) { position += file.transferTo(position, size-position, channel); }
+            return size;
+        }
     }
 }
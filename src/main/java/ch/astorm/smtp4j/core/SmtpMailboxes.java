@@ -0,0 +1,175 @@
+package ch.astorm.smtp4j.core;
+
+import ch.astorm.smtp4j.SmtpServer;
+import jakarta.mail.Message.RecipientType;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-recipient view over the received messages.
+ * <p>Once registered as {@link SmtpServerListener}, this class keeps for each recipient the references
+ * of the messages it received, based on the {@link SmtpMessage#getSourceRecipients() envelope recipients}
+ * and optionally on the recipients of the MIME headers. A message sent to many recipients is referenced
+ * in each mailbox but never copied, and retrieving the messages of a recipient does not depend
+ * on the total number of messages.</p>
+ * <p>The mailboxes are independent of the {@link SmtpMessageHandler}: reading the messages from the
+ * server does not remove them from the mailboxes.</p>
+ * <p>The recipients are compared without case.</p>
+ * This class is Thread-safe.
+ */
+public class SmtpMailboxes implements SmtpServerListener {
+    private final Map<String, List<SmtpMessage>> mailboxes = new HashMap<>();
+    private final RecipientType[] headerTypes;
+
+    /**
+     * Creates a new {@code SmtpMailboxes} based on the envelope recipients only.
+     */
+    public SmtpMailboxes() {
+        this(new RecipientType[0]);
+    }
+
+    /**
+     * Creates a new {@code SmtpMailboxes} based on the envelope recipients and the
+     * recipients of the given {@code headerTypes}.
+     * <p>Note that the MIME headers are parsed when the message is received.</p>
+     *
+     * @param headerTypes The types of the recipients in the MIME headers to consider.
+     */
+    public SmtpMailboxes(RecipientType... headerTypes) {
+        if(headerTypes==null) { throw new IllegalArgumentException("headerTypes not defined"); }
+        this.headerTypes = headerTypes.clone();
+    }
+
+    /**
+     * Adds the given {@code message} in the mailbox of each of its recipients.
+     *
+     * @param message The message.
+     */
+    public void add(SmtpMessage message) {
+        Set<String> recipients = recipients(message);
+        synchronized(mailboxes) {
+            for(String recipient : recipients) {
+                mailboxes.computeIfAbsent(recipient, r -> new ArrayList<>()).add(message);
+            }
+        }
+    }
+
+    private Set<String> recipients(SmtpMessage message) {
+        Set<String> recipients = new LinkedHashSet<>();
+        List<String> sourceRecipients = message.getSourceRecipients();
+        if(sourceRecipients!=null) {
+            for(String recipient : sourceRecipients) { recipients.add(normalize(recipient)); }
+        }
+
+        for(RecipientType type : headerTypes) {
+            for(String recipient : message.getRecipients(type)) {
+                String email = address(recipient);
+                if(email!=null) { recipients.add(normalize(email)); }
+            }
+        }
+
+        return recipients;
+    }
+
+    /**
+     * Extracts the email of a decoded recipient like {@code Cédric <info@mydomain.com>}.
+     */
+    private static String address(String recipient) {
+        try {
+            InternetAddress[] addresses = InternetAddress.parseHeader(recipient, false);
+            return addresses.length>0 ? addresses[0].getAddress() : recipient;
+        } catch(AddressException ae) {
+            return recipient;
+        }
+    }
+
+    private static String normalize(String recipient) {
+        return recipient.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the messages received by {@code recipient}, in the order they have been received.
+     *
+     * @param recipient The recipient email.
+     * @return The messages or an empty list if none.
+     */
+    public List<SmtpMessage> getMessages(String recipient) {
+        if(recipient==null) { throw new IllegalArgumentException("recipient not defined"); }
+        synchronized(mailboxes) {
+            List<SmtpMessage> messages = mailboxes.get(normalize(recipient));
+            return messages!=null ? List.copyOf(messages) : Collections.EMPTY_LIST;
+        }
+    }
+
+    /**
+     * Returns the number of messages received by {@code recipient}.
+     *
+     * @param recipient The recipient email.
+     * @return The number of messages.
+     */
+    public int getMessageCount(String recipient) {
+        if(recipient==null) { throw new IllegalArgumentException("recipient not defined"); }
+        synchronized(mailboxes) {
+            List<SmtpMessage> messages = mailboxes.get(normalize(recipient));
+            return messages!=null ? messages.size() : 0;
+        }
+    }
+
+    /**
+     * Returns the recipients (in lower case) that have received at least one message.
+     *
+     * @return The recipients.
+     */
+    public Set<String> getRecipients() {
+        synchronized(mailboxes) { return Set.copyOf(mailboxes.keySet()); }
+    }
+
+    /**
+     * Returns all the mailboxes at once.
+     * The returned map and lists are snapshots that do not change afterwards.
+     *
+     * @return A map with the recipients (in lower case) as keys and their messages as values.
+     */
+    public Map<String, List<SmtpMessage>> getMailboxes() {
+        synchronized(mailboxes) {
+            Map<String, List<SmtpMessage>> copy = new LinkedHashMap<>(mailboxes.size()*4/3+1);
+            mailboxes.forEach((recipient, messages) -> copy.put(recipient, List.copyOf(messages)));
+            return Collections.unmodifiableMap(copy);
+        }
+    }
+
+    /**
+     * Removes the mailbox of {@code recipient}.
+     *
+     * @param recipient The recipient email.
+     * @return The messages that were in the mailbox or an empty list if none.
+     */
+    public List<SmtpMessage> remove(String recipient) {
+        if(recipient==null) { throw new IllegalArgumentException("recipient not defined"); }
+        synchronized(mailboxes) {
+            List<SmtpMessage> messages = mailboxes.remove(normalize(recipient));
+            return messages!=null ? messages : Collections.EMPTY_LIST;
+        }
+    }
+
+    /**
+     * Removes all the mailboxes.
+     */
+    public void clear() {
+        synchronized(mailboxes) { mailboxes.clear(); }
+    }
+
+    @Override
+    public void notifyMessage(SmtpServer server, SmtpMessage smtpMessage) {
+        add(smtpMessage);
+    }
+}
@@ -4,6 +4,7 @@ package ch.astorm.smtp4j.core;
 import ch.astorm.smtp4j.protocol.SmtpCommand.Type;
 import ch.astorm.smtp4j.protocol.SmtpExchange;
 import ch.astorm.smtp4j.protocol.SmtpProtocolConstants;
+import ch.astorm.smtp4j.util.StringPool;
 import jakarta.mail.Address;
 import jakarta.mail.BodyPart;
 import jakarta.mail.Message.RecipientType;
@@ -12,26 +13,50 @@ import jakarta.mail.Session;
 import jakarta.mail.internet.MimeMessage;
 import jakarta.mail.internet.MimeMultipart;
 import jakarta.mail.internet.MimeUtility;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Represents an SMTP message.
+ * <p>When the {@code MimeMessage} is parsed from the raw content, it is only softly referenced: the garbage
+ * collector can reclaim it (with the multipart trees built from it) under memory pressure, in which case it
+ * is parsed again from the raw content on the next access.</p>
+ * <p>The body and the attachments are served from a structural index of the raw content, computed once,
+ * hence without parsing the {@code MimeMessage}. The {@code MimeMessage} is only used for the unusual
+ * structures (nested multiparts, unknown encodings, ...).</p>
+ * <p>The decoded headers are cached after the first access.</p>
  */
 public class SmtpMessage {
     private final String sourceFrom;
     private final List<String> sourceRecipients;
+    private final SmtpMessageContent rawMimeContent;
     private final MimeMessage mimeMessage;
-    private final String rawMimeContent;
+    private volatile SoftReference<MimeMessage> parsedMimeMessage;
+    private volatile MimeStructure structure;
+    private volatile List<SmtpAttachment> storedAttachments;
+    private volatile Object decodedFrom;
+    private volatile Object decodedSubject;
+    private volatile Object decodedSentDate;
+    private volatile Map<RecipientType, List<String>> decodedRecipients = Map.of();
+    private volatile Map<ContentDigest, String> contentDigests = Map.of();
+    private volatile CompletableFuture<DkimResult> dkimResult;
+    private volatile long discardedBodyLength = -1;
     private final List<SmtpExchange> exchanges;
+    private final Date receivedDate;
+    private volatile boolean duplicate;
 
     /**
      * Simple {@code Session} used to create the {@code SmtpMessage} instances because depending on the underlying
@@ -39,6 +64,11 @@ public class SmtpMessage {
      * session set.
      */
     private static final Session SESSION = Session.getInstance(new Properties());
+
+    /**
+     * Marker of a decoded header that is absent.
+     */
+    private static final Object NO_VALUE = new Object();
     
     /**
      * Creates a new {@code SmtpMessage} with the specified parameters.
@@ -50,11 +80,58 @@ public class SmtpMessage {
      * @param exchanges The raw SMTP exchanges.
      */
     public SmtpMessage(String from, List<String> recipients, MimeMessage mimeMessage, String rawMimeContent, List<SmtpExchange> exchanges) {
+        this(from, recipients, mimeMessage, SmtpMessageContent.of(rawMimeContent.getBytes(StandardCharsets.UTF_8)), exchanges, new Date());
+    }
+
+    /**
+     * Creates a new {@code SmtpMessage} with the specified parameters.
+     *
+     * @param from The source {@code From} parameter value.
+     * @param recipients The source {@code Rcpt} parameter values.
+     * @param mimeMessage The parsed {@code MimeMessage} or null to parse it from {@code rawMimeContent} on the first access.
+     *                    If defined, it will be strongly referenced by this message.
+     * @param rawMimeContent The raw MIME content of {@code mimeMessage}.
+     * @param exchanges The raw SMTP exchanges.
+     * @param receivedDate The date at which the message has been received.
+     */
+    public SmtpMessage(String from, List<String> recipients, MimeMessage mimeMessage, SmtpMessageContent rawMimeContent, List<SmtpExchange> exchanges, Date receivedDate) {
         this.sourceFrom = from;
         this.sourceRecipients = recipients;
         this.mimeMessage = mimeMessage;
         this.rawMimeContent = rawMimeContent;
         this.exchanges = exchanges;
+        this.receivedDate = receivedDate;
+    }
+
+    /**
+     * Creates a new {@code SmtpMessage} with the specified parameters.
+     * The {@code MimeMessage} will be parsed from {@code rawMimeContent} on the first access.
+     *
+     * @param from The source {@code From} parameter value.
+     * @param recipients The source {@code Rcpt} parameter values.
+     * @param rawMimeContent The raw MIME content.
+     * @param exchanges The raw SMTP exchanges.
+     * @param receivedDate The date at which the message has been received.
+     */
+    public SmtpMessage(String from, List<String> recipients, SmtpMessageContent rawMimeContent, List<SmtpExchange> exchanges, Date receivedDate) {
+        this(from, recipients, null, rawMimeContent, exchanges, receivedDate);
+    }
+
+    /**
+     * Creates a new {@code SmtpMessage} with the specified parameters and what has been computed
+     * when the message was received.
+     * The {@code MimeMessage} will be parsed from {@code rawMimeContent} on the first access.
+     *
+     * @param from The source {@code From} parameter value.
+     * @param recipients The source {@code Rcpt} parameter values.
+     * @param rawMimeContent The raw MIME content, only the headers if the body has been discarded.
+     * @param exchanges The raw SMTP exchanges.
+     * @param receivedDate The date at which the message has been received.
+     * @param details What has been computed while the content was received.
+     */
+    public SmtpMessage(String from, List<String> recipients, SmtpMessageContent rawMimeContent, List<SmtpExchange> exchanges, Date receivedDate, ReceiveDetails details) {
+        this(from, recipients, null, rawMimeContent, exchanges, receivedDate);
+        apply(details);
     }
 
     /**
@@ -96,13 +173,17 @@ public class SmtpMessage {
      * @return The {@code From} header.
      */
     public String getFrom() {
-        try {
-            Address[] fromAddrs = mimeMessage.getFrom();
-            if(fromAddrs==null || fromAddrs.length==0) { return null; }
-            return MimeUtility.decodeText(mimeMessage.getFrom()[0].toString());
-        } catch(UnsupportedEncodingException | MessagingException e) {
-            throw new RuntimeException("Unable to retrieve From header", e);
+        Object from = decodedFrom;
+        if(from==null) {
+            try {
+                Address[] fromAddrs = getMimeMessage().getFrom();
+                from = fromAddrs!=null && fromAddrs.length>0 ? StringPool.SHARED.intern(MimeUtility.decodeText(fromAddrs[0].toString())) : NO_VALUE;
+            } catch(UnsupportedEncodingException | MessagingException e) {
+                throw new RuntimeException("Unable to retrieve From header", e);
+            }
+            decodedFrom = from;
         }
+        return from!=NO_VALUE ? (String)from : null;
     }
 
     /**
@@ -111,19 +192,32 @@ public class SmtpMessage {
      * <p>The {@link RecipientType#BCC} will always yield an empty list.</p>
      * 
      * @param type The type.
-     * @return A list of recipients or an empty list if there is none.
+     * @return An immutable list of recipients or an empty list if there is none.
      */
     public List<String> getRecipients(RecipientType type) {
-        try {
-            Address[] addrs = mimeMessage.getRecipients(type);
-            if(addrs==null || addrs.length==0) { return Collections.EMPTY_LIST; }
-
-            List<String> addressStrs = new ArrayList<>(addrs.length);
-            for(Address addr : addrs) { addressStrs.add(MimeUtility.decodeText(addr.toString())); }
-            return addressStrs;
-        } catch(UnsupportedEncodingException | MessagingException e) {
-            throw new RuntimeException("Unable to retrieve Recipients "+type, e);
+        Map<RecipientType, List<String>> recipients = decodedRecipients;
+        List<String> decoded = recipients.get(type);
+        if(decoded==null) {
+            try {
+                Address[] addrs = getMimeMessage().getRecipients(type);
+                if(addrs==null || addrs.length==0) { decoded = List.of(); }
+                else {
+                    String[] addressStrs = new String[addrs.length];
+                    for(int i=0 ; i<addrs.length ; ++i) { addressStrs[i] = StringPool.SHARED.intern(MimeUtility.decodeText(addrs[i].toString())); }
+                    decoded = List.of(addressStrs);
+                }
+            } catch(UnsupportedEncodingException | MessagingException e) {
+                throw new RuntimeException("Unable to retrieve Recipients "+type, e);
+            }
+
+            //copy-on-write, the map holds at most one entry per recipient type
+            synchronized(this) {
+                Map<RecipientType, List<String>> updated = new HashMap<>(decodedRecipients);
+                updated.put(type, decoded);
+                decodedRecipients = updated;
+            }
         }
+        return decoded;
     }
 
     /**
@@ -132,21 +226,35 @@ public class SmtpMessage {
      * @return The {@code Subject} header.
      */
     public String getSubject() {
-        try { return mimeMessage.getSubject(); }
-        catch(MessagingException me) { throw new RuntimeException("Unable to retrieve Subject header", me); }
+        Object subject = decodedSubject;
+        if(subject==null) {
+            try { subject = getMimeMessage().getSubject(); }
+            catch(MessagingException me) { throw new RuntimeException("Unable to retrieve Subject header", me); }
+            if(subject==null) { subject = NO_VALUE; }
+            decodedSubject = subject;
+        }
+        return subject!=NO_VALUE ? (String)subject : null;
     }
 
     /**
      * Returns the content of the MIME message.
      * If the underlying {@code MimeMessage} is a {@code MimeMultipart}, then all the
      * parts without a filename will be concatenated together (separated by {@link SmtpProtocolConstants#CRLF}
-     * and returned as the body. If there is none, then null will be returned.
+     * and returned as the body. If there is none or if the body has been {@link #isBodyDiscarded() discarded},
+     * then null will be returned.
      * 
      * @return The content or null.
      */
     public String getBody() {
+        if(isBodyDiscarded()) { return null; }
+        MimeStructure mimeStructure = getStructure();
+        if(mimeStructure!=null) {
+            try { return mimeStructure.getBody(rawMimeContent); }
+            catch(IOException | MessagingException e) { throw new RuntimeException("Unable to retrieve content", e); }
+        }
+
         try {
-            Object content = mimeMessage.getContent();
+            Object content = getMimeMessage().getContent();
             if(content==null) { return null; }
 
             if(content instanceof MimeMultipart) {
@@ -174,14 +282,21 @@ public class SmtpMessage {
     /**
      * Returns the attachments of the MIME message.
      * If the underlying {@code MimeMessage} is not {@code MimeMultipart} an empty
-     * list will be returned.
+     * list will be returned. This is also the case if the body has been {@link #isBodyDiscarded() discarded}.
      * <p>Note that only parts with a name will be considered as attachment.</p>
      *
      * @return A list of attachments.
      */
     public List<SmtpAttachment> getAttachments() {
+        List<SmtpAttachment> stored = storedAttachments;
+        if(stored!=null) { return stored; }
+        if(isBodyDiscarded()) { return List.of(); }
+
+        MimeStructure mimeStructure = getStructure();
+        if(mimeStructure!=null) { return mimeStructure.getAttachments(rawMimeContent); }
+
         try {
-            Object content = mimeMessage.getContent();
+            Object content = getMimeMessage().getContent();
             if(content==null) { return null; }
 
             if(content instanceof MimeMultipart) {
@@ -195,7 +310,7 @@ public class SmtpMessage {
                     BodyPart part = multipart.getBodyPart(i);
                     String filename = part.getFileName();
                     if(filename!=null) {
-                        SmtpAttachment att = new SmtpAttachment(filename, part.getContentType(), () -> part.getInputStream());
+                        SmtpAttachment att = new SmtpAttachment(filename, StringPool.SHARED.intern(part.getContentType()), () -> part.getInputStream());
                         attachments.add(att);
                     }
                 }
@@ -208,31 +323,259 @@ public class SmtpMessage {
         }
     }
 
+    /**
+     * Returns the structure of the raw content or null if it is not supported or if the
+     * {@code MimeMessage} has been given when this message was created.
+     */
+    private MimeStructure getStructure() {
+        if(mimeMessage!=null) { return null; }
+
+        MimeStructure current = structure;
+        if(current==null) {
+            current = rawMimeContent.read(MimeStructure::scan);
+            if(current==null) { current = MimeStructure.UNSUPPORTED; }
+            structure = current;
+        }
+        return current!=MimeStructure.UNSUPPORTED ? current : null;
+    }
+
     /**
      * Returns the sent date.
      *
      * @return The sent date.
      */
     public Date getSentDate() {
-        try { return mimeMessage.getSentDate(); }
-        catch(MessagingException e) { throw new RuntimeException("Unable to retrieve Sent date", e); }
+        Object sentDate = decodedSentDate;
+        if(sentDate==null) {
+            try { sentDate = getMimeMessage().getSentDate(); }
+            catch(MessagingException e) { throw new RuntimeException("Unable to retrieve Sent date", e); }
+            if(sentDate==null) { sentDate = NO_VALUE; }
+            decodedSentDate = sentDate;
+        }
+        return sentDate!=NO_VALUE ? new Date(((Date)sentDate).getTime()) : null;
+    }
+
+    /**
+     * Decodes and caches the {@code From}, {@code To}, {@code Cc}, {@code Subject} and {@code Date}
+     * headers, so that the next accesses do not need the {@code MimeMessage}.
+     * This method is invoked in the background on the received messages when the
+     * {@link ch.astorm.smtp4j.SmtpServerOptions#headerDecodingExecutor eager decoding} is enabled.
+     */
+    public void decodeHeaders() {
+        getFrom();
+        getRecipients(RecipientType.TO);
+        getRecipients(RecipientType.CC);
+        getSubject();
+        getSentDate();
     }
     
+    /**
+     * Returns the date at which smtp4j received this message.
+     *
+     * @return The received date.
+     */
+    public Date getReceivedDate() {
+        return receivedDate;
+    }
+
+    /**
+     * Returns the digest of the {@link #getRawContent() raw content} of this message.
+     * The digest is computed while the message is received if enabled in the
+     * {@link ch.astorm.smtp4j.SmtpServerOptions#contentDigests options} of the server.
+     * Otherwise, it is computed on the first access, unless the body has been {@link #isBodyDiscarded() discarded}.
+     *
+     * @param type The digest type.
+     * @return The digest value or null if it cannot be computed.
+     */
+    public String getContentDigest(ContentDigest type) {
+        String digest = contentDigests.get(type);
+        if(digest==null) {
+            if(isBodyDiscarded()) { return null; }
+
+            ContentDigest.Hasher hasher = type.newHasher();
+            digest = rawMimeContent.read(content -> {
+                if(content.hasArray()) { hasher.update(content.array(), content.arrayOffset()+content.position(), content.remaining()); }
+                else {
+                    byte[] chunk = new byte[8192];
+                    while(content.hasRemaining()) {
+                        int length = Math.min(chunk.length, content.remaining());
+                        content.get(chunk, 0, length);
+                        hasher.update(chunk, 0, length);
+                    }
+                }
+                return hasher.digest();
+            });
+
+            //copy-on-write, the map holds at most one entry per digest type
+            synchronized(this) {
+                Map<ContentDigest, String> updated = new EnumMap<>(ContentDigest.class);
+                updated.putAll(contentDigests);
+                updated.put(type, digest);
+                contentDigests = updated;
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Returns true if the body of this message has been discarded by the
+     * {@link ch.astorm.smtp4j.SmtpServerOptions.CapturePolicy#HEADERS_ONLY capture policy} of the server.
+     * In this case, the raw content only holds the headers.
+     *
+     * @return True if only the headers have been kept.
+     */
+    public boolean isBodyDiscarded() {
+        return discardedBodyLength>=0;
+    }
+
+    /**
+     * Returns the length in bytes of the body of the message, as received, even if it has been
+     * {@link #isBodyDiscarded() discarded}.
+     *
+     * @return The body length.
+     */
+    public long getBodyLength() {
+        long length = discardedBodyLength;
+        if(length>=0) { return length; }
+
+        return rawMimeContent.read(raw -> {
+            for(int i=raw.position() ; i+3<raw.limit() ; ++i) {
+                if(raw.get(i)=='\r' && raw.get(i+1)=='\n' && raw.get(i+2)=='\r' && raw.get(i+3)=='\n') { return (long)raw.limit()-i-4; }
+            }
+            return 0L;
+        });
+    }
+
+    /**
+     * Returns the result of the DKIM verification of this message by the {@link DkimVerifier}
+     * of the server. This method waits until the verification is completed.
+     *
+     * @return The result or null if the message has not been verified.
+     */
+    public DkimResult getDkimResult() {
+        CompletableFuture<DkimResult> result = dkimResult;
+        return result!=null ? result.join() : null;
+    }
+
+    void setDkimResult(CompletableFuture<DkimResult> result) {
+        dkimResult = result;
+    }
+
+    /**
+     * Returns true if this message has been flagged as duplicate by the {@link DuplicateDetector}
+     * of the server.
+     *
+     * @return True if the message has already been received.
+     */
+    public boolean isDuplicate() {
+        return duplicate;
+    }
+
+    void markDuplicate() {
+        duplicate = true;
+    }
+
+    /**
+     * Returns what has been computed when this message was received, so that an equivalent message can be
+     * created from its content. The DKIM result is only part of it once the verification is completed.
+     *
+     * @return The receive details.
+     */
+    public ReceiveDetails getReceiveDetails() {
+        CompletableFuture<DkimResult> result = dkimResult;
+        DkimResult dkim = result!=null && result.isDone() && !result.isCompletedExceptionally() ? result.join() : null;
+        return new ReceiveDetails(storedAttachments, contentDigests, discardedBodyLength, dkim, duplicate);
+    }
+
+    /**
+     * Deletes the files of the attachments decoded when this message was received. This method is
+     * invoked by the server when the message is dropped. The attachments cannot be read afterwards.
+     */
+    public void deleteAttachments() {
+        List<SmtpAttachment> stored = storedAttachments;
+        if(stored!=null) { stored.forEach(SmtpAttachment::delete); }
+    }
+
+    /**
+     * Returns a new {@code SmtpMessage} backed by {@code content}, which holds the same bytes as the raw
+     * content of this message in another form. Everything computed when this message was received (decoded
+     * attachments, digests, DKIM result, duplicate flag, discarded body) is kept by the new message.
+     *
+     * @param content The raw content.
+     * @return A new {@code SmtpMessage} instance.
+     */
+    public SmtpMessage withContent(SmtpMessageContent content) {
+        SmtpMessage message = new SmtpMessage(sourceFrom, sourceRecipients, content, exchanges, receivedDate);
+        message.storedAttachments = storedAttachments;
+        message.contentDigests = contentDigests;
+        message.dkimResult = dkimResult;
+        message.discardedBodyLength = discardedBodyLength;
+        message.duplicate = duplicate;
+        return message;
+    }
+
     /**
      * Returns the {@code MimeMessage} parsed from the content.
+     * Unless it has been given when this message was created, the returned instance might
+     * change between invocations because it is parsed again once reclaimed.
      * 
      * @return the {@code MimeMessage}.
      */
     public MimeMessage getMimeMessage() {
-        return mimeMessage;
+        if(mimeMessage!=null) { return mimeMessage; }
+
+        SoftReference<MimeMessage> ref = parsedMimeMessage;
+        MimeMessage parsed = ref!=null ? ref.get() : null;
+        if(parsed==null) {
+            synchronized(this) {
+                ref = parsedMimeMessage;
+                parsed = ref!=null ? ref.get() : null;
+                if(parsed==null) {
+                    parsed = parse(rawMimeContent);
+                    parsedMimeMessage = new SoftReference<>(parsed);
+                }
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Discards the parsed {@code MimeMessage}, which will be parsed again from the raw content
+     * on the next access. This method has no effect if the {@code MimeMessage} has been given when
+     * this message was created.
+     */
+    public void discardMimeMessage() {
+        parsedMimeMessage = null;
     }
     
     /**
      * Returns the internal raw content received by the SMTP server to parse as {@code MimeMessage}.
+     * A new {@code String} is decoded (UTF-8) at each invocation.
      * 
      * @return The raw content.
+     * @see #getRawMimeBuffer()
      */
     public String getRawMimeContent() {
+        return rawMimeContent.read(raw -> StandardCharsets.UTF_8.decode(raw).toString());
+    }
+
+    /**
+     * Returns a read-only view over the raw bytes received by the SMTP server.
+     * The bytes are not copied when they are on the heap. Otherwise, they might be copied
+     * depending on the {@link SmtpMessageContent#asByteBuffer() content}.
+     *
+     * @return The raw content.
+     */
+    public ByteBuffer getRawMimeBuffer() {
+        return rawMimeContent.asByteBuffer();
+    }
+
+    /**
+     * Returns the raw content received by the SMTP server.
+     *
+     * @return The raw content.
+     */
+    public SmtpMessageContent getRawContent() {
         return rawMimeContent;
     }
 
@@ -246,9 +589,82 @@ public class SmtpMessage {
      * @return A new {@code SmtpMessage} instance.
      */
     public static SmtpMessage create(String from, List<String> recipients, byte[] mimeMessageContent, List<SmtpExchange> exchanges) {
-        MimeMessage mimeMessage;
-        try(InputStream is = new ByteArrayInputStream(mimeMessageContent)) { mimeMessage = new MimeMessage(SESSION, is); }
+        return create(from, recipients, mimeMessageContent, exchanges, new Date());
+    }
+
+    /**
+     * Creates a new {@code SmtpMessage} with the specified parameters.
+     *
+     * @param from The source {@code From} parameter value.
+     * @param recipients The source {@code Rcpt} parameter values.
+     * @param mimeMessageContent The {@code MimeMessage} content. This array must not be modified afterwards.
+     * @param exchanges The raw SMTP exchanges of this message.
+     * @param receivedDate The date at which the message has been received.
+     * @return A new {@code SmtpMessage} instance.
+     */
+    public static SmtpMessage create(String from, List<String> recipients, byte[] mimeMessageContent, List<SmtpExchange> exchanges, Date receivedDate) {
+        SmtpMessageContent content = SmtpMessageContent.of(mimeMessageContent);
+        SmtpMessage message = new SmtpMessage(from, recipients, content, exchanges, receivedDate);
+        message.parsedMimeMessage = new SoftReference<>(parse(content));
+        return message;
+    }
+
+    /**
+     * Holds what has been computed while the DATA content of a message was received.
+     *
+     * @param attachments The decoded attachments or null to decode them from the content.
+     * @param digests The digests of the whole content or null to compute them on demand.
+     * @param discardedBodyLength The length of the discarded body or -1 if the body is part of the content.
+     * @param dkimResult The result of the DKIM verification or null if the message has not been verified.
+     * @param duplicate True if the message has been flagged as duplicate.
+     * @see #isBodyDiscarded()
+     */
+    public static record ReceiveDetails(List<SmtpAttachment> attachments, Map<ContentDigest, String> digests, long discardedBodyLength, DkimResult dkimResult, boolean duplicate) {
+        public ReceiveDetails {
+            if(discardedBodyLength<-1) { throw new IllegalArgumentException("discardedBodyLength must be positive or -1"); }
+        }
+
+        /**
+         * Creates new {@code ReceiveDetails} of a message that has not been verified nor flagged yet.
+         *
+         * @param attachments The decoded attachments or null to decode them from the content.
+         * @param digests The digests of the whole content or null to compute them on demand.
+         * @param discardedBodyLength The length of the discarded body or -1 if the body is part of the content.
+         */
+        public ReceiveDetails(List<SmtpAttachment> attachments, Map<ContentDigest, String> digests, long discardedBodyLength) {
+            this(attachments, digests, discardedBodyLength, null, false);
+        }
+    }
+
+    /**
+     * Creates a new {@code SmtpMessage} with the specified parameters and what has been computed
+     * when the message was received.
+     *
+     * @param from The source {@code From} parameter value.
+     * @param recipients The source {@code Rcpt} parameter values.
+     * @param mimeMessageContent The {@code MimeMessage} content, only the headers if the body has been discarded.
+     *                           This array must not be modified afterwards.
+     * @param exchanges The raw SMTP exchanges of this message.
+     * @param receivedDate The date at which the message has been received.
+     * @param details What has been computed while the content was received.
+     * @return A new {@code SmtpMessage} instance.
+     */
+    public static SmtpMessage create(String from, List<String> recipients, byte[] mimeMessageContent, List<SmtpExchange> exchanges, Date receivedDate, ReceiveDetails details) {
+        SmtpMessage message = create(from, recipients, mimeMessageContent, exchanges, receivedDate);
+        message.apply(details);
+        return message;
+    }
+
+    private void apply(ReceiveDetails details) {
+        if(details.attachments()!=null) { storedAttachments = List.copyOf(details.attachments()); }
+        if(details.digests()!=null && !details.digests().isEmpty()) { contentDigests = new EnumMap<>(details.digests()); }
+        if(details.dkimResult()!=null) { dkimResult = CompletableFuture.completedFuture(details.dkimResult()); }
+        discardedBodyLength = details.discardedBodyLength();
+        duplicate = details.duplicate();
+    }
+
+    private static MimeMessage parse(SmtpMessageContent content) {
+        try(InputStream is = content.openStream()) { return new MimeMessage(SESSION, is); }
         catch(IOException | MessagingException e) { throw new RuntimeException("Unable to create MimeMessage from content", e); }
-        return new SmtpMessage(from, recipients, mimeMessage, new String(mimeMessageContent, StandardCharsets.UTF_8), exchanges);
     }
 }
@@ -0,0 +1,77 @@
+package ch.astorm.smtp4j.core;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+/**
+ * Raw MIME content of a {@link SmtpMessage}.
+ * Implementations might hold the bytes on the heap, in a memory-mapped file or anywhere else. The
+ * content is immutable.
+ */
+public interface SmtpMessageContent {
+
+    /**
+     * Returns the size of the content in bytes.
+     *
+     * @return The size.
+     */
+    int size();
+
+    /**
+     * Returns a read-only view over the content, from position zero to {@link #size()}.
+     * Depending on the implementation, the bytes might be copied.
+     *
+     * @return The content.
+     */
+    ByteBuffer asByteBuffer();
+
+    /**
+     * Applies {@code reader} on a read-only view over the content, from position zero to {@link #size()}.
+     * The view must not be used once {@code reader} returns. Implementations that copy the bytes in
+     * {@link #asByteBuffer()} override this method to read them in place.
+     *
+     * @param <T> The type of the result.
+     * @param reader The function that reads the content.
+     * @return The result of {@code reader}.
+     */
+    default <T> T read(Function<ByteBuffer, T> reader) {
+        return reader.apply(asByteBuffer());
+    }
+
+    /**
+     * Opens a new {@code InputStream} over the content.
+     * By default, the returned stream is a {@link jakarta.mail.internet.SharedInputStream}, so the
+     * {@code MimeMessage} parsed from it does not copy the content.
+     *
+     * @return A new {@code InputStream}.
+     */
+    default InputStream openStream() {
+        return new ByteBufferInputStream(asByteBuffer());
+    }
+
+    /**
+     * Creates a new {@code SmtpMessageContent} that wraps the given {@code bytes}.
+     *
+     * @param bytes The bytes. The array must not be modified afterwards.
+     * @return A new {@code SmtpMessageContent}.
+     */
+    static SmtpMessageContent of(byte[] bytes) {
+        return of(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Creates a new {@code SmtpMessageContent} that wraps the remaining bytes of the given {@code buffer}.
+     * The bytes are not copied.
+     *
+     * @param buffer The buffer. The content must not be modified afterwards.
+     * @return A new {@code SmtpMessageContent}.
+     */
+    static SmtpMessageContent of(ByteBuffer buffer) {
+        ByteBuffer view = buffer.slice().asReadOnlyBuffer();
+        return new SmtpMessageContent() {
+            @Override public int size() { return view.capacity(); }
+            @Override public ByteBuffer asByteBuffer() { return view.duplicate(); }
+        };
+    }
+}
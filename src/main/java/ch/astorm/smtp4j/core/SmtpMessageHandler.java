@@ -28,7 +28,7 @@ public interface SmtpMessageHandler extends SmtpServerListener {
      * Returns a new {@code SmtpMessageReader} that loops over the received messages.
      * Note that if you create multiple {@code SmtpMessageReader} instances, the will
      * compete over the same message list and the messages will be received only by one
-     * of the readers.
+     * of the readers (unless the implementation states otherwise, like {@link LogSmtpMessageHandler}).
      *
      * @return A new {@code SmtpMessageReader} instance.
      */
@@ -45,4 +45,16 @@ public interface SmtpMessageHandler extends SmtpServerListener {
      * @return All the (newly) received messages or an empty list if none.
      */
     List<SmtpMessage> readMessages(long delayIfNoMessage, TimeUnit unit);
+
+    /**
+     * Returns true if this handler can be notified concurrently of the received messages.
+     * In this case, the {@code SmtpServer} will invoke {@link #notifyMessage(ch.astorm.smtp4j.SmtpServer, ch.astorm.smtp4j.core.SmtpMessage) notifyMessage}
+     * directly from the threads that received the messages, without holding its global lock.
+     * The {@link SmtpServerListener listeners} of the server are still notified one at a time.
+     *
+     * @return True if the handler is concurrent. By default, false.
+     */
+    default boolean isConcurrent() {
+        return false;
+    }
 }
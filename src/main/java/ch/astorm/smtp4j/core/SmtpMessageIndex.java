@@ -0,0 +1,444 @@
+package ch.astorm.smtp4j.core;
+
+import ch.astorm.smtp4j.SmtpServer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Full-text index over the subject and the {@link SmtpMessage#getBody() body} of the received messages.
+ * <p>Once registered as {@link SmtpServerListener}, the received messages are tokenized and indexed in the
+ * background, hence they are searchable shortly after being received (see {@link #flush()}). The tokens are
+ * the sequences of letters and digits, in lower case. For each token, the index keeps a compressed list of
+ * the messages that contain it, along with the positions of the token (variable-length encoded deltas).</p>
+ * <p>The {@link #search(java.lang.String) queries} support the following syntax:</p>
+ * <ul>
+ *   <li>{@code invoice paid} - the messages that contain both tokens</li>
+ *   <li>{@code invoice OR receipt} - the messages that contain one of the tokens</li>
+ *   <li>{@code invoice -draft} - the messages that contain the first token but not the second</li>
+ *   <li>{@code "payment received"} - the messages that contain the tokens one after the other</li>
+ * </ul>
+ * <p>The indexed messages are kept by the index until it is {@link #clear() cleared}.</p>
+ * This class is Thread-safe.
+ */
+public class SmtpMessageIndex implements SmtpServerListener {
+    private static final Logger LOG = Logger.getLogger(SmtpMessageIndex.class.getName());
+    private static final String OR = "OR";
+
+    private final Map<String, PostingList> postings = new HashMap<>();
+    private final List<SmtpMessage> messages = new ArrayList<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private ExecutorService indexer;
+
+    /**
+     * Compressed list of the messages and positions of a token.
+     * Each entry is made of the delta of the message identifier, the number of positions
+     * and the deltas of the positions, all encoded as variable-length integers.
+     */
+    private static class PostingList {
+        private byte[] data = new byte[16];
+        private int length;
+        private int lastDocument = -1;
+        private int documentCount;
+
+        private void add(int document, int[] positions, int nbPositions) {
+            writeVarInt(document-lastDocument);
+            writeVarInt(nbPositions);
+            int lastPosition = 0;
+            for(int i=0 ; i<nbPositions ; ++i) {
+                writeVarInt(positions[i]-lastPosition);
+                lastPosition = positions[i];
+            }
+            lastDocument = document;
+            ++documentCount;
+        }
+
+        private void writeVarInt(int value) {
+            if(length+5>data.length) { data = Arrays.copyOf(data, data.length*2); }
+            while((value & ~0x7f)!=0) {
+                data[length++] = (byte)((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte)value;
+        }
+
+        private int[] documents() {
+            int[] documents = new int[documentCount];
+            int[] offset = { 0 };
+            int document = -1;
+            for(int i=0 ; i<documentCount ; ++i) {
+                document += readVarInt(offset);
+                documents[i] = document;
+                int nbPositions = readVarInt(offset);
+                for(int j=0 ; j<nbPositions ; ++j) { readVarInt(offset); }
+            }
+            return documents;
+        }
+
+        /**
+         * Returns the positions of the token in the given {@code documents} (sorted), or null
+         * for the documents that do not contain the token.
+         */
+        private int[][] positions(int[] documents) {
+            int[][] positions = new int[documents.length][];
+            int[] offset = { 0 };
+            int document = -1;
+            int index = 0;
+            for(int i=0 ; i<documentCount && index<documents.length ; ++i) {
+                document += readVarInt(offset);
+                int nbPositions = readVarInt(offset);
+                while(index<documents.length && documents[index]<document) { ++index; }
+
+                boolean wanted = index<documents.length && documents[index]==document;
+                int[] docPositions = wanted ? new int[nbPositions] : null;
+                int position = 0;
+                for(int j=0 ; j<nbPositions ; ++j) {
+                    position += readVarInt(offset);
+                    if(wanted) { docPositions[j] = position; }
+                }
+                if(wanted) { positions[index++] = docPositions; }
+            }
+            return positions;
+        }
+
+        private int readVarInt(int[] offset) {
+            int value = 0;
+            int shift = 0;
+            byte current;
+            do {
+                current = data[offset[0]++];
+                value |= (current & 0x7f)<<shift;
+                shift += 7;
+            } while((current & 0x80)!=0);
+            return value;
+        }
+    }
+
+    /**
+     * Indexes the given {@code message} immediately, in the calling thread.
+     *
+     * @param message The message.
+     */
+    public void add(SmtpMessage message) {
+        List<String> tokens = new ArrayList<>(256);
+        tokenize(message.getSubject(), tokens);
+        tokens.add(null); //a phrase cannot span the subject and the body
+        tokenize(message.getBody(), tokens);
+
+        Map<String, int[]> tokenPositions = new HashMap<>();
+        Map<String, Integer> tokenCounts = new HashMap<>();
+        for(int position=0 ; position<tokens.size() ; ++position) {
+            String token = tokens.get(position);
+            if(token==null) { continue; }
+
+            int count = tokenCounts.getOrDefault(token, 0);
+            int[] positions = tokenPositions.get(token);
+            if(positions==null || positions.length==count) {
+                positions = positions==null ? new int[4] : Arrays.copyOf(positions, positions.length*2);
+                tokenPositions.put(token, positions);
+            }
+            positions[count] = position;
+            tokenCounts.put(token, count+1);
+        }
+
+        synchronized(postings) {
+            int document = messages.size();
+            messages.add(message);
+            tokenPositions.forEach((token, positions) -> postings.computeIfAbsent(token, t -> new PostingList()).add(document, positions, tokenCounts.get(token)));
+        }
+    }
+
+    private static void tokenize(String text, List<String> tokens) {
+        if(text==null) { return; }
+
+        int start = -1;
+        for(int i=0 ; i<=text.length() ; ++i) {
+            boolean tokenChar = i<text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if(tokenChar && start<0) { start = i; }
+            else if(!tokenChar && start>=0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Waits until all the received messages have been indexed.
+     */
+    public void flush() {
+        ExecutorService localIndexer;
+        synchronized(this) { localIndexer = indexer; }
+        if(localIndexer==null) { return; }
+
+        try { localIndexer.submit(() -> {}).get(); }
+        catch(InterruptedException ie) { Thread.currentThread().interrupt(); }
+        catch(ExecutionException ee) { throw new IllegalStateException("Unable to flush index", ee.getCause()); }
+    }
+
+    /**
+     * Searches the messages that match the given {@code query}.
+     *
+     * @param query The query.
+     * @return The matching messages, in the order they have been received.
+     */
+    public List<SmtpMessage> search(String query) {
+        if(query==null) { throw new IllegalArgumentException("query not defined"); }
+
+        List<List<String>> clauses = parse(query);
+        synchronized(postings) {
+            int[] result = new int[0];
+            for(List<String> clause : clauses) { result = union(result, evaluate(clause)); }
+
+            List<SmtpMessage> found = new ArrayList<>(result.length);
+            for(int document : result) { found.add(messages.get(document)); }
+            return found;
+        }
+    }
+
+    /**
+     * Splits the query in clauses (separated by {@code OR}) made of items: tokens, phrases
+     * (starting with a quote) or negated items (starting with a minus).
+     */
+    private static List<List<String>> parse(String query) {
+        List<List<String>> clauses = new ArrayList<>();
+        List<String> clause = new ArrayList<>();
+        int index = 0;
+        while(index<query.length()) {
+            char c = query.charAt(index);
+            if(Character.isWhitespace(c)) { ++index; continue; }
+
+            boolean negated = c=='-';
+            int itemStart = negated ? index+1 : index;
+            int itemEnd;
+            String item;
+            if(itemStart<query.length() && query.charAt(itemStart)=='"') {
+                int closing = query.indexOf('"', itemStart+1);
+                itemEnd = closing<0 ? query.length() : closing+1;
+                item = "\""+query.substring(itemStart+1, closing<0 ? query.length() : closing);
+            } else {
+                itemEnd = itemStart;
+                while(itemEnd<query.length() && !Character.isWhitespace(query.charAt(itemEnd))) { ++itemEnd; }
+                item = query.substring(itemStart, itemEnd);
+            }
+            index = itemEnd;
+
+            if(!negated && item.equals(OR)) {
+                if(!clause.isEmpty()) { clauses.add(clause); }
+                clause = new ArrayList<>();
+            } else if(!item.isEmpty()) {
+                clause.add(negated ? "-"+item : item);
+            }
+        }
+        if(!clause.isEmpty()) { clauses.add(clause); }
+        return clauses;
+    }
+
+    private int[] evaluate(List<String> clause) {
+        int[] result = null;
+        List<int[]> excluded = new ArrayList<>();
+        for(String item : clause) {
+            boolean negated = item.startsWith("-");
+            String expression = negated ? item.substring(1) : item;
+
+            int[] documents = expression.startsWith("\"") ? phrase(expression.substring(1)) : token(expression);
+            if(documents==null) { continue; } //no token (only separators)
+
+            if(negated) { excluded.add(documents); }
+            else { result = result==null ? documents : intersection(result, documents); }
+        }
+
+        if(result==null) {
+            result = new int[messages.size()];
+            Arrays.setAll(result, i -> i);
+        }
+        for(int[] documents : excluded) { result = difference(result, documents); }
+        return result;
+    }
+
+    private int[] token(String expression) {
+        List<String> tokens = new ArrayList<>(1);
+        tokenize(expression, tokens);
+        if(tokens.isEmpty()) { return null; }
+        if(tokens.size()>1) { return phrase(tokens); }
+
+        PostingList list = postings.get(tokens.get(0));
+        return list!=null ? list.documents() : new int[0];
+    }
+
+    private int[] phrase(String expression) {
+        List<String> tokens = new ArrayList<>();
+        tokenize(expression, tokens);
+        return tokens.isEmpty() ? null : phrase(tokens);
+    }
+
+    private int[] phrase(List<String> tokens) {
+        PostingList[] lists = new PostingList[tokens.size()];
+        int[] candidates = null;
+        for(int i=0 ; i<lists.length ; ++i) {
+            lists[i] = postings.get(tokens.get(i));
+            if(lists[i]==null) { return new int[0]; }
+            candidates = candidates==null ? lists[i].documents() : intersection(candidates, lists[i].documents());
+        }
+
+        int[][][] positions = new int[lists.length][][];
+        for(int i=0 ; i<lists.length ; ++i) { positions[i] = lists[i].positions(candidates); }
+
+        int[] matches = new int[candidates.length];
+        int nbMatches = 0;
+        for(int d=0 ; d<candidates.length ; ++d) {
+            for(int start : positions[0][d]) {
+                boolean match = true;
+                for(int i=1 ; i<lists.length && match ; ++i) { match = Arrays.binarySearch(positions[i][d], start+i)>=0; }
+                if(match) {
+                    matches[nbMatches++] = candidates[d];
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(matches, nbMatches);
+    }
+
+    private static int[] intersection(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, k = 0;
+        while(i<a.length && j<b.length) {
+            if(a[i]<b[j]) { ++i; }
+            else if(a[i]>b[j]) { ++j; }
+            else { result[k++] = a[i++]; ++j; }
+        }
+        return Arrays.copyOf(result, k);
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        int[] result = new int[a.length+b.length];
+        int i = 0, j = 0, k = 0;
+        while(i<a.length || j<b.length) {
+            if(j>=b.length || (i<a.length && a[i]<b[j])) { result[k++] = a[i++]; }
+            else if(i>=a.length || a[i]>b[j]) { result[k++] = b[j++]; }
+            else { result[k++] = a[i++]; ++j; }
+        }
+        return Arrays.copyOf(result, k);
+    }
+
+    private static int[] difference(int[] a, int[] b) {
+        int[] result = new int[a.length];
+        int i = 0, j = 0, k = 0;
+        while(i<a.length) {
+            while(j<b.length && b[j]<a[i]) { ++j; }
+            if(j>=b.length || b[j]!=a[i]) { result[k++] = a[i]; }
+            ++i;
+        }
+        return Arrays.copyOf(result, k);
+    }
+
+    /**
+     * Returns the number of indexed messages.
+     *
+     * @return The number of messages.
+     */
+    public int getIndexedCount() {
+        synchronized(postings) { return messages.size(); }
+    }
+
+    /**
+     * Returns the number of received messages waiting to be indexed.
+     *
+     * @return The number of pending messages.
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Returns the number of distinct tokens in the index.
+     *
+     * @return The number of tokens.
+     */
+    public int getTokenCount() {
+        synchronized(postings) { return postings.size(); }
+    }
+
+    /**
+     * Returns the approximate number of bytes used by the index (tokens and postings lists,
+     * without the messages).
+     *
+     * @return The memory usage.
+     */
+    public long getMemoryUsage() {
+        synchronized(postings) {
+            long total = messages.size()*4L;
+            for(Map.Entry<String, PostingList> entry : postings.entrySet()) {
+                total += 48+entry.getKey().length(); //map entry and token
+                total += 40+entry.getValue().data.length; //postings list
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Removes all the messages from the index.
+     */
+    public void clear() {
+        synchronized(postings) {
+            postings.clear();
+            messages.clear();
+        }
+    }
+
+    @Override
+    public synchronized void notifyStart(SmtpServer server) {
+        if(indexer==null) {
+            indexer = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "smtp4j-index");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Indexes the pending messages, then stops the background indexing.
+     */
+    @Override
+    public void notifyClose(SmtpServer server) {
+        ExecutorService localIndexer;
+        synchronized(this) {
+            localIndexer = indexer;
+            indexer = null;
+        }
+        if(localIndexer!=null) { localIndexer.close(); }
+    }
+
+    /**
+     * Schedules the indexing of the received message. If the server has not been started,
+     * the message is indexed immediately.
+     */
+    @Override
+    public void notifyMessage(SmtpServer server, SmtpMessage smtpMessage) {
+        synchronized(this) {
+            if(indexer!=null) {
+                pending.incrementAndGet();
+                indexer.execute(() -> index(smtpMessage));
+                return;
+            }
+        }
+        add(smtpMessage);
+    }
+
+    private void index(SmtpMessage message) {
+        try { add(message); }
+        catch(RuntimeException re) { LOG.log(Level.WARNING, "Unable to index message", re); }
+        finally { pending.decrementAndGet(); }
+    }
+}
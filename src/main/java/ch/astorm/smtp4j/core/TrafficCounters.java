@@ -0,0 +1,129 @@
+package ch.astorm.smtp4j.core;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the traffic received by a {@link ch.astorm.smtp4j.SmtpServer}.
+ * <p>The counters are updated for every accepted message, whatever the
+ * {@link ch.astorm.smtp4j.SmtpServerOptions#capturePolicy capture policy}. Along with the
+ * volumes, the CPU time spent by the server to handle the SMTP transactions is recorded, so that
+ * the maximum throughput of the server can be estimated independently of the load it actually receives.</p>
+ * This class is Thread-safe.
+ */
+public class TrafficCounters {
+    private final LongAdder messageCount = new LongAdder();
+    private final LongAdder recipientCount = new LongAdder();
+    private final LongAdder byteCount = new LongAdder();
+    private final LongAdder processingNanos = new LongAdder();
+    private final Map<String, LongAdder> senders = new ConcurrentHashMap<>();
+
+    /**
+     * Records a received message.
+     *
+     * @param sender The source {@code From} parameter value.
+     * @param recipients The number of recipients.
+     * @param bytes The size of the message content.
+     */
+    public void record(String sender, int recipients, long bytes) {
+        messageCount.increment();
+        recipientCount.add(recipients);
+        byteCount.add(bytes);
+        senders.computeIfAbsent(sender!=null ? sender : "", s -> new LongAdder()).increment();
+    }
+
+    /**
+     * Records the processing time spent by the server.
+     *
+     * @param nanos The processing time in nanoseconds.
+     */
+    public void addProcessingTime(long nanos) {
+        if(nanos>0) { processingNanos.add(nanos); }
+    }
+
+    /**
+     * Returns the number of received messages.
+     *
+     * @return The number of messages.
+     */
+    public long getMessageCount() {
+        return messageCount.sum();
+    }
+
+    /**
+     * Returns the number of recipients of all the received messages.
+     *
+     * @return The number of recipients.
+     */
+    public long getRecipientCount() {
+        return recipientCount.sum();
+    }
+
+    /**
+     * Returns the total size in bytes of the received contents.
+     *
+     * @return The number of bytes.
+     */
+    public long getByteCount() {
+        return byteCount.sum();
+    }
+
+    /**
+     * Returns the number of received messages by sender. A message without sender is counted
+     * with an empty string.
+     *
+     * @return A snapshot of the histogram.
+     */
+    public Map<String, Long> getSenderHistogram() {
+        Map<String, Long> histogram = new HashMap<>();
+        senders.forEach((k, v) -> histogram.put(k, v.sum()));
+        return Collections.unmodifiableMap(histogram);
+    }
+
+    /**
+     * Returns the CPU time (or elapsed time if not available) spent by the server threads to
+     * handle the SMTP transactions, including the TLS handshakes and the authentication.
+     *
+     * @return The processing time in nanoseconds.
+     */
+    public long getProcessingTime() {
+        return processingNanos.sum();
+    }
+
+    /**
+     * Returns the estimated number of messages per second that a single processor can handle.
+     * This is the maximum throughput the server can achieve, regardless of the client. Since the
+     * transactions are handled concurrently, the server as a whole scales with the number of processors.
+     *
+     * @return The maximum message rate or zero if nothing has been measured yet.
+     */
+    public double getMaxMessageRate() {
+        long nanos = getProcessingTime();
+        return nanos>0 ? getMessageCount()*1_000_000_000d/nanos : 0;
+    }
+
+    /**
+     * Returns the estimated number of content bytes per second that a single processor can handle.
+     *
+     * @return The maximum byte rate or zero if nothing has been measured yet.
+     * @see #getMaxMessageRate()
+     */
+    public double getMaxByteRate() {
+        long nanos = getProcessingTime();
+        return nanos>0 ? getByteCount()*1_000_000_000d/nanos : 0;
+    }
+
+    /**
+     * Resets all the counters.
+     */
+    public void reset() {
+        messageCount.reset();
+        recipientCount.reset();
+        byteCount.reset();
+        processingNanos.reset();
+        senders.clear();
+    }
+}
@@ -3,11 +3,19 @@ package ch.astorm.smtp4j.protocol;
 
 import ch.astorm.smtp4j.SmtpServer;
 import ch.astorm.smtp4j.SmtpServerOptions;
+import ch.astorm.smtp4j.SmtpServerOptions.CapturePolicy;
 import ch.astorm.smtp4j.SmtpServerOptions.Protocol;
 import ch.astorm.smtp4j.auth.SmtpAuthenticatorHandler;
 import ch.astorm.smtp4j.auth.SmtpExchangeHandler;
+import ch.astorm.smtp4j.core.ContentDigest;
+import ch.astorm.smtp4j.core.DkimVerifier;
+import ch.astorm.smtp4j.core.MessageSampler;
+import ch.astorm.smtp4j.core.SmtpAttachment;
 import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.core.SmtpMessage.ReceiveDetails;
+import ch.astorm.smtp4j.core.TrafficCounters;
 import ch.astorm.smtp4j.protocol.SmtpCommand.Type;
+import ch.astorm.smtp4j.util.StringPool;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -15,10 +23,15 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
@@ -27,8 +40,15 @@ import javax.net.ssl.SSLSocketFactory;
  * Handles the SMTP protocol.
  */
 public class DefaultSmtpTransactionHandler implements AutoCloseable, SmtpTransactionHandler {
+    private static final byte[] CRLF = SmtpProtocolConstants.CRLF.getBytes(StandardCharsets.US_ASCII);
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
     private final SmtpServerOptions options;
     private final MessageReceiver messageReceiver;
+    private final TrafficCounters trafficCounters;
+    private final boolean recordExchanges;
+    private boolean recording;
+    private long processingCheckpoint;
 
     private boolean secureChannel;
     private Socket socket;
@@ -56,6 +76,9 @@ public class DefaultSmtpTransactionHandler implements AutoCloseable, SmtpTransac
     public DefaultSmtpTransactionHandler(SmtpServer smtpServer, MessageReceiver messageReceiver) {
         this.options = smtpServer.getOptions();
         this.messageReceiver = messageReceiver;
+        this.trafficCounters = smtpServer.getTrafficCounters();
+        this.recordExchanges = options.capturePolicy!=CapturePolicy.COUNTERS_ONLY;
+        this.recording = recordExchanges;
     }
 
     private void initSocket(Socket socket, boolean sslSocket) throws IOException {
@@ -80,9 +103,21 @@ public class DefaultSmtpTransactionHandler implements AutoCloseable, SmtpTransac
     @Override
     public void execute(Socket socket) throws IOException, SmtpProtocolException {
         initSocket(socket, false);
+        processingCheckpoint = processingTime();
         
         try { executeInternal(); }
         catch(SmtpMessageSizeExceededException sizeException) { reply(SmtpProtocolConstants.CODE_STORAGE_EXCEEDED, "Message size exceeded"); }
+        finally { recordProcessingTime(); }
+    }
+
+    private static long processingTime() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    private void recordProcessingTime() {
+        long now = processingTime();
+        trafficCounters.addProcessingTime(now-processingCheckpoint);
+        processingCheckpoint = now;
     }
     
     private void executeInternal() throws SmtpProtocolException {
@@ -220,6 +255,7 @@ public class DefaultSmtpTransactionHandler implements AutoCloseable, SmtpTransac
     }
 
     private String mailFrom;
+    private boolean sampled;
     private List<String> recipients;
     private ByteArrayOutputStream smtpMessageContent;
     
@@ -234,7 +270,14 @@ public class DefaultSmtpTransactionHandler implements AutoCloseable, SmtpTransac
             if(mailFrom==null) {
                 if(commandType==Type.MAIL_FROM) {
                     String enbraced = command.getParameter(); //enclosed: <mail_value>
-                    mailFrom = enbraced.substring(1, enbraced.length()-1);
+                    mailFrom = StringPool.SHARED.intern(enbraced, 1, enbraced.length()-1);
+                    MessageSampler sampler = options.sampler;
+                    sampled = options.capturePolicy!=CapturePolicy.COUNTERS_ONLY && (sampler==null || sampler.sample(mailFrom));
+                    if(!sampled) {
+                        //the exchanges of this transaction must not end up in the next captured message
+                        recording = false;
+                        readData.clear();
+                    }
                     reply(SmtpProtocolConstants.CODE_OK, "OK");
                 } else if(commandType==Type.QUIT) {
                     reply(SmtpProtocolConstants.CODE_QUIT, "goodbye");
@@ -260,7 +303,7 @@ public class DefaultSmtpTransactionHandler implements AutoCloseable, SmtpTransac
                 while(commandType==Type.RECIPIENT) {
                     String enbraced = command.getParameter(); //enclosed: <mail_value> [SP <rcpt-parameters>]
                     int endMail = enbraced.indexOf('>');
-                    recipients.add(enbraced.substring(1, endMail));
+                    recipients.add(StringPool.SHARED.intern(enbraced, 1, endMail));
                     reply(SmtpProtocolConstants.CODE_OK, "OK");
                     
                     command = nextCommand();
@@ -274,43 +317,98 @@ public class DefaultSmtpTransactionHandler implements AutoCloseable, SmtpTransac
                     continue;
                 }
 
+                if(!sampled) {
+                    reply(SmtpProtocolConstants.CODE_INTERMEDIATE_REPLY, "Start mail input; end with <CRLF>.<CRLF>");
+                    long contentLength = discardData();
+                    trafficCounters.record(mailFrom, recipients.size(), contentLength);
+                    recordProcessingTime();
+                    reply(SmtpProtocolConstants.CODE_OK, "OK");
+                    resetState();
+                    continue;
+                }
+
                 smtpMessageContent = new ByteArrayOutputStream(256);
                 reply(SmtpProtocolConstants.CODE_INTERMEDIATE_REPLY, "Start mail input; end with <CRLF>.<CRLF>");
                 
                 input.setByteCounterEnabled(true);
                 
+                boolean headersOnly = options.capturePolicy==CapturePolicy.HEADERS_ONLY;
+                MimeAttachmentExtractor extractor = options.attachmentDirectory!=null && !headersOnly ? new MimeAttachmentExtractor(options.attachmentDirectory) : null;
+                ContentDigest[] digestTypes = options.contentDigests.toArray(ContentDigest[]::new);
+                ContentDigest.Hasher[] hashers = new ContentDigest.Hasher[digestTypes.length];
+                for(int i=0 ; i<digestTypes.length ; ++i) { hashers[i] = digestTypes[i].newHasher(); }
+                DkimVerifier dkimVerifier = options.dkimVerifier;
+                DkimVerifier.BodyHasher dkimHasher = dkimVerifier!=null ? dkimVerifier.newBodyHasher() : null;
+                boolean inBody = false;
+                long bodyLength = 0;
+                long contentLength = 0;
+                boolean firstLine = true;
                 boolean hasFailure = false;
-                byte[] currentLine = nextLineRaw();
-                while(currentLine!=null) {
-                    //DATA content must end with a dot on a single line
-                    if(currentLine.length==1 && currentLine[0]==SmtpProtocolConstants.DOT) {
-                        byte[] smtpContent = smtpMessageContent.toByteArray();
-                        byte[] trimmedSmtpContent = new byte[smtpContent.length-SmtpProtocolConstants.CRLF.length()];
-                        System.arraycopy(smtpContent, 0, trimmedSmtpContent, 0, smtpContent.length-SmtpProtocolConstants.CRLF.length());
+                try {
+                    byte[] currentLine = nextLineRaw();
+                    while(currentLine!=null) {
+                        //DATA content must end with a dot on a single line
+                        if(currentLine.length==1 && currentLine[0]==SmtpProtocolConstants.DOT) {
+                            byte[] smtpContent = smtpMessageContent.toByteArray();
+                            byte[] trimmedSmtpContent = new byte[smtpContent.length-SmtpProtocolConstants.CRLF.length()];
+                            System.arraycopy(smtpContent, 0, trimmedSmtpContent, 0, smtpContent.length-SmtpProtocolConstants.CRLF.length());
                         
-                        SmtpMessage message = SmtpMessage.create(mailFrom, recipients, trimmedSmtpContent, new ArrayList<>(exchanges));
-                        try {
-                            messageReceiver.receiveMessage(message);
-                            resetState();
-                        } catch(Exception e) {
-                            reply(SmtpProtocolConstants.CODE_TRANSACTION_FAILED, e.getMessage());
-                            hasFailure = true;
-                        }
+                            try {
+                                List<SmtpAttachment> attachments = extractor!=null ? extractor.finish() : null;
+                                Map<ContentDigest, String> digests = new EnumMap<>(ContentDigest.class);
+                                for(int i=0 ; i<digestTypes.length ; ++i) { digests.put(digestTypes[i], hashers[i].digest()); }
+                                long discardedBodyLength = headersOnly ? Math.max(0, bodyLength-CRLF.length) : -1;
+                                ReceiveDetails details = new ReceiveDetails(attachments, digests, discardedBodyLength);
+                                SmtpMessage message = SmtpMessage.create(mailFrom, recipients, trimmedSmtpContent, new ArrayList<>(exchanges), new Date(), details);
+                                if(dkimHasher!=null) { dkimVerifier.verify(message, dkimHasher); }
+                                messageReceiver.receiveMessage(message);
+                                trafficCounters.record(mailFrom, recipients.size(), Math.max(0, contentLength-CRLF.length));
+                                recordProcessingTime();
+                                resetState();
+                            } catch(SmtpMessageRejectedException e) {
+                                reply(e.getCode(), e.getMessage());
+                                hasFailure = true;
+                            } catch(Exception e) {
+                                reply(SmtpProtocolConstants.CODE_TRANSACTION_FAILED, e.getMessage());
+                                hasFailure = true;
+                            }
+                            if(hasFailure && extractor!=null) { extractor.discard(); }
                         
-                        break;
-                    } else {
-                        //if DATA starts with a dot, a second one must be added to represent it, so we strip the first one
-                        if(currentLine.length>0 && currentLine[0]==SmtpProtocolConstants.DOT) {
-                            byte[] stripped = new byte[currentLine.length-1];
-                            System.arraycopy(currentLine, 1, stripped, 0, currentLine.length-1);
-                            currentLine = stripped;
-                        }
+                            break;
+                        } else {
+                            //if DATA starts with a dot, a second one must be added to represent it, so we strip the first one
+                            if(currentLine.length>0 && currentLine[0]==SmtpProtocolConstants.DOT) {
+                                byte[] stripped = new byte[currentLine.length-1];
+                                System.arraycopy(currentLine, 1, stripped, 0, currentLine.length-1);
+                                currentLine = stripped;
+                            }
                         
-                        smtpMessageContent.writeBytes(currentLine);
-                        smtpMessageContent.writeBytes(SmtpProtocolConstants.CRLF.getBytes(StandardCharsets.US_ASCII));
-                    }
+                            if(extractor!=null) { extractor.line(currentLine); }
+
+                            //the digests match the content without its final CRLF
+                            for(ContentDigest.Hasher hasher : hashers) {
+                                if(!firstLine) { hasher.update(CRLF, 0, CRLF.length); }
+                                hasher.update(currentLine, 0, currentLine.length);
+                            }
+                            firstLine = false;
+                            if(dkimHasher!=null) { dkimHasher.line(currentLine); }
+                            contentLength += currentLine.length+CRLF.length;
+
+                            if(headersOnly && inBody) {
+                                //the body is only counted, the last CRLF is not part of the content
+                                bodyLength += currentLine.length+CRLF.length;
+                            } else {
+                                smtpMessageContent.writeBytes(currentLine);
+                                smtpMessageContent.writeBytes(CRLF);
+                                if(currentLine.length==0) { inBody = true; }
+                            }
+                        }
 
-                    currentLine = nextLineRaw();
+                        currentLine = nextLineRaw();
+                    }
+                } catch(SmtpProtocolException e) {
+                    if(extractor!=null) { extractor.discard(); }
+                    throw e;
                 }
 
                 input.setByteCounterEnabled(false);
@@ -329,6 +427,7 @@ public class DefaultSmtpTransactionHandler implements AutoCloseable, SmtpTransac
     }
 
     private void resetState() {
+        this.recording = recordExchanges;
         this.mailFrom = null;
         this.recipients = null;
         this.smtpMessageContent = null;
@@ -339,15 +438,41 @@ public class DefaultSmtpTransactionHandler implements AutoCloseable, SmtpTransac
             byte[] line = input.readLine();
             if(line==null) { throw new SmtpProtocolException("Unexpected end of stream (no more line)"); }
             
-            String lineStr = new String(line, StandardCharsets.US_ASCII);
-            readData.add(lineStr);
-            if(options.debugStream!=null) { options.debugStream.println("> "+lineStr); }
+            if(recording || options.debugStream!=null) {
+                String lineStr = new String(line, StandardCharsets.US_ASCII);
+                if(recording) { readData.add(lineStr); }
+                if(options.debugStream!=null) { options.debugStream.println("> "+lineStr); }
+            }
             
             return line;
         } catch(IOException ioe) {
             throw new SmtpProtocolException("I/O exception", ioe);
         }
     }
+
+    /**
+     * Reads the DATA content until the final dot without keeping it.
+     *
+     * @return The length of the content, without the final CRLF.
+     */
+    private long discardData() throws SmtpProtocolException {
+        input.setByteCounterEnabled(true);
+        try {
+            long length = 0;
+            int lineLength = input.skipDataLine();
+            while(lineLength!=SmtpBufferedInputStream.END_OF_DATA) {
+                if(lineLength<0) { throw new SmtpProtocolException("Unexpected end of stream (no more line)"); }
+                length += lineLength+CRLF.length;
+                lineLength = input.skipDataLine();
+            }
+            if(options.debugStream!=null) { options.debugStream.println("> ("+length+" bytes discarded)"); }
+            return Math.max(0, length-CRLF.length);
+        } catch(IOException ioe) {
+            throw new SmtpProtocolException("I/O exception", ioe);
+        } finally {
+            input.setByteCounterEnabled(false);
+        }
+    }
     
     private String nextLine() throws SmtpProtocolException {
         return new String(nextLineRaw(), StandardCharsets.US_ASCII);
@@ -363,7 +488,7 @@ public class DefaultSmtpTransactionHandler implements AutoCloseable, SmtpTransac
             else if(commandType==Type.VERIFY) { reply(SmtpProtocolConstants.CODE_NOT_SUPPORTED, "Not supported"); }
             else if(commandType==Type.HELP) { reply(SmtpProtocolConstants.CODE_NOT_SUPPORTED, "Not supported"); }
             else if(commandType==Type.UNKNOWN) { reply(SmtpProtocolConstants.CODE_COMMAND_UNKNOWN, "Unknown command"); }
-            else if(commandType==Type.RESET) { resetState(); reply(SmtpProtocolConstants.CODE_OK, "OK"); }
+            else if(commandType==Type.RESET) { reply(SmtpProtocolConstants.CODE_OK, "OK"); resetState(); }
             else { return command; }
 
             command = SmtpCommand.parse(nextLine());
@@ -396,9 +521,11 @@ public class DefaultSmtpTransactionHandler implements AutoCloseable, SmtpTransac
         }
         builder.append(SmtpProtocolConstants.CRLF);
 
-        SmtpExchange exchange = new SmtpExchange(new ArrayList<>(readData), builder.toString());
-        exchanges.add(exchange);
-        readData.clear();
+        if(recording) {
+            SmtpExchange exchange = new SmtpExchange(new ArrayList<>(readData), builder.toString());
+            exchanges.add(exchange);
+            readData.clear();
+        }
         
         if(options.debugStream!=null) { options.debugStream.println("< "+builder.toString().trim()); }
         stream.print(builder.toString());
@@ -429,6 +556,46 @@ class SmtpBufferedInputStream extends BufferedInputStream {
     */
     public void setByteCounterEnabled(boolean enabled) { this.readByteUpdate = enabled; }
     public void setSizeLimit(int limit) { this.sizeLimit = limit; }
+
+    /**
+     * Value returned by {@link #skipDataLine()} for the line that ends the DATA content.
+     */
+    public static final int END_OF_DATA = -2;
+
+    /**
+     * Skips the next line of the DATA content without copying it.
+     *
+     * @return The length of the line without its leading stuffed dot, {@link #END_OF_DATA} if the line only
+     *         holds a dot or -1 if EOF.
+     */
+    public int skipDataLine() throws IOException, SmtpMessageSizeExceededException {
+        int length = 0;
+        int first = -1;
+        int previous = -1;
+
+        int c = super.read();
+        while(c>=0) {
+            if(readByteUpdate) {
+                ++readByteCounter;
+                if(sizeLimit>0 && sizeLimit<readByteCounter) {
+                    throw new SmtpMessageSizeExceededException();
+                }
+            }
+
+            if(previous=='\r' && c=='\n') {
+                --length; //the CR has been counted
+                if(first==SmtpProtocolConstants.DOT) { return length==1 ? END_OF_DATA : length-1; }
+                return length;
+            }
+
+            if(length==0) { first = c; }
+            ++length;
+            previous = c;
+
+            c = super.read();
+        }
+        return -1;
+    }
     
     /**
      * Read the next line as raw bytes.
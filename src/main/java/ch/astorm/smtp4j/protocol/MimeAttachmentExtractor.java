@@ -0,0 +1,323 @@
+package ch.astorm.smtp4j.protocol;
+
+import ch.astorm.smtp4j.core.SmtpAttachment;
+import jakarta.mail.internet.ContentDisposition;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.ParseException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decodes the attachments of a message into files while its DATA lines are received.
+ * <p>The lines are given one by one, without their CRLF. The top-level parts of a multipart message that
+ * have a filename are decoded (base64, quoted-printable or identity) and written in a new file of the
+ * target directory, hence they are never held in memory. The parts are recognized as jakarta.mail
+ * does in {@link ch.astorm.smtp4j.core.SmtpMessage#getAttachments()}.</p>
+ * <p>If the structure of the message cannot be followed, the extraction is abandoned and the
+ * attachments will be decoded from the {@code MimeMessage} as usual.</p>
+ * This class is not Thread-safe.
+ */
+class MimeAttachmentExtractor {
+    private static final Logger LOG = Logger.getLogger(MimeAttachmentExtractor.class.getName());
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private final Path directory;
+    private final List<SmtpAttachment> attachments = new ArrayList<>();
+    private final List<Path> files = new ArrayList<>();
+    private final List<String> headers = new ArrayList<>();
+    private State state = State.HEADERS;
+    private byte[] delimiter;
+    private PartWriter part;
+
+    private static enum State { HEADERS, PREAMBLE, PART_HEADERS, PART_BODY, DONE, FAILED }
+
+    /**
+     * Creates a new {@code MimeAttachmentExtractor}.
+     *
+     * @param directory The directory in which the attachment files are created.
+     */
+    MimeAttachmentExtractor(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Handles the next DATA line, once unstuffed.
+     *
+     * @param line The line, without CRLF.
+     */
+    void line(byte[] line) {
+        try {
+            switch(state) {
+                case HEADERS -> {
+                    if(line.length>0) { header(line); }
+                    else {
+                        ContentType type = new ContentType(headerValue("Content-Type", "text/plain"));
+                        String boundary = type.getParameter("boundary");
+                        if(type.getPrimaryType().equalsIgnoreCase("multipart") && boundary!=null && !boundary.isEmpty()) {
+                            delimiter = ("--"+boundary).getBytes(StandardCharsets.ISO_8859_1);
+                            state = State.PREAMBLE;
+                        } else {
+                            state = State.DONE;
+                        }
+                        headers.clear();
+                    }
+                }
+                case PREAMBLE -> {
+                    int kind = delimiterKind(line);
+                    if(kind==1) { state = State.PART_HEADERS; }
+                    else if(kind==2) { state = State.DONE; }
+                }
+                case PART_HEADERS -> {
+                    if(line.length>0) { header(line); }
+                    else {
+                        part = createPart();
+                        headers.clear();
+                        state = State.PART_BODY;
+                    }
+                }
+                case PART_BODY -> {
+                    int kind = delimiterKind(line);
+                    if(kind==0) {
+                        if(part!=null) { part.line(line); }
+                    } else {
+                        finishPart();
+                        state = kind==1 ? State.PART_HEADERS : State.DONE;
+                    }
+                }
+                case DONE, FAILED -> { /* nothing to do */ }
+            }
+        } catch(IOException | ParseException | RuntimeException e) {
+            LOG.log(Level.FINE, "Attachments extraction abandoned", e);
+            fail();
+        }
+    }
+
+    /**
+     * Completes the extraction.
+     *
+     * @return The extracted attachments or null if the extraction has been abandoned.
+     */
+    List<SmtpAttachment> finish() {
+        if(state==State.PART_BODY) {
+            //missing end delimiter, the last part ends with the message as jakarta.mail does
+            try { finishPart(); }
+            catch(IOException | RuntimeException e) {
+                LOG.log(Level.FINE, "Attachments extraction abandoned", e);
+                fail();
+            }
+        }
+        if(state==State.HEADERS || state==State.PART_HEADERS || state==State.FAILED) {
+            discard();
+            return null;
+        }
+        return attachments;
+    }
+
+    /**
+     * Abandons the extraction and deletes the created files.
+     */
+    void discard() {
+        if(part!=null) {
+            try { part.channel.close(); }
+            catch(IOException ioe) { /* ignored */ }
+            part = null;
+        }
+        for(Path file : files) {
+            try { Files.deleteIfExists(file); }
+            catch(IOException ioe) { LOG.log(Level.FINE, "Unable to delete "+file, ioe); }
+        }
+        files.clear();
+        attachments.clear();
+    }
+
+    private void fail() {
+        discard();
+        state = State.FAILED;
+    }
+
+    private void header(byte[] line) {
+        String str = new String(line, StandardCharsets.ISO_8859_1);
+        if((str.startsWith(" ") || str.startsWith("\t")) && !headers.isEmpty()) {
+            headers.set(headers.size()-1, headers.get(headers.size()-1)+"\r\n"+str);
+        } else {
+            headers.add(str);
+        }
+    }
+
+    private String headerValue(String name, String defaultValue) {
+        for(String header : headers) {
+            int colon = header.indexOf(':');
+            if(colon>0 && header.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return header.substring(colon+1).stripLeading();
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Returns 0 if the line is not a delimiter, 1 for a delimiter and 2 for the closing delimiter.
+     */
+    private int delimiterKind(byte[] line) {
+        if(line.length<delimiter.length) { return 0; }
+        for(int i=0 ; i<delimiter.length ; ++i) {
+            if(line[i]!=delimiter[i]) { return 0; }
+        }
+
+        int index = delimiter.length;
+        int kind = 1;
+        if(index+1<line.length && line[index]=='-' && line[index+1]=='-') {
+            kind = 2;
+            index += 2;
+        }
+        while(index<line.length && (line[index]==' ' || line[index]=='\t')) { ++index; }
+        return index==line.length || kind==2 ? kind : 0;
+    }
+
+    private PartWriter createPart() throws IOException, ParseException {
+        String contentType = headerValue("Content-Type", null);
+        ContentType type = new ContentType(contentType!=null ? contentType : "text/plain");
+        String primaryType = type.getPrimaryType().toLowerCase(Locale.ROOT);
+        if(primaryType.equals("multipart") || primaryType.equals("message")) { return null; }
+
+        String filename = null;
+        String disposition = headerValue("Content-Disposition", null);
+        if(disposition!=null) { filename = new ContentDisposition(disposition).getParameter("filename"); }
+        if(filename==null) { filename = type.getParameter("name"); }
+        if(filename==null) { return null; }
+
+        String encoding = headerValue("Content-Transfer-Encoding", "7bit").toLowerCase(Locale.ROOT);
+        if(!encoding.equals("base64") && !encoding.equals("quoted-printable") && !encoding.equals("7bit") && !encoding.equals("8bit") && !encoding.equals("binary")) {
+            throw new IOException("Unsupported transfer encoding "+encoding);
+        }
+
+        Path file = Files.createTempFile(directory, "attachment-", ".bin");
+        files.add(file);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        return new PartWriter(filename, contentType!=null ? contentType : "text/plain", encoding, file, channel);
+    }
+
+    private void finishPart() throws IOException {
+        if(part==null) { return; }
+
+        PartWriter current = part;
+        part = null;
+        current.finish();
+        attachments.add(new SmtpAttachment(current.filename, current.contentType, current.file, true));
+    }
+
+    /**
+     * Decodes the lines of a part into its file.
+     */
+    private static class PartWriter {
+        private final String filename;
+        private final String contentType;
+        private final String encoding;
+        private final Path file;
+        private final FileChannel channel;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream(1024);
+        private final ByteBuffer output = ByteBuffer.allocate(64*1024);
+        private boolean firstLine = true;
+        private boolean softBreak;
+
+        private PartWriter(String filename, String contentType, String encoding, Path file, FileChannel channel) {
+            this.filename = filename;
+            this.contentType = contentType;
+            this.encoding = encoding;
+            this.file = file;
+            this.channel = channel;
+        }
+
+        private void line(byte[] line) throws IOException {
+            switch(encoding) {
+                case "base64" -> base64(line);
+                case "quoted-printable" -> quotedPrintable(line);
+                default -> {
+                    if(!firstLine) { write(CRLF, 0, CRLF.length); }
+                    write(line, 0, line.length);
+                }
+            }
+            firstLine = false;
+        }
+
+        private void base64(byte[] line) throws IOException {
+            for(byte b : line) {
+                if((b>='A' && b<='Z') || (b>='a' && b<='z') || (b>='0' && b<='9') || b=='+' || b=='/' || b=='=') { pending.write(b); }
+            }
+
+            //only complete groups of 4 characters are decoded
+            int complete = pending.size()-pending.size()%4;
+            if(complete>0) {
+                byte[] chars = pending.toByteArray();
+                byte[] decoded = Base64.getMimeDecoder().decode(Arrays.copyOf(chars, complete));
+                write(decoded, 0, decoded.length);
+                pending.reset();
+                pending.write(chars, complete, chars.length-complete);
+            }
+        }
+
+        private void quotedPrintable(byte[] line) throws IOException {
+            //trailing whitespaces might have been added by the transport
+            int end = line.length;
+            while(end>0 && (line[end-1]==' ' || line[end-1]=='\t')) { --end; }
+
+            if(!firstLine && !softBreak) { write(CRLF, 0, CRLF.length); }
+            softBreak = end>0 && line[end-1]=='=';
+            if(softBreak) { --end; }
+
+            byte[] decoded = new byte[end];
+            int length = 0;
+            for(int i=0 ; i<end ; ++i) {
+                if(line[i]=='=' && i+2<end) {
+                    int high = Character.digit(line[i+1], 16);
+                    int low = Character.digit(line[i+2], 16);
+                    if(high>=0 && low>=0) {
+                        decoded[length++] = (byte)((high<<4) | low);
+                        i += 2;
+                        continue;
+                    }
+                }
+                decoded[length++] = line[i];
+            }
+            write(decoded, 0, length);
+        }
+
+        private void write(byte[] bytes, int offset, int length) throws IOException {
+            while(length>0) {
+                int chunk = Math.min(length, output.remaining());
+                output.put(bytes, offset, chunk);
+                offset += chunk;
+                length -= chunk;
+                if(!output.hasRemaining()) { flush(); }
+            }
+        }
+
+        private void flush() throws IOException {
+            output.flip();
+            while(output.hasRemaining()) { channel.write(output); }
+            output.clear();
+        }
+
+        private void finish() throws IOException {
+            try(channel) {
+                if(pending.size()>0) {
+                    byte[] decoded = Base64.getMimeDecoder().decode(pending.toByteArray());
+                    write(decoded, 0, decoded.length);
+                }
+                flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package ch.astorm.smtp4j.protocol;
+
+/**
+ * Exception thrown while receiving a message to reject it with a specific reply code.
+ * Any other exception rejects the message with {@link SmtpProtocolConstants#CODE_TRANSACTION_FAILED}.
+ */
+public class SmtpMessageRejectedException extends RuntimeException {
+    private final int code;
+
+    /**
+     * Creates a new {@code SmtpMessageRejectedException}.
+     *
+     * @param code The reply code sent to the client.
+     * @param message The reply message sent to the client.
+     */
+    public SmtpMessageRejectedException(int code, String message) {
+        super(message);
+        this.code = code;
+    }
+
+    /**
+     * Returns the reply code sent to the client.
+     *
+     * @return The reply code.
+     */
+    public int getCode() {
+        return code;
+    }
+}
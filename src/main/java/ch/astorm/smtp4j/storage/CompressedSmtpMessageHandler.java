@@ -0,0 +1,308 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.SmtpServer;
+import ch.astorm.smtp4j.core.DefaultSmtpMessageHandler;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.core.SmtpMessageContent;
+import ch.astorm.smtp4j.core.SmtpMessageHandler;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * {@code SmtpMessageHandler} that compresses the raw content of the received messages.
+ * <p>The content of the messages larger than a threshold is deflated before being handed over to the
+ * underlying store, and inflated once when accessed. The inflated copy is softly cached and shared by the
+ * {@code MimeMessage} parsed from it, so it can be reclaimed under memory pressure: only the stored form is
+ * guaranteed to be compressed. Optionally, a dictionary is built from
+ * the first received messages and used to compress the following ones, which improves the ratio when the
+ * messages are similar.</p>
+ * <p>The ratio and the CPU time spent to compress and decompress the messages are available through
+ * the metrics of this handler.</p>
+ * This class is Thread-safe.
+ */
+public class CompressedSmtpMessageHandler implements SmtpMessageHandler {
+    private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+    private static final int BUFFER_SIZE = 8192;
+
+    private final SmtpMessageHandler store;
+    private final int minSize;
+    private final int level;
+    private final int trainingMessages;
+    private final List<byte[]> samples = new ArrayList<>();
+    private volatile byte[] dictionary;
+
+    private final AtomicLong compressedMessages = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressionTime = new AtomicLong();
+    private final AtomicLong decompressionTime = new AtomicLong();
+
+    /**
+     * Default minimal size of a message to be compressed (1 KB).
+     */
+    public static final int DEFAULT_MIN_SIZE = 1024;
+
+    /**
+     * Maximum size of the dictionary (32 KB, the window of the deflate algorithm).
+     */
+    public static final int DICTIONARY_SIZE = 32*1024;
+
+    /**
+     * Creates a new {@code CompressedSmtpMessageHandler} that stores the messages in a new
+     * {@link DefaultSmtpMessageHandler} and compresses those larger than {@link #DEFAULT_MIN_SIZE 1 KB},
+     * without dictionary.
+     */
+    public CompressedSmtpMessageHandler() {
+        this(new DefaultSmtpMessageHandler(), DEFAULT_MIN_SIZE, Deflater.DEFAULT_COMPRESSION, 0);
+    }
+
+    /**
+     * Creates a new {@code CompressedSmtpMessageHandler}.
+     *
+     * @param store The {@code SmtpMessageHandler} that will hold the messages.
+     * @param minSize The minimal size (in bytes) of a message to be compressed.
+     * @param level The compression level, between 0 and 9 or {@link Deflater#DEFAULT_COMPRESSION}.
+     * @param trainingMessages The number of messages used to build the dictionary (at most {@link #DICTIONARY_SIZE}, since each
+     *                         message contributes at least one byte) or zero to compress without dictionary.
+     */
+    public CompressedSmtpMessageHandler(SmtpMessageHandler store, int minSize, int level, int trainingMessages) {
+        if(store==null) { throw new IllegalArgumentException("store not defined"); }
+        if(minSize<0) { throw new IllegalArgumentException("minSize must be positive"); }
+        if((level<0 || level>9) && level!=Deflater.DEFAULT_COMPRESSION) { throw new IllegalArgumentException("Invalid compression level "+level); }
+        if(trainingMessages<0) { throw new IllegalArgumentException("trainingMessages must be positive"); }
+        if(trainingMessages>DICTIONARY_SIZE) { throw new IllegalArgumentException("trainingMessages must not exceed "+DICTIONARY_SIZE); }
+        this.store = store;
+        this.minSize = minSize;
+        this.level = level;
+        this.trainingMessages = trainingMessages;
+    }
+
+    /**
+     * Deflated raw content of a message.
+     * The streams opened over the content are served from the inflated copy, which is a
+     * {@link jakarta.mail.internet.SharedInputStream} and avoids another copy when parsing the {@code MimeMessage}.
+     */
+    private class CompressedContent implements SmtpMessageContent {
+        private final byte[] data;
+        private final int size;
+        private final byte[] dictionary;
+        private volatile SoftReference<ByteBuffer> inflated;
+
+        private CompressedContent(byte[] data, int size, byte[] dictionary) {
+            this.data = data;
+            this.size = size;
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public ByteBuffer asByteBuffer() {
+            SoftReference<ByteBuffer> ref = inflated;
+            ByteBuffer buffer = ref!=null ? ref.get() : null;
+            if(buffer==null) {
+                buffer = ByteBuffer.wrap(inflate()).asReadOnlyBuffer();
+                inflated = new SoftReference<>(buffer);
+            }
+            return buffer.duplicate();
+        }
+
+        private byte[] inflate() {
+            Inflater inflater = new Inflater(true);
+            if(dictionary!=null) { inflater.setDictionary(dictionary); }
+
+            long start = cpuTime();
+            try(InputStream is = new InflaterInputStream(new ByteArrayInputStream(data), inflater, BUFFER_SIZE)) {
+                return is.readNBytes(size);
+            } catch(IOException ioe) {
+                throw new UncheckedIOException("Unable to decompress content", ioe);
+            } finally {
+                inflater.end();
+                decompressionTime.addAndGet(cpuTime()-start);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of messages that have been compressed.
+     *
+     * @return The number of compressed messages.
+     */
+    public long getCompressedMessages() {
+        return compressedMessages.get();
+    }
+
+    /**
+     * Returns the number of bytes of the compressed messages, before compression.
+     *
+     * @return The number of bytes.
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    /**
+     * Returns the number of bytes of the compressed messages, after compression.
+     *
+     * @return The number of bytes.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * Returns the compression ratio of the compressed messages ({@link #getUncompressedBytes()} divided
+     * by {@link #getCompressedBytes()}).
+     *
+     * @return The ratio or 1 if no message has been compressed.
+     */
+    public double getCompressionRatio() {
+        long compressed = compressedBytes.get();
+        return compressed>0 ? (double)uncompressedBytes.get()/compressed : 1;
+    }
+
+    /**
+     * Returns the CPU time spent to compress the messages.
+     *
+     * @param unit The unit of the returned value.
+     * @return The CPU time.
+     */
+    public long getCompressionTime(TimeUnit unit) {
+        return unit.convert(compressionTime.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the CPU time spent to decompress the messages.
+     *
+     * @param unit The unit of the returned value.
+     * @return The CPU time.
+     */
+    public long getDecompressionTime(TimeUnit unit) {
+        return unit.convert(decompressionTime.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns true if the dictionary has been built from the first messages.
+     *
+     * @return True if the messages are compressed with a dictionary.
+     */
+    public boolean hasDictionary() {
+        return dictionary!=null;
+    }
+
+    /**
+     * Compresses the raw content of {@code message} if it is large enough.
+     *
+     * @param message The message.
+     * @return A new message with the same envelope and a compressed content or {@code message}
+     *         if the compression is useless.
+     */
+    SmtpMessage compress(SmtpMessage message) {
+        ByteBuffer raw = message.getRawMimeBuffer();
+        int size = raw.remaining();
+        train(raw);
+        if(size<minSize) { return message; }
+
+        byte[] localDictionary = dictionary;
+        long start = cpuTime();
+        Deflater deflater = new Deflater(level, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size/2);
+        try {
+            if(localDictionary!=null) { deflater.setDictionary(localDictionary); }
+            deflater.setInput(raw);
+            deflater.finish();
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while(!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            deflater.end();
+            compressionTime.addAndGet(cpuTime()-start);
+        }
+
+        if(out.size()>=size) { return message; }
+
+        compressedMessages.incrementAndGet();
+        uncompressedBytes.addAndGet(size);
+        compressedBytes.addAndGet(out.size());
+        CompressedContent content = new CompressedContent(out.toByteArray(), size, localDictionary);
+        return message.withContent(content);
+    }
+
+    /**
+     * Keeps the beginning of the first messages and builds the dictionary once enough
+     * messages have been received. The deflate algorithm favors the strings at the end of the
+     * dictionary, hence the first samples are put at the end.
+     */
+    private void train(ByteBuffer raw) {
+        if(trainingMessages==0 || dictionary!=null) { return; }
+
+        synchronized(samples) {
+            if(dictionary!=null) { return; }
+
+            byte[] sample = new byte[Math.min(raw.remaining(), DICTIONARY_SIZE/trainingMessages)];
+            raw.get(0, sample);
+            samples.add(sample);
+
+            if(samples.size()==trainingMessages) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(DICTIONARY_SIZE);
+                for(int i=samples.size()-1 ; i>=0 ; --i) { out.writeBytes(samples.get(i)); }
+                dictionary = out.toByteArray();
+                samples.clear();
+            }
+        }
+    }
+
+    private static long cpuTime() {
+        return THREAD_BEAN.isCurrentThreadCpuTimeSupported() ? THREAD_BEAN.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    @Override
+    public void notifyStart(SmtpServer server) {
+        store.notifyStart(server);
+    }
+
+    @Override
+    public void notifyClose(SmtpServer server) {
+        store.notifyClose(server);
+    }
+
+    @Override
+    public void notifyMessage(SmtpServer server, SmtpMessage smtpMessage) {
+        store.notifyMessage(server, compress(smtpMessage));
+    }
+
+    @Override
+    public SmtpMessageReader messageReader() {
+        return store.messageReader();
+    }
+
+    @Override
+    public List<SmtpMessage> readMessages(long delayIfNoMessage, TimeUnit unit) {
+        return store.readMessages(delayIfNoMessage, unit);
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return store.isConcurrent();
+    }
+}
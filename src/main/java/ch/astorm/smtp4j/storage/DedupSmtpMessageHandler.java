@@ -0,0 +1,317 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.SmtpServer;
+import ch.astorm.smtp4j.core.DefaultSmtpMessageHandler;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.core.SmtpMessageContent;
+import ch.astorm.smtp4j.core.SmtpMessageHandler;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.ParseException;
+import java.io.InputStream;
+import java.lang.ref.Cleaner;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code SmtpMessageHandler} that stores only once the identical parts of the received messages.
+ * <p>The raw content of a multipart message is split at the boundaries of its top-level parts. Every
+ * segment of at least {@code minSegmentSize} bytes is hashed (SHA-256) and kept once in a content-addressed
+ * table, hence a body or an attachment sent many times is stored only once. The messages handed over to
+ * the underlying store reference the shared segments, which are also used when reading the attachments.</p>
+ * <p>The segments are reference-counted and removed from the table once all the messages that use them
+ * have been garbage collected.</p>
+ * This class is Thread-safe.
+ */
+public class DedupSmtpMessageHandler implements SmtpMessageHandler {
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final SmtpMessageHandler store;
+    private final int minSegmentSize;
+    private final Map<ByteBuffer, Segment> segments = new HashMap<>();
+    private final AtomicLong logicalBytes = new AtomicLong();
+    private final AtomicLong privateBytes = new AtomicLong();
+    private long sharedBytes;
+
+    /**
+     * Default minimal size of a shared segment (1 KB).
+     */
+    public static final int DEFAULT_MIN_SEGMENT_SIZE = 1024;
+
+    /**
+     * Creates a new {@code DedupSmtpMessageHandler} that stores the messages in a new
+     * {@link DefaultSmtpMessageHandler} and shares the segments of at least {@link #DEFAULT_MIN_SEGMENT_SIZE 1 KB}.
+     */
+    public DedupSmtpMessageHandler() {
+        this(new DefaultSmtpMessageHandler(), DEFAULT_MIN_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates a new {@code DedupSmtpMessageHandler}.
+     *
+     * @param store The {@code SmtpMessageHandler} that will hold the messages.
+     * @param minSegmentSize The minimal size of a segment to be shared. Smaller segments are kept by each message.
+     */
+    public DedupSmtpMessageHandler(SmtpMessageHandler store, int minSegmentSize) {
+        if(store==null) { throw new IllegalArgumentException("store not defined"); }
+        if(minSegmentSize<=0) { throw new IllegalArgumentException("minSegmentSize must be greater than zero"); }
+        this.store = store;
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    /**
+     * Shared segment of the content-addressed table.
+     */
+    private static class Segment {
+        private final ByteBuffer digest;
+        private final byte[] data;
+        private int references;
+
+        private Segment(ByteBuffer digest, byte[] data) {
+            this.digest = digest;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Raw content made of private and shared segments.
+     * The contiguous copy built by {@link #asByteBuffer()} is softly cached, so that it can be reclaimed
+     * under memory pressure without being rebuilt on every call.
+     */
+    private static class DedupContent implements SmtpMessageContent {
+        private final byte[][] segments;
+        private final int[] offsets;
+        private volatile SoftReference<ByteBuffer> contiguous;
+
+        private DedupContent(byte[][] segments, int[] offsets) {
+            this.segments = segments;
+            this.offsets = offsets;
+        }
+
+        @Override
+        public int size() {
+            return offsets[segments.length];
+        }
+
+        @Override
+        public ByteBuffer asByteBuffer() {
+            SoftReference<ByteBuffer> ref = contiguous;
+            ByteBuffer buffer = ref!=null ? ref.get() : null;
+            if(buffer==null) {
+                ByteBuffer copy = ByteBuffer.allocate(size());
+                for(byte[] segment : segments) { copy.put(segment); }
+                buffer = copy.flip().asReadOnlyBuffer();
+                contiguous = new SoftReference<>(buffer);
+            }
+            return buffer.duplicate();
+        }
+
+        @Override
+        public InputStream openStream() {
+            return new SegmentedInputStream(segments, offsets);
+        }
+    }
+
+    private static record Releaser(DedupSmtpMessageHandler handler, List<Segment> shared, int size, int privateSize) implements Runnable {
+        @Override
+        public void run() {
+            handler.release(this);
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the raw content of the messages currently referenced.
+     *
+     * @return The logical number of bytes.
+     */
+    public long getLogicalBytes() {
+        return logicalBytes.get();
+    }
+
+    /**
+     * Returns the number of bytes actually stored for the messages currently referenced, that is
+     * the shared segments (once) and the private segments of each message.
+     *
+     * @return The stored number of bytes.
+     */
+    public long getStoredBytes() {
+        synchronized(segments) { return sharedBytes+privateBytes.get(); }
+    }
+
+    /**
+     * Returns the number of segments in the content-addressed table.
+     *
+     * @return The number of shared segments.
+     */
+    public int getSharedSegmentCount() {
+        synchronized(segments) { return segments.size(); }
+    }
+
+    /**
+     * Splits the raw content of {@code message} and replaces its identical segments with the shared ones.
+     *
+     * @param message The message.
+     * @return A new message with the same envelope and a deduplicated content.
+     */
+    SmtpMessage deduplicate(SmtpMessage message) {
+        ByteBuffer raw = message.getRawMimeBuffer();
+        List<Integer> cuts = cuts(raw, boundary(message));
+
+        MessageDigest digest;
+        try { digest = MessageDigest.getInstance("SHA-256"); }
+        catch(NoSuchAlgorithmException nsae) { throw new RuntimeException("SHA-256 not available", nsae); }
+
+        int nbSegments = cuts.size()-1;
+        byte[][] contentSegments = new byte[nbSegments][];
+        int[] offsets = new int[nbSegments+1];
+        List<Segment> shared = new ArrayList<>();
+        int privateSize = 0;
+        for(int i=0 ; i<nbSegments ; ++i) {
+            int start = cuts.get(i);
+            int length = cuts.get(i+1)-start;
+            ByteBuffer slice = raw.slice(start, length);
+            offsets[i] = start;
+
+            if(length<minSegmentSize) {
+                contentSegments[i] = new byte[length];
+                slice.get(contentSegments[i]);
+                privateSize += length;
+            } else {
+                digest.update(slice);
+                Segment segment = acquire(ByteBuffer.wrap(digest.digest()), raw.slice(start, length));
+                contentSegments[i] = segment.data;
+                shared.add(segment);
+            }
+        }
+        offsets[nbSegments] = raw.remaining();
+
+        DedupContent content = new DedupContent(contentSegments, offsets);
+        logicalBytes.addAndGet(content.size());
+        privateBytes.addAndGet(privateSize);
+        CLEANER.register(content, new Releaser(this, shared, content.size(), privateSize));
+        return message.withContent(content);
+    }
+
+    private Segment acquire(ByteBuffer digest, ByteBuffer data) {
+        synchronized(segments) {
+            Segment segment = segments.get(digest);
+            if(segment==null) {
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                segment = new Segment(digest, bytes);
+                segments.put(digest, segment);
+                sharedBytes += bytes.length;
+            }
+            ++segment.references;
+            return segment;
+        }
+    }
+
+    private void release(Releaser releaser) {
+        logicalBytes.addAndGet(-releaser.size());
+        privateBytes.addAndGet(-releaser.privateSize());
+        synchronized(segments) {
+            for(Segment segment : releaser.shared()) {
+                if(--segment.references==0) {
+                    segments.remove(segment.digest);
+                    sharedBytes -= segment.data.length;
+                }
+            }
+        }
+    }
+
+    private static byte[] boundary(SmtpMessage message) {
+        try {
+            ContentType contentType = new ContentType(message.getMimeMessage().getContentType());
+            String boundary = contentType.match("multipart/*") ? contentType.getParameter("boundary") : null;
+            return boundary!=null ? ("--"+boundary).getBytes(StandardCharsets.US_ASCII) : null;
+        } catch(ParseException pe) {
+            return null;
+        } catch(MessagingException me) {
+            throw new RuntimeException("Unable to retrieve Content-Type header", me);
+        }
+    }
+
+    /**
+     * Computes the positions where the content must be split: after each delimiter line and
+     * before the line break that precedes the next delimiter, so the parts are isolated.
+     */
+    private static List<Integer> cuts(ByteBuffer raw, byte[] delimiter) {
+        List<Integer> cuts = new ArrayList<>();
+        cuts.add(0);
+
+        int size = raw.remaining();
+        if(delimiter!=null) {
+            int index = indexOf(raw, delimiter, 0);
+            while(index>=0) {
+                int lineStart = index>=2 && raw.get(index-2)=='\r' ? index-2 : index>=1 ? index-1 : index;
+                if(lineStart>cuts.get(cuts.size()-1)) { cuts.add(lineStart); }
+
+                int lineEnd = index+delimiter.length;
+                while(lineEnd<size && raw.get(lineEnd)!='\n') { ++lineEnd; }
+                if(lineEnd<size) { ++lineEnd; }
+                if(lineEnd>cuts.get(cuts.size()-1) && lineEnd<size) { cuts.add(lineEnd); }
+
+                index = indexOf(raw, delimiter, lineEnd);
+            }
+        }
+
+        if(cuts.get(cuts.size()-1)<size || size==0) { cuts.add(size); }
+        return cuts;
+    }
+
+    /**
+     * Returns the position of {@code pattern} at the beginning of a line in {@code buffer}, starting
+     * from {@code from} or -1 if not found.
+     */
+    private static int indexOf(ByteBuffer buffer, byte[] pattern, int from) {
+        int last = buffer.remaining()-pattern.length;
+        for(int i=from ; i<=last ; ++i) {
+            if(i>0 && buffer.get(i-1)!='\n') { continue; }
+
+            int j = 0;
+            while(j<pattern.length && buffer.get(i+j)==pattern[j]) { ++j; }
+            if(j==pattern.length) { return i; }
+        }
+        return -1;
+    }
+
+    @Override
+    public void notifyStart(SmtpServer server) {
+        store.notifyStart(server);
+    }
+
+    @Override
+    public void notifyClose(SmtpServer server) {
+        store.notifyClose(server);
+    }
+
+    @Override
+    public void notifyMessage(SmtpServer server, SmtpMessage smtpMessage) {
+        store.notifyMessage(server, deduplicate(smtpMessage));
+    }
+
+    @Override
+    public SmtpMessageReader messageReader() {
+        return store.messageReader();
+    }
+
+    @Override
+    public List<SmtpMessage> readMessages(long delayIfNoMessage, TimeUnit unit) {
+        return store.readMessages(delayIfNoMessage, unit);
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return store.isConcurrent();
+    }
+}
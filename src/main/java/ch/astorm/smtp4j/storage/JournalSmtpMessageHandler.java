@@ -0,0 +1,405 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.SmtpServer;
+import ch.astorm.smtp4j.core.DefaultSmtpMessageHandler;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.core.SmtpMessageHandler;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * {@code SmtpMessageHandler} that appends every received message to a journal on disk
+ * before handing it over to an in-memory store.
+ * <p>The journal is split in segment files ({@code journal-000001.log}, ...) within a directory.
+ * A single background thread writes the records and synchronizes them to disk with one
+ * {@code fsync} per batch (group commit), hence concurrent transactions share the cost
+ * of the synchronization.</p>
+ * <p>When the server is started for the first time, the existing journal is replayed into the store,
+ * so the messages received before a crash or a restart are available again. An incomplete
+ * record at the end of the journal (for instance after a crash) is discarded.</p>
+ * This class is Thread-safe.
+ */
+public class JournalSmtpMessageHandler implements SmtpMessageHandler {
+    private static final Logger LOG = Logger.getLogger(JournalSmtpMessageHandler.class.getName());
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final Path directory;
+    private final SmtpMessageHandler store;
+    private final AckMode ackMode;
+    private final boolean includeExchanges;
+    private final long segmentSize;
+    private final ReentrantLock storeLock = new ReentrantLock();
+    private final AtomicLong syncCounter = new AtomicLong();
+    private final AtomicLong recordCounter = new AtomicLong();
+
+    private boolean replayed;
+    private volatile JournalWriter writer;
+
+    /**
+     * Default maximum size of a segment file (64 MB).
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 64*1024*1024;
+
+    /**
+     * Represents when the client receives the acknowledgement of a message.
+     */
+    public static enum AckMode {
+        /**
+         * The message is acknowledged as soon as it is queued for writing. A crash may
+         * lose the last messages.
+         */
+        ENQUEUED,
+
+        /**
+         * The message is acknowledged once it has been synchronized to disk.
+         */
+        DURABLE
+    }
+
+    /**
+     * Creates a new {@code JournalSmtpMessageHandler} in {@link AckMode#DURABLE} mode that
+     * stores the messages in a new {@link DefaultSmtpMessageHandler}, without the SMTP exchanges.
+     *
+     * @param directory The directory of the journal. It will be created if needed.
+     */
+    public JournalSmtpMessageHandler(Path directory) {
+        this(directory, new DefaultSmtpMessageHandler(), AckMode.DURABLE, false, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates a new {@code JournalSmtpMessageHandler}.
+     *
+     * @param directory The directory of the journal. It will be created if needed.
+     * @param store The {@code SmtpMessageHandler} that will hold the messages in memory.
+     * @param ackMode The acknowledgement mode.
+     * @param includeExchanges True if the SMTP exchanges of the messages must be journaled.
+     * @param segmentSize The size (in bytes) after which a new segment file is created.
+     */
+    public JournalSmtpMessageHandler(Path directory, SmtpMessageHandler store, AckMode ackMode, boolean includeExchanges, long segmentSize) {
+        if(directory==null) { throw new IllegalArgumentException("directory not defined"); }
+        if(store==null) { throw new IllegalArgumentException("store not defined"); }
+        if(ackMode==null) { throw new IllegalArgumentException("ackMode not defined"); }
+        if(segmentSize<=0) { throw new IllegalArgumentException("segmentSize must be greater than zero"); }
+        this.directory = directory;
+        this.store = store;
+        this.ackMode = ackMode;
+        this.includeExchanges = includeExchanges;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Returns the underlying store.
+     *
+     * @return The store.
+     */
+    public SmtpMessageHandler getStore() {
+        return store;
+    }
+
+    /**
+     * Returns the number of {@code fsync} performed since this handler has been created.
+     * Because of the group commit, this value is generally lower than the number of {@link #getRecordCount() records}.
+     *
+     * @return The number of synchronizations.
+     */
+    public long getSyncCount() {
+        return syncCounter.get();
+    }
+
+    /**
+     * Returns the number of records written in the journal since this handler has been created.
+     *
+     * @return The number of records.
+     */
+    public long getRecordCount() {
+        return recordCounter.get();
+    }
+
+    /**
+     * Replays the journal (only the first time), then starts the journal writer.
+     */
+    @Override
+    public void notifyStart(SmtpServer server) {
+        store.notifyStart(server);
+
+        synchronized(this) {
+            try {
+                Files.createDirectories(directory);
+                if(!replayed) {
+                    replay(server);
+                    replayed = true;
+                }
+                writer = new JournalWriter(lastSegment());
+            } catch(IOException ioe) {
+                throw new UncheckedIOException("Unable to open journal "+directory, ioe);
+            }
+        }
+    }
+
+    /**
+     * Flushes the pending records and closes the journal.
+     */
+    @Override
+    public void notifyClose(SmtpServer server) {
+        JournalWriter localWriter = writer;
+        writer = null;
+        if(localWriter!=null) { localWriter.close(); }
+        store.notifyClose(server);
+    }
+
+    @Override
+    public void notifyMessage(SmtpServer server, SmtpMessage smtpMessage) {
+        JournalWriter localWriter = writer;
+        if(localWriter==null) { throw new IllegalStateException("Journal not opened"); }
+
+        CompletableFuture<Void> written = localWriter.append(MessageRecords.encode(smtpMessage, includeExchanges));
+        if(ackMode==AckMode.DURABLE) {
+            try { written.get(); }
+            catch(InterruptedException ie) { throw new IllegalStateException("Interrupted while writing journal", ie); }
+            catch(ExecutionException ee) { throw new IllegalStateException("Unable to write journal", ee.getCause()); }
+        }
+
+        notifyStore(server, smtpMessage);
+    }
+
+    private void notifyStore(SmtpServer server, SmtpMessage smtpMessage) {
+        if(store.isConcurrent()) {
+            store.notifyMessage(server, smtpMessage);
+            return;
+        }
+
+        storeLock.lock();
+        try { store.notifyMessage(server, smtpMessage); }
+        finally { storeLock.unlock(); }
+    }
+
+    @Override
+    public SmtpMessageReader messageReader() {
+        return store.messageReader();
+    }
+
+    @Override
+    public List<SmtpMessage> readMessages(long delayIfNoMessage, TimeUnit unit) {
+        return store.readMessages(delayIfNoMessage, unit);
+    }
+
+    /**
+     * This handler is concurrent so that the transactions waiting for the disk
+     * synchronization can be committed together.
+     */
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    private List<Path> segments() throws IOException {
+        try(Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> {
+                String name = p.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().toList();
+        }
+    }
+
+    private Path lastSegment() throws IOException {
+        List<Path> segments = segments();
+        return segments.isEmpty() ? segmentPath(1) : segments.get(segments.size()-1);
+    }
+
+    private Path segmentPath(int index) {
+        return directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    private static int segmentIndex(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length()-SEGMENT_SUFFIX.length()));
+    }
+
+    private void replay(SmtpServer server) throws IOException {
+        for(Path segment : segments()) {
+            try(FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                //the records are read one by one, so the segments are not limited in size
+                long size = channel.size();
+                long validSize = 0;
+                ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+                CRC32C crc = new CRC32C();
+                while(size-validSize>=RECORD_HEADER_SIZE) {
+                    header.clear();
+                    readFully(channel, header, validSize);
+                    header.flip();
+                    int length = header.getInt();
+                    int checksum = header.getInt();
+                    if(length<0 || length>size-validSize-RECORD_HEADER_SIZE) { break; }
+
+                    ByteBuffer payload = ByteBuffer.allocate(length);
+                    readFully(channel, payload, validSize+RECORD_HEADER_SIZE);
+                    payload.flip();
+                    crc.reset();
+                    crc.update(payload.duplicate());
+                    if((int)crc.getValue()!=checksum) { break; }
+
+                    store.notifyMessage(server, MessageRecords.decode(payload));
+                    validSize += RECORD_HEADER_SIZE+length;
+                }
+
+                if(validSize<size) {
+                    LOG.log(Level.WARNING, "Incomplete journal record discarded in {0}", segment);
+                    channel.truncate(validSize);
+                }
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if(read<0) { throw new IOException("Unexpected end of journal"); }
+            position += read;
+        }
+    }
+
+    private static record PendingRecord(ByteBuffer payload, CompletableFuture<Void> future) {}
+
+    private class JournalWriter implements Runnable {
+        private final BlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+        private final Thread thread;
+        private volatile boolean running = true;
+        private Path segment;
+        private FileChannel channel;
+
+        private JournalWriter(Path segment) throws IOException {
+            openSegment(segment);
+            this.thread = new Thread(this, "smtp4j-journal");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        private void openSegment(Path segment) throws IOException {
+            this.segment = segment;
+            this.channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            this.channel.position(channel.size());
+        }
+
+        private CompletableFuture<Void> append(ByteBuffer payload) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            //synchronized with close(), so no record can be queued once the writer has been stopped
+            synchronized(this) {
+                if(!running) { future.completeExceptionally(new IOException("Journal closed")); }
+                else { queue.add(new PendingRecord(payload, future)); }
+            }
+            return future;
+        }
+
+        @Override
+        public void run() {
+            List<PendingRecord> batch = new ArrayList<>(64);
+            CRC32C crc = new CRC32C();
+            while(running || !queue.isEmpty()) {
+                long batchStart = -1;
+                int committed = 0;
+                try {
+                    PendingRecord first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if(first==null) { continue; }
+
+                    //every record queued while the previous fsync was running is committed together
+                    batch.add(first);
+                    queue.drainTo(batch);
+
+                    batchStart = channel.position();
+                    for(int i=0 ; i<batch.size() ; ++i) {
+                        ByteBuffer payload = batch.get(i).payload();
+                        if(channel.position()>0 && channel.position()+RECORD_HEADER_SIZE+payload.remaining()>segmentSize) {
+                            //the records already written are durable once the segment is synchronized
+                            channel.force(false);
+                            syncCounter.incrementAndGet();
+                            commit(batch, committed, i);
+                            committed = i;
+
+                            channel.close();
+                            openSegment(segmentPath(segmentIndex(segment)+1));
+                            batchStart = 0;
+                        }
+
+                        crc.reset();
+                        crc.update(payload.duplicate());
+
+                        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+                        header.putInt(payload.remaining()).putInt((int)crc.getValue()).flip();
+                        ByteBuffer[] buffers = new ByteBuffer[] { header, payload };
+                        while(header.hasRemaining() || payload.hasRemaining()) { channel.write(buffers); }
+                    }
+
+                    channel.force(false);
+                    syncCounter.incrementAndGet();
+                    commit(batch, committed, batch.size());
+                } catch(InterruptedException ie) {
+                    /* ignored, the running flag is checked */
+                } catch(Throwable t) {
+                    LOG.log(Level.WARNING, "Unable to write journal", t);
+                    for(int i=committed ; i<batch.size() ; ++i) { batch.get(i).future().completeExceptionally(t); }
+                    rollback(batchStart);
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+
+        private void commit(List<PendingRecord> batch, int from, int to) {
+            recordCounter.addAndGet(to-from);
+            for(int i=from ; i<to ; ++i) { batch.get(i).future().complete(null); }
+        }
+
+        /**
+         * Removes the records of a failed batch, so that the next records are not written after a torn record
+         * (which would stop the replay). If the segment cannot be truncated, a new one is started.
+         */
+        private void rollback(long batchStart) {
+            if(batchStart>=0) {
+                try {
+                    channel.truncate(batchStart);
+                    channel.position(batchStart);
+                    return;
+                } catch(Throwable t) {
+                    LOG.log(Level.WARNING, "Unable to truncate journal "+segment, t);
+                }
+            }
+
+            try { channel.close(); }
+            catch(IOException ioe) { /* ignored */ }
+
+            try { openSegment(segmentPath(segmentIndex(segment)+1)); }
+            catch(IOException ioe) { LOG.log(Level.WARNING, "Unable to open new journal segment", ioe); }
+        }
+
+        private void close() {
+            synchronized(this) { running = false; }
+            try { thread.join(); }
+            catch(InterruptedException ie) { /* ignored */ }
+
+            try { channel.close(); }
+            catch(IOException ioe) { LOG.log(Level.WARNING, "Unable to close journal", ioe); }
+
+            queue.forEach(r -> r.future().completeExceptionally(new IOException("Journal closed")));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.core.SmtpMessage;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary representation of a {@code SmtpMessage} used by the persistent stores.
+ * A record is the one of the {@link SmtpMessageCodec}, without its frame header since the stores
+ * frame the records themselves. It contains the envelope, the received date, the raw MIME content,
+ * the receive details and optionally the SMTP exchanges.
+ */
+class MessageRecords {
+    private static final int MAX_RECORD_SIZE = Integer.MAX_VALUE-SmtpMessageCodec.FRAME_HEADER_SIZE;
+    private static final SmtpMessageCodec WITH_EXCHANGES = new SmtpMessageCodec(true, true, true, MAX_RECORD_SIZE);
+    private static final SmtpMessageCodec WITHOUT_EXCHANGES = new SmtpMessageCodec(false, true, true, MAX_RECORD_SIZE);
+
+    private MessageRecords() {}
+
+    /**
+     * Encodes the given {@code message}.
+     *
+     * @param message The message.
+     * @param withExchanges True if the SMTP exchanges must be part of the record.
+     * @return The encoded record, ready to be read.
+     */
+    static ByteBuffer encode(SmtpMessage message, boolean withExchanges) {
+        return (withExchanges ? WITH_EXCHANGES : WITHOUT_EXCHANGES).encodeRecord(message);
+    }
+
+    /**
+     * Decodes a record from {@code buffer}, starting at its current position.
+     * The position of {@code buffer} is moved after the record.
+     *
+     * @param buffer The buffer.
+     * @return The decoded message.
+     */
+    static SmtpMessage decode(ByteBuffer buffer) {
+        return decode(buffer, false);
+    }
+
+    /**
+     * Decodes a record from {@code buffer}, starting at its current position.
+     * The position of {@code buffer} is moved after the record.
+     * <p>If {@code zeroCopy} is true, the raw content of the message is a view over {@code buffer}
+     * and the {@code MimeMessage} is only parsed when accessed. Hence the content of the buffer
+     * must not change afterwards.</p>
+     *
+     * @param buffer The buffer.
+     * @param zeroCopy True if the raw content must not be copied.
+     * @return The decoded message.
+     */
+    static SmtpMessage decode(ByteBuffer buffer, boolean zeroCopy) {
+        return SmtpMessageCodec.decodeRecord(buffer, zeroCopy);
+    }
+}
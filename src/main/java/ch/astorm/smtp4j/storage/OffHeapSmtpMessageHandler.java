@@ -0,0 +1,307 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.SmtpServer;
+import ch.astorm.smtp4j.core.DefaultSmtpMessageHandler;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.core.SmtpMessageContent;
+import ch.astorm.smtp4j.core.SmtpMessageHandler;
+import ch.astorm.smtp4j.storage.SlabAllocator.Block;
+import jakarta.mail.internet.SharedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Cleaner;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * {@code SmtpMessageHandler} that keeps the raw content of the received messages off-heap.
+ * <p>The raw bytes are copied into direct memory allocated from slabs, and the messages
+ * handed over to the underlying store only hold the envelope and a handle on that memory. The
+ * {@code MimeMessage} is parsed from the off-heap bytes when accessed.</p>
+ * <p>The memory of a message can be explicitly given back with {@link #release(ch.astorm.smtp4j.core.SmtpMessage)}
+ * once the message is not used anymore. Otherwise, it is given back once the content of the message is not
+ * reachable anymore. The streams opened on the content (including the one of the parsed {@code MimeMessage})
+ * reference it and fail once it has been released. The message reads its body, attachments and digests
+ * in place, whereas {@link SmtpMessage#getRawMimeBuffer()} returns a copy on the heap, made once and softly cached,
+ * so the memory is never read once it has been reused by another message.</p>
+ * This class is Thread-safe.
+ */
+public class OffHeapSmtpMessageHandler implements SmtpMessageHandler {
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final SmtpMessageHandler store;
+    private final SlabAllocator allocator;
+
+    /**
+     * Default size of the slabs (4 MB).
+     */
+    public static final int DEFAULT_SLAB_SIZE = 4*1024*1024;
+
+    /**
+     * Creates a new {@code OffHeapSmtpMessageHandler} that stores the messages in a new
+     * {@link DefaultSmtpMessageHandler} with slabs of {@link #DEFAULT_SLAB_SIZE 4 MB}.
+     */
+    public OffHeapSmtpMessageHandler() {
+        this(new DefaultSmtpMessageHandler(), DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Creates a new {@code OffHeapSmtpMessageHandler}.
+     *
+     * @param store The {@code SmtpMessageHandler} that will hold the messages.
+     * @param slabSize The size of the slabs in bytes.
+     */
+    public OffHeapSmtpMessageHandler(SmtpMessageHandler store, int slabSize) {
+        if(store==null) { throw new IllegalArgumentException("store not defined"); }
+        this.store = store;
+        this.allocator = new SlabAllocator(slabSize);
+    }
+
+    /**
+     * Off-heap raw content of a message.
+     */
+    private static class OffHeapContent implements SmtpMessageContent {
+        private final ByteBuffer view;
+        private final Releaser releaser;
+        private volatile SoftReference<ByteBuffer> copy;
+
+        private OffHeapContent(ByteBuffer view, Releaser releaser) {
+            this.view = view;
+            this.releaser = releaser;
+        }
+
+        @Override
+        public int size() {
+            return view.capacity();
+        }
+
+        /**
+         * Returns a copy on the heap, since a {@code ByteBuffer} view could not be invalidated once the
+         * memory is released.
+         */
+        @Override
+        public ByteBuffer asByteBuffer() {
+            checkReleased();
+            SoftReference<ByteBuffer> ref = copy;
+            ByteBuffer buffer = ref!=null ? ref.get() : null;
+            if(buffer==null) {
+                ByteBuffer bytes = ByteBuffer.allocate(view.capacity());
+                bytes.put(view.duplicate());
+                checkReleased();
+                buffer = bytes.flip().asReadOnlyBuffer();
+                copy = new SoftReference<>(buffer);
+            }
+            return buffer.duplicate();
+        }
+
+        /**
+         * Reads the off-heap memory in place and checks the content once {@code reader} completes: if it has
+         * been released meanwhile, the bytes might belong to another message.
+         */
+        @Override
+        public <T> T read(Function<ByteBuffer, T> reader) {
+            checkReleased();
+            try { return reader.apply(view.asReadOnlyBuffer()); }
+            finally { checkReleased(); }
+        }
+
+        @Override
+        public InputStream openStream() {
+            checkReleased();
+            return new OffHeapInputStream(this, view.duplicate(), 0);
+        }
+
+        private void checkReleased() {
+            if(releaser.released.get()) { throw new IllegalStateException("Content has been released"); }
+        }
+    }
+
+    /**
+     * {@code InputStream} over an off-heap content. It references the content, so the memory cannot be
+     * given back by the garbage collector while the stream is reachable, and fails once the content has
+     * been explicitly released.
+     */
+    private static class OffHeapInputStream extends InputStream implements SharedInputStream {
+        private final OffHeapContent content;
+        private final ByteBuffer buffer;
+        private final int start;
+        private int mark;
+
+        private OffHeapInputStream(OffHeapContent content, ByteBuffer buffer, int start) {
+            this.content = content;
+            this.buffer = buffer;
+            this.start = start;
+            this.mark = buffer.position();
+        }
+
+        /**
+         * Checks the content after each read: if it has been released meanwhile, the bytes
+         * might belong to another message.
+         */
+        private void check() throws IOException {
+            if(content.releaser.released.get()) { throw new IOException("Content has been released"); }
+        }
+
+        @Override
+        public int read() throws IOException {
+            check();
+            int value = buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+            check();
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            check();
+            if(len==0) { return 0; }
+            if(!buffer.hasRemaining()) { return -1; }
+
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            check();
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            check();
+            int count = (int)Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position()+count);
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            check();
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mark = buffer.position();
+        }
+
+        @Override
+        public synchronized void reset() {
+            buffer.position(mark);
+        }
+
+        @Override
+        public long getPosition() {
+            return buffer.position()-start;
+        }
+
+        @Override
+        public InputStream newStream(long start, long end) {
+            if(start<0) { throw new IllegalArgumentException("start < 0"); }
+
+            int absoluteStart = this.start+(int)start;
+            int absoluteEnd = end<0 ? buffer.limit() : Math.min(buffer.limit(), this.start+(int)end);
+            ByteBuffer view = buffer.duplicate();
+            view.limit(absoluteEnd);
+            view.position(absoluteStart);
+            return new OffHeapInputStream(content, view, absoluteStart);
+        }
+    }
+
+    private static record Releaser(SlabAllocator allocator, Block block, AtomicBoolean released) implements Runnable {
+        @Override
+        public void run() {
+            if(released.compareAndSet(false, true)) { allocator.free(block); }
+        }
+    }
+
+    /**
+     * Copies the raw content of {@code message} off-heap.
+     *
+     * @param message The message.
+     * @return A new message with the same envelope and an off-heap content.
+     */
+    SmtpMessage moveOffHeap(SmtpMessage message) {
+        ByteBuffer raw = message.getRawMimeBuffer();
+        int size = raw.remaining();
+
+        Block block = allocator.allocate(size);
+        ByteBuffer target = block.buffer().slice(0, size);
+        target.put(raw);
+
+        Releaser releaser = new Releaser(allocator, block, new AtomicBoolean());
+        OffHeapContent content = new OffHeapContent(target.clear().asReadOnlyBuffer(), releaser);
+        CLEANER.register(content, releaser);
+        return message.withContent(content);
+    }
+
+    /**
+     * Gives back the off-heap memory of the given {@code message}.
+     * The content of the message cannot be read anymore afterwards: the streams already opened on it
+     * (including the one of its {@code MimeMessage}) fail with an {@code IOException}.
+     *
+     * @param message The message, created by this handler.
+     * @return True if the memory has been released, false if it was already released or if the
+     *         message does not belong to this handler.
+     */
+    public boolean release(SmtpMessage message) {
+        if(!(message.getRawContent() instanceof OffHeapContent content) || content.releaser.allocator()!=allocator) { return false; }
+        if(content.releaser.released().get()) { return false; }
+
+        content.releaser.run();
+        return true;
+    }
+
+    /**
+     * Returns the number of off-heap bytes currently used by the messages.
+     *
+     * @return The allocated bytes.
+     */
+    public long getAllocatedBytes() {
+        return allocator.getAllocatedBytes();
+    }
+
+    /**
+     * Returns the number of off-heap bytes reserved by this handler.
+     *
+     * @return The reserved bytes.
+     */
+    public long getReservedBytes() {
+        return allocator.getReservedBytes();
+    }
+
+    @Override
+    public void notifyStart(SmtpServer server) {
+        store.notifyStart(server);
+    }
+
+    @Override
+    public void notifyClose(SmtpServer server) {
+        store.notifyClose(server);
+    }
+
+    @Override
+    public void notifyMessage(SmtpServer server, SmtpMessage smtpMessage) {
+        store.notifyMessage(server, moveOffHeap(smtpMessage));
+    }
+
+    @Override
+    public SmtpMessageReader messageReader() {
+        return store.messageReader();
+    }
+
+    @Override
+    public List<SmtpMessage> readMessages(long delayIfNoMessage, TimeUnit unit) {
+        return store.readMessages(delayIfNoMessage, unit);
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return store.isConcurrent();
+    }
+}
@@ -0,0 +1,117 @@
+package ch.astorm.smtp4j.storage;
+
+import jakarta.mail.internet.SharedInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * {@code InputStream} over a sequence of byte arrays (segments).
+ * Since it implements {@link SharedInputStream}, the sub-streams created while parsing a
+ * {@code MimeMessage} are views over the same segments and the bytes are never copied.
+ */
+class SegmentedInputStream extends InputStream implements SharedInputStream {
+    private final byte[][] segments;
+    private final int[] offsets;
+    private final int start;
+    private final int end;
+    private int position;
+    private int mark;
+    private int segment;
+
+    /**
+     * Creates a new {@code SegmentedInputStream} over all the given {@code segments}.
+     *
+     * @param segments The segments. They must not be empty.
+     * @param offsets The offset of each segment, followed by the total size.
+     */
+    SegmentedInputStream(byte[][] segments, int[] offsets) {
+        this(segments, offsets, 0, offsets[segments.length]);
+    }
+
+    private SegmentedInputStream(byte[][] segments, int[] offsets, int start, int end) {
+        this.segments = segments;
+        this.offsets = offsets;
+        this.start = start;
+        this.end = end;
+        this.position = start;
+        this.mark = start;
+    }
+
+    /**
+     * Returns the index of the segment that contains {@code position}, which must
+     * be before the end of the stream.
+     */
+    private int locate() {
+        if(position>=offsets[segment] && position<offsets[segment+1]) { return segment; }
+
+        int index = Arrays.binarySearch(offsets, 0, segments.length, position);
+        segment = index>=0 ? index : -index-2;
+        return segment;
+    }
+
+    @Override
+    public int read() {
+        if(position>=end) { return -1; }
+
+        int index = locate();
+        return segments[index][position++ - offsets[index]] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if(len==0) { return 0; }
+        if(position>=end) { return -1; }
+
+        int count = 0;
+        while(count<len && position<end) {
+            int index = locate();
+            int segmentOffset = position-offsets[index];
+            int chunk = Math.min(Math.min(len-count, segments[index].length-segmentOffset), end-position);
+            System.arraycopy(segments[index], segmentOffset, b, off+count, chunk);
+            position += chunk;
+            count += chunk;
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        int count = (int)Math.max(0, Math.min(n, end-position));
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return end-position;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        position = mark;
+    }
+
+    @Override
+    public long getPosition() {
+        return position-start;
+    }
+
+    @Override
+    public InputStream newStream(long start, long end) {
+        if(start<0) { throw new IllegalArgumentException("start < 0"); }
+
+        int absoluteStart = this.start+(int)start;
+        int absoluteEnd = end<0 ? this.end : Math.min(this.end, this.start+(int)end);
+        return new SegmentedInputStream(segments, offsets, absoluteStart, absoluteEnd);
+    }
+}
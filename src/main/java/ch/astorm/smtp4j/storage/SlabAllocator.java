@@ -0,0 +1,108 @@
+package ch.astorm.smtp4j.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Allocator of off-heap memory blocks.
+ * <p>The memory is reserved by slabs of direct {@code ByteBuffer}. Blocks are carved out of
+ * the slabs with power-of-two sizes and, once freed, are kept in free lists to be reused by
+ * the next allocations of the same size class. Blocks larger than a slab are allocated
+ * separately and given back to the JVM once freed.</p>
+ * This class is Thread-safe.
+ */
+class SlabAllocator {
+    private static final int MIN_BLOCK_SHIFT = 6; //64 bytes
+
+    private final int slabSize;
+    private final ArrayDeque<ByteBuffer>[] freeLists;
+    private ByteBuffer currentSlab;
+    private long reservedBytes;
+    private long allocatedBytes;
+
+    /**
+     * Represents a block of memory.
+     *
+     * @param buffer The buffer of the block (position zero, capacity of the size class).
+     * @param sizeClass The size class or -1 if the block does not belong to a slab.
+     */
+    static record Block(ByteBuffer buffer, int sizeClass) {}
+
+    /**
+     * Creates a new {@code SlabAllocator}.
+     *
+     * @param slabSize The size of a slab in bytes, rounded up to the next power of two.
+     */
+    SlabAllocator(int slabSize) {
+        if(slabSize<(1<<MIN_BLOCK_SHIFT)) { throw new IllegalArgumentException("slabSize must be at least "+(1<<MIN_BLOCK_SHIFT)); }
+        int shift = 32-Integer.numberOfLeadingZeros(slabSize-1);
+        this.slabSize = 1<<shift;
+        this.freeLists = new ArrayDeque[shift-MIN_BLOCK_SHIFT+1];
+        for(int i=0 ; i<freeLists.length ; ++i) { freeLists[i] = new ArrayDeque<>(); }
+    }
+
+    /**
+     * Allocates a block of at least {@code size} bytes.
+     *
+     * @param size The size.
+     * @return A new block.
+     */
+    synchronized Block allocate(int size) {
+        if(size>slabSize) {
+            reservedBytes += size;
+            allocatedBytes += size;
+            return new Block(ByteBuffer.allocateDirect(size), -1);
+        }
+
+        int shift = Math.max(MIN_BLOCK_SHIFT, 32-Integer.numberOfLeadingZeros(Math.max(size, 1)-1));
+        int sizeClass = shift-MIN_BLOCK_SHIFT;
+        int blockSize = 1<<shift;
+        allocatedBytes += blockSize;
+
+        ByteBuffer free = freeLists[sizeClass].poll();
+        if(free!=null) { return new Block(free, sizeClass); }
+
+        if(currentSlab==null || currentSlab.remaining()<blockSize) {
+            currentSlab = ByteBuffer.allocateDirect(slabSize);
+            reservedBytes += slabSize;
+        }
+
+        ByteBuffer block = currentSlab.slice(currentSlab.position(), blockSize);
+        currentSlab.position(currentSlab.position()+blockSize);
+        return new Block(block, sizeClass);
+    }
+
+    /**
+     * Frees the given {@code block}. The block must not be used anymore.
+     *
+     * @param block The block to free.
+     */
+    synchronized void free(Block block) {
+        if(block.sizeClass()<0) {
+            reservedBytes -= block.buffer().capacity();
+            allocatedBytes -= block.buffer().capacity();
+            return;
+        }
+
+        allocatedBytes -= block.buffer().capacity();
+        freeLists[block.sizeClass()].push(block.buffer().clear());
+    }
+
+    /**
+     * Returns the number of bytes currently used by allocated blocks.
+     *
+     * @return The allocated bytes.
+     */
+    synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Returns the number of off-heap bytes reserved by this allocator.
+     *
+     * @return The reserved bytes.
+     */
+    synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+}
@@ -0,0 +1,188 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.core.SmtpMessage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Read-optimized archive of messages.
+ * <p>An archive is made of two files: a data file ({@code .data}) that contains the records
+ * of the messages (envelope and raw content) and an index file ({@code .idx}) of fixed-width
+ * entries (identifier, offset, length, received time and recipient hash).</p>
+ * <p>Both files are memory-mapped when the archive is opened, hence any message can be accessed
+ * in constant time. The messages returned by {@link #getMessage(int)} are views over the mapped
+ * data and their {@code MimeMessage} is only parsed when accessed.</p>
+ * <p>The archive is a snapshot: messages appended after it has been opened are not visible. The mapped
+ * files are released once the archive and the messages created from it are garbage collected.</p>
+ * This class is Thread-safe.
+ *
+ * @see SmtpMessageArchiveWriter
+ */
+public class SmtpMessageArchive {
+    static final int MAGIC = 0x534d4a41; //SMJA
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int ENTRY_SIZE = 32;
+    static final long CHUNK_SIZE = 1L<<30;
+
+    private final MappedByteBuffer[] indexChunks;
+    private final MappedByteBuffer[] dataChunks;
+    private final int size;
+
+    /**
+     * Represents an entry of the index.
+     *
+     * @param id The identifier of the message.
+     * @param offset The offset of the record in the data file.
+     * @param length The length of the record.
+     * @param receivedTime The time at which the message has been received, in milliseconds.
+     * @param recipientHash The {@link #recipientHash(java.util.List) hash} of the first recipient.
+     */
+    public static record Entry(long id, long offset, int length, long receivedTime, int recipientHash) {}
+
+    private SmtpMessageArchive(MappedByteBuffer[] indexChunks, MappedByteBuffer[] dataChunks, int size) {
+        this.indexChunks = indexChunks;
+        this.dataChunks = dataChunks;
+        this.size = size;
+    }
+
+    /**
+     * Opens the archive with the given {@code basePath}.
+     *
+     * @param basePath The path of the archive, without extension.
+     * @return The opened archive.
+     */
+    public static SmtpMessageArchive open(Path basePath) throws IOException {
+        try(FileChannel indexChannel = FileChannel.open(indexPath(basePath), StandardOpenOption.READ);
+            FileChannel dataChannel = FileChannel.open(dataPath(basePath), StandardOpenOption.READ)) {
+            checkHeader(indexChannel);
+
+            long nbEntries = (indexChannel.size()-HEADER_SIZE)/ENTRY_SIZE;
+            if(nbEntries>Integer.MAX_VALUE) { throw new IOException("Too many entries in archive"); }
+
+            MappedByteBuffer[] indexChunks = map(indexChannel, HEADER_SIZE, nbEntries*ENTRY_SIZE);
+            MappedByteBuffer[] dataChunks = map(dataChannel, 0, dataChannel.size());
+            return new SmtpMessageArchive(indexChunks, dataChunks, (int)nbEntries);
+        }
+    }
+
+    private static MappedByteBuffer[] map(FileChannel channel, long start, long length) throws IOException {
+        int nbChunks = (int)((length+CHUNK_SIZE-1)/CHUNK_SIZE);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[nbChunks];
+        for(int i=0 ; i<nbChunks ; ++i) {
+            long chunkStart = i*CHUNK_SIZE;
+            chunks[i] = channel.map(MapMode.READ_ONLY, start+chunkStart, Math.min(CHUNK_SIZE, length-chunkStart));
+        }
+        return chunks;
+    }
+
+    static void checkHeader(FileChannel indexChannel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        indexChannel.read(header, 0);
+        header.flip();
+        if(header.remaining()<HEADER_SIZE || header.getInt()!=MAGIC) { throw new IOException("Invalid archive index"); }
+
+        int version = header.getInt();
+        if(version!=VERSION) { throw new IOException("Unsupported archive version "+version); }
+    }
+
+    static Path dataPath(Path basePath) {
+        return basePath.resolveSibling(basePath.getFileName()+".data");
+    }
+
+    static Path indexPath(Path basePath) {
+        return basePath.resolveSibling(basePath.getFileName()+".idx");
+    }
+
+    /**
+     * Computes the hash of the first recipient (in lower case) of the given {@code recipients}.
+     *
+     * @param recipients The recipients.
+     * @return The hash or zero if there is no recipient.
+     */
+    public static int recipientHash(List<String> recipients) {
+        if(recipients==null || recipients.isEmpty()) { return 0; }
+        return recipients.get(0).toLowerCase(Locale.ROOT).hashCode();
+    }
+
+    /**
+     * Returns the number of messages in this archive.
+     *
+     * @return The number of messages.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the index entry of the message at position {@code index}.
+     *
+     * @param index The position, between zero and {@link #size()} (exclusive).
+     * @return The entry.
+     */
+    public Entry getEntry(int index) {
+        if(index<0 || index>=size) { throw new IndexOutOfBoundsException(index); }
+
+        long position = (long)index*ENTRY_SIZE;
+        ByteBuffer chunk = indexChunks[(int)(position/CHUNK_SIZE)];
+        int offset = (int)(position%CHUNK_SIZE);
+        return new Entry(chunk.getLong(offset), chunk.getLong(offset+8), chunk.getInt(offset+16), chunk.getLong(offset+20), chunk.getInt(offset+28));
+    }
+
+    /**
+     * Returns a read-only view over the record of the message at position {@code index}.
+     * The bytes are not copied.
+     *
+     * @param index The position, between zero and {@link #size()} (exclusive).
+     * @return The record.
+     */
+    public ByteBuffer getRecord(int index) {
+        return record(getEntry(index));
+    }
+
+    private ByteBuffer record(Entry entry) {
+        ByteBuffer chunk = dataChunks[(int)(entry.offset()/CHUNK_SIZE)];
+        return chunk.slice((int)(entry.offset()%CHUNK_SIZE), entry.length()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the message at position {@code index}.
+     * The raw content of the message is a view over the archive and its {@code MimeMessage}
+     * is parsed on the first access.
+     *
+     * @param index The position, between zero and {@link #size()} (exclusive).
+     * @return The message.
+     */
+    public SmtpMessage getMessage(int index) {
+        return MessageRecords.decode(getRecord(index), true);
+    }
+
+    /**
+     * Returns the messages whose first recipient is {@code recipient}.
+     * Only the index is scanned, the matching records are then decoded to check the
+     * recipient.
+     *
+     * @param recipient The recipient email.
+     * @return The messages.
+     */
+    public List<SmtpMessage> findByRecipient(String recipient) {
+        int hash = recipientHash(List.of(recipient));
+        List<SmtpMessage> messages = new ArrayList<>();
+        for(int i=0 ; i<size ; ++i) {
+            Entry entry = getEntry(i);
+            if(entry.recipientHash()!=hash) { continue; }
+
+            SmtpMessage message = MessageRecords.decode(record(entry), true);
+            if(recipient.equalsIgnoreCase(message.getSourceRecipients().get(0))) { messages.add(message); }
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,121 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.SmtpServer;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.core.SmtpServerListener;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes messages in a {@link SmtpMessageArchive}.
+ * If the archive already exists, the messages are appended to it.
+ * <p>This writer can be registered as {@link SmtpServerListener} to archive all the
+ * received messages.</p>
+ * This class is Thread-safe.
+ */
+public class SmtpMessageArchiveWriter implements SmtpServerListener, AutoCloseable {
+    private final FileChannel dataChannel;
+    private final FileChannel indexChannel;
+    private final ByteBuffer entry = ByteBuffer.allocate(SmtpMessageArchive.ENTRY_SIZE);
+    private long nextId;
+
+    /**
+     * Opens the archive with the given {@code basePath}.
+     * The files {@code basePath.data} and {@code basePath.idx} will be created if needed.
+     *
+     * @param basePath The path of the archive, without extension.
+     */
+    public SmtpMessageArchiveWriter(Path basePath) throws IOException {
+        this.dataChannel = FileChannel.open(SmtpMessageArchive.dataPath(basePath), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.indexChannel = FileChannel.open(SmtpMessageArchive.indexPath(basePath), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch(IOException ioe) {
+            dataChannel.close();
+            throw ioe;
+        }
+
+        if(indexChannel.size()==0) {
+            ByteBuffer header = ByteBuffer.allocate(SmtpMessageArchive.HEADER_SIZE);
+            header.putInt(SmtpMessageArchive.MAGIC).putInt(SmtpMessageArchive.VERSION).rewind();
+            writeFully(indexChannel, header);
+        } else {
+            SmtpMessageArchive.checkHeader(indexChannel);
+        }
+
+        //an incomplete entry might have been written, in which case it will be overwritten
+        long nbEntries = (indexChannel.size()-SmtpMessageArchive.HEADER_SIZE)/SmtpMessageArchive.ENTRY_SIZE;
+        indexChannel.position(SmtpMessageArchive.HEADER_SIZE+nbEntries*SmtpMessageArchive.ENTRY_SIZE);
+
+        long dataEnd = 0;
+        if(nbEntries>0) {
+            ByteBuffer last = ByteBuffer.allocate(SmtpMessageArchive.ENTRY_SIZE);
+            indexChannel.read(last, SmtpMessageArchive.HEADER_SIZE+(nbEntries-1)*SmtpMessageArchive.ENTRY_SIZE);
+            last.flip();
+            nextId = last.getLong()+1;
+            dataEnd = last.getLong()+last.getInt();
+        }
+        dataChannel.position(dataEnd);
+    }
+
+    /**
+     * Appends the given {@code message} in the archive.
+     *
+     * @param message The message to append.
+     * @return The identifier of the message in the archive.
+     */
+    public synchronized long append(SmtpMessage message) throws IOException {
+        ByteBuffer record = MessageRecords.encode(message, false);
+        int length = record.remaining();
+        if(length>SmtpMessageArchive.CHUNK_SIZE) { throw new IOException("Message too large to be archived ("+length+" bytes)"); }
+
+        //records never span two mapped chunks
+        long offset = dataChannel.position();
+        long chunkEnd = (offset/SmtpMessageArchive.CHUNK_SIZE+1)*SmtpMessageArchive.CHUNK_SIZE;
+        if(offset+length>chunkEnd) {
+            offset = chunkEnd;
+            dataChannel.position(offset);
+        }
+        writeFully(dataChannel, record);
+
+        long id = nextId++;
+        entry.clear();
+        entry.putLong(id);
+        entry.putLong(offset);
+        entry.putInt(length);
+        entry.putLong(message.getReceivedDate()!=null ? message.getReceivedDate().getTime() : 0);
+        entry.putInt(SmtpMessageArchive.recipientHash(message.getSourceRecipients()));
+        entry.flip();
+        writeFully(indexChannel, entry);
+        return id;
+    }
+
+    /**
+     * Appends the received message in the archive.
+     */
+    @Override
+    public void notifyMessage(SmtpServer server, SmtpMessage smtpMessage) {
+        try { append(smtpMessage); }
+        catch(IOException ioe) { throw new UncheckedIOException("Unable to archive message", ioe); }
+    }
+
+    /**
+     * Forces the archive content to be written on disk.
+     */
+    public synchronized void flush() throws IOException {
+        dataChannel.force(false);
+        indexChannel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try(dataChannel; indexChannel) { flush(); }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) { channel.write(buffer); }
+    }
+}
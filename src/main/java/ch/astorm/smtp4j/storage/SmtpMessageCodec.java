@@ -0,0 +1,419 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.core.ContentDigest;
+import ch.astorm.smtp4j.core.DkimResult;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.core.SmtpMessage.ReceiveDetails;
+import ch.astorm.smtp4j.core.SmtpMessageContent;
+import ch.astorm.smtp4j.protocol.SmtpExchange;
+import ch.astorm.smtp4j.util.StringPool;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary codec of {@code SmtpMessage} instances.
+ * <p>Each encoded message is a frame made of a version byte, the length of the record (4 bytes) and the
+ * record itself: the envelope, the raw MIME content and optionally the received date, the SMTP exchanges and
+ * the {@link ReceiveDetails receive details} (digests, discarded body length, DKIM result and duplicate flag).
+ * The stored attachment files are not part of the record: the attachments are decoded from the content.
+ * All the lengths and counts of the record are written as variable-length integers and the strings in UTF-8,
+ * so the overhead over the raw content is generally below 100 bytes. No reflection is involved.</p>
+ * <p>The frames can be written one after the other in a {@code ByteBuffer} or a channel and read back in the
+ * same order. When written to a channel, the raw content is not copied. The persistent stores of this package
+ * (journal, archive and ring) hold the same records, in their own frames.</p>
+ * <p>The size of a record is limited, so that a corrupted or hostile length never leads to a huge allocation.</p>
+ * This class is Thread-safe.
+ */
+public class SmtpMessageCodec {
+    /**
+     * Current version of the format.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Size of the frame header (version and record length).
+     */
+    public static final int FRAME_HEADER_SIZE = 5;
+
+    /**
+     * Default maximum size of a record (256 MB).
+     */
+    public static final int DEFAULT_MAX_RECORD_SIZE = 256*1024*1024;
+
+    private static final int FLAG_RECEIVED_DATE = 1;
+    private static final int FLAG_EXCHANGES = 2;
+    private static final int FLAG_RECEIVE_DETAILS = 4;
+
+    private final boolean includeExchanges;
+    private final boolean includeReceivedDate;
+    private final boolean includeReceiveDetails;
+    private final int maxRecordSize;
+
+    /**
+     * Creates a new {@code SmtpMessageCodec} that includes the received date, the SMTP exchanges
+     * and the receive details.
+     */
+    public SmtpMessageCodec() {
+        this(true, true, true, DEFAULT_MAX_RECORD_SIZE);
+    }
+
+    /**
+     * Creates a new {@code SmtpMessageCodec}.
+     *
+     * @param includeExchanges True if the SMTP exchanges must be encoded.
+     * @param includeReceivedDate True if the received date must be encoded.
+     */
+    public SmtpMessageCodec(boolean includeExchanges, boolean includeReceivedDate) {
+        this(includeExchanges, includeReceivedDate, false, DEFAULT_MAX_RECORD_SIZE);
+    }
+
+    /**
+     * Creates a new {@code SmtpMessageCodec}.
+     *
+     * @param includeExchanges True if the SMTP exchanges must be encoded.
+     * @param includeReceivedDate True if the received date must be encoded.
+     * @param includeReceiveDetails True if the {@link SmtpMessage#getReceiveDetails() receive details} must be encoded.
+     * @param maxRecordSize The maximum size of a record, in bytes.
+     */
+    public SmtpMessageCodec(boolean includeExchanges, boolean includeReceivedDate, boolean includeReceiveDetails, int maxRecordSize) {
+        if(maxRecordSize<=0 || maxRecordSize>Integer.MAX_VALUE-FRAME_HEADER_SIZE) { throw new IllegalArgumentException("Invalid maxRecordSize "+maxRecordSize); }
+        this.includeExchanges = includeExchanges;
+        this.includeReceivedDate = includeReceivedDate;
+        this.includeReceiveDetails = includeReceiveDetails;
+        this.maxRecordSize = maxRecordSize;
+    }
+
+    /**
+     * Encodes the given {@code message} in a new buffer.
+     *
+     * @param message The message.
+     * @return The frame, ready to be read.
+     * @throws IllegalArgumentException If the record is larger than the maximum size.
+     */
+    public ByteBuffer encode(SmtpMessage message) {
+        Frame frame = frame(message);
+        ByteBuffer target = ByteBuffer.allocate(frame.size());
+        frame.writeTo(target);
+        return target.flip();
+    }
+
+    /**
+     * Encodes the given {@code message} in {@code target}, at its current position.
+     *
+     * @param message The message.
+     * @param target The target buffer.
+     * @return The number of bytes written.
+     * @throws java.nio.BufferOverflowException If there is not enough remaining space in {@code target}.
+     */
+    public int encode(SmtpMessage message, ByteBuffer target) {
+        Frame frame = frame(message);
+        frame.writeTo(target);
+        return frame.size();
+    }
+
+    /**
+     * Writes the given {@code message} to {@code channel}.
+     *
+     * @param message The message.
+     * @param channel The target channel.
+     * @return The number of bytes written.
+     */
+    public long write(SmtpMessage message, WritableByteChannel channel) throws IOException {
+        Frame frame = frame(message);
+        int size = frame.size();
+        ByteBuffer[] buffers = { ByteBuffer.wrap(frame.head, 0, frame.headLength), frame.raw.duplicate(), ByteBuffer.wrap(frame.tail, 0, frame.tailLength) };
+        if(channel instanceof GatheringByteChannel gathering) {
+            long remaining = size;
+            while(remaining>0) { remaining -= gathering.write(buffers); }
+        } else {
+            for(ByteBuffer buffer : buffers) {
+                while(buffer.hasRemaining()) { channel.write(buffer); }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Decodes a message from {@code buffer}, starting at its current position.
+     * The position of {@code buffer} is moved after the frame and the raw content is copied.
+     *
+     * @param buffer The buffer.
+     * @return The decoded message.
+     * @throws IllegalStateException If the frame is invalid, too large or has an unsupported version.
+     */
+    public SmtpMessage decode(ByteBuffer buffer) {
+        int version = buffer.get() & 0xff;
+        if(version!=VERSION) { throw new IllegalStateException("Unsupported codec version "+version); }
+
+        int length = buffer.getInt();
+        if(length<0 || length>maxRecordSize || length>buffer.remaining()) { throw new IllegalStateException("Invalid record length "+length); }
+
+        ByteBuffer record = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position()+length);
+        try { return decodeRecord(record, false); }
+        catch(BufferUnderflowException | IndexOutOfBoundsException e) { throw new IllegalStateException("Truncated record", e); }
+        catch(IllegalArgumentException iae) { throw new IllegalStateException("Invalid record", iae); }
+    }
+
+    /**
+     * Reads the next message from {@code channel}.
+     *
+     * @param channel The source channel.
+     * @return The decoded message or null if the end of the channel has been reached.
+     * @throws EOFException If the channel ends in the middle of a frame.
+     * @throws IOException If the frame is invalid, too large or has an unsupported version.
+     */
+    public SmtpMessage read(ReadableByteChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        if(!readFully(channel, header, true)) { return null; }
+
+        int version = header.get(0) & 0xff;
+        if(version!=VERSION) { throw new IOException("Unsupported codec version "+version); }
+
+        int length = header.getInt(1);
+        if(length<0 || length>maxRecordSize) { throw new IOException("Invalid record length "+length); }
+
+        ByteBuffer record = ByteBuffer.allocate(length);
+        readFully(channel, record, false);
+        try { return decodeRecord(record.flip(), false); }
+        catch(BufferUnderflowException | IndexOutOfBoundsException | IllegalStateException | IllegalArgumentException e) { throw new IOException("Invalid record", e); }
+    }
+
+    private static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer, boolean allowEnd) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer)<0) {
+                if(allowEnd && buffer.position()==0) { return false; }
+                throw new EOFException("Unexpected end of channel");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes the record of the given {@code message}, without the frame header.
+     * This is used by the stores that frame the records themselves.
+     */
+    ByteBuffer encodeRecord(SmtpMessage message) {
+        Frame frame = frame(message);
+        ByteBuffer target = ByteBuffer.allocate(frame.size()-FRAME_HEADER_SIZE);
+        target.put(frame.head, FRAME_HEADER_SIZE, frame.headLength-FRAME_HEADER_SIZE);
+        target.put(frame.raw.duplicate());
+        target.put(frame.tail, 0, frame.tailLength);
+        return target.flip();
+    }
+
+    private Frame frame(SmtpMessage message) {
+        ByteBuffer raw = message.getRawMimeBuffer();
+        Date receivedDate = includeReceivedDate ? message.getReceivedDate() : null;
+        List<SmtpExchange> exchanges = includeExchanges ? message.getSmtpExchanges() : null;
+        ReceiveDetails details = includeReceiveDetails ? message.getReceiveDetails() : null;
+
+        VarintWriter head = new VarintWriter(64);
+        head.writeByte(VERSION);
+        head.writeInt(0); //record length, set below
+        head.writeByte((receivedDate!=null ? FLAG_RECEIVED_DATE : 0) | (exchanges!=null ? FLAG_EXCHANGES : 0) | (details!=null ? FLAG_RECEIVE_DETAILS : 0));
+        if(receivedDate!=null) { head.writeVarLong(receivedDate.getTime()); }
+        if(details!=null) { writeDetails(head, details); }
+        head.writeString(message.getSourceFrom());
+
+        List<String> recipients = message.getSourceRecipients();
+        head.writeVarLong(recipients!=null ? recipients.size() : 0);
+        if(recipients!=null) { for(String recipient : recipients) { head.writeString(recipient); } }
+        head.writeVarLong(raw.remaining());
+
+        VarintWriter tail = new VarintWriter(exchanges!=null ? 256 : 0);
+        if(exchanges!=null) {
+            tail.writeVarLong(exchanges.size());
+            for(SmtpExchange exchange : exchanges) {
+                List<String> received = exchange.getReceivedData();
+                tail.writeVarLong(received.size());
+                for(String data : received) { tail.writeString(data); }
+                tail.writeString(exchange.getRepliedData());
+            }
+        }
+
+        long recordLength = (long)head.length-FRAME_HEADER_SIZE+raw.remaining()+tail.length;
+        if(recordLength>maxRecordSize) { throw new IllegalArgumentException("Message too large ("+recordLength+" bytes)"); }
+        ByteBuffer.wrap(head.bytes).putInt(1, (int)recordLength);
+        return new Frame(head.bytes, head.length, raw, tail.bytes, tail.length);
+    }
+
+    private static void writeDetails(VarintWriter out, ReceiveDetails details) {
+        out.writeVarLong(details.discardedBodyLength()+1);
+
+        Map<ContentDigest, String> digests = details.digests()!=null ? details.digests() : Map.of();
+        out.writeVarLong(digests.size());
+        for(Map.Entry<ContentDigest, String> digest : digests.entrySet()) {
+            out.writeString(digest.getKey().name());
+            out.writeString(digest.getValue());
+        }
+
+        DkimResult dkimResult = details.dkimResult();
+        out.writeString(dkimResult!=null ? dkimResult.status().name() : null);
+        if(dkimResult!=null) {
+            out.writeString(dkimResult.domain());
+            out.writeString(dkimResult.selector());
+            out.writeString(dkimResult.reason());
+        }
+        out.writeByte(details.duplicate() ? 1 : 0);
+    }
+
+    private static ReceiveDetails readDetails(ByteBuffer record) {
+        long discardedBodyLength = readVarLong(record)-1;
+
+        int nbDigests = readCount(record);
+        Map<ContentDigest, String> digests = new EnumMap<>(ContentDigest.class);
+        for(int i=0 ; i<nbDigests ; ++i) { digests.put(ContentDigest.valueOf(readString(record)), readString(record)); }
+
+        String status = readString(record);
+        DkimResult dkimResult = status!=null ? new DkimResult(DkimResult.Status.valueOf(status), readString(record), readString(record), readString(record)) : null;
+        boolean duplicate = record.get()!=0;
+        return new ReceiveDetails(null, digests, discardedBodyLength, dkimResult, duplicate);
+    }
+
+    /**
+     * Decodes a record, without the frame header, from {@code record} at its current position.
+     * The position of {@code record} is moved after the record.
+     * <p>If {@code zeroCopy} is true, the raw content of the message is a view over {@code record},
+     * hence its content must not change afterwards.</p>
+     */
+    static SmtpMessage decodeRecord(ByteBuffer record, boolean zeroCopy) {
+        int flags = record.get();
+        Date receivedDate = (flags & FLAG_RECEIVED_DATE)!=0 ? new Date(readVarLong(record)) : null;
+        ReceiveDetails details = (flags & FLAG_RECEIVE_DETAILS)!=0 ? readDetails(record) : null;
+        String from = StringPool.SHARED.intern(readString(record));
+
+        int nbRecipients = readCount(record);
+        List<String> recipients = new ArrayList<>(nbRecipients);
+        for(int i=0 ; i<nbRecipients ; ++i) { recipients.add(StringPool.SHARED.intern(readString(record))); }
+
+        int rawLength = readCount(record);
+        SmtpMessageContent raw;
+        if(zeroCopy) {
+            raw = SmtpMessageContent.of(record.slice(record.position(), rawLength));
+            record.position(record.position()+rawLength);
+        } else {
+            byte[] rawBytes = new byte[rawLength];
+            record.get(rawBytes);
+            raw = SmtpMessageContent.of(rawBytes);
+        }
+
+        List<SmtpExchange> exchanges = List.of();
+        if((flags & FLAG_EXCHANGES)!=0) {
+            int nbExchanges = readCount(record);
+            exchanges = new ArrayList<>(nbExchanges);
+            for(int i=0 ; i<nbExchanges ; ++i) {
+                int nbReceived = readCount(record);
+                List<String> received = new ArrayList<>(nbReceived);
+                for(int j=0 ; j<nbReceived ; ++j) { received.add(readString(record)); }
+                exchanges.add(new SmtpExchange(received, readString(record)));
+            }
+        }
+
+        return details!=null ? new SmtpMessage(from, recipients, raw, exchanges, receivedDate, details) : new SmtpMessage(from, recipients, raw, exchanges, receivedDate);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for(int shift=0 ; shift<64 ; shift+=7) {
+            byte b = buffer.get();
+            value |= (long)(b & 0x7f)<<shift;
+            if(b>=0) { return value; }
+        }
+        throw new IllegalStateException("Invalid varint");
+    }
+
+    private static int readCount(ByteBuffer buffer) {
+        long count = readVarLong(buffer);
+        if(count<0 || count>buffer.remaining()) { throw new IllegalStateException("Invalid count "+count); }
+        return (int)count;
+    }
+
+    /**
+     * Strings are written with their length plus one, so that zero represents null.
+     */
+    private static String readString(ByteBuffer buffer) {
+        long length = readVarLong(buffer)-1;
+        if(length<0) { return null; }
+        if(length>buffer.remaining()) { throw new IllegalStateException("Invalid string length "+length); }
+
+        if(buffer.hasArray()) {
+            String str = new String(buffer.array(), buffer.arrayOffset()+buffer.position(), (int)length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position()+(int)length);
+            return str;
+        }
+
+        byte[] bytes = new byte[(int)length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static record Frame(byte[] head, int headLength, ByteBuffer raw, byte[] tail, int tailLength) {
+        private int size() {
+            return headLength+raw.remaining()+tailLength;
+        }
+
+        private void writeTo(ByteBuffer target) {
+            target.put(head, 0, headLength);
+            target.put(raw.duplicate());
+            target.put(tail, 0, tailLength);
+        }
+    }
+
+    /**
+     * Growable byte array with variable-length integers.
+     */
+    private static class VarintWriter {
+        private byte[] bytes;
+        private int length;
+
+        private VarintWriter(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        private void ensureCapacity(int needed) {
+            if(length+needed>bytes.length) { bytes = Arrays.copyOf(bytes, Math.max(bytes.length*2, length+needed)); }
+        }
+
+        private void writeByte(int value) {
+            ensureCapacity(1);
+            bytes[length++] = (byte)value;
+        }
+
+        private void writeInt(int value) {
+            ensureCapacity(4);
+            for(int shift=24 ; shift>=0 ; shift-=8) { bytes[length++] = (byte)(value>>>shift); }
+        }
+
+        private void writeVarLong(long value) {
+            ensureCapacity(10);
+            while((value & ~0x7fL)!=0) {
+                bytes[length++] = (byte)((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte)value;
+        }
+
+        private void writeString(String str) {
+            if(str==null) { writeVarLong(0); return; }
+
+            byte[] utf8 = str.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(utf8.length+1L);
+            ensureCapacity(utf8.length);
+            System.arraycopy(utf8, 0, bytes, length, utf8.length);
+            length += utf8.length;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.storage.SmtpMessageArchive.Entry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exports messages to standard mail formats.
+ * <p>The raw content of the messages is written as-is on file channels: the buffers of the
+ * messages (for instance the memory-mapped records of a {@link SmtpMessageArchive}) are written
+ * without being copied on the heap nor decoded as {@code String}.</p>
+ * <p>The formats that use a file per message ({@link Format#EML} and {@link Format#MAILDIR}) are
+ * written in parallel. The {@link Format#MBOX} file is appended, so incremental exports accumulate
+ * in the same file.</p>
+ * <p>Each export returns the sequence number that follows the last exported message, which can
+ * be given to the next call to export only the new messages.</p>
+ * This class is Thread-safe.
+ */
+public class SmtpMessageExporter {
+    private static final DateTimeFormatter MBOX_DATE = DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US).withZone(ZoneOffset.UTC);
+    private static final byte[] QUOTE = { '>' };
+    private static final byte[] NEWLINE = { '\n' };
+
+    private final Path target;
+    private final Format format;
+    private final int parallelism;
+
+    /**
+     * Represents the export format.
+     */
+    public static enum Format {
+        /**
+         * A {@code message-<sequence>.eml} file per message in the target directory.
+         */
+        EML,
+
+        /**
+         * A single file in the <a href="https://datatracker.ietf.org/doc/html/rfc4155">mbox</a> format,
+         * with the lines starting with {@code From } quoted (mboxrd).
+         */
+        MBOX,
+
+        /**
+         * A Maildir tree, the messages being delivered in the {@code new} subdirectory.
+         */
+        MAILDIR
+    }
+
+    /**
+     * Represents a message to export and its sequence number.
+     */
+    private static record Item(long sequence, SmtpMessage message) {}
+
+    /**
+     * Creates a new {@code SmtpMessageExporter} that uses all the available processors.
+     *
+     * @param target The target directory or, for {@link Format#MBOX}, the target file.
+     * @param format The format.
+     */
+    public SmtpMessageExporter(Path target, Format format) {
+        this(target, format, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new {@code SmtpMessageExporter}.
+     *
+     * @param target The target directory or, for {@link Format#MBOX}, the target file.
+     * @param format The format.
+     * @param parallelism The number of threads that write the files.
+     */
+    public SmtpMessageExporter(Path target, Format format, int parallelism) {
+        if(target==null) { throw new IllegalArgumentException("target not defined"); }
+        if(format==null) { throw new IllegalArgumentException("format not defined"); }
+        if(parallelism<=0) { throw new IllegalArgumentException("parallelism must be greater than zero"); }
+        this.target = target;
+        this.format = format;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Exports the given {@code messages}.
+     *
+     * @param messages The messages, for instance read from a {@link ch.astorm.smtp4j.core.LogSmtpMessageHandler.Cursor}.
+     * @param firstSequence The sequence number of the first message.
+     * @return The sequence number that follows the last message.
+     */
+    public long export(List<SmtpMessage> messages, long firstSequence) throws IOException {
+        return export(messages, firstSequence, null);
+    }
+
+    /**
+     * Exports the given {@code messages} received at or after {@code since}.
+     *
+     * @param messages The messages, for instance read from a {@link ch.astorm.smtp4j.core.LogSmtpMessageHandler.Cursor}.
+     * @param firstSequence The sequence number of the first message.
+     * @param since The minimum received date or null to export all the messages.
+     * @return The sequence number that follows the last message.
+     */
+    public long export(List<SmtpMessage> messages, long firstSequence, Date since) throws IOException {
+        if(messages==null) { throw new IllegalArgumentException("messages not defined"); }
+
+        List<Item> items = new ArrayList<>(messages.size());
+        for(int i=0 ; i<messages.size() ; ++i) {
+            SmtpMessage message = messages.get(i);
+            if(since==null || (message.getReceivedDate()!=null && !message.getReceivedDate().before(since))) { items.add(new Item(firstSequence+i, message)); }
+        }
+        write(items);
+        return firstSequence+messages.size();
+    }
+
+    /**
+     * Exports the messages of the given {@code archive} whose identifier is greater or equal to {@code sinceId}.
+     * The identifiers of the archive are used as sequence numbers.
+     *
+     * @param archive The archive.
+     * @param sinceId The identifier of the first message to export.
+     * @return The identifier that follows the last message of the archive.
+     */
+    public long export(SmtpMessageArchive archive, long sinceId) throws IOException {
+        return export(archive, sinceId, null);
+    }
+
+    /**
+     * Exports the messages of the given {@code archive} whose identifier is greater or equal to {@code sinceId}
+     * and received at or after {@code since}. Only the index of the archive is read to select the messages.
+     *
+     * @param archive The archive.
+     * @param sinceId The identifier of the first message to export.
+     * @param since The minimum received date or null.
+     * @return The identifier that follows the last message of the archive.
+     */
+    public long export(SmtpMessageArchive archive, long sinceId, Date since) throws IOException {
+        if(archive==null) { throw new IllegalArgumentException("archive not defined"); }
+
+        long sinceTime = since!=null ? since.getTime() : Long.MIN_VALUE;
+        long nextId = sinceId;
+        List<Item> items = new ArrayList<>();
+        for(int i=0 ; i<archive.size() ; ++i) {
+            Entry entry = archive.getEntry(i);
+            if(entry.id()<sinceId) { continue; }
+
+            nextId = Math.max(nextId, entry.id()+1);
+            if(entry.receivedTime()>=sinceTime) { items.add(new Item(entry.id(), archive.getMessage(i))); }
+        }
+        write(items);
+        return nextId;
+    }
+
+    private void write(List<Item> items) throws IOException {
+        switch(format) {
+            case EML -> {
+                Files.createDirectories(target);
+                writeParallel(items, item -> writeFile(target.resolve(String.format("message-%010d.eml", item.sequence())), item.message()));
+            }
+            case MAILDIR -> {
+                Path tmp = Files.createDirectories(target.resolve("tmp"));
+                Files.createDirectories(target.resolve("cur"));
+                Path dest = Files.createDirectories(target.resolve("new"));
+                writeParallel(items, item -> {
+                    String name = maildirName(item);
+                    writeFile(tmp.resolve(name), item.message());
+                    Files.move(tmp.resolve(name), dest.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+                });
+            }
+            case MBOX -> writeMbox(items);
+            default -> throw new IllegalStateException("Unknown format "+format);
+        }
+    }
+
+    @FunctionalInterface
+    private static interface ItemWriter {
+        void write(Item item) throws IOException;
+    }
+
+    private void writeParallel(List<Item> items, ItemWriter writer) throws IOException {
+        int nbThreads = Math.min(parallelism, items.size());
+        if(nbThreads<=1) {
+            for(Item item : items) { writer.write(item); }
+            return;
+        }
+
+        try(ExecutorService executor = Executors.newFixedThreadPool(nbThreads)) {
+            List<Future<Void>> futures = new ArrayList<>(nbThreads);
+            for(int t=0 ; t<nbThreads ; ++t) {
+                int from = (int)((long)items.size()*t/nbThreads);
+                int to = (int)((long)items.size()*(t+1)/nbThreads);
+                futures.add(executor.submit(() -> {
+                    for(Item item : items.subList(from, to)) { writer.write(item); }
+                    return null;
+                }));
+            }
+
+            for(Future<Void> future : futures) {
+                try { future.get(); }
+                catch(InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Export interrupted", ie);
+                } catch(ExecutionException ee) {
+                    if(ee.getCause() instanceof IOException ioe) { throw ioe; }
+                    throw new RuntimeException("Unable to export messages", ee.getCause());
+                }
+            }
+        }
+    }
+
+    private static void writeFile(Path path, SmtpMessage message) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, message.getRawContent().asByteBuffer());
+        }
+    }
+
+    private static String maildirName(Item item) {
+        Date received = item.message().getReceivedDate();
+        long seconds = (received!=null ? received.getTime() : System.currentTimeMillis())/1000;
+        return seconds+".P"+ProcessHandle.current().pid()+"Q"+item.sequence()+".smtp4j";
+    }
+
+    private synchronized void writeMbox(List<Item> items) throws IOException {
+        Path parent = target.toAbsolutePath().getParent();
+        if(parent!=null) { Files.createDirectories(parent); }
+
+        try(FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            for(Item item : items) {
+                SmtpMessage message = item.message();
+                String sender = message.getSourceFrom()!=null && !message.getSourceFrom().isBlank() ? message.getSourceFrom() : "MAILER-DAEMON";
+                Date received = message.getReceivedDate();
+                String separator = "From "+sender+" "+MBOX_DATE.format(received!=null ? received.toInstant() : Instant.now())+"\n";
+                writeFully(channel, ByteBuffer.wrap(separator.getBytes(StandardCharsets.US_ASCII)));
+
+                ByteBuffer content = message.getRawContent().asByteBuffer();
+                boolean endsWithNewline = writeQuoted(channel, content);
+                if(!endsWithNewline) { writeFully(channel, ByteBuffer.wrap(NEWLINE)); }
+                writeFully(channel, ByteBuffer.wrap(NEWLINE));
+            }
+        }
+    }
+
+    /**
+     * Writes the given {@code content} with a {@code >} before each line that matches {@code >*From }.
+     * The content is written by slices between the quoted lines.
+     *
+     * @return True if the content ends with a new line.
+     */
+    private static boolean writeQuoted(FileChannel channel, ByteBuffer content) throws IOException {
+        int start = content.position();
+        int end = content.limit();
+        int written = start;
+        for(int lineStart=start ; lineStart<end ; ) {
+            int index = lineStart;
+            while(index<end && content.get(index)=='>') { ++index; }
+            if(matches(content, index, "From ")) {
+                writeFully(channel, content.duplicate().position(written).limit(lineStart));
+                writeFully(channel, ByteBuffer.wrap(QUOTE));
+                written = lineStart;
+            }
+
+            while(index<end && content.get(index)!='\n') { ++index; }
+            lineStart = index+1;
+        }
+        writeFully(channel, content.duplicate().position(written).limit(end));
+        return end>start && content.get(end-1)=='\n';
+    }
+
+    private static boolean matches(ByteBuffer content, int index, String prefix) {
+        if(index+prefix.length()>content.limit()) { return false; }
+        for(int i=0 ; i<prefix.length() ; ++i) {
+            if(content.get(index+i)!=prefix.charAt(i)) { return false; }
+        }
+        return true;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) { channel.write(buffer); }
+    }
+}
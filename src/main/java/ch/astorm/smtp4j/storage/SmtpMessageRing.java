@@ -0,0 +1,209 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.core.SmtpMessage;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reader of a ring file written by a {@link SmtpMessageRingWriter}, possibly in another JVM.
+ * <p>The ring file is made of a header, a fixed number of index slots and a data area in which
+ * the records of the messages (envelope and raw content) are written circularly. Each message has a
+ * sequence number: the writer publishes a slot by writing its sequence number last, and the reader
+ * polls the slot of the next sequence number. No lock is involved on either side.</p>
+ * <p>Once the ring is full, the oldest messages are overwritten. A reader that is too slow skips the
+ * overwritten messages, which are counted as {@link #getLostCount() lost}. The record of each message
+ * is copied once from the ring and the returned messages are views over that copy, whose
+ * {@code MimeMessage} is parsed on the first access.</p>
+ * <p>The file is unmapped once the reader is garbage collected.</p>
+ * This class is not Thread-safe.
+ *
+ * @see SmtpMessageRingWriter
+ */
+public class SmtpMessageRing {
+    static final int MAGIC = 0x534d4a52; //SMJR
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int SLOT_SIZE = 32;
+
+    //header offsets
+    static final int SLOT_COUNT_OFFSET = 8;
+    static final int DATA_CAPACITY_OFFSET = 16;
+    static final int NEXT_SEQUENCE_OFFSET = 24;
+    static final int RESERVED_POSITION_OFFSET = 32;
+
+    //slot offsets, the sequence being stored plus one so that zero marks an empty slot
+    static final int SLOT_SEQUENCE_OFFSET = 0;
+    static final int SLOT_POSITION_OFFSET = 8;
+    static final int SLOT_LENGTH_OFFSET = 16;
+    static final int SLOT_TIME_OFFSET = 24;
+
+    static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    private final long dataCapacity;
+    private long position;
+    private long lostCount;
+
+    private SmtpMessageRing(MappedByteBuffer buffer, long position) throws IOException {
+        this.buffer = buffer;
+        checkHeader(buffer);
+        this.slotCount = buffer.getInt(SLOT_COUNT_OFFSET);
+        this.dataCapacity = buffer.getLong(DATA_CAPACITY_OFFSET);
+        this.position = position>=0 ? position : Math.max(0, nextSequence()-slotCount);
+    }
+
+    /**
+     * Opens the ring file at {@code path} and positions the reader on the oldest available message.
+     *
+     * @param path The path of the ring file.
+     * @return The opened ring.
+     */
+    public static SmtpMessageRing open(Path path) throws IOException {
+        return open(path, -1);
+    }
+
+    /**
+     * Opens the ring file at {@code path} and positions the reader on the given {@code sequence}.
+     *
+     * @param path The path of the ring file.
+     * @param sequence The sequence number of the first message to read or a negative value for the oldest available message.
+     * @return The opened ring.
+     */
+    public static SmtpMessageRing open(Path path, long sequence) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new SmtpMessageRing(channel.map(MapMode.READ_ONLY, 0, channel.size()), sequence);
+        }
+    }
+
+    static void checkHeader(ByteBuffer buffer) throws IOException {
+        if(buffer.capacity()<HEADER_SIZE || buffer.getInt(0)!=MAGIC) { throw new IOException("Invalid ring file"); }
+
+        int version = buffer.getInt(4);
+        if(version!=VERSION) { throw new IOException("Unsupported ring version "+version); }
+    }
+
+    /**
+     * Returns the sequence number of the next message that will be read.
+     *
+     * @return The position of this reader.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the sequence number that will be assigned to the next message written in the ring.
+     *
+     * @return The next sequence number.
+     */
+    public long getNextSequence() {
+        return nextSequence();
+    }
+
+    /**
+     * Returns the number of messages that have been overwritten before being read.
+     *
+     * @return The number of lost messages.
+     */
+    public long getLostCount() {
+        return lostCount;
+    }
+
+    /**
+     * Reads the next message if available.
+     *
+     * @return The next message or null if there is none yet.
+     */
+    public SmtpMessage poll() {
+        while(true) {
+            long slot = HEADER_SIZE+(position%slotCount)*SLOT_SIZE;
+            long published = (long)LONG.getAcquire(buffer, (int)slot+SLOT_SEQUENCE_OFFSET)-1;
+            if(published<position) { return null; }
+            if(published>position) {
+                skipLost();
+                continue;
+            }
+
+            long recordPosition = buffer.getLong((int)slot+SLOT_POSITION_OFFSET);
+            int length = buffer.getInt((int)slot+SLOT_LENGTH_OFFSET);
+            if(recordPosition<0 || length<0 || recordPosition%dataCapacity+length>dataCapacity) {
+                skipLost(); //the slot is being overwritten
+                continue;
+            }
+
+            byte[] record = new byte[length];
+            buffer.get(HEADER_SIZE+slotCount*SLOT_SIZE+(int)(recordPosition%dataCapacity), record);
+
+            //the copy is valid only if neither the slot nor the data have been overwritten meanwhile
+            VarHandle.loadLoadFence();
+            long reserved = (long)LONG.getAcquire(buffer, RESERVED_POSITION_OFFSET);
+            long republished = (long)LONG.getAcquire(buffer, (int)slot+SLOT_SEQUENCE_OFFSET)-1;
+            if(republished!=position || reserved-recordPosition>dataCapacity) {
+                skipLost();
+                continue;
+            }
+
+            ++position;
+            return MessageRecords.decode(ByteBuffer.wrap(record), true);
+        }
+    }
+
+    /**
+     * Reads all the available messages.
+     *
+     * @return The messages or an empty list.
+     */
+    public List<SmtpMessage> readMessages() {
+        List<SmtpMessage> messages = new ArrayList<>();
+        SmtpMessage message = poll();
+        while(message!=null) {
+            messages.add(message);
+            message = poll();
+        }
+        return messages;
+    }
+
+    /**
+     * Reads the next message, waiting up to the given {@code delay} for it to be written.
+     *
+     * @param delay The maximum delay to wait.
+     * @param unit The unit of the {@code delay}.
+     * @return The next message or null if there is none after the delay.
+     */
+    public SmtpMessage readMessage(long delay, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime()+unit.toNanos(delay);
+        long pause = 1;
+        SmtpMessage message = poll();
+        while(message==null && System.nanoTime()<deadline) {
+            TimeUnit.MILLISECONDS.sleep(pause);
+            pause = Math.min(pause*2, 50);
+            message = poll();
+        }
+        return message;
+    }
+
+    /**
+     * Moves the reader to the oldest message that can still be read.
+     */
+    private void skipLost() {
+        long oldest = Math.max(position+1, nextSequence()-slotCount);
+        lostCount += oldest-position;
+        position = oldest;
+    }
+
+    private long nextSequence() {
+        return (long)LONG.getAcquire(buffer, NEXT_SEQUENCE_OFFSET);
+    }
+}
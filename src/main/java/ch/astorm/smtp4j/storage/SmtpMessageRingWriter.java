@@ -0,0 +1,157 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.SmtpServer;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.core.SmtpServerListener;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes messages in a ring file that can be read by {@link SmtpMessageRing} instances in other JVMs
+ * of the same host.
+ * <p>The file has a fixed size: once the ring is full, the oldest messages are overwritten. If the
+ * file already exists with the same geometry, the writer continues after the last written message.
+ * Only one writer must be opened on a given file.</p>
+ * <p>This writer can be registered as {@link SmtpServerListener} to share all the received messages.</p>
+ * This class is Thread-safe.
+ */
+public class SmtpMessageRingWriter implements SmtpServerListener, AutoCloseable {
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    private final long dataCapacity;
+    private final int dataStart;
+    private long nextSequence;
+    private long reservedPosition;
+
+    /**
+     * Default number of index slots, hence the maximum number of messages in the ring.
+     */
+    public static final int DEFAULT_SLOT_COUNT = 4096;
+
+    /**
+     * Default size of the data area (64MB).
+     */
+    public static final int DEFAULT_DATA_CAPACITY = 64*1024*1024;
+
+    /**
+     * Opens the ring file at {@code path} with the {@link #DEFAULT_SLOT_COUNT default} geometry.
+     *
+     * @param path The path of the ring file.
+     */
+    public SmtpMessageRingWriter(Path path) throws IOException {
+        this(path, DEFAULT_SLOT_COUNT, DEFAULT_DATA_CAPACITY);
+    }
+
+    /**
+     * Opens the ring file at {@code path}. The file will be created if needed.
+     *
+     * @param path The path of the ring file.
+     * @param slotCount The maximum number of messages in the ring.
+     * @param dataCapacity The size of the data area, in bytes.
+     */
+    public SmtpMessageRingWriter(Path path, int slotCount, int dataCapacity) throws IOException {
+        if(path==null) { throw new IllegalArgumentException("path not defined"); }
+        if(slotCount<=0) { throw new IllegalArgumentException("slotCount must be greater than zero"); }
+        if(dataCapacity<=0) { throw new IllegalArgumentException("dataCapacity must be greater than zero"); }
+
+        long fileSize = SmtpMessageRing.HEADER_SIZE+(long)slotCount*SmtpMessageRing.SLOT_SIZE+dataCapacity;
+        if(fileSize>Integer.MAX_VALUE) { throw new IllegalArgumentException("Ring file too large ("+fileSize+" bytes)"); }
+
+        this.slotCount = slotCount;
+        this.dataCapacity = dataCapacity;
+        this.dataStart = SmtpMessageRing.HEADER_SIZE+slotCount*SmtpMessageRing.SLOT_SIZE;
+
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            boolean existing = channel.size()>0;
+            if(existing && channel.size()!=fileSize) { throw new IOException("Ring file has a different geometry"); }
+            this.buffer = channel.map(MapMode.READ_WRITE, 0, fileSize);
+            if(existing) {
+                SmtpMessageRing.checkHeader(buffer);
+                if(buffer.getInt(SmtpMessageRing.SLOT_COUNT_OFFSET)!=slotCount || buffer.getLong(SmtpMessageRing.DATA_CAPACITY_OFFSET)!=dataCapacity) { throw new IOException("Ring file has a different geometry"); }
+                this.nextSequence = buffer.getLong(SmtpMessageRing.NEXT_SEQUENCE_OFFSET);
+                this.reservedPosition = buffer.getLong(SmtpMessageRing.RESERVED_POSITION_OFFSET);
+            } else {
+                buffer.putInt(4, SmtpMessageRing.VERSION);
+                buffer.putInt(SmtpMessageRing.SLOT_COUNT_OFFSET, slotCount);
+                buffer.putLong(SmtpMessageRing.DATA_CAPACITY_OFFSET, dataCapacity);
+                buffer.putInt(0, SmtpMessageRing.MAGIC); //written last, so readers never see a partial header
+            }
+        }
+    }
+
+    /**
+     * Appends the given {@code message} in the ring.
+     *
+     * @param message The message to append.
+     * @return The sequence number of the message.
+     */
+    public synchronized long append(SmtpMessage message) throws IOException {
+        ByteBuffer record = MessageRecords.encode(message, false);
+        int length = record.remaining();
+        if(length>dataCapacity) { throw new IOException("Message too large for the ring ("+length+" bytes)"); }
+
+        //records never wrap around the end of the data area
+        long position = reservedPosition;
+        long offset = position%dataCapacity;
+        if(offset+length>dataCapacity) {
+            position += dataCapacity-offset;
+            offset = 0;
+        }
+
+        //readers detect that the data they copied has been overwritten through the reserved position
+        reservedPosition = position+length;
+        SmtpMessageRing.LONG.setOpaque(buffer, SmtpMessageRing.RESERVED_POSITION_OFFSET, reservedPosition);
+        VarHandle.storeStoreFence();
+        buffer.put(dataStart+(int)offset, record, record.position(), length);
+
+        //the slot is invalidated while its fields are updated
+        long sequence = nextSequence++;
+        int slot = SmtpMessageRing.HEADER_SIZE+(int)(sequence%slotCount)*SmtpMessageRing.SLOT_SIZE;
+        SmtpMessageRing.LONG.setOpaque(buffer, slot+SmtpMessageRing.SLOT_SEQUENCE_OFFSET, 0L);
+        VarHandle.storeStoreFence();
+        buffer.putLong(slot+SmtpMessageRing.SLOT_POSITION_OFFSET, position);
+        buffer.putInt(slot+SmtpMessageRing.SLOT_LENGTH_OFFSET, length);
+        buffer.putLong(slot+SmtpMessageRing.SLOT_TIME_OFFSET, message.getReceivedDate()!=null ? message.getReceivedDate().getTime() : 0);
+        SmtpMessageRing.LONG.setRelease(buffer, slot+SmtpMessageRing.SLOT_SEQUENCE_OFFSET, sequence+1);
+        SmtpMessageRing.LONG.setRelease(buffer, SmtpMessageRing.NEXT_SEQUENCE_OFFSET, nextSequence);
+        return sequence;
+    }
+
+    /**
+     * Returns the sequence number that will be assigned to the next message.
+     *
+     * @return The next sequence number.
+     */
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Appends the received message in the ring.
+     */
+    @Override
+    public void notifyMessage(SmtpServer server, SmtpMessage smtpMessage) {
+        try { append(smtpMessage); }
+        catch(IOException ioe) { throw new UncheckedIOException("Unable to write message in ring", ioe); }
+    }
+
+    /**
+     * Forces the ring content to be written on disk. This is not needed for the readers, which
+     * share the same memory pages.
+     */
+    public synchronized void flush() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+}
@@ -0,0 +1,472 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.SmtpServer;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.core.SmtpMessageContent;
+import ch.astorm.smtp4j.core.SmtpMessageHandler;
+import ch.astorm.smtp4j.storage.SlabAllocator.Block;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * {@code SmtpMessageHandler} that moves the received messages between storage tiers.
+ * <p>The received messages are first kept as parsed {@code SmtpMessage} on the heap. Once the budget
+ * of a {@link Tier tier} is exceeded, its oldest messages are demoted to the next tier: only the raw
+ * bytes on the heap, then the raw bytes off-heap and finally a file on disk. The envelope of the messages
+ * and the state captured when they have been received always stay on the heap.</p>
+ * <p>The messages are also demoted off-heap when the JVM reports that the usage of a heap memory pool is
+ * still above the configured threshold after a garbage collection. The thresholds of the memory pools are global
+ * to the JVM: they are shared by all the started handlers and given back to their previous value once the last
+ * one is closed. The messages are demoted on a background thread.</p>
+ * <p>The messages are promoted back transparently when they are read with {@link #messageReader()} or
+ * {@link #readMessages(long, java.util.concurrent.TimeUnit)}: their off-heap memory or file is given back
+ * and their {@code MimeMessage} is parsed on the first access.</p>
+ * <p>When the handler is closed, the messages on {@link Tier#DISK} are discarded along with their files and the
+ * temporary directory, if any.</p>
+ * This class is Thread-safe.
+ */
+public class TieredSmtpMessageHandler implements SmtpMessageHandler {
+    private static final Logger LOG = Logger.getLogger(TieredSmtpMessageHandler.class.getName());
+
+    private static final List<TieredSmtpMessageHandler> MEMORY_WATCHERS = new ArrayList<>();
+    private static final List<MemoryPoolMXBean> THRESHOLD_POOLS = new ArrayList<>();
+    private static final NotificationListener MEMORY_LISTENER = TieredSmtpMessageHandler::memoryNotification;
+    private static ExecutorService spillExecutor;
+    private static final SmtpMessageContent NO_CONTENT = SmtpMessageContent.of(new byte[0]);
+
+    private final ArrayDeque<Entry> messages = new ArrayDeque<>(32);
+    private final ArrayDeque<Entry>[] tierMessages = new ArrayDeque[Tier.values().length];
+    private final long[] tierBytes = new long[Tier.values().length];
+    private final long[] budgets;
+    private final SlabAllocator allocator = new SlabAllocator(OffHeapSmtpMessageHandler.DEFAULT_SLAB_SIZE);
+    private final double memoryThreshold;
+    private final AtomicBoolean spillPending = new AtomicBoolean();
+    private Path directory;
+    private boolean temporaryDirectory;
+    private long nextSequence;
+    private volatile boolean serverStarted;
+
+    /**
+     * Default budget of the {@link Tier#HEAP} tier (16 MB).
+     */
+    public static final long DEFAULT_HEAP_BUDGET = 16*1024*1024;
+
+    /**
+     * Default budget of the {@link Tier#RAW} tier (64 MB).
+     */
+    public static final long DEFAULT_RAW_BUDGET = 64*1024*1024;
+
+    /**
+     * Default budget of the {@link Tier#OFF_HEAP} tier (256 MB).
+     */
+    public static final long DEFAULT_OFF_HEAP_BUDGET = 256*1024*1024;
+
+    /**
+     * Default ratio of the maximum size of a heap memory pool above which the messages are demoted.
+     */
+    public static final double DEFAULT_MEMORY_THRESHOLD = 0.8;
+
+    /**
+     * Represents the storage tiers, from the fastest to the most compact.
+     */
+    public static enum Tier {
+        /**
+         * The message is kept with its parsed {@code MimeMessage}.
+         */
+        HEAP,
+
+        /**
+         * Only the raw bytes of the message are kept on the heap.
+         */
+        RAW,
+
+        /**
+         * The raw bytes of the message are kept in direct memory.
+         */
+        OFF_HEAP,
+
+        /**
+         * The raw bytes of the message are written in a file. This tier has no budget.
+         */
+        DISK
+    }
+
+    /**
+     * Creates a new {@code TieredSmtpMessageHandler} with the default budgets.
+     * The messages demoted to {@link Tier#DISK} are written in a temporary directory.
+     */
+    public TieredSmtpMessageHandler() {
+        this(null, DEFAULT_HEAP_BUDGET, DEFAULT_RAW_BUDGET, DEFAULT_OFF_HEAP_BUDGET, DEFAULT_MEMORY_THRESHOLD);
+    }
+
+    /**
+     * Creates a new {@code TieredSmtpMessageHandler}.
+     * A budget of zero disables the tier.
+     *
+     * @param directory The directory of the messages demoted to {@link Tier#DISK} or null to use a temporary directory.
+     * @param heapBudget The maximum number of bytes of the messages in the {@link Tier#HEAP} tier.
+     * @param rawBudget The maximum number of bytes of the messages in the {@link Tier#RAW} tier.
+     * @param offHeapBudget The maximum number of bytes of the messages in the {@link Tier#OFF_HEAP} tier.
+     * @param memoryThreshold The ratio (between 0 and 1) of the maximum size of a heap memory pool above which the messages
+     *                        are demoted off-heap or zero to ignore the memory usage.
+     */
+    public TieredSmtpMessageHandler(Path directory, long heapBudget, long rawBudget, long offHeapBudget, double memoryThreshold) {
+        if(heapBudget<0 || rawBudget<0 || offHeapBudget<0) { throw new IllegalArgumentException("budgets must be positive"); }
+        if(memoryThreshold<0 || memoryThreshold>1) { throw new IllegalArgumentException("memoryThreshold must be between 0 and 1"); }
+        this.directory = directory;
+        this.budgets = new long[] { heapBudget, rawBudget, offHeapBudget, Long.MAX_VALUE };
+        this.memoryThreshold = memoryThreshold;
+        for(int i=0 ; i<tierMessages.length ; ++i) { tierMessages[i] = new ArrayDeque<>(); }
+    }
+
+    /**
+     * Stored message. Once demoted, the envelope and the state captured at receive time (attachments, digests,
+     * DKIM result, ...) stay on the heap in a message without content, from which the message is rebuilt.
+     */
+    private static class Entry {
+        private final long sequence;
+        private final int size;
+
+        private Tier tier = Tier.HEAP;
+        private SmtpMessage message;
+        private SmtpMessage envelope;
+        private SmtpMessageContent raw;
+        private Block block;
+        private Path file;
+
+        private Entry(long sequence, SmtpMessage message) {
+            this.sequence = sequence;
+            this.size = message.getRawContent().size();
+            this.message = message;
+        }
+    }
+
+    /**
+     * Returns the number of messages currently in the given {@code tier}.
+     *
+     * @param tier The tier.
+     * @return The number of messages.
+     */
+    public int getMessageCount(Tier tier) {
+        synchronized(messages) { return tierMessages[tier.ordinal()].size(); }
+    }
+
+    /**
+     * Returns the number of bytes of the messages currently in the given {@code tier}.
+     *
+     * @param tier The tier.
+     * @return The number of bytes.
+     */
+    public long getBytes(Tier tier) {
+        synchronized(messages) { return tierBytes[tier.ordinal()]; }
+    }
+
+    /**
+     * Demotes all the messages of the tiers above {@code tier} to {@code tier}.
+     * This method is invoked with {@link Tier#OFF_HEAP} when the JVM reports a high memory usage.
+     *
+     * @param tier The tier.
+     */
+    public void spill(Tier tier) {
+        synchronized(messages) {
+            for(int i=0 ; i<tier.ordinal() ; ++i) {
+                while(!tierMessages[i].isEmpty()) { demote(tierMessages[i].poll(), tier); }
+            }
+            enforceBudgets();
+        }
+    }
+
+    private void enforceBudgets() {
+        for(int i=0 ; i<budgets.length-1 ; ++i) {
+            while(tierBytes[i]>budgets[i] && !tierMessages[i].isEmpty()) {
+                demote(tierMessages[i].poll(), Tier.values()[i+1]);
+            }
+        }
+    }
+
+    private void demote(Entry entry, Tier target) {
+        tierBytes[entry.tier.ordinal()] -= entry.size;
+
+        switch(target) {
+            case RAW -> entry.raw = entry.message.getRawContent();
+            case OFF_HEAP -> {
+                Block block = allocator.allocate(entry.size);
+                block.buffer().slice(0, entry.size).put(content(entry));
+                entry.block = block;
+            }
+            case DISK -> {
+                Path file = directory().resolve("message-"+entry.sequence+".eml");
+                try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    ByteBuffer content = content(entry);
+                    while(content.hasRemaining()) { channel.write(content); }
+                } catch(IOException ioe) {
+                    throw new UncheckedIOException("Unable to write message "+file, ioe);
+                }
+                freeBlock(entry);
+                entry.file = file;
+            }
+            default -> throw new IllegalArgumentException("Cannot demote to "+target);
+        }
+
+        if(target!=Tier.RAW) { entry.raw = null; }
+        if(entry.message!=null) {
+            entry.envelope = entry.message.withContent(NO_CONTENT);
+            entry.message = null;
+        }
+        entry.tier = target;
+        tierMessages[target.ordinal()].add(entry);
+        tierBytes[target.ordinal()] += entry.size;
+    }
+
+    private ByteBuffer content(Entry entry) {
+        return switch(entry.tier) {
+            case HEAP -> entry.message.getRawMimeBuffer();
+            case RAW -> entry.raw.asByteBuffer();
+            case OFF_HEAP -> entry.block.buffer().slice(0, entry.size);
+            case DISK -> throw new IllegalStateException("Message already on disk");
+        };
+    }
+
+    private void freeBlock(Entry entry) {
+        if(entry.block!=null) {
+            allocator.free(entry.block);
+            entry.block = null;
+        }
+    }
+
+    private Path directory() {
+        try {
+            if(directory==null) {
+                directory = Files.createTempDirectory("smtp4j-tiered");
+                temporaryDirectory = true;
+            } else { Files.createDirectories(directory); }
+            return directory;
+        } catch(IOException ioe) {
+            throw new UncheckedIOException("Unable to create directory "+directory, ioe);
+        }
+    }
+
+    /**
+     * Removes the oldest message and promotes it back on the heap.
+     */
+    private SmtpMessage poll() {
+        Entry entry = messages.poll();
+        tierMessages[entry.tier.ordinal()].removeFirstOccurrence(entry);
+        tierBytes[entry.tier.ordinal()] -= entry.size;
+
+        switch(entry.tier) {
+            case HEAP:
+                return entry.message;
+            case RAW:
+                return entry.envelope.withContent(entry.raw);
+            case OFF_HEAP: {
+                byte[] bytes = new byte[entry.size];
+                entry.block.buffer().get(0, bytes);
+                freeBlock(entry);
+                return entry.envelope.withContent(SmtpMessageContent.of(bytes));
+            }
+            case DISK: {
+                try {
+                    byte[] bytes = Files.readAllBytes(entry.file);
+                    Files.delete(entry.file);
+                    return entry.envelope.withContent(SmtpMessageContent.of(bytes));
+                } catch(IOException ioe) {
+                    throw new UncheckedIOException("Unable to read message "+entry.file, ioe);
+                }
+            }
+            default:
+                throw new IllegalStateException("Unknown tier "+entry.tier);
+        }
+    }
+
+    @Override
+    public void notifyStart(SmtpServer server) {
+        serverStarted = true;
+        if(memoryThreshold>0) { registerMemoryListener(); }
+    }
+
+    @Override
+    public void notifyClose(SmtpServer server) {
+        unregisterMemoryListener();
+        synchronized(messages) {
+            serverStarted = false;
+            deleteSpilledMessages();
+            messages.notifyAll();
+        }
+    }
+
+    private void deleteSpilledMessages() {
+        ArrayDeque<Entry> spilled = tierMessages[Tier.DISK.ordinal()];
+        messages.removeAll(spilled);
+        while(!spilled.isEmpty()) {
+            Entry entry = spilled.poll();
+            try { Files.deleteIfExists(entry.file); }
+            catch(IOException ioe) { LOG.log(Level.WARNING, "Unable to delete message "+entry.file, ioe); }
+        }
+        tierBytes[Tier.DISK.ordinal()] = 0;
+
+        if(temporaryDirectory) {
+            try { Files.deleteIfExists(directory); }
+            catch(IOException ioe) { LOG.log(Level.WARNING, "Unable to delete directory "+directory, ioe); }
+            directory = null;
+            temporaryDirectory = false;
+        }
+    }
+
+    @Override
+    public void notifyMessage(SmtpServer server, SmtpMessage smtpMessage) {
+        synchronized(messages) {
+            Entry entry = new Entry(nextSequence++, smtpMessage);
+            messages.add(entry);
+            tierMessages[Tier.HEAP.ordinal()].add(entry);
+            tierBytes[Tier.HEAP.ordinal()] += entry.size;
+            enforceBudgets();
+            messages.notifyAll();
+        }
+    }
+
+    @Override
+    public SmtpMessageReader messageReader() {
+        return new SmtpMessageReader() {
+            @Override
+            public SmtpMessage readMessage() {
+                synchronized(messages) {
+                    while(serverStarted && messages.isEmpty()) {
+                        try { messages.wait(); }
+                        catch(InterruptedException ie) { return null; }
+                    }
+                    return !messages.isEmpty() ? poll() : null;
+                }
+            }
+
+            @Override
+            public void close() throws Exception {
+                /* nothing */
+            }
+        };
+    }
+
+    @Override
+    public List<SmtpMessage> readMessages(long delayIfNoMessage, TimeUnit unit) {
+        if(!serverStarted) { return Collections.EMPTY_LIST; }
+
+        synchronized(messages) {
+            if(messages.isEmpty() && delayIfNoMessage>=0) {
+                try { messages.wait(TimeUnit.MILLISECONDS.convert(delayIfNoMessage, unit)); }
+                catch(InterruptedException ie) { /* ignored */ }
+            }
+
+            if(messages.isEmpty()) {
+                return Collections.EMPTY_LIST;
+            }
+
+            List<SmtpMessage> copyMsgs = new ArrayList<>(messages.size());
+            while(!messages.isEmpty()) { copyMsgs.add(poll()); }
+            return copyMsgs;
+        }
+    }
+
+    private void registerMemoryListener() {
+        synchronized(MEMORY_WATCHERS) {
+            if(MEMORY_WATCHERS.isEmpty()) {
+                spillExecutor = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "smtp4j-tiered-spill");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                ((NotificationEmitter)ManagementFactory.getMemoryMXBean()).addNotificationListener(MEMORY_LISTENER, null, null);
+            }
+            if(!MEMORY_WATCHERS.contains(this)) { MEMORY_WATCHERS.add(this); }
+            updateThresholds();
+        }
+    }
+
+    private void unregisterMemoryListener() {
+        synchronized(MEMORY_WATCHERS) {
+            if(!MEMORY_WATCHERS.remove(this)) { return; }
+            updateThresholds();
+
+            if(MEMORY_WATCHERS.isEmpty()) {
+                try { ((NotificationEmitter)ManagementFactory.getMemoryMXBean()).removeNotificationListener(MEMORY_LISTENER); }
+                catch(ListenerNotFoundException lnfe) { /* not registered */ }
+                spillExecutor.shutdown();
+                spillExecutor = null;
+            }
+        }
+    }
+
+    /**
+     * Sets the threshold of the pools to the lowest ratio of the registered handlers. The pools are
+     * given back to their previous (disabled) threshold once there is no handler anymore.
+     */
+    private static void updateThresholds() {
+        if(MEMORY_WATCHERS.isEmpty()) {
+            for(MemoryPoolMXBean pool : THRESHOLD_POOLS) { pool.setCollectionUsageThreshold(0); }
+            THRESHOLD_POOLS.clear();
+            return;
+        }
+
+        double ratio = MEMORY_WATCHERS.stream().mapToDouble(w -> w.memoryThreshold).min().getAsDouble();
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getType()!=MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported()) { continue; }
+
+            //do not override a threshold defined by someone else
+            long max = pool.getUsage().getMax();
+            if(max>0 && (THRESHOLD_POOLS.contains(pool) || pool.getCollectionUsageThreshold()==0)) {
+                pool.setCollectionUsageThreshold((long)(max*ratio));
+                if(!THRESHOLD_POOLS.contains(pool)) { THRESHOLD_POOLS.add(pool); }
+            }
+        }
+    }
+
+    private static void memoryNotification(Notification notification, Object handback) {
+        if(!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) { return; }
+
+        MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData)notification.getUserData());
+        long used = info.getUsage().getUsed();
+        long max = info.getUsage().getMax();
+        synchronized(MEMORY_WATCHERS) {
+            for(TieredSmtpMessageHandler watcher : MEMORY_WATCHERS) {
+                if(max>0 && used<max*watcher.memoryThreshold) { continue; }
+                if(watcher.spillPending.compareAndSet(false, true)) {
+                    try { spillExecutor.execute(watcher::spillInBackground); }
+                    catch(RejectedExecutionException ree) { watcher.spillPending.set(false); }
+                }
+            }
+        }
+    }
+
+    /**
+     * Demotes the messages off-heap outside of the notification thread, which must not be blocked by I/O.
+     */
+    private void spillInBackground() {
+        try { spill(Tier.OFF_HEAP); }
+        catch(RuntimeException re) { LOG.log(Level.WARNING, "Unable to demote messages", re); }
+        finally { spillPending.set(false); }
+    }
+}
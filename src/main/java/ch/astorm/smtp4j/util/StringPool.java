@@ -0,0 +1,114 @@
+package ch.astorm.smtp4j.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of {@code String} instances.
+ * <p>The values that are repeated among the received messages (addresses, header values, ...) go through
+ * this pool so only one instance of each is retained by the stored messages. The pool is a fixed-size table
+ * indexed by the hash of the values: a value replaces the one in its slot when they differ, hence the pool
+ * never grows and never retains more than its size.</p>
+ * <p>A value can be looked up from a region of a bigger {@code String}, in which case no new instance is
+ * created when the value is already in the pool.</p>
+ * This class is Thread-safe.
+ */
+public class StringPool {
+    private final AtomicReferenceArray<String> table;
+    private final int mask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Maximum length of a pooled value. Longer values are returned as is.
+     */
+    public static final int MAX_LENGTH = 256;
+
+    /**
+     * Default number of slots of the pool.
+     */
+    public static final int DEFAULT_SIZE = 4096;
+
+    /**
+     * Pool shared by the {@code SmtpServer} instances and the stored messages.
+     */
+    public static final StringPool SHARED = new StringPool(DEFAULT_SIZE);
+
+    /**
+     * Creates a new {@code StringPool}.
+     *
+     * @param size The number of slots, rounded up to the next power of two.
+     */
+    public StringPool(int size) {
+        if(size<=0) { throw new IllegalArgumentException("size must be greater than zero"); }
+        this.table = new AtomicReferenceArray<>(size==1 ? 1 : Integer.highestOneBit(size-1)<<1);
+        this.mask = table.length()-1;
+    }
+
+    /**
+     * Returns the pooled instance equal to {@code str}.
+     *
+     * @param str The value or null.
+     * @return The pooled instance, {@code str} itself if it has been put in the pool or null.
+     */
+    public String intern(String str) {
+        if(str==null) { return null; }
+        return intern(str, 0, str.length());
+    }
+
+    /**
+     * Returns the pooled instance equal to the region of {@code source} between {@code start}
+     * (inclusive) and {@code end} (exclusive). No {@code String} is created if the value is
+     * already in the pool.
+     *
+     * @param source The source.
+     * @param start The start index.
+     * @param end The end index.
+     * @return The pooled instance.
+     */
+    public String intern(String source, int start, int end) {
+        int length = end-start;
+        if(start<0 || length<0 || end>source.length()) { throw new StringIndexOutOfBoundsException("start "+start+", end "+end+", length "+source.length()); }
+        if(length>MAX_LENGTH) { return source.substring(start, end); }
+
+        int hash = 0;
+        for(int i=start ; i<end ; ++i) { hash = 31*hash+source.charAt(i); }
+        int slot = (hash^(hash>>>16)) & mask;
+
+        String pooled = table.get(slot);
+        if(pooled!=null && pooled.length()==length && pooled.regionMatches(0, source, start, length)) {
+            hits.increment();
+            return pooled;
+        }
+
+        misses.increment();
+        String value = start==0 && end==source.length() ? source : source.substring(start, end);
+        table.set(slot, value);
+        return value;
+    }
+
+    /**
+     * Returns the number of lookups that returned a pooled instance.
+     *
+     * @return The number of hits.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that did not find the value in the pool.
+     *
+     * @return The number of misses.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Removes all the values from the pool.
+     */
+    public void clear() {
+        for(int i=0 ; i<table.length() ; ++i) { table.set(i, null); }
+    }
+}
@@ -0,0 +1,217 @@
+package ch.astorm.smtp4j;
+
+import ch.astorm.smtp4j.core.DkimResult;
+import ch.astorm.smtp4j.core.DkimResult.Status;
+import ch.astorm.smtp4j.core.DkimVerifier;
+import ch.astorm.smtp4j.core.InMemoryDkimKeyResolver;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class DkimVerifierTest {
+    private static final String MESSAGE =
+        "From: Sender <sender@smtp4j.local>\r\n" +
+        "To: target@smtp4j.local\r\n" +
+        "Subject: Signed\r\n" +
+        "  message\r\n" +
+        "Message-ID: <signed@smtp4j.local>\r\n" +
+        "\r\n" +
+        "Hello  world \t\r\n" +
+        ".Dotted line\r\n" +
+        "\r\n" +
+        "\r\n";
+
+    @Test
+    public void testRelaxedSignature() throws Exception {
+        KeyPair keys = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        InMemoryDkimKeyResolver resolver = new InMemoryDkimKeyResolver().put("sel", "smtp4j.local", keys.getPublic());
+        DkimVerifier verifier = new DkimVerifier(resolver);
+
+        try(SmtpServer server = new SmtpServerBuilder().withDkimVerifier(verifier).start()) {
+            String signed = sign(MESSAGE, keys.getPrivate(), "rsa-sha256", true);
+            send(server, signed);
+            send(server, signed.replace("Hello", "Hallo"));
+            send(server, signed.replace("Subject: Signed", "Subject: Forged"));
+            send(server, MESSAGE);
+            send(server, signed);
+
+            List<SmtpMessage> messages = server.readReceivedMessages();
+            assertEquals(5, messages.size());
+            assertEquals(new DkimResult(Status.PASS, "smtp4j.local", "sel", null), messages.get(0).getDkimResult());
+            assertEquals(new DkimResult(Status.FAIL, "smtp4j.local", "sel", "body hash mismatch"), messages.get(1).getDkimResult());
+            assertEquals(new DkimResult(Status.FAIL, "smtp4j.local", "sel", "signature mismatch"), messages.get(2).getDkimResult());
+            assertEquals(Status.NONE, messages.get(3).getDkimResult().status());
+            assertEquals(Status.PASS, messages.get(4).getDkimResult().status());
+
+            //the key has been parsed once
+            assertEquals(1, resolver.getLookupCount());
+            assertEquals(1, verifier.getCachedKeyCount());
+        }
+    }
+
+    @Test
+    public void testStrictMode() throws Exception {
+        KeyPair keys = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        InMemoryDkimKeyResolver resolver = new InMemoryDkimKeyResolver().put("sel", "smtp4j.local", keys.getPublic());
+        DkimVerifier verifier = new DkimVerifier(resolver, null, true, 16);
+
+        try(SmtpServer server = new SmtpServerBuilder().withDkimVerifier(verifier).start()) {
+            String signed = sign(MESSAGE, keys.getPrivate(), "rsa-sha256", false);
+            send(server, signed);
+
+            MessagingException me = assertThrows(MessagingException.class, () -> send(server, signed.replace("world", "WORLD")));
+            assertTrue(me.getMessage().contains("554 DKIM verification failed (body hash mismatch)"), me.getMessage());
+            assertThrows(MessagingException.class, () -> send(server, MESSAGE));
+
+            List<SmtpMessage> messages = server.readReceivedMessages();
+            assertEquals(1, messages.size());
+            assertEquals(Status.PASS, messages.get(0).getDkimResult().status());
+        }
+    }
+
+    @Test
+    public void testEd25519Signature() throws Exception {
+        KeyPair keys = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+        InMemoryDkimKeyResolver resolver = new InMemoryDkimKeyResolver().put("sel", "smtp4j.local", keys.getPublic());
+        DkimVerifier verifier = new DkimVerifier(resolver);
+
+        String signed = sign(MESSAGE, keys.getPrivate(), "ed25519-sha256", false);
+        SmtpMessage message = SmtpMessage.create("sender@smtp4j.local", List.of("target@smtp4j.local"), trim(signed), List.of());
+        assertEquals(Status.PASS, verifier.verify(message).status());
+        assertNull(message.getDkimResult());
+
+        resolver.remove("sel", "smtp4j.local");
+        DkimResult missingKey = new DkimVerifier(resolver).verify(message);
+        assertEquals(Status.PERMERROR, missingKey.status());
+
+        DkimResult unavailableKey = new DkimVerifier((selector, domain) -> { throw new IOException("timeout"); }).verify(message);
+        assertEquals(Status.TEMPERROR, unavailableKey.status());
+    }
+
+    /**
+     * Signed message of RFC 8463, Appendix A.
+     */
+    private static final String RFC8463_MESSAGE =
+        "DKIM-Signature: v=1; a=ed25519-sha256; c=relaxed/relaxed;\r\n" +
+        " d=football.example.com; i=@football.example.com;\r\n" +
+        " q=dns/txt; s=brisbane; t=1528637909; h=from : to :\r\n" +
+        " subject : date : message-id : from : subject : date;\r\n" +
+        " bh=2jUSOH9NhtVGCQWNr9BrIAPreKQjO6Sn7XIkfJVOzv8=;\r\n" +
+        " b=/gCrinpcQOoIfuHNQIbq4pgh9kyIK3AQUdt9OdqQehSwhEIug4D11Bus\r\n" +
+        " Fa3bT3FY5OsU7ZbnKELq+eXdp1Q1Dw==\r\n" +
+        "DKIM-Signature: v=1; a=rsa-sha256; c=relaxed/relaxed;\r\n" +
+        " d=football.example.com; i=@football.example.com;\r\n" +
+        " q=dns/txt; s=test; t=1528637909; h=from : to : subject :\r\n" +
+        " date : message-id : from : subject : date;\r\n" +
+        " bh=2jUSOH9NhtVGCQWNr9BrIAPreKQjO6Sn7XIkfJVOzv8=;\r\n" +
+        " b=F45dVWDfMbQDGHJFlXUNB2HKfbCeLRyhDXgFpEL8GwpsRe0IeIixNTe3\r\n" +
+        " DhCVlUrSjV4BwcVcOF6+FF3Zo9Rpo1tFOeS9mPYQTnGdaSGsgeefOsk2Jz\r\n" +
+        " dA+L10TeYt9BgDfQNZtKdN1WO//KgIqXP7OdEFE4LjFYNcUxZQ4FADY+8=\r\n" +
+        "From: Joe SixPack <joe@football.example.com>\r\n" +
+        "To: Suzie Q <suzie@shopping.example.net>\r\n" +
+        "Subject: Is dinner ready?\r\n" +
+        "Date: Fri, 11 Jul 2003 21:00:37 -0700 (PDT)\r\n" +
+        "Message-ID: <20030712040037.46341.5F8J@football.example.com>\r\n" +
+        "\r\n" +
+        "Hi.\r\n" +
+        "\r\n" +
+        "We lost the game.  Are you hungry yet?\r\n" +
+        "\r\n" +
+        "Joe.\r\n";
+
+    @Test
+    public void testRfc8463KnownAnswer() throws Exception {
+        //signatures produced by an external signer, with the keys of RFC 8463, Appendix A.2
+        SmtpMessage message = SmtpMessage.create("joe@football.example.com", List.of("suzie@shopping.example.net"), RFC8463_MESSAGE.getBytes(StandardCharsets.US_ASCII), List.of());
+
+        InMemoryDkimKeyResolver ed25519 = new InMemoryDkimKeyResolver().put("brisbane", "football.example.com", "v=DKIM1; k=ed25519; p=11qYAYKxCrfVS/7TyWQHOg7hcvPapiMlrwIaaPcHURo=");
+        assertEquals(new DkimResult(Status.PASS, "football.example.com", "brisbane", null), new DkimVerifier(ed25519).verify(message));
+
+        InMemoryDkimKeyResolver rsa = new InMemoryDkimKeyResolver().put("test", "football.example.com", "v=DKIM1; k=rsa; " +
+            "p=MIGfMA0GCSqGSIb3DQEBAQUAA4GNADCBiQKBgQDkHlOQoBTzWRiGs5V6NpP3idY6Wk08a5qhdR6wy5bdOKb2jLQiY/J16JYi0Qvx/byYzCNb3W91y3FutACDfzwQ/" +
+            "BC/e/8uBsCR+yz1Lxj+PL6lHvqMKrM3rG4hstT5QjvHO9PzoxZyVYLzBfO2EeC3Ip3G+2kryOTIKT+l/K4w3QIDAQAB");
+        assertEquals(new DkimResult(Status.PASS, "football.example.com", "test", null), new DkimVerifier(rsa).verify(message));
+
+        SmtpMessage altered = SmtpMessage.create("joe@football.example.com", List.of("suzie@shopping.example.net"), RFC8463_MESSAGE.replace("Is dinner", "Was dinner").getBytes(StandardCharsets.US_ASCII), List.of());
+        assertEquals(new DkimResult(Status.FAIL, "football.example.com", "brisbane", "signature mismatch"), new DkimVerifier(ed25519).verify(altered));
+    }
+
+    private static void send(SmtpServer server, String content) throws MessagingException {
+        MimeMessage message = new MimeMessage(server.createSession(), new ByteArrayInputStream(content.getBytes(StandardCharsets.US_ASCII))) {
+            @Override
+            public void saveChanges() { /* the signed headers must not change */ }
+        };
+        Transport.send(message);
+    }
+
+    /**
+     * Returns the content as received by the server, without the final CRLF.
+     */
+    private static byte[] trim(String content) {
+        return content.substring(0, content.length()-2).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Minimal DKIM signer of the From, To and Subject headers.
+     */
+    private static String sign(String message, PrivateKey key, String algorithm, boolean relaxed) throws Exception {
+        int separator = message.indexOf("\r\n\r\n");
+        String[] headers = message.substring(0, separator).split("\r\n(?![ \t])");
+        String body = message.substring(separator+4);
+
+        String canonicalBody;
+        if(relaxed) {
+            StringBuilder builder = new StringBuilder();
+            for(String line : body.split("\r\n", -1)) { builder.append(line.replaceAll("[ \t]+", " ").replaceAll(" $", "")).append("\r\n"); }
+            canonicalBody = builder.toString().replaceAll("(\r\n)+$", "");
+            if(!canonicalBody.isEmpty()) { canonicalBody += "\r\n"; }
+        } else {
+            canonicalBody = body.replaceAll("(\r\n)+$", "")+"\r\n";
+        }
+        //the leading dot is stuffed by the transport and removed by the server
+        String bodyHash = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(canonicalBody.getBytes(StandardCharsets.US_ASCII)));
+
+        String signatureHeader = "DKIM-Signature: v=1; a="+algorithm+"; c="+(relaxed ? "relaxed/relaxed" : "simple/simple")+"; d=smtp4j.local; s=sel;\r\n\th=From:To:Subject; bh="+bodyHash+"; b=";
+        StringBuilder data = new StringBuilder();
+        for(String name : List.of("from", "to", "subject")) {
+            for(String header : headers) {
+                if(header.toLowerCase().startsWith(name+":")) { data.append(relaxed ? relaxedHeader(header) : header).append("\r\n"); }
+            }
+        }
+        data.append(relaxed ? relaxedHeader(signatureHeader) : signatureHeader);
+
+        byte[] signedData = data.toString().getBytes(StandardCharsets.US_ASCII);
+        Signature signer;
+        if(algorithm.startsWith("ed25519")) {
+            signer = Signature.getInstance("Ed25519");
+            signer.initSign(key);
+            signer.update(MessageDigest.getInstance("SHA-256").digest(signedData));
+        } else {
+            signer = Signature.getInstance("SHA256withRSA");
+            signer.initSign(key);
+            signer.update(signedData);
+        }
+        return signatureHeader+Base64.getEncoder().encodeToString(signer.sign())+"\r\n"+message;
+    }
+
+    private static String relaxedHeader(String header) {
+        int colon = header.indexOf(':');
+        return header.substring(0, colon).trim().toLowerCase()+":"+header.substring(colon+1).replace("\r\n", "").replaceAll("[ \t]+", " ").trim();
+    }
+}
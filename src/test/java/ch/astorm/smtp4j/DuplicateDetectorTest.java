@@ -0,0 +1,146 @@
+package ch.astorm.smtp4j;
+
+import ch.astorm.smtp4j.core.DefaultSmtpMessageHandler;
+import ch.astorm.smtp4j.core.DuplicateDetector;
+import ch.astorm.smtp4j.core.DuplicateDetector.Policy;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.util.MimeMessageBuilder;
+import jakarta.mail.Message.RecipientType;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class DuplicateDetectorTest {
+
+    @Test
+    public void testFlagDuplicates() throws Exception {
+        DuplicateDetector detector = new DuplicateDetector(Policy.FLAG);
+        try(SmtpServer server = new SmtpServerBuilder().withDuplicateDetector(detector).start()) {
+            send(server, "<retry-1@local.host>", "First attempt");
+            send(server, "<retry-1@local.host>", "Second attempt");
+            send(server, "<retry-2@local.host>", "Other message");
+
+            List<SmtpMessage> messages = server.readReceivedMessages();
+            assertEquals(3, messages.size());
+            assertFalse(messages.get(0).isDuplicate());
+            assertTrue(messages.get(1).isDuplicate());
+            assertFalse(messages.get(2).isDuplicate());
+            assertEquals(3, detector.getCheckedCount());
+            assertEquals(1, detector.getDuplicateCount());
+        }
+    }
+
+    @Test
+    public void testDropDuplicates() throws Exception {
+        DuplicateDetector detector = new DuplicateDetector(DuplicateDetector.BODY_HASH, Policy.DROP, 550, 1024, DuplicateDetector.DEFAULT_FALSE_POSITIVE_RATE, null);
+        try(SmtpServer server = new SmtpServerBuilder().withDuplicateDetector(detector).start()) {
+            for(int i=0 ; i<3 ; ++i) {
+                new MimeMessageBuilder(server).
+                    from("from@local.host").
+                    to("target@local.host").
+                    subject("Attempt "+i).
+                    body("Always the same body").
+                    send();
+            }
+
+            List<SmtpMessage> messages = server.readReceivedMessages();
+            assertEquals(1, messages.size());
+            assertEquals("Attempt 0", messages.get(0).getSubject());
+            assertEquals(2, detector.getDuplicateCount());
+        }
+    }
+
+    @Test
+    public void testRejectDuplicates() throws Exception {
+        DuplicateDetector detector = new DuplicateDetector(DuplicateDetector.MESSAGE_ID, Policy.REJECT, 550, 1024, DuplicateDetector.DEFAULT_FALSE_POSITIVE_RATE, null);
+        try(SmtpServer server = new SmtpServerBuilder().withDuplicateDetector(detector).start()) {
+            send(server, "<retry-1@local.host>", "First attempt");
+
+            MessagingException me = assertThrows(MessagingException.class, () -> send(server, "<retry-1@local.host>", "Second attempt"));
+            assertTrue(me.getMessage().contains("550 Duplicate message"), me.getMessage());
+            assertEquals(1, server.readReceivedMessages().size());
+        }
+    }
+
+    @Test
+    public void testGenerations() throws Exception {
+        DuplicateDetector detector = new DuplicateDetector(DuplicateDetector.MESSAGE_ID, Policy.FLAG, 1000, 1000, DuplicateDetector.DEFAULT_FALSE_POSITIVE_RATE, Duration.ofHours(1));
+        for(int i=0 ; i<100_000 ; ++i) { assertFalse(detector.isDuplicate("<message-"+i+"@local.host>")); }
+        for(int i=0 ; i<100_000 ; i+=1000) { assertTrue(detector.isDuplicate("<message-"+i+"@local.host>")); }
+        //only the current generation keeps its exact set
+        assertTrue(detector.getMemoryUsage()<100_000*8, "memory="+detector.getMemoryUsage());
+
+        DuplicateDetector expiring = new DuplicateDetector(DuplicateDetector.MESSAGE_ID, Policy.FLAG, 1000, 1000, DuplicateDetector.DEFAULT_FALSE_POSITIVE_RATE, Duration.ofMillis(50));
+        assertFalse(expiring.isDuplicate("<message@local.host>"));
+        Thread.sleep(100);
+        assertFalse(expiring.isDuplicate("<message@local.host>"));
+        assertTrue(expiring.isDuplicate("<message@local.host>"));
+    }
+
+    @Test
+    public void testMaxGenerations() {
+        DuplicateDetector detector = new DuplicateDetector(DuplicateDetector.MESSAGE_ID, Policy.FLAG, 1000, 10, DuplicateDetector.DEFAULT_FALSE_POSITIVE_RATE, null);
+        for(int i=0 ; i<(DuplicateDetector.MAX_GENERATIONS+1)*10 ; ++i) { assertFalse(detector.isDuplicate("<message-"+i+"@local.host>")); }
+        assertTrue(detector.isDuplicate("<message-10@local.host>"));
+        assertFalse(detector.isDuplicate("<message-0@local.host>"));
+    }
+
+    @Test
+    public void testForget() {
+        DuplicateDetector detector = new DuplicateDetector(DuplicateDetector.MESSAGE_ID, Policy.FLAG, 1000, 1000, DuplicateDetector.DEFAULT_FALSE_POSITIVE_RATE, null);
+        for(int i=0 ; i<1000 ; ++i) { assertFalse(detector.isDuplicate("<message-"+i+"@local.host>")); }
+        for(int i=0 ; i<1000 ; i+=2) { assertTrue(detector.forget("<message-"+i+"@local.host>")); }
+        assertFalse(detector.forget("<unknown@local.host>"));
+
+        for(int i=1 ; i<1000 ; i+=2) { assertTrue(detector.isDuplicate("<message-"+i+"@local.host>")); }
+        for(int i=0 ; i<1000 ; i+=2) { assertFalse(detector.isDuplicate("<message-"+i+"@local.host>")); }
+    }
+
+    @Test
+    public void testRetryAfterFailure() throws Exception {
+        AtomicBoolean failure = new AtomicBoolean(true);
+        DefaultSmtpMessageHandler handler = new DefaultSmtpMessageHandler() {
+            @Override
+            public void notifyMessage(SmtpServer server, SmtpMessage smtpMessage) {
+                if(failure.getAndSet(false)) { throw new IllegalStateException("Store not available"); }
+                super.notifyMessage(server, smtpMessage);
+            }
+        };
+
+        DuplicateDetector detector = new DuplicateDetector(Policy.REJECT);
+        try(SmtpServer server = new SmtpServerBuilder().withMessageHandler(handler).withDuplicateDetector(detector).start()) {
+            assertThrows(MessagingException.class, () -> send(server, "<retry-1@local.host>", "First attempt"));
+            send(server, "<retry-1@local.host>", "Second attempt");
+
+            List<SmtpMessage> messages = server.readReceivedMessages();
+            assertEquals(1, messages.size());
+            assertFalse(messages.get(0).isDuplicate());
+            assertEquals(0, detector.getDuplicateCount());
+        }
+    }
+
+    private static void send(SmtpServer server, String messageId, String body) throws MessagingException {
+        Session session = server.createSession();
+        MimeMessage message = new MimeMessage(session) {
+            @Override
+            protected void updateMessageID() throws MessagingException {
+                setHeader("Message-ID", messageId);
+            }
+        };
+        message.setFrom(new InternetAddress("from@local.host"));
+        message.addRecipient(RecipientType.TO, new InternetAddress("target@local.host"));
+        message.setSubject("Duplicate");
+        message.setText(body);
+        Transport.send(message);
+    }
+}
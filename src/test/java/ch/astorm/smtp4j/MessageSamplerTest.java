@@ -0,0 +1,109 @@
+package ch.astorm.smtp4j;
+
+import ch.astorm.smtp4j.SmtpServerOptions.CapturePolicy;
+import ch.astorm.smtp4j.core.MessageSampler;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.core.TrafficCounters;
+import ch.astorm.smtp4j.util.MimeMessageBuilder;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class MessageSamplerTest {
+
+    @Test
+    public void testDeterministicSample() {
+        MessageSampler first = MessageSampler.oneIn(10);
+        MessageSampler second = MessageSampler.oneIn(10);
+
+        List<Boolean> firstDecisions = new ArrayList<>();
+        List<Boolean> secondDecisions = new ArrayList<>();
+        for(int i=0 ; i<10000 ; ++i) {
+            String sender = "sender"+(i%7)+"@smtp4j.local";
+            firstDecisions.add(first.sample(sender));
+            secondDecisions.add(second.sample(sender));
+        }
+
+        assertEquals(firstDecisions, secondDecisions);
+        assertEquals(first.getSampledCount(), second.getSampledCount());
+        assertTrue(first.getSampledCount()>800 && first.getSampledCount()<1200, ""+first.getSampledCount());
+
+        //the decision only depends on the envelope
+        assertEquals(Long.remainderUnsigned(MessageSampler.envelopeHash("sender0@smtp4j.local", 0), 10)==0, firstDecisions.get(0));
+        assertThrows(IllegalArgumentException.class, () -> MessageSampler.oneIn(0));
+    }
+
+    @Test
+    public void testRateLimit() {
+        MessageSampler sampler = MessageSampler.perSecond(5);
+        int sampled = 0;
+        for(int i=0 ; i<100 ; ++i) {
+            if(sampler.sample("sender@smtp4j.local")) { ++sampled; }
+        }
+        assertEquals(5, sampled);
+        assertEquals(5, sampler.getSampledCount());
+    }
+
+    @Test
+    public void testSampledCapture() throws Exception {
+        MessageSampler sampler = MessageSampler.oneIn(3);
+        try(SmtpServer server = new SmtpServerBuilder().withSampler(sampler).start()) {
+            List<String> expected = new ArrayList<>();
+            for(int i=0 ; i<30 ; ++i) {
+                String sender = i%2==0 ? "even@smtp4j.local" : "odd@smtp4j.local";
+                if(Long.remainderUnsigned(MessageSampler.envelopeHash(sender, i/2), 3)==0) { expected.add("Message "+i); }
+                new MimeMessageBuilder(server).from(sender).to("target@smtp4j.local").subject("Message "+i).body("Sampled content").send();
+            }
+
+            List<SmtpMessage> messages = server.readReceivedMessages();
+            assertEquals(expected, messages.stream().map(SmtpMessage::getSubject).toList());
+            assertEquals(expected.size(), sampler.getSampledCount());
+            assertTrue(messages.stream().allMatch(m -> !m.getSmtpExchanges().isEmpty()));
+
+            TrafficCounters counters = server.getTrafficCounters();
+            assertEquals(30, counters.getMessageCount());
+            assertEquals(15, counters.getSenderHistogram().get("even@smtp4j.local"));
+        }
+    }
+
+    @Test
+    public void testSampledExchanges() throws Exception {
+        MessageSampler sampler = MessageSampler.oneIn(3);
+        try(SmtpServer server = new SmtpServerBuilder().withSampler(sampler).start()) {
+            List<String> expected = new ArrayList<>();
+            try(Transport transport = server.createSession().getTransport("smtp")) {
+                transport.connect();
+                for(int i=0 ; i<12 ; ++i) {
+                    if(Long.remainderUnsigned(MessageSampler.envelopeHash("sender@smtp4j.local", i), 3)==0) { expected.add("Message "+i); }
+                    MimeMessage message = new MimeMessageBuilder(server).from("sender@smtp4j.local").to("target@smtp4j.local").subject("Message "+i).body("Sampled content").build();
+                    transport.sendMessage(message, message.getAllRecipients());
+                }
+            }
+
+            //the exchanges of the messages that are not sampled are not recorded
+            List<SmtpMessage> messages = server.readReceivedMessages();
+            assertEquals(expected, messages.stream().map(SmtpMessage::getSubject).toList());
+            for(int i=0 ; i<messages.size() ; ++i) {
+                List<String> received = messages.get(i).getSmtpExchanges().stream().flatMap(e -> e.getReceivedData().stream()).toList();
+                assertEquals(i+1, received.stream().filter(l -> l.startsWith("MAIL FROM:")).count(), received.toString());
+                assertTrue(received.stream().filter(l -> l.startsWith("Subject: ")).allMatch(l -> expected.contains(l.substring(9))), received.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testSampledHeadersOnly() throws Exception {
+        try(SmtpServer server = new SmtpServerBuilder().withSampler(MessageSampler.oneIn(1)).withCapturePolicy(CapturePolicy.HEADERS_ONLY).start()) {
+            new MimeMessageBuilder(server).from("sender@smtp4j.local").to("target@smtp4j.local").subject("Sampled").body("Discarded content").send();
+
+            List<SmtpMessage> messages = server.readReceivedMessages();
+            assertEquals(1, messages.size());
+            assertTrue(messages.get(0).isBodyDiscarded());
+        }
+    }
+}
@@ -3,15 +3,28 @@ package ch.astorm.smtp4j;
 
 import ch.astorm.smtp4j.core.SmtpMessage;
 import ch.astorm.smtp4j.core.DefaultSmtpMessageHandler;
+import ch.astorm.smtp4j.core.LogSmtpMessageHandler;
+import ch.astorm.smtp4j.core.LogSmtpMessageHandler.Cursor;
+import ch.astorm.smtp4j.core.ShardedSmtpMessageHandler;
+import ch.astorm.smtp4j.core.ShardedSmtpMessageHandler.Shard;
+import ch.astorm.smtp4j.core.SmtpMailboxes;
+import ch.astorm.smtp4j.core.SmtpMessageIndex;
 import ch.astorm.smtp4j.util.MimeMessageBuilder;
+import jakarta.mail.Message.RecipientType;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
 import ch.astorm.smtp4j.core.SmtpMessageHandler.SmtpMessageReader;
 
@@ -86,4 +99,192 @@ public class SmtpMessageStorageTest {
         }
         assertNull(store.messageReader().readMessage());
     }
+
+    @Test
+    public void testLogMultipleReaders() throws Exception {
+        LogSmtpMessageHandler store = new LogSmtpMessageHandler(4);
+        try(SmtpServer smtpServer = new SmtpServerBuilder().withMessageHandler(store).start();
+            Cursor reader1 = store.newCursor();
+            Cursor reader2 = store.newCursor()) {
+            for(int i=0 ; i<10 ; ++i) {
+                new MimeMessageBuilder(smtpServer).
+                    from("from@local.host").
+                    to("target@local.host").
+                    subject("Test "+i).
+                    body("Some simple message").
+                    send();
+            }
+
+            for(int i=0 ; i<10 ; ++i) {
+                assertEquals("Test "+i, reader1.readMessage().getSubject());
+            }
+
+            List<SmtpMessage> messages = reader2.readMessages(1, TimeUnit.SECONDS);
+            assertEquals(10, messages.size());
+            assertEquals(10, reader2.getPosition());
+
+            //both cursors are at the end, so all the full segments have been reclaimed
+            assertEquals(8, store.getFirstSequence());
+            assertEquals(10, store.getNextSequence());
+
+            List<SmtpMessage> defaultMessages = smtpServer.readReceivedMessages();
+            assertEquals(2, defaultMessages.size());
+            assertEquals("Test 8", defaultMessages.get(0).getSubject());
+        }
+    }
+
+    @Test
+    public void testLogReadSince() throws Exception {
+        LogSmtpMessageHandler store = new LogSmtpMessageHandler(2);
+        SmtpMessage[] messages = new SmtpMessage[5];
+        for(int i=0 ; i<messages.length ; ++i) {
+            messages[i] = SmtpMessage.create("from@local.host", List.of("to@local.host"), ("Subject: "+i+"\r\n\r\nBody").getBytes(StandardCharsets.US_ASCII), List.of());
+            store.notifyMessage(null, messages[i]);
+        }
+
+        try(Cursor cursor = store.newCursor()) {
+            List<SmtpMessage> since = cursor.readSince(3);
+            assertEquals(2, since.size());
+            assertSame(messages[3], since.get(0));
+            assertSame(messages[4], since.get(1));
+            assertEquals(5, cursor.getPosition());
+            assertTrue(cursor.readSince(5).isEmpty());
+
+            //the full segments have been reclaimed, so a new cursor starts after them
+            try(Cursor other = store.newCursor()) {
+                assertEquals(4, store.getFirstSequence());
+                assertSame(messages[4], other.readMessages(-1, TimeUnit.SECONDS).get(0));
+            }
+        }
+
+        try(Cursor late = store.newCursor(0)) {
+            assertEquals(4, late.getPosition());
+            assertSame(messages[4], late.readMessage());
+            assertNull(late.readMessage());
+        }
+    }
+
+    @Test
+    public void testShardedStore() throws Exception {
+        ShardedSmtpMessageHandler store = new ShardedSmtpMessageHandler(4, ShardedSmtpMessageHandler.FIRST_RECIPIENT);
+        try(SmtpServer smtpServer = new SmtpServerBuilder().withMessageHandler(store).start()) {
+            for(int i=0 ; i<6 ; ++i) {
+                new MimeMessageBuilder(smtpServer).
+                    from("from@local.host").
+                    to("Tenant"+(i%2)+"@local.host").
+                    subject("Test "+i).
+                    body("Some simple message").
+                    send();
+            }
+
+            Shard shard0 = store.getShard("tenant0@local.host");
+            List<SmtpMessage> tenant0 = shard0.readMessages(-1, TimeUnit.SECONDS);
+            if(shard0==store.getShard("tenant1@local.host")) {
+                assertEquals(6, tenant0.size());
+            } else {
+                assertEquals(3, tenant0.size());
+                tenant0.forEach(m -> assertEquals("Tenant0@local.host", m.getSourceRecipients().get(0)));
+                assertEquals("Test 0", tenant0.get(0).getSubject());
+                assertEquals("Test 4", tenant0.get(2).getSubject());
+
+                List<SmtpMessage> merged = smtpServer.readReceivedMessages();
+                assertEquals(3, merged.size());
+                assertEquals("Test 1", merged.get(0).getSubject());
+                assertEquals("Test 5", merged.get(2).getSubject());
+            }
+
+            new MimeMessageBuilder(smtpServer).
+                from("from@local.host").
+                to("other@local.host").
+                subject("Merged").
+                body("Some simple message").
+                send();
+
+            try(SmtpMessageReader reader = smtpServer.receivedMessageReader()) {
+                assertEquals("Merged", reader.readMessage().getSubject());
+            }
+        }
+    }
+
+    @Test
+    public void testMailboxes() throws Exception {
+        SmtpMailboxes mailboxes = new SmtpMailboxes(RecipientType.TO, RecipientType.CC);
+        try(SmtpServer smtpServer = new SmtpServerBuilder().withListener(mailboxes).start()) {
+            new MimeMessageBuilder(smtpServer).
+                from("from@local.host").
+                to("Alice <alice@local.host>").
+                cc("bob@local.host").
+                bcc("carol@local.host").
+                subject("Team").
+                body("Some simple message").
+                send();
+
+            new MimeMessageBuilder(smtpServer).
+                from("from@local.host").
+                to("Alice@local.host").
+                subject("Private").
+                body("Some simple message").
+                send();
+
+            List<SmtpMessage> received = smtpServer.readReceivedMessages();
+            assertEquals(2, received.size());
+
+            List<SmtpMessage> alice = mailboxes.getMessages("alice@local.host");
+            assertEquals(2, alice.size());
+            assertSame(received.get(0), alice.get(0));
+            assertSame(received.get(1), alice.get(1));
+            assertEquals(1, mailboxes.getMessageCount("BOB@local.host"));
+            assertSame(received.get(0), mailboxes.getMessages("carol@local.host").get(0));
+            assertTrue(mailboxes.getMessages("nobody@local.host").isEmpty());
+
+            Map<String, List<SmtpMessage>> all = mailboxes.getMailboxes();
+            assertEquals(Set.of("alice@local.host", "bob@local.host", "carol@local.host"), all.keySet());
+            assertEquals(2, all.get("alice@local.host").size());
+
+            assertEquals(1, mailboxes.remove("bob@local.host").size());
+            assertEquals(Set.of("alice@local.host", "carol@local.host"), mailboxes.getRecipients());
+        }
+    }
+
+    @Test
+    public void testSearchIndex() throws Exception {
+        SmtpMessageIndex index = new SmtpMessageIndex();
+        try(SmtpServer smtpServer = new SmtpServerBuilder().withListener(index).start()) {
+            String[][] contents = {
+                { "Invoice 42", "Your payment has been received, thank you." },
+                { "Invoice 43", "The payment is still pending." },
+                { "Newsletter", "Received payment instructions are attached." },
+            };
+            for(String[] content : contents) {
+                new MimeMessageBuilder(smtpServer).
+                    from("from@local.host").
+                    to("target@local.host").
+                    subject(content[0]).
+                    body(content[1]).
+                    send();
+            }
+
+            index.flush();
+            assertEquals(3, index.getIndexedCount());
+            assertEquals(0, index.getPendingCount());
+
+            assertEquals(List.of("Invoice 42", "Invoice 43"), subjects(index.search("invoice payment")));
+            assertEquals(List.of("Invoice 42", "Newsletter"), subjects(index.search("received")));
+            assertEquals(List.of("Invoice 42"), subjects(index.search("\"payment has been RECEIVED\"")));
+            assertEquals(List.of("Newsletter"), subjects(index.search("\"received payment\"")));
+            assertEquals(List.of("Invoice 43"), subjects(index.search("invoice -received")));
+            assertEquals(List.of("Invoice 43", "Newsletter"), subjects(index.search("pending OR attached")));
+            assertEquals(List.of("Newsletter"), subjects(index.search("-invoice")));
+            assertTrue(index.search("\"42 your\"").isEmpty()); //subject and body are separated
+            assertTrue(index.search("unknown").isEmpty());
+            assertTrue(index.getMemoryUsage()>0);
+
+            index.clear();
+            assertTrue(index.search("invoice").isEmpty());
+        }
+    }
+
+    private static List<String> subjects(List<SmtpMessage> messages) {
+        return messages.stream().map(SmtpMessage::getSubject).toList();
+    }
 }
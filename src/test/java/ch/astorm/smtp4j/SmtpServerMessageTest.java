@@ -1,10 +1,15 @@
 
 package ch.astorm.smtp4j;
 
+import ch.astorm.smtp4j.SmtpServerOptions.CapturePolicy;
+import ch.astorm.smtp4j.core.ContentDigest;
+import ch.astorm.smtp4j.core.DefaultSmtpMessageHandler;
+import ch.astorm.smtp4j.core.DuplicateDetector;
 import ch.astorm.smtp4j.core.SmtpAttachment;
 import ch.astorm.smtp4j.core.SmtpMessage;
 import ch.astorm.smtp4j.protocol.SmtpExchange;
 import ch.astorm.smtp4j.secure.DefaultSSLContextProvider;
+import ch.astorm.smtp4j.storage.CompressedSmtpMessageHandler;
 import ch.astorm.smtp4j.util.MimeMessageBuilder;
 import jakarta.activation.DataHandler;
 import jakarta.mail.Message.RecipientType;
@@ -20,25 +25,40 @@ import jakarta.mail.util.ByteArrayDataSource;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Properties;
+import java.util.Random;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 import org.junit.jupiter.api.AfterAll;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
-import static org.junit.jupiter.api.Assertions.fail;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 public class SmtpServerMessageTest {
     private static SmtpServer smtpServer;
@@ -267,8 +287,282 @@ public class SmtpServerMessageTest {
         try(BufferedReader reader = new BufferedReader(new InputStreamReader(attachment.openStream(), StandardCharsets.UTF_8))) { attContent = reader.readLine(); }
         assertEquals("Some content", attContent);
 
-        try { attachment.openStream(); fail("Error expected"); }
-        catch(IOException ioe) { /* ok */ }
+        try(InputStream is = attachment.openStream()) { assertArrayEquals("Some content".getBytes(StandardCharsets.US_ASCII), is.readAllBytes()); }
+        assertEquals(12, attachment.getSize());
+        assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest("Some content".getBytes(StandardCharsets.US_ASCII))), attachment.getDigest());
+    }
+
+    @Test
+    public void testDiscardedMimeMessage() throws Exception {
+        new MimeMessageBuilder(smtpServer).
+            from("info@smtp4j.local").
+            to("target@smtp4j.local").
+            subject("Parsed again").
+            body("Some body").
+            attachment("file.txt", "text/plain", new ByteArrayInputStream("Some content".getBytes(StandardCharsets.UTF_8))).
+            send();
+
+        SmtpMessage message = smtpServer.readReceivedMessages().get(0);
+        MimeMessage parsed = message.getMimeMessage();
+        assertEquals("Parsed again", message.getSubject());
+        assertSame(parsed, message.getMimeMessage());
+
+        message.discardMimeMessage();
+        assertNotSame(parsed, message.getMimeMessage());
+        assertEquals("Parsed again", message.getSubject());
+        assertEquals("Some body", message.getBody());
+
+        message.discardMimeMessage();
+        SmtpAttachment attachment = message.getAttachments().get(0);
+        message.discardMimeMessage();
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(attachment.openStream(), StandardCharsets.UTF_8))) { assertEquals("Some content", reader.readLine()); }
+    }
+
+    @Test
+    public void testStructuralIndex() throws Exception {
+        String[] contents = {
+            "Subject: Plain\r\n\r\nSimple body\r\n",
+            "Subject: No content type\r\nX-Folded: a\r\n b\r\n\r\n",
+            "Subject: Base64\r\nContent-Type: text/plain; charset=UTF-8\r\nContent-Transfer-Encoding: base64\r\n\r\nw6lsw6htZW50\r\n",
+            "Subject: Mixed\r\nContent-Type: multipart/mixed;\r\n\tboundary=\"sep\"\r\n\r\nPreamble\r\n--sep\r\n" +
+                "Content-Type: text/html; charset=ISO-8859-1\r\nContent-Transfer-Encoding: quoted-printable\r\n\r\n<p>=E9t=E9</p>\r\n--sep-not-a-delimiter\r\n" +
+                "--sep \r\nContent-Type: application/octet-stream;\r\n name=data.bin\r\nContent-Transfer-Encoding: base64\r\n\r\nAAECAw==\r\n" +
+                "--sep\r\n\r\nPart without headers\r\n--sep--\r\nEpilogue\r\n",
+            "Subject: Nested\r\nContent-Type: multipart/mixed; boundary=outer\r\n\r\n--outer\r\nContent-Type: multipart/alternative; boundary=inner\r\n\r\n" +
+                "--inner\r\nContent-Type: text/plain\r\n\r\nText\r\n--inner--\r\n--outer\r\nContent-Disposition: attachment; filename=\"a.txt\"\r\n\r\nA\r\n--outer--\r\n",
+            "Subject: Bare LF\nContent-Type: text/plain\n\nBody\n",
+        };
+
+        for(String content : contents) {
+            byte[] bytes = content.getBytes(StandardCharsets.ISO_8859_1);
+            SmtpMessage indexed = SmtpMessage.create("from@local.host", List.of("to@local.host"), bytes, List.of());
+            MimeMessage parsed = new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(bytes));
+            SmtpMessage reference = new SmtpMessage("from@local.host", List.of("to@local.host"), parsed, content, List.of());
+
+            String subject = reference.getSubject();
+            if(subject.equals("Nested")) { assertTrue(reference.getBody().startsWith("jakarta.mail.internet.MimeMultipart"), subject); }
+            else { assertEquals(reference.getBody(), indexed.getBody(), subject); }
+
+            List<SmtpAttachment> expected = reference.getAttachments();
+            List<SmtpAttachment> actual = indexed.getAttachments();
+            assertEquals(expected.size(), actual.size(), subject);
+            for(int i=0 ; i<expected.size() ; ++i) {
+                assertEquals(expected.get(i).getFilename(), actual.get(i).getFilename(), subject);
+                assertEquals(expected.get(i).getContentType(), actual.get(i).getContentType(), subject);
+                assertArrayEquals(expected.get(i).openStream().readAllBytes(), actual.get(i).openStream().readAllBytes(), subject);
+                assertEquals(expected.get(i).getDigest(), actual.get(i).getDigest(), subject);
+            }
+        }
+    }
+
+    @Test
+    public void testDecodedHeaders() throws Exception {
+        List<Runnable> decodings = new ArrayList<>();
+        try(SmtpServer server = new SmtpServerBuilder().withPort(1026).withEagerHeaderDecoding(decodings::add).start()) {
+            new MimeMessageBuilder(server).
+                from("Source <source@smtp4j.local>").
+                to("target1@smtp4j.local", "target2@smtp4j.local").
+                subject("Éléments").
+                body("Message").
+                send();
+
+            SmtpMessage message = server.readReceivedMessages().get(0);
+            assertEquals(1, decodings.size());
+            decodings.get(0).run();
+            message.discardMimeMessage();
+
+            List<String> to = message.getRecipients(RecipientType.TO);
+            assertEquals(List.of("target1@smtp4j.local", "target2@smtp4j.local"), to);
+            assertSame(to, message.getRecipients(RecipientType.TO));
+            assertThrows(UnsupportedOperationException.class, () -> to.add("other@smtp4j.local"));
+            assertTrue(message.getRecipients(RecipientType.CC).isEmpty());
+            assertEquals("Source <source@smtp4j.local>", message.getFrom());
+            assertEquals("Éléments", message.getSubject());
+
+            Date sentDate = message.getSentDate();
+            sentDate.setTime(0);
+            assertNotEquals(0, message.getSentDate().getTime());
+        }
+    }
+
+    @Test
+    public void testAttachmentDirectory(@TempDir Path attachmentDir) throws Exception {
+        byte[] binary = new byte[3*1024*1024+17];
+        new Random(42).nextBytes(binary);
+        String text = "First line\r\nSecond line with éléments\r\n";
+
+        try(SmtpServer server = new SmtpServerBuilder().withPort(1027).withAttachmentDirectory(attachmentDir).start()) {
+            new MimeMessageBuilder(server).
+                from("source@smtp4j.local").
+                to("target@smtp4j.local").
+                subject("Attachments").
+                body("Message").
+                attachment("data.bin", "application/octet-stream", new ByteArrayInputStream(binary)).
+                attachment("notes.txt", "text/plain; charset=UTF-8", new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8))).
+                send();
+
+            SmtpMessage message = server.readReceivedMessages().get(0);
+            List<SmtpAttachment> attachments = message.getAttachments();
+            assertEquals(2, attachments.size());
+            try(var files = Files.list(attachmentDir)) { assertEquals(2, files.count()); }
+
+            MimeMessage parsed;
+            try(InputStream is = message.getRawContent().openStream()) { parsed = new MimeMessage(Session.getInstance(new Properties()), is); }
+            List<SmtpAttachment> expected = new SmtpMessage("source@smtp4j.local", List.of("target@smtp4j.local"), parsed, "", List.of()).getAttachments();
+            assertEquals(expected.size(), attachments.size());
+            for(int i=0 ; i<expected.size() ; ++i) {
+                SmtpAttachment attachment = attachments.get(i);
+                assertEquals(expected.get(i).getFilename(), attachment.getFilename());
+                assertEquals(expected.get(i).getContentType(), attachment.getContentType());
+                assertArrayEquals(expected.get(i).openStream().readAllBytes(), attachment.openStream().readAllBytes());
+                assertNotNull(attachment.getPath());
+            }
+
+            SmtpAttachment data = attachments.get(0);
+            assertEquals(binary.length, data.getSize());
+            assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(binary)), data.getDigest());
+            assertEquals(expected.get(0).getDigest(), data.getDigest());
+            assertEquals(binary.length, expected.get(0).getSize());
+            try(InputStream is = data.openStream()) { assertArrayEquals(binary, is.readAllBytes()); }
+
+            Path copy = attachmentDir.resolve("copy.bin");
+            try(FileChannel channel = FileChannel.open(copy, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                assertEquals(binary.length, data.transferTo(channel));
+            }
+            assertArrayEquals(binary, Files.readAllBytes(copy));
+            assertEquals(text, new String(attachments.get(1).openStream().readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testAttachmentFilesLifetime(@TempDir Path attachmentDir) throws Exception {
+        DuplicateDetector detector = new DuplicateDetector(DuplicateDetector.BODY_HASH, DuplicateDetector.Policy.DROP, 550, 1024, DuplicateDetector.DEFAULT_FALSE_POSITIVE_RATE, null);
+        CompressedSmtpMessageHandler store = new CompressedSmtpMessageHandler(new DefaultSmtpMessageHandler(), 0, Deflater.DEFAULT_COMPRESSION, 0);
+        try(SmtpServer server = new SmtpServerBuilder().withPort(1031).withMessageHandler(store).withDuplicateDetector(detector).withAttachmentDirectory(attachmentDir).start()) {
+            for(int i=0 ; i<2 ; ++i) {
+                new MimeMessageBuilder(server).
+                    from("source@smtp4j.local").
+                    to("target@smtp4j.local").
+                    subject("Attempt "+i).
+                    body("Same body").
+                    attachment("notes.txt", "text/plain", new ByteArrayInputStream("Some notes".getBytes(StandardCharsets.US_ASCII))).
+                    send();
+            }
+
+            //the files of the dropped message are deleted right away
+            List<SmtpMessage> messages = server.readReceivedMessages();
+            assertEquals(1, messages.size());
+            try(var files = Files.list(attachmentDir)) { assertEquals(1, files.count()); }
+
+            //the compressed message keeps the attachments decoded at receive time
+            SmtpAttachment attachment = messages.get(0).getAttachments().get(0);
+            assertTrue(attachment.isTemporary());
+            assertEquals("Some notes", new String(attachment.openStream().readAllBytes(), StandardCharsets.US_ASCII));
+
+            attachment.delete();
+            assertFalse(Files.exists(attachment.getPath()));
+        }
+    }
+
+    @Test
+    public void testTruncatedBase64Attachment(@TempDir Path attachmentDir) throws Exception {
+        String content =
+            "From: source@smtp4j.local\r\n" +
+            "To: target@smtp4j.local\r\n" +
+            "Subject: Truncated\r\n" +
+            "MIME-Version: 1.0\r\n" +
+            "Content-Type: multipart/mixed; boundary=\"sep\"\r\n" +
+            "\r\n" +
+            "--sep\r\n" +
+            "Content-Type: text/plain\r\n" +
+            "\r\n" +
+            "Body\r\n" +
+            "--sep\r\n" +
+            "Content-Type: text/plain; name=notes.txt\r\n" +
+            "Content-Disposition: attachment; filename=notes.txt\r\n" +
+            "Content-Transfer-Encoding: base64\r\n" +
+            "\r\n" +
+            "U29tZSBub3Rlc\r\n";
+
+        try(SmtpServer server = new SmtpServerBuilder().withPort(1032).withAttachmentDirectory(attachmentDir).start()) {
+            //the stray character of the last part cannot be decoded when the message ends
+            MimeMessage message = new MimeMessage(server.createSession(), new ByteArrayInputStream(content.getBytes(StandardCharsets.US_ASCII))) {
+                @Override
+                public void saveChanges() { /* the content is sent as is */ }
+            };
+            Transport.send(message);
+
+            List<SmtpMessage> messages = server.readReceivedMessages();
+            assertEquals(1, messages.size());
+            assertEquals("Truncated", messages.get(0).getSubject());
+            try(var files = Files.list(attachmentDir)) { assertEquals(0, files.count()); }
+        }
+    }
+
+    @Test
+    public void testContentDigests() throws Exception {
+        try(SmtpServer server = new SmtpServerBuilder().withPort(1028).withContentDigests(ContentDigest.SHA_256, ContentDigest.CRC32C).start()) {
+            new MimeMessageBuilder(server).
+                from("source@smtp4j.local").
+                to("target@smtp4j.local").
+                subject("Digests").
+                body("First line\r\n.Dotted line\r\n\r\nLast line").
+                send();
+
+            SmtpMessage message = server.readReceivedMessages().get(0);
+            byte[] content = new byte[message.getRawContent().size()];
+            message.getRawContent().asByteBuffer().get(content);
+
+            CRC32C crc = new CRC32C();
+            crc.update(content);
+            assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content)), message.getContentDigest(ContentDigest.SHA_256));
+            assertEquals(HexFormat.of().toHexDigits((int)crc.getValue()), message.getContentDigest(ContentDigest.CRC32C));
+
+            SmtpMessage copy = SmtpMessage.create(message.getSourceFrom(), message.getSourceRecipients(), content, List.of());
+            assertEquals(message.getContentDigest(ContentDigest.SHA_256), copy.getContentDigest(ContentDigest.SHA_256));
+            assertEquals(message.getContentDigest(ContentDigest.CRC32C), copy.getContentDigest(ContentDigest.CRC32C));
+            assertEquals(message.getContentDigest(ContentDigest.SHA_256), DuplicateDetector.CONTENT_HASH.apply(copy));
+        }
+    }
+
+    @Test
+    public void testHeadersOnlyCapture() throws Exception {
+        StringBuilder body = new StringBuilder();
+        for(int i=0 ; i<1000 ; ++i) { body.append("Line ").append(i).append(" of the body\r\n"); }
+        body.append(".Last line");
+
+        SmtpMessage full;
+        try(SmtpServer server = new SmtpServerBuilder().withPort(1030).withContentDigests(ContentDigest.SHA_256).start()) {
+            new MimeMessageBuilder(server).from("source@smtp4j.local").to("target@smtp4j.local").cc("copy@smtp4j.local").subject("Headers only").body(body.toString()).send();
+            full = server.readReceivedMessages().get(0);
+        }
+
+        try(SmtpServer server = new SmtpServerBuilder().withPort(1030).withContentDigests(ContentDigest.SHA_256).withCapturePolicy(CapturePolicy.HEADERS_ONLY).start()) {
+            MimeMessage resent;
+            try(InputStream is = full.getRawContent().openStream()) {
+                resent = new MimeMessage(server.createSession(), is) {
+                    @Override
+                    public void saveChanges() { /* the exact same content is sent */ }
+                };
+            }
+            Transport.send(resent);
+
+            SmtpMessage message = server.readReceivedMessages().get(0);
+            assertTrue(message.isBodyDiscarded());
+            assertFalse(full.isBodyDiscarded());
+            assertEquals("Headers only", message.getSubject());
+            assertEquals("source@smtp4j.local", message.getFrom());
+            assertEquals(List.of("target@smtp4j.local", "copy@smtp4j.local"), message.getSourceRecipients());
+            assertNull(message.getBody());
+            assertTrue(message.getAttachments().isEmpty());
+            assertEquals(full.getBodyLength(), message.getBodyLength());
+            assertTrue(message.getRawContent().size()<1000);
+            assertTrue(message.getRawContent().size()+message.getBodyLength()>body.length());
+
+            //the digest has been computed on the whole content while it was received
+            assertEquals(full.getContentDigest(ContentDigest.SHA_256), message.getContentDigest(ContentDigest.SHA_256));
+            assertNull(message.getContentDigest(ContentDigest.CRC32C));
+        }
     }
 
     @Test
@@ -424,8 +718,9 @@ public class SmtpServerMessageTest {
         try(BufferedReader reader = new BufferedReader(new InputStreamReader(attachment.openStream(), StandardCharsets.UTF_8))) { attContent = reader.readLine(); }
         assertEquals("Some content", attContent);
 
-        try { attachment.openStream(); fail("Error expected"); }
-        catch(IOException ioe) { /* ok */ }
+        try(InputStream is = attachment.openStream()) { assertArrayEquals("Some content".getBytes(StandardCharsets.US_ASCII), is.readAllBytes()); }
+        assertEquals(12, attachment.getSize());
+        assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest("Some content".getBytes(StandardCharsets.US_ASCII))), attachment.getDigest());
     }
     
     @Test
@@ -1,15 +1,24 @@
 
 package ch.astorm.smtp4j;
 
+import ch.astorm.smtp4j.SmtpServerOptions.CapturePolicy;
+import ch.astorm.smtp4j.auth.PlainAuthenticationHandler;
 import ch.astorm.smtp4j.connection.ConnectionListener;
 import ch.astorm.smtp4j.core.DefaultSmtpMessageHandler;
 import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.core.TrafficCounters;
 import ch.astorm.smtp4j.protocol.SmtpProtocolConstants;
+import ch.astorm.smtp4j.secure.DefaultSSLContextProvider;
 import ch.astorm.smtp4j.util.MimeMessageBuilder;
 import jakarta.mail.MessagingException;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -121,6 +130,56 @@ public class SmtpServerTest {
         }
     }
     
+    @Test
+    public void testCountersOnly() throws Exception {
+        SmtpServerBuilder builder = new SmtpServerBuilder();
+        try(SmtpServer server = builder.
+            withAuthenticator(PlainAuthenticationHandler.INSTANCE).
+            withUser("jdoe", "bE5HxNrCL7,:3=yP@vta6n").
+            withSSLContextProvider(DefaultSSLContextProvider.selfSigned()).
+            withStartTLSSupport(true).
+            withCapturePolicy(CapturePolicy.COUNTERS_ONLY).
+            start()) {
+            server.addListener((srv, msg) -> { throw new IllegalStateException("No message expected"); });
+
+            String body = "Hello,\r\n.This is some content.\r\n\r\nBye.";
+            for(int i=0 ; i<5 ; ++i) {
+                new MimeMessageBuilder(server.createAuthenticatedSession("jdoe", "bE5HxNrCL7,:3=yP@vta6n")).
+                    from(i<3 ? "first@smtp4j.local" : "second@smtp4j.local").
+                    to("target@smtp4j.local").
+                    cc(i%2==0 ? "copy@smtp4j.local" : "target@smtp4j.local").
+                    subject("Counted").
+                    body(body).
+                    send();
+            }
+
+            assertTrue(server.readReceivedMessages(-1, TimeUnit.MILLISECONDS).isEmpty());
+
+            TrafficCounters counters = server.getTrafficCounters();
+            assertEquals(5, counters.getMessageCount());
+            assertEquals(10, counters.getRecipientCount());
+            assertTrue(counters.getByteCount()>5*body.length(), ""+counters.getByteCount());
+            assertEquals(Map.of("first@smtp4j.local", 3L, "second@smtp4j.local", 2L), counters.getSenderHistogram());
+            assertTrue(counters.getProcessingTime()>0);
+            assertTrue(counters.getMaxMessageRate()>0);
+            assertTrue(counters.getMaxByteRate()>counters.getMaxMessageRate());
+
+            counters.reset();
+            assertEquals(0, counters.getMessageCount());
+            assertTrue(counters.getSenderHistogram().isEmpty());
+
+            //the byte count matches the content as it would have been stored
+            String content = "Subject: Raw\r\nFrom: first@smtp4j.local\r\nTo: target@smtp4j.local\r\n\r\n.Dotted line\r\n\r\nLast line";
+            MimeMessage raw = new MimeMessage(server.createAuthenticatedSession("jdoe", "bE5HxNrCL7,:3=yP@vta6n"), new ByteArrayInputStream(content.getBytes(StandardCharsets.US_ASCII))) {
+                @Override
+                public void saveChanges() { /* sent as is */ }
+            };
+            Transport.send(raw);
+            assertEquals(1, counters.getMessageCount());
+            assertEquals(content.length(), counters.getByteCount());
+        }
+    }
+
     @Test
     public void testSimpleFirewall() throws Exception {
         SmtpServerBuilder builder = new SmtpServerBuilder();
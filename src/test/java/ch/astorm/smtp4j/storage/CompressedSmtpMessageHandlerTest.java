@@ -0,0 +1,94 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.SmtpServer;
+import ch.astorm.smtp4j.SmtpServerBuilder;
+import ch.astorm.smtp4j.core.DefaultSmtpMessageHandler;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.util.MimeMessageBuilder;
+import jakarta.mail.internet.SharedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class CompressedSmtpMessageHandlerTest {
+
+    @Test
+    public void testCompression() throws Exception {
+        byte[] report = "date;recipient;status;delay\r\n".repeat(500).getBytes(StandardCharsets.US_ASCII);
+
+        CompressedSmtpMessageHandler store = new CompressedSmtpMessageHandler();
+        try(SmtpServer server = new SmtpServerBuilder().withMessageHandler(store).start()) {
+            new MimeMessageBuilder(server).
+                from("from@local.host").
+                to("target@local.host").
+                subject("Report").
+                body("Please find the report attached").
+                attachment("report.csv", "text/csv", new ByteArrayInputStream(report)).
+                send();
+
+            new MimeMessageBuilder(server).
+                from("from@local.host").
+                to("target@local.host").
+                subject("Small").
+                body("Too small to be compressed").
+                send();
+
+            List<SmtpMessage> messages = server.readReceivedMessages();
+            assertEquals(2, messages.size());
+            assertEquals(1, store.getCompressedMessages());
+            assertTrue(store.getCompressionRatio()>3, "ratio="+store.getCompressionRatio());
+            assertEquals(messages.get(0).getRawContent().size(), store.getUncompressedBytes());
+
+            SmtpMessage message = messages.get(0);
+            assertEquals("Report", message.getSubject());
+            assertEquals("Please find the report attached", message.getBody());
+            try(InputStream is = message.getAttachments().get(0).openStream()) { assertArrayEquals(report, is.readAllBytes()); }
+            assertEquals(message.getRawContent().size(), message.getRawMimeBuffer().remaining());
+            try(InputStream is = message.getRawContent().openStream()) { assertTrue(is instanceof SharedInputStream); }
+            assertEquals("Small", messages.get(1).getSubject());
+            assertTrue(store.getDecompressionTime(TimeUnit.NANOSECONDS)>=0);
+        }
+    }
+
+    @Test
+    public void testDictionary() throws Exception {
+        CompressedSmtpMessageHandler plain = new CompressedSmtpMessageHandler(new DefaultSmtpMessageHandler(), 0, Deflater.DEFAULT_COMPRESSION, 0);
+        CompressedSmtpMessageHandler trained = new CompressedSmtpMessageHandler(new DefaultSmtpMessageHandler(), 0, Deflater.DEFAULT_COMPRESSION, 4);
+        plain.notifyStart(null);
+        trained.notifyStart(null);
+
+        for(int i=0 ; i<20 ; ++i) {
+            byte[] content = message(i);
+            plain.notifyMessage(null, SmtpMessage.create("from@local.host", List.of("to@local.host"), content, List.of()));
+            trained.notifyMessage(null, SmtpMessage.create("from@local.host", List.of("to@local.host"), content, List.of()));
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> new CompressedSmtpMessageHandler(new DefaultSmtpMessageHandler(), 0, Deflater.DEFAULT_COMPRESSION, CompressedSmtpMessageHandler.DICTIONARY_SIZE+1));
+        assertFalse(plain.hasDictionary());
+        assertTrue(trained.hasDictionary());
+        assertTrue(trained.getCompressedBytes()<plain.getCompressedBytes(), "trained="+trained.getCompressedBytes()+", plain="+plain.getCompressedBytes());
+
+        List<SmtpMessage> messages = trained.readMessages(-1, TimeUnit.SECONDS);
+        for(int i=0 ; i<20 ; ++i) {
+            assertEquals(new String(message(i), StandardCharsets.US_ASCII), messages.get(i).getRawMimeContent());
+            assertEquals("Notification "+i, messages.get(i).getSubject());
+        }
+    }
+
+    private static byte[] message(int index) {
+        String content = "Subject: Notification "+index+"\r\n"+
+                         "Content-Type: text/plain; charset=us-ascii\r\n"+
+                         "X-Campaign: spring-sales\r\n\r\n"+
+                         "Hello customer "+index+", your order has been shipped and will be delivered within three days.";
+        return content.getBytes(StandardCharsets.US_ASCII);
+    }
+}
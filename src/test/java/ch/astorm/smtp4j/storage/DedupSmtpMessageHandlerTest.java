@@ -0,0 +1,81 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.SmtpServer;
+import ch.astorm.smtp4j.SmtpServerBuilder;
+import ch.astorm.smtp4j.core.SmtpAttachment;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.util.MimeMessageBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class DedupSmtpMessageHandlerTest {
+
+    @Test
+    public void testDeduplication() throws Exception {
+        byte[] template = new byte[32*1024];
+        for(int i=0 ; i<template.length ; ++i) { template[i] = (byte)(i*31); }
+        String body = "Dear customer,\r\n"+"This is the template of our campaign.\r\n".repeat(64);
+
+        DedupSmtpMessageHandler store = new DedupSmtpMessageHandler();
+        try(SmtpServer server = new SmtpServerBuilder().withMessageHandler(store).start()) {
+            for(int i=0 ; i<20 ; ++i) {
+                new MimeMessageBuilder(server).
+                    from("from@local.host").
+                    to("target"+i+"@local.host").
+                    subject("Campaign "+i).
+                    body(body).
+                    attachment("template.bin", "application/octet-stream", new ByteArrayInputStream(template)).
+                    send();
+            }
+
+            List<SmtpMessage> messages = server.readReceivedMessages();
+            assertEquals(20, messages.size());
+            assertEquals(2, store.getSharedSegmentCount());
+            assertTrue(store.getStoredBytes()*5<store.getLogicalBytes(), "stored="+store.getStoredBytes()+", logical="+store.getLogicalBytes());
+
+            for(int i=0 ; i<20 ; ++i) {
+                SmtpMessage message = messages.get(i);
+                assertEquals("Campaign "+i, message.getSubject());
+                assertEquals(body, message.getBody());
+                assertEquals(message.getRawContent().size(), message.getRawMimeContent().getBytes(StandardCharsets.UTF_8).length);
+
+                //the contiguous copy is cached but every call returns an independent view
+                ByteBuffer first = message.getRawContent().asByteBuffer();
+                first.position(first.limit());
+                ByteBuffer second = message.getRawContent().asByteBuffer();
+                assertEquals(message.getRawContent().size(), second.remaining());
+                assertEquals(first.rewind(), second);
+
+                List<SmtpAttachment> attachments = message.getAttachments();
+                assertEquals(1, attachments.size());
+                try(InputStream is = attachments.get(0).openStream()) { assertArrayEquals(template, is.readAllBytes()); }
+            }
+        }
+    }
+
+    @Test
+    public void testSimpleMessage() throws Exception {
+        DedupSmtpMessageHandler store = new DedupSmtpMessageHandler();
+        try(SmtpServer server = new SmtpServerBuilder().withMessageHandler(store).start()) {
+            new MimeMessageBuilder(server).
+                from("from@local.host").
+                to("target@local.host").
+                subject("Simple").
+                body("Not a multipart message").
+                send();
+
+            SmtpMessage message = server.readReceivedMessages().get(0);
+            assertEquals("Simple", message.getSubject());
+            assertEquals("Not a multipart message", message.getBody());
+            assertEquals(0, store.getSharedSegmentCount());
+            assertEquals(store.getLogicalBytes(), store.getStoredBytes());
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.SmtpServer;
+import ch.astorm.smtp4j.SmtpServerBuilder;
+import ch.astorm.smtp4j.core.DefaultSmtpMessageHandler;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.storage.JournalSmtpMessageHandler.AckMode;
+import ch.astorm.smtp4j.util.MimeMessageBuilder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class JournalSmtpMessageHandlerTest {
+
+    @TempDir
+    Path journalDir;
+
+    @Test
+    public void testReplay() throws Exception {
+        JournalSmtpMessageHandler journal = new JournalSmtpMessageHandler(journalDir, new DefaultSmtpMessageHandler(), AckMode.DURABLE, true, 1024);
+        List<SmtpMessage> sent;
+        try(SmtpServer server = new SmtpServerBuilder().withMessageHandler(journal).start()) {
+            for(int i=0 ; i<5 ; ++i) {
+                new MimeMessageBuilder(server).
+                    from("from@local.host").
+                    to("target@local.host").
+                    bcc("hidden@local.host").
+                    subject("Message "+i).
+                    body("Content of message "+i).
+                    send();
+            }
+            sent = server.readReceivedMessages();
+        }
+
+        assertEquals(5, sent.size());
+        assertEquals(5, journal.getRecordCount());
+        try(var files = Files.list(journalDir)) { assertTrue(files.count()>1); }
+
+        //simulates a crash during a write
+        Path lastSegment;
+        try(var files = Files.list(journalDir)) { lastSegment = files.sorted().reduce((a, b) -> b).get(); }
+        Files.write(lastSegment, new byte[] { 0, 0, 1, 0, 42 }, StandardOpenOption.APPEND);
+
+        JournalSmtpMessageHandler restarted = new JournalSmtpMessageHandler(journalDir, new DefaultSmtpMessageHandler(), AckMode.DURABLE, true, 1024);
+        try(SmtpServer server = new SmtpServerBuilder().withMessageHandler(restarted).start()) {
+            List<SmtpMessage> replayed = server.readReceivedMessages();
+            assertEquals(5, replayed.size());
+            for(int i=0 ; i<5 ; ++i) {
+                SmtpMessage original = sent.get(i);
+                SmtpMessage message = replayed.get(i);
+                assertEquals("Message "+i, message.getSubject());
+                assertEquals("Content of message "+i, message.getBody());
+                assertEquals(original.getSourceFrom(), message.getSourceFrom());
+                assertEquals(List.of("target@local.host", "hidden@local.host"), message.getSourceRecipients());
+                assertEquals(original.getReceivedDate(), message.getReceivedDate());
+                assertEquals(original.getRawMimeContent(), message.getRawMimeContent());
+                assertEquals(original.getSmtpExchanges().size(), message.getSmtpExchanges().size());
+                assertEquals(original.getSmtpExchanges().get(0).getRepliedData(), message.getSmtpExchanges().get(0).getRepliedData());
+            }
+
+            //new messages are appended after the replayed ones
+            new MimeMessageBuilder(server).
+                from("from@local.host").
+                to("target@local.host").
+                subject("Message 5").
+                body("After restart").
+                send();
+            assertEquals("Message 5", server.readReceivedMessages().get(0).getSubject());
+        }
+
+        JournalSmtpMessageHandler third = new JournalSmtpMessageHandler(journalDir);
+        try(SmtpServer server = new SmtpServerBuilder().withMessageHandler(third).start()) {
+            assertEquals(6, server.readReceivedMessages().size());
+        }
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        int nbMessages = 40;
+        JournalSmtpMessageHandler journal = new JournalSmtpMessageHandler(journalDir);
+        ExecutorService service = Executors.newFixedThreadPool(8);
+        try(SmtpServer server = new SmtpServerBuilder().withMessageHandler(journal).start()) {
+            List<Future<Void>> senders = new ArrayList<>(nbMessages);
+            for(int i=0 ; i<nbMessages ; ++i) {
+                int idx = i;
+                senders.add(service.submit(() -> {
+                    new MimeMessageBuilder(server).
+                        from("from@local.host").
+                        to("target@local.host").
+                        subject("Message "+idx).
+                        body("Some content").
+                        send();
+                    return null;
+                }));
+            }
+            for(Future<Void> sender : senders) { sender.get(); }
+
+            assertEquals(nbMessages, server.readReceivedMessages().size());
+        } finally {
+            service.shutdown();
+        }
+
+        assertEquals(nbMessages, journal.getRecordCount());
+        assertTrue(journal.getSyncCount()<=nbMessages);
+        assertFalse(journal.getSyncCount()==0);
+    }
+
+    @Test
+    public void testAppendWhileClosing() throws Exception {
+        JournalSmtpMessageHandler journal = new JournalSmtpMessageHandler(journalDir);
+        SmtpMessage message = SmtpMessage.create("from@local.host", List.of("target@local.host"), "Subject: Closing\r\n\r\nBody".getBytes(StandardCharsets.US_ASCII), List.of());
+        ExecutorService service = Executors.newFixedThreadPool(4);
+        try {
+            journal.notifyStart(null);
+            List<Future<Void>> senders = new ArrayList<>();
+            for(int i=0 ; i<200 ; ++i) {
+                senders.add(service.submit(() -> {
+                    try { journal.notifyMessage(null, message); }
+                    catch(IllegalStateException ise) { /* journal closed */ }
+                    return null;
+                }));
+            }
+            journal.notifyClose(null);
+
+            //no transaction waits forever for a record that will never be written
+            for(Future<Void> sender : senders) { sender.get(10, TimeUnit.SECONDS); }
+        } finally {
+            service.shutdown();
+        }
+    }
+}
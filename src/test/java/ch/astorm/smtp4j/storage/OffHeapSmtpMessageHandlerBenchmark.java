@@ -0,0 +1,57 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.core.DefaultSmtpMessageHandler;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.core.SmtpMessageHandler;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static ch.astorm.smtp4j.util.HeapUsage.usedHeap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares the heap retained by the off-heap store with the default one.
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+public class OffHeapSmtpMessageHandlerBenchmark {
+
+    @Test
+    public void benchmarkHeapUsage() throws Exception {
+        int nbMessages = 2000;
+        byte[] body = new byte[16*1024];
+        for(int i=0 ; i<body.length ; ++i) { body[i] = (byte)('a'+(i%26)); }
+
+        long defaultHeap = heapUsage(new DefaultSmtpMessageHandler(), nbMessages, body);
+        long offHeap = heapUsage(new OffHeapSmtpMessageHandler(), nbMessages, body);
+        System.out.println("Retained heap for "+nbMessages+" messages of "+body.length+" bytes: default="+(defaultHeap/1024)+"KB, off-heap="+(offHeap/1024)+"KB");
+    }
+
+    private static long heapUsage(SmtpMessageHandler store, int nbMessages, byte[] body) throws Exception {
+        store.notifyStart(null);
+        long before = usedHeap();
+        long gcBefore = gcTime();
+        long start = System.nanoTime();
+
+        for(int i=0 ; i<nbMessages ; ++i) {
+            byte[] content = ("Subject: Message "+i+"\r\n\r\n"+new String(body, StandardCharsets.US_ASCII)).getBytes(StandardCharsets.US_ASCII);
+            store.notifyMessage(null, SmtpMessage.create("from@local.host", List.of("to@local.host"), content, List.of()));
+        }
+
+        long elapsed = System.nanoTime()-start;
+        long retained = usedHeap()-before;
+        System.out.println(store.getClass().getSimpleName()+": "+TimeUnit.NANOSECONDS.toMillis(elapsed)+"ms to store, "+(gcTime()-gcBefore)+"ms of GC");
+
+        List<SmtpMessage> messages = store.readMessages(-1, TimeUnit.SECONDS);
+        assertEquals(nbMessages, messages.size());
+        return retained;
+    }
+
+    private static long gcTime() {
+        long total = 0;
+        for(GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) { total += Math.max(0, bean.getCollectionTime()); }
+        return total;
+    }
+}
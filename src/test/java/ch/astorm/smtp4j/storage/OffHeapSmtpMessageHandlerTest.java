@@ -0,0 +1,69 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.SmtpServer;
+import ch.astorm.smtp4j.SmtpServerBuilder;
+import ch.astorm.smtp4j.core.DefaultSmtpMessageHandler;
+import ch.astorm.smtp4j.core.SmtpAttachment;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.util.MimeMessageBuilder;
+import jakarta.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class OffHeapSmtpMessageHandlerTest {
+
+    @Test
+    public void testOffHeapStorage() throws Exception {
+        OffHeapSmtpMessageHandler store = new OffHeapSmtpMessageHandler(new DefaultSmtpMessageHandler(), 64*1024);
+        try(SmtpServer server = new SmtpServerBuilder().withMessageHandler(store).start()) {
+            new MimeMessageBuilder(server).
+                from("from@local.host").
+                to("target@local.host").
+                subject("Off-heap").
+                body("Some content stored outside of the heap").
+                attachment("data.txt", "text/plain", new ByteArrayInputStream("attached".getBytes(StandardCharsets.UTF_8))).
+                send();
+
+            List<SmtpMessage> messages = server.readReceivedMessages();
+            assertEquals(1, messages.size());
+            assertTrue(store.getAllocatedBytes()>0);
+
+            SmtpMessage message = messages.get(0);
+            assertFalse(message.getRawMimeBuffer().isDirect());
+            assertEquals("Off-heap", message.getSubject());
+            assertEquals("Some content stored outside of the heap", message.getBody());
+            SmtpAttachment attachment = message.getAttachments().get(0);
+            assertEquals("data.txt", attachment.getFilename());
+            assertEquals("attached", new String(attachment.openStream().readAllBytes(), StandardCharsets.UTF_8));
+
+            //the message reads the off-heap memory in place and copies it once for the raw buffer
+            assertTrue(message.getRawContent().read(ByteBuffer::isDirect));
+            assertEquals(message.getRawMimeBuffer(), message.getRawMimeBuffer());
+
+            MimeMessage mimeMessage = message.getMimeMessage();
+            InputStream stream = message.getRawContent().openStream();
+            assertTrue(stream.read()>0);
+
+            assertTrue(store.release(message));
+            assertFalse(store.release(message));
+            assertEquals(0, store.getAllocatedBytes());
+            assertThrows(IllegalStateException.class, () -> message.getRawMimeBuffer());
+            assertThrows(IllegalStateException.class, () -> message.getBody());
+            assertThrows(IllegalStateException.class, () -> attachment.openStream());
+
+            //the views opened before the release must not read the memory once it is reused
+            store.notifyMessage(null, SmtpMessage.create("from@local.host", List.of("to@local.host"), "Subject: Other\r\n\r\nOther".getBytes(StandardCharsets.US_ASCII), List.of()));
+            assertThrows(IOException.class, () -> stream.read());
+            assertThrows(IOException.class, () -> mimeMessage.getRawInputStream().read());
+        }
+    }
+}
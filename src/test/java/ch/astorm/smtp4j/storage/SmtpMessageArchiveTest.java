@@ -0,0 +1,67 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.SmtpServer;
+import ch.astorm.smtp4j.SmtpServerBuilder;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.storage.SmtpMessageArchive.Entry;
+import ch.astorm.smtp4j.util.MimeMessageBuilder;
+import java.nio.file.Path;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SmtpMessageArchiveTest {
+
+    @TempDir
+    Path archiveDir;
+
+    @Test
+    public void testArchive() throws Exception {
+        Path archivePath = archiveDir.resolve("capture");
+        List<SmtpMessage> received;
+        try(SmtpMessageArchiveWriter writer = new SmtpMessageArchiveWriter(archivePath);
+            SmtpServer server = new SmtpServerBuilder().withListener(writer).start()) {
+            for(int i=0 ; i<10 ; ++i) {
+                new MimeMessageBuilder(server).
+                    from("from@local.host").
+                    to("user"+(i%3)+"@local.host").
+                    subject("Message "+i).
+                    body("Content "+i).
+                    send();
+            }
+            received = server.readReceivedMessages();
+        }
+
+        SmtpMessageArchive archive = SmtpMessageArchive.open(archivePath);
+        assertEquals(10, archive.size());
+
+        for(int i=9 ; i>=0 ; --i) {
+            Entry entry = archive.getEntry(i);
+            assertEquals(i, entry.id());
+            assertEquals(received.get(i).getReceivedDate().getTime(), entry.receivedTime());
+
+            SmtpMessage message = archive.getMessage(i);
+            assertEquals("user"+(i%3)+"@local.host", message.getSourceRecipients().get(0));
+            assertEquals(received.get(i).getRawMimeBuffer(), message.getRawMimeBuffer());
+            assertEquals("Message "+i, message.getSubject());
+            assertEquals("Content "+i, message.getBody());
+        }
+
+        List<SmtpMessage> user1 = archive.findByRecipient("USER1@local.host");
+        assertEquals(3, user1.size());
+        assertEquals("Message 7", user1.get(2).getSubject());
+        assertThrows(IndexOutOfBoundsException.class, () -> archive.getEntry(10));
+
+        //append to the existing archive
+        try(SmtpMessageArchiveWriter writer = new SmtpMessageArchiveWriter(archivePath)) {
+            assertEquals(10, writer.append(received.get(0)));
+        }
+
+        SmtpMessageArchive reopened = SmtpMessageArchive.open(archivePath);
+        assertEquals(11, reopened.size());
+        assertEquals("Message 0", reopened.getMessage(10).getSubject());
+        assertEquals(10, archive.size());
+    }
+}
@@ -0,0 +1,72 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.core.SmtpMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static ch.astorm.smtp4j.storage.SmtpMessageCodecTest.messages;
+import static ch.astorm.smtp4j.storage.SmtpMessageCodecTest.toJson;
+import static ch.astorm.smtp4j.storage.SmtpMessageCodecTest.toMap;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares the size and the speed of the codec with the Java serialization and JSON.
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+public class SmtpMessageCodecBenchmark {
+
+    @Test
+    public void benchmarkRoundTrip() throws Exception {
+        List<SmtpMessage> messages = messages(2000);
+
+        SmtpMessageCodec codec = new SmtpMessageCodec();
+        long codecSize = 0;
+        long start = System.nanoTime();
+        for(int r=0 ; r<5 ; ++r) {
+            codecSize = 0;
+            for(SmtpMessage message : messages) {
+                ByteBuffer encoded = codec.encode(message);
+                codecSize += encoded.remaining();
+                codec.decode(encoded);
+            }
+        }
+        long codecTime = System.nanoTime()-start;
+
+        long serializationSize = 0;
+        start = System.nanoTime();
+        for(int r=0 ; r<5 ; ++r) {
+            serializationSize = 0;
+            for(SmtpMessage message : messages) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                try(ObjectOutputStream out = new ObjectOutputStream(baos)) { out.writeObject(toMap(message)); }
+                serializationSize += baos.size();
+                try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()))) { in.readObject(); }
+            }
+        }
+        long serializationTime = System.nanoTime()-start;
+
+        long jsonSize = 0;
+        start = System.nanoTime();
+        for(int r=0 ; r<5 ; ++r) {
+            jsonSize = 0;
+            for(SmtpMessage message : messages) {
+                byte[] json = toJson(message).getBytes(StandardCharsets.UTF_8);
+                jsonSize += json.length;
+                String str = new String(json, StandardCharsets.UTF_8);
+                int rawStart = str.indexOf("\"raw\":\"")+7;
+                Base64.getDecoder().decode(str.substring(rawStart, str.indexOf('"', rawStart)));
+            }
+        }
+        long jsonTime = System.nanoTime()-start;
+
+        System.out.println("Codec: "+codecSize+" bytes, "+TimeUnit.NANOSECONDS.toMillis(codecTime)+"ms");
+        System.out.println("Java serialization: "+serializationSize+" bytes, "+TimeUnit.NANOSECONDS.toMillis(serializationTime)+"ms");
+        System.out.println("JSON: "+jsonSize+" bytes, "+TimeUnit.NANOSECONDS.toMillis(jsonTime)+"ms");
+    }
+}
@@ -0,0 +1,213 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.SmtpServer;
+import ch.astorm.smtp4j.SmtpServerBuilder;
+import ch.astorm.smtp4j.core.ContentDigest;
+import ch.astorm.smtp4j.core.DkimResult;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.core.SmtpMessage.ReceiveDetails;
+import ch.astorm.smtp4j.core.SmtpMessageContent;
+import ch.astorm.smtp4j.protocol.SmtpExchange;
+import ch.astorm.smtp4j.util.MimeMessageBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SmtpMessageCodecTest {
+
+    @TempDir
+    Path codecDir;
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        List<SmtpMessage> received;
+        try(SmtpServer server = new SmtpServerBuilder().withPort(1029).start()) {
+            for(int i=0 ; i<5 ; ++i) {
+                new MimeMessageBuilder(server).
+                    from("from@local.host").
+                    to("user"+i+"@local.host", "copy@local.host").
+                    subject("Message "+i).
+                    body("Content "+i).
+                    send();
+            }
+            received = server.readReceivedMessages();
+        }
+
+        SmtpMessageCodec codec = new SmtpMessageCodec();
+        ByteBuffer buffer = ByteBuffer.allocate(64*1024);
+        for(SmtpMessage message : received) { codec.encode(message, buffer); }
+        buffer.flip();
+        for(SmtpMessage message : received) { assertEqualMessages(message, codec.decode(buffer), true); }
+        assertEquals(0, buffer.remaining());
+
+        Path file = codecDir.resolve("messages.bin");
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for(SmtpMessage message : received) { assertEquals(codec.encode(message).remaining(), codec.write(message, channel)); }
+        }
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for(SmtpMessage message : received) { assertEqualMessages(message, codec.read(channel), true); }
+            assertNull(codec.read(channel));
+        }
+
+        SmtpMessageCodec envelopeOnly = new SmtpMessageCodec(false, false);
+        SmtpMessage decoded = envelopeOnly.decode(envelopeOnly.encode(received.get(0)));
+        assertEqualMessages(received.get(0), decoded, false);
+        assertNull(decoded.getReceivedDate());
+        assertTrue(decoded.getSmtpExchanges().isEmpty());
+
+        //truncated channel and unknown version
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) { channel.truncate(channel.size()-3); }
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for(int i=0 ; i<received.size()-1 ; ++i) { codec.read(channel); }
+            assertThrows(EOFException.class, () -> codec.read(channel));
+        }
+
+        ByteBuffer invalid = codec.encode(received.get(0));
+        invalid.put(0, (byte)(SmtpMessageCodec.VERSION+1));
+        assertThrows(IllegalStateException.class, () -> codec.decode(invalid));
+    }
+
+    @Test
+    public void testReceiveDetails() throws Exception {
+        DkimResult dkimResult = new DkimResult(DkimResult.Status.PASS, "local.host", "sel", null);
+        ReceiveDetails details = new ReceiveDetails(null, Map.of(ContentDigest.SHA_256, "digest"), 42, dkimResult, true);
+        byte[] headers = "Subject: Headers only".getBytes(StandardCharsets.US_ASCII);
+        SmtpMessage message = SmtpMessage.create("from@local.host", List.of("to@local.host"), headers, List.of(), new Date(), details);
+
+        SmtpMessage decoded = new SmtpMessageCodec().decode(new SmtpMessageCodec().encode(message));
+        assertTrue(decoded.isBodyDiscarded());
+        assertEquals(42, decoded.getBodyLength());
+        assertEquals("digest", decoded.getContentDigest(ContentDigest.SHA_256));
+        assertEquals(dkimResult, decoded.getDkimResult());
+        assertTrue(decoded.isDuplicate());
+
+        //the persistent stores keep the same state
+        SmtpMessage record = MessageRecords.decode(MessageRecords.encode(message, false));
+        assertEquals(message.getReceiveDetails(), record.getReceiveDetails());
+
+        SmtpMessage envelopeOnly = new SmtpMessageCodec(true, true).decode(new SmtpMessageCodec(true, true).encode(message));
+        assertFalse(envelopeOnly.isBodyDiscarded());
+        assertNull(envelopeOnly.getDkimResult());
+        assertFalse(envelopeOnly.isDuplicate());
+    }
+
+    @Test
+    public void testEncodedSize() throws Exception {
+        SmtpMessageCodec codec = new SmtpMessageCodec();
+        long codecSize = 0;
+        long serializationSize = 0;
+        long jsonSize = 0;
+        for(SmtpMessage message : messages(100)) {
+            codecSize += codec.encode(message).remaining();
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try(ObjectOutputStream out = new ObjectOutputStream(baos)) { out.writeObject(toMap(message)); }
+            serializationSize += baos.size();
+            jsonSize += toJson(message).getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        assertTrue(codecSize<serializationSize, "codec="+codecSize+", serialization="+serializationSize);
+        assertTrue(codecSize<jsonSize, "codec="+codecSize+", json="+jsonSize);
+    }
+
+    @Test
+    public void testMaxRecordSize() throws Exception {
+        SmtpMessage message = messages(1).get(0);
+        SmtpMessageCodec codec = new SmtpMessageCodec(true, true, true, 64);
+        assertThrows(IllegalArgumentException.class, () -> codec.encode(message));
+
+        //a frame announcing a huge record is rejected before any allocation
+        ByteBuffer frame = new SmtpMessageCodec().encode(message);
+        assertThrows(IllegalStateException.class, () -> codec.decode(frame.duplicate()));
+
+        ByteBuffer header = ByteBuffer.allocate(SmtpMessageCodec.FRAME_HEADER_SIZE).put((byte)SmtpMessageCodec.VERSION).putInt(Integer.MAX_VALUE).flip();
+        IOException ioe = assertThrows(IOException.class, () -> new SmtpMessageCodec().read(Channels.newChannel(new ByteArrayInputStream(header.array()))));
+        assertTrue(ioe.getMessage().contains("Invalid record length"), ioe.getMessage());
+    }
+
+    static List<SmtpMessage> messages(int count) {
+        List<SmtpMessage> messages = new ArrayList<>(count);
+        for(int i=0 ; i<count ; ++i) {
+            byte[] content = ("From: from@local.host\r\nTo: to@local.host\r\nSubject: Message "+i+"\r\n\r\nContent of the message "+i).getBytes(StandardCharsets.US_ASCII);
+            List<SmtpExchange> exchanges = List.of(new SmtpExchange(List.of("MAIL FROM:<from@local.host>"), "250 OK"), new SmtpExchange(List.of("RCPT TO:<to@local.host>"), "250 OK"));
+            messages.add(new SmtpMessage("from@local.host", List.of("to@local.host"), SmtpMessageContent.of(content), exchanges, new Date()));
+        }
+        return messages;
+    }
+
+    private static void assertEqualMessages(SmtpMessage expected, SmtpMessage actual, boolean withMetadata) {
+        assertEquals(expected.getSourceFrom(), actual.getSourceFrom());
+        assertEquals(expected.getSourceRecipients(), actual.getSourceRecipients());
+        assertEquals(expected.getRawMimeBuffer(), actual.getRawMimeBuffer());
+        assertEquals(expected.getSubject(), actual.getSubject());
+        if(withMetadata) {
+            assertEquals(expected.getReceivedDate(), actual.getReceivedDate());
+            assertEquals(expected.getSmtpExchanges().size(), actual.getSmtpExchanges().size());
+            for(int i=0 ; i<expected.getSmtpExchanges().size() ; ++i) {
+                assertEquals(expected.getSmtpExchanges().get(i).getReceivedData(), actual.getSmtpExchanges().get(i).getReceivedData());
+                assertEquals(expected.getSmtpExchanges().get(i).getRepliedData(), actual.getSmtpExchanges().get(i).getRepliedData());
+            }
+        }
+    }
+
+    static Map<String, Object> toMap(SmtpMessage message) {
+        List<List<String>> exchanges = new ArrayList<>();
+        for(SmtpExchange exchange : message.getSmtpExchanges()) {
+            List<String> data = new ArrayList<>(exchange.getReceivedData());
+            data.add(exchange.getRepliedData());
+            exchanges.add(data);
+        }
+
+        ByteBuffer raw = message.getRawMimeBuffer();
+        byte[] bytes = new byte[raw.remaining()];
+        raw.get(bytes);
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("from", message.getSourceFrom());
+        map.put("recipients", new ArrayList<>(message.getSourceRecipients()));
+        map.put("received", message.getReceivedDate());
+        map.put("raw", bytes);
+        map.put("exchanges", exchanges);
+        return map;
+    }
+
+    static String toJson(SmtpMessage message) {
+        ByteBuffer raw = message.getRawMimeBuffer();
+        byte[] bytes = new byte[raw.remaining()];
+        raw.get(bytes);
+
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"from\":\"").append(message.getSourceFrom()).append("\",\"recipients\":[");
+        for(int i=0 ; i<message.getSourceRecipients().size() ; ++i) { json.append(i>0 ? ",\"" : "\"").append(message.getSourceRecipients().get(i)).append('"'); }
+        json.append("],\"received\":").append(message.getReceivedDate().getTime()).append(",\"exchanges\":[");
+        for(int i=0 ; i<message.getSmtpExchanges().size() ; ++i) {
+            SmtpExchange exchange = message.getSmtpExchanges().get(i);
+            json.append(i>0 ? ",{" : "{").append("\"received\":[");
+            for(int j=0 ; j<exchange.getReceivedData().size() ; ++j) { json.append(j>0 ? ",\"" : "\"").append(exchange.getReceivedData().get(j)).append('"'); }
+            json.append("],\"replied\":\"").append(exchange.getRepliedData()).append("\"}");
+        }
+        json.append("],\"raw\":\"").append(Base64.getEncoder().encodeToString(bytes)).append("\"}");
+        return json.toString();
+    }
+}
@@ -0,0 +1,93 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.storage.SmtpMessageExporter.Format;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SmtpMessageExporterTest {
+
+    @TempDir
+    Path exportDir;
+
+    @Test
+    public void testEml() throws Exception {
+        List<SmtpMessage> messages = messages(0, 20);
+        SmtpMessageExporter exporter = new SmtpMessageExporter(exportDir.resolve("eml"), Format.EML, 4);
+        assertEquals(20, exporter.export(messages, 0));
+
+        for(int i=0 ; i<messages.size() ; ++i) {
+            byte[] content = Files.readAllBytes(exportDir.resolve("eml").resolve(String.format("message-%010d.eml", i)));
+            assertArrayEquals(messages.get(i).getRawMimeContent().getBytes(StandardCharsets.UTF_8), content);
+        }
+
+        //incremental export of the messages received since the 15th one
+        Date since = messages.get(15).getReceivedDate();
+        List<SmtpMessage> more = new ArrayList<>(messages);
+        more.addAll(messages(20, 5));
+        assertEquals(25, exporter.export(more, 0, since));
+        try(Stream<Path> files = Files.list(exportDir.resolve("eml"))) { assertEquals(25, files.count()); }
+    }
+
+    @Test
+    public void testMbox() throws Exception {
+        Path mbox = exportDir.resolve("capture.mbox");
+        SmtpMessageExporter exporter = new SmtpMessageExporter(mbox, Format.MBOX);
+        long next = exporter.export(messages(0, 2), 0);
+        exporter.export(messages(2, 1), next);
+
+        String content = Files.readString(mbox, StandardCharsets.US_ASCII);
+        assertEquals(3, content.split("(?m)^From from@local\\.host ", -1).length-1);
+        assertTrue(content.contains("\n>From the body 1\r\n"), content);
+        assertTrue(content.contains("\n>>From quoted 2\r\n"), content);
+        assertTrue(content.endsWith("Done 2\r\n\n"), content);
+    }
+
+    @Test
+    public void testMaildir() throws Exception {
+        Path maildir = exportDir.resolve("maildir");
+        SmtpMessageExporter exporter = new SmtpMessageExporter(maildir, Format.MAILDIR, 2);
+        exporter.export(messages(0, 10), 100);
+
+        try(Stream<Path> files = Files.list(maildir.resolve("new"))) {
+            List<Path> delivered = files.toList();
+            assertEquals(10, delivered.size());
+            assertTrue(delivered.stream().anyMatch(p -> p.getFileName().toString().contains("Q109.")));
+        }
+        try(Stream<Path> files = Files.list(maildir.resolve("tmp"))) { assertEquals(0, files.count()); }
+        assertTrue(Files.isDirectory(maildir.resolve("cur")));
+    }
+
+    @Test
+    public void testArchive() throws Exception {
+        Path archivePath = exportDir.resolve("archive");
+        try(SmtpMessageArchiveWriter writer = new SmtpMessageArchiveWriter(archivePath)) {
+            for(SmtpMessage message : messages(0, 8)) { writer.append(message); }
+        }
+
+        SmtpMessageArchive archive = SmtpMessageArchive.open(archivePath);
+        SmtpMessageExporter exporter = new SmtpMessageExporter(exportDir.resolve("eml"), Format.EML);
+        assertEquals(8, exporter.export(archive, 5));
+        try(Stream<Path> files = Files.list(exportDir.resolve("eml"))) { assertEquals(3, files.count()); }
+        assertEquals(archive.getMessage(6).getRawMimeContent(), Files.readString(exportDir.resolve("eml").resolve("message-0000000006.eml")));
+    }
+
+    private static List<SmtpMessage> messages(int first, int count) {
+        List<SmtpMessage> messages = new ArrayList<>(count);
+        for(int i=first ; i<first+count ; ++i) {
+            String content = "Subject: Message "+i+"\r\n\r\nFrom the body "+i+"\r\n>From quoted "+i+"\r\nDone "+i+"\r\n";
+            messages.add(SmtpMessage.create("from@local.host", List.of("to@local.host"), content.getBytes(StandardCharsets.US_ASCII), List.of(), new Date(1_700_000_000_000L+i*1000L)));
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,115 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.SmtpServer;
+import ch.astorm.smtp4j.SmtpServerBuilder;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.util.MimeMessageBuilder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SmtpMessageRingTest {
+
+    @TempDir
+    Path ringDir;
+
+    @Test
+    public void testRing() throws Exception {
+        Path ringPath = ringDir.resolve("smtp4j.ring");
+        try(SmtpMessageRingWriter writer = new SmtpMessageRingWriter(ringPath, 16, 64*1024);
+            SmtpServer server = new SmtpServerBuilder().withListener(writer).start()) {
+            SmtpMessageRing reader = SmtpMessageRing.open(ringPath);
+            assertNull(reader.poll());
+
+            for(int i=0 ; i<5 ; ++i) {
+                new MimeMessageBuilder(server).
+                    from("from@local.host").
+                    to("target@local.host").
+                    subject("Message "+i).
+                    body("Content "+i).
+                    send();
+            }
+
+            List<SmtpMessage> messages = reader.readMessages();
+            assertEquals(5, messages.size());
+            assertEquals("Message 3", messages.get(3).getSubject());
+            assertEquals("Content 3", messages.get(3).getBody());
+            assertEquals(List.of("target@local.host"), messages.get(3).getSourceRecipients());
+            assertEquals(5, reader.getPosition());
+
+            //a late reader can start from any available sequence
+            SmtpMessageRing late = SmtpMessageRing.open(ringPath, 4);
+            assertEquals("Message 4", late.readMessage(1, TimeUnit.SECONDS).getSubject());
+            assertNull(late.readMessage(10, TimeUnit.MILLISECONDS));
+        }
+
+        //the writer continues after the existing messages
+        try(SmtpMessageRingWriter writer = new SmtpMessageRingWriter(ringPath, 16, 64*1024)) {
+            assertEquals(5, writer.append(message(5, 10)));
+        }
+        assertThrows(Exception.class, () -> new SmtpMessageRingWriter(ringPath, 32, 64*1024));
+    }
+
+    @Test
+    public void testOverwrite() throws Exception {
+        Path ringPath = ringDir.resolve("small.ring");
+        try(SmtpMessageRingWriter writer = new SmtpMessageRingWriter(ringPath, 4, 4096)) {
+            SmtpMessageRing reader = SmtpMessageRing.open(ringPath);
+            for(int i=0 ; i<10 ; ++i) { writer.append(message(i, 10)); }
+
+            //only the last 4 slots are still available
+            List<SmtpMessage> messages = reader.readMessages();
+            assertEquals(4, messages.size());
+            assertEquals("Message 6", messages.get(0).getSubject());
+            assertEquals(6, reader.getLostCount());
+
+            //the data area holds less messages than the slots
+            for(int i=10 ; i<20 ; ++i) { writer.append(message(i, 1500)); }
+            messages = reader.readMessages();
+            assertTrue(messages.size()<4, "Read "+messages.size()+" messages");
+            assertEquals("Message 19", messages.get(messages.size()-1).getSubject());
+            assertEquals(20, reader.getPosition());
+            assertEquals(20, 4+messages.size()+reader.getLostCount());
+        }
+    }
+
+    @Test
+    public void testConcurrentReader() throws Exception {
+        Path ringPath = ringDir.resolve("concurrent.ring");
+        int nbMessages = 5000;
+        try(SmtpMessageRingWriter writer = new SmtpMessageRingWriter(ringPath, 64, 32*1024)) {
+            SmtpMessageRing reader = SmtpMessageRing.open(ringPath);
+            Thread producer = Thread.ofPlatform().start(() -> {
+                try { for(int i=0 ; i<nbMessages ; ++i) { writer.append(message(i, 100+i%500)); } }
+                catch(Exception e) { throw new RuntimeException(e); }
+            });
+
+            int read = 0;
+            while(reader.getPosition()<nbMessages) {
+                SmtpMessage message = reader.poll();
+                if(message==null) { continue; }
+
+                //a message is either fully read or skipped as lost, never corrupted
+                long sequence = reader.getPosition()-1;
+                assertEquals("Message "+sequence, message.getSubject());
+                assertEquals(100+(int)(sequence%500), message.getBody().trim().length());
+                ++read;
+            }
+            producer.join();
+            assertEquals(nbMessages, read+reader.getLostCount());
+        }
+    }
+
+    private static SmtpMessage message(int index, int bodySize) {
+        String content = "Subject: Message "+index+"\r\n\r\n"+"x".repeat(bodySize)+"\r\n";
+        return SmtpMessage.create("from@local.host", List.of("to@local.host"), content.getBytes(StandardCharsets.US_ASCII), List.of(), new Date());
+    }
+}
@@ -0,0 +1,184 @@
+package ch.astorm.smtp4j.storage;
+
+import ch.astorm.smtp4j.SmtpServer;
+import ch.astorm.smtp4j.SmtpServerBuilder;
+import ch.astorm.smtp4j.core.ContentDigest;
+import ch.astorm.smtp4j.core.SmtpAttachment;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import ch.astorm.smtp4j.core.SmtpMessage.ReceiveDetails;
+import ch.astorm.smtp4j.core.SmtpMessageHandler.SmtpMessageReader;
+import ch.astorm.smtp4j.storage.TieredSmtpMessageHandler.Tier;
+import ch.astorm.smtp4j.util.MimeMessageBuilder;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TieredSmtpMessageHandlerTest {
+
+    @TempDir
+    Path spillDir;
+
+    @Test
+    public void testDemotion() throws Exception {
+        int messageSize = message(0).length;
+        TieredSmtpMessageHandler store = new TieredSmtpMessageHandler(spillDir, 2*messageSize, 2*messageSize, 2*messageSize, 0);
+        store.notifyStart(null);
+
+        for(int i=0 ; i<8 ; ++i) { store.notifyMessage(null, SmtpMessage.create("from@local.host", List.of("to@local.host"), message(i), List.of())); }
+        assertEquals(2, store.getMessageCount(Tier.HEAP));
+        assertEquals(2, store.getMessageCount(Tier.RAW));
+        assertEquals(2, store.getMessageCount(Tier.OFF_HEAP));
+        assertEquals(2, store.getMessageCount(Tier.DISK));
+        assertEquals(2L*messageSize, store.getBytes(Tier.OFF_HEAP));
+        try(var files = Files.list(spillDir)) { assertEquals(2, files.count()); }
+
+        //the oldest messages are on disk
+        try(SmtpMessageReader reader = store.messageReader()) {
+            SmtpMessage first = reader.readMessage();
+            assertEquals("Message 0", first.getSubject());
+            assertEquals("to@local.host", first.getSourceRecipients().get(0));
+        }
+        assertEquals(1, store.getMessageCount(Tier.DISK));
+
+        List<SmtpMessage> messages = store.readMessages(-1, TimeUnit.SECONDS);
+        assertEquals(7, messages.size());
+        for(int i=0 ; i<7 ; ++i) {
+            assertEquals("Message "+(i+1), messages.get(i).getSubject());
+            assertEquals(new String(message(i+1), StandardCharsets.US_ASCII), messages.get(i).getRawMimeContent());
+        }
+
+        for(Tier tier : Tier.values()) {
+            assertEquals(0, store.getMessageCount(tier));
+            assertEquals(0, store.getBytes(tier));
+        }
+        try(var files = Files.list(spillDir)) { assertEquals(0, files.count()); }
+        store.notifyClose(null);
+    }
+
+    @Test
+    public void testReceiveStateKept(@TempDir Path attachmentDir) throws Exception {
+        Path file = Files.writeString(attachmentDir.resolve("notes.txt"), "Some notes");
+        long[][] budgets = { {0, Long.MAX_VALUE, Long.MAX_VALUE}, {0, 0, Long.MAX_VALUE}, {0, 0, 0} };
+        for(int t=0 ; t<budgets.length ; ++t) {
+            Tier tier = Tier.values()[t+1];
+            TieredSmtpMessageHandler store = new TieredSmtpMessageHandler(spillDir, budgets[t][0], budgets[t][1], budgets[t][2], 0);
+            store.notifyStart(null);
+
+            //headers only message with an attachment stored at receive time
+            SmtpAttachment attachment = new SmtpAttachment("notes.txt", "text/plain", file);
+            ReceiveDetails details = new ReceiveDetails(List.of(attachment), Map.of(ContentDigest.SHA_256, "digest"), 42);
+            store.notifyMessage(null, SmtpMessage.create("from@local.host", List.of("to@local.host"), message(0), List.of(), new Date(), details));
+            assertEquals(1, store.getMessageCount(tier), tier.name());
+
+            SmtpMessage message = store.readMessages(-1, TimeUnit.SECONDS).get(0);
+            assertTrue(message.isBodyDiscarded(), tier.name());
+            assertNull(message.getBody(), tier.name());
+            assertEquals(42, message.getBodyLength(), tier.name());
+            assertEquals("digest", message.getContentDigest(ContentDigest.SHA_256), tier.name());
+            assertSame(attachment, message.getAttachments().get(0), tier.name());
+            store.notifyClose(null);
+        }
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        TieredSmtpMessageHandler store = new TieredSmtpMessageHandler(spillDir, Long.MAX_VALUE, Long.MAX_VALUE, 0, TieredSmtpMessageHandler.DEFAULT_MEMORY_THRESHOLD);
+        try(SmtpServer server = new SmtpServerBuilder().withMessageHandler(store).start()) {
+            for(int i=0 ; i<3 ; ++i) {
+                new MimeMessageBuilder(server).
+                    from("from@local.host").
+                    to("target@local.host").
+                    subject("Message "+i).
+                    body("Content of message "+i).
+                    send();
+            }
+            assertEquals(3, store.getMessageCount(Tier.HEAP));
+
+            //without off-heap budget, the messages go straight to disk
+            store.spill(Tier.OFF_HEAP);
+            assertEquals(0, store.getMessageCount(Tier.HEAP));
+            assertEquals(3, store.getMessageCount(Tier.DISK));
+
+            List<SmtpMessage> messages = server.readReceivedMessages();
+            assertEquals(3, messages.size());
+            for(int i=0 ; i<3 ; ++i) {
+                assertEquals("Message "+i, messages.get(i).getSubject());
+                assertEquals("Content of message "+i, messages.get(i).getBody());
+            }
+            assertTrue(messages.get(0).getSmtpExchanges().size()>0);
+        }
+    }
+
+    @Test
+    public void testCloseDeletesSpilledFiles() throws Exception {
+        TieredSmtpMessageHandler store = new TieredSmtpMessageHandler(spillDir, 0, 0, 0, 0);
+        store.notifyStart(null);
+        for(int i=0 ; i<3 ; ++i) { store.notifyMessage(null, SmtpMessage.create("from@local.host", List.of("to@local.host"), message(i), List.of())); }
+        assertEquals(3, store.getMessageCount(Tier.DISK));
+        try(var files = Files.list(spillDir)) { assertEquals(3, files.count()); }
+
+        store.notifyClose(null);
+        assertEquals(0, store.getMessageCount(Tier.DISK));
+        assertEquals(0, store.getBytes(Tier.DISK));
+        try(var files = Files.list(spillDir)) { assertEquals(0, files.count()); }
+    }
+
+    @Test
+    public void testCloseDeletesTemporaryDirectory() throws Exception {
+        Path tmp = Path.of(System.getProperty("java.io.tmpdir"));
+        long before = countTemporaryDirectories(tmp);
+
+        TieredSmtpMessageHandler store = new TieredSmtpMessageHandler(null, 0, 0, 0, 0);
+        store.notifyStart(null);
+        store.notifyMessage(null, SmtpMessage.create("from@local.host", List.of("to@local.host"), message(0), List.of()));
+        assertEquals(before+1, countTemporaryDirectories(tmp));
+
+        store.notifyClose(null);
+        assertEquals(before, countTemporaryDirectories(tmp));
+    }
+
+    @Test
+    public void testSharedMemoryThreshold() throws Exception {
+        MemoryPoolMXBean pool = ManagementFactory.getMemoryPoolMXBeans().stream().
+                filter(p -> p.getType()==MemoryType.HEAP && p.isCollectionUsageThresholdSupported()).
+                filter(p -> p.getUsage().getMax()>0 && p.getCollectionUsageThreshold()==0).
+                findFirst().orElse(null);
+        if(pool==null) { return; }
+
+        TieredSmtpMessageHandler first = new TieredSmtpMessageHandler(spillDir, 0, 0, 0, 0.9);
+        TieredSmtpMessageHandler second = new TieredSmtpMessageHandler(spillDir, 0, 0, 0, 0.8);
+        first.notifyStart(null);
+        second.notifyStart(null);
+        try {
+            //the lowest ratio wins and closing one handler does not disable the threshold of the other
+            assertEquals((long)(pool.getUsage().getMax()*0.8), pool.getCollectionUsageThreshold());
+            second.notifyClose(null);
+            assertEquals((long)(pool.getUsage().getMax()*0.9), pool.getCollectionUsageThreshold());
+        } finally {
+            first.notifyClose(null);
+            second.notifyClose(null);
+        }
+        assertEquals(0, pool.getCollectionUsageThreshold());
+    }
+
+    private static long countTemporaryDirectories(Path tmp) throws Exception {
+        try(var files = Files.list(tmp)) { return files.filter(f -> f.getFileName().toString().startsWith("smtp4j-tiered")).count(); }
+    }
+
+    private static byte[] message(int index) {
+        return ("Subject: Message "+index+"\r\n\r\nSome content of the message").getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,20 @@
+package ch.astorm.smtp4j.util;
+
+/**
+ * Measures the heap retained by the benchmarks. The measures are only indicative since
+ * they depend on the garbage collector.
+ */
+public class HeapUsage {
+    private HeapUsage() {}
+
+    /**
+     * Returns the used heap after a few garbage collections.
+     *
+     * @return The used heap in bytes.
+     */
+    public static long usedHeap() {
+        for(int i=0 ; i<3 ; ++i) { System.gc(); }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory()-runtime.freeMemory();
+    }
+}
@@ -0,0 +1,44 @@
+package ch.astorm.smtp4j.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiFunction;
+import static ch.astorm.smtp4j.util.HeapUsage.usedHeap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares the heap retained by the envelopes with and without the {@link StringPool}.
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+public class StringPoolBenchmark {
+
+    @Test
+    public void benchmarkHeapFootprint() {
+        int nbMessages = 100_000;
+        StringPool pool = new StringPool(StringPool.DEFAULT_SIZE);
+
+        long plain = footprint(nbMessages, (param, end) -> param.substring(1, end));
+        long pooled = footprint(nbMessages, (param, end) -> pool.intern(param, 1, end));
+        System.out.println("Retained heap for the envelopes of "+nbMessages+" messages: plain="+(plain/1024)+"KB, pooled="+(pooled/1024)+"KB");
+    }
+
+    private static long footprint(int nbMessages, BiFunction<String, Integer, String> extractor) {
+        long before = usedHeap();
+
+        List<String[]> envelopes = new ArrayList<>(nbMessages);
+        for(int i=0 ; i<nbMessages ; ++i) {
+            //the parameters are created by each SMTP transaction
+            String fromParam = "<sender"+(i%10)+"@campaign.local.host>";
+            String rcptParam = "<recipient"+(i%500)+"@customers.local.host> NOTIFY=NEVER";
+            envelopes.add(new String[] {
+                extractor.apply(fromParam, fromParam.length()-1),
+                extractor.apply(rcptParam, rcptParam.indexOf('>'))
+            });
+        }
+
+        long retained = usedHeap()-before;
+        assertEquals(nbMessages, envelopes.size());
+        return retained;
+    }
+}
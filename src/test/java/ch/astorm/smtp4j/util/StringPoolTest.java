@@ -0,0 +1,68 @@
+package ch.astorm.smtp4j.util;
+
+import ch.astorm.smtp4j.SmtpServer;
+import ch.astorm.smtp4j.SmtpServerBuilder;
+import ch.astorm.smtp4j.core.SmtpMessage;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class StringPoolTest {
+
+    @Test
+    public void testIntern() {
+        StringPool pool = new StringPool(16);
+        String first = pool.intern("<info@local.host>", 1, 16);
+        assertEquals("info@local.host", first);
+        assertSame(first, pool.intern("RCPT TO:<info@local.host> NOTIFY=NEVER", 9, 24));
+        assertSame(first, pool.intern(new String("info@local.host")));
+        assertEquals(2, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+
+        String large = "x".repeat(StringPool.MAX_LENGTH+1);
+        assertTrue(pool.intern(large)!=pool.intern(new String(large)));
+
+        pool.clear();
+        assertTrue(first!=pool.intern(new String("info@local.host")));
+    }
+
+    @Test
+    public void testReceivedAddresses() throws Exception {
+        try(SmtpServer server = new SmtpServerBuilder().start()) {
+            for(int i=0 ; i<2 ; ++i) {
+                new MimeMessageBuilder(server).
+                    from("Sender <sender@local.host>").
+                    to("target@local.host").
+                    subject("Message "+i).
+                    body("Some content").
+                    send();
+            }
+
+            List<SmtpMessage> messages = server.readReceivedMessages();
+            assertSame(messages.get(0).getSourceFrom(), messages.get(1).getSourceFrom());
+            assertSame(messages.get(0).getSourceRecipients().get(0), messages.get(1).getSourceRecipients().get(0));
+            assertSame(messages.get(0).getFrom(), messages.get(1).getFrom());
+        }
+    }
+
+    @Test
+    public void testSharedInstances() {
+        StringPool pool = new StringPool(StringPool.DEFAULT_SIZE);
+        Set<String> instances = Collections.newSetFromMap(new IdentityHashMap<>());
+        for(int i=0 ; i<10_000 ; ++i) {
+            //the parameters are created by each SMTP transaction
+            String rcptParam = "<recipient"+(i%50)+"@customers.local.host> NOTIFY=NEVER";
+            instances.add(pool.intern(rcptParam, 1, rcptParam.indexOf('>')));
+        }
+
+        //each distinct address is retained only once
+        assertEquals(50, instances.size());
+        assertEquals(50, pool.getMissCount());
+        assertEquals(9_950, pool.getHitCount());
+    }
+}